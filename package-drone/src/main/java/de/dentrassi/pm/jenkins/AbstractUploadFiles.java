@@ -0,0 +1,182 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBH SYSTEMS GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBH SYSTEMS GmbH - initial API and implementation
+ *******************************************************************************/
+package de.dentrassi.pm.jenkins;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.tools.ant.types.FileSet;
+
+import de.dentrassi.pm.jenkins.delta.SignatureCache;
+import de.dentrassi.pm.jenkins.http.TokenBucket;
+import de.dentrassi.pm.jenkins.index.UploadIndex;
+import de.dentrassi.pm.jenkins.util.LoggerListenerWrapper;
+import hudson.Util;
+import hudson.model.Run;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+/*
+ * Base of the callables used to perform the upload of archives in a master or slave node.
+ */
+abstract class AbstractUploadFiles<T> extends MasterToSlaveFileCallable<T>
+{
+    private static final long serialVersionUID = -2306946443414581440L;
+
+    private static final int LOG_BUFFER_SIZE = 8 * 1024;
+
+    protected final String includes, excludes;
+
+    private final boolean defaultExcludes;
+
+    private final RunData runData;
+
+    private final LoggerListenerWrapper listener;
+
+    private final boolean stripPath;
+
+    protected final UploadOptions options;
+
+    /*
+     * Shared by all uploaders of the step, created on the node doing the upload.
+     */
+    private transient TokenBucket bandwidthLimit;
+
+    /*
+     * The workspace holding the cache when the files are read from another folder, null to use the folder of the files.
+     */
+    private String cacheBase;
+
+    AbstractUploadFiles ( final String includes, final String excludes, final boolean defaultExcludes, final boolean stripPath, final UploadOptions options, final Run<?, ?> run, final LoggerListenerWrapper listener )
+    {
+        this.includes = includes;
+        this.excludes = excludes;
+        this.defaultExcludes = defaultExcludes;
+        this.stripPath = stripPath;
+        this.options = options;
+        this.runData = new RunData ( run );
+        this.listener = listener;
+    }
+
+    @Override
+    public T invoke ( final File basedir, final VirtualChannel channel ) throws InterruptedException
+    {
+        // log lines are collected on the agent and sent to the master in chunks
+        final LoggerListenerWrapper listener = this.listener.buffered ( LOG_BUFFER_SIZE );
+        if ( this.options.getBandwidthLimit () > 0 )
+        {
+            this.bandwidthLimit = new TokenBucket ( this.options.getBandwidthLimit () * 1024L );
+        }
+        try
+        {
+            return upload ( basedir, listener );
+        }
+        finally
+        {
+            listener.flush ();
+        }
+    }
+
+    protected abstract T upload ( File basedir, LoggerListenerWrapper listener ) throws InterruptedException;
+
+    void setCacheBase ( final String cacheBase )
+    {
+        this.cacheBase = cacheBase;
+    }
+
+    /*
+     * Returns the files to upload with their upload name.
+     */
+    protected Map<File, String> scan ( final File basedir )
+    {
+        final FileSet fileSet = Util.createFileSet ( basedir, this.includes, this.excludes );
+        fileSet.setDefaultexcludes ( this.defaultExcludes );
+
+        final Map<File, String> files = new LinkedHashMap<> ();
+        for ( final String f : fileSet.getDirectoryScanner ().getIncludedFiles () )
+        {
+            final File file = new File ( basedir, f );
+            String filename;
+            if ( this.stripPath )
+            {
+                filename = file.getName ();
+            }
+            else
+            {
+                filename = f;
+            }
+            files.put ( file, filename );
+        }
+        return files;
+    }
+
+    protected AbstractUploader createUploader ( final File basedir, final ServerData serverData, final LoggerListenerWrapper listener ) throws IOException
+    {
+        final AbstractUploader uploader;
+        if ( serverData.isUploadV3 () )
+        {
+            uploader = new UploaderV3 ( this.runData, listener, serverData );
+        }
+        else
+        {
+            final UploaderV2 uploaderV2 = new UploaderV2 ( this.runData, listener, serverData );
+            if ( this.options.isDeltaUpload () )
+            {
+                uploaderV2.setSignatureCache ( new SignatureCache ( new File ( getCacheDir ( basedir ), "signatures" ), serverData.getServerURL (), serverData.getChannel () ) );
+            }
+            uploaderV2.setParallelism ( this.options.getParallelUploads () );
+            uploaderV2.setAdaptiveParallelism ( this.options.isAdaptiveParallelism () );
+            uploaderV2.setSplitSize ( this.options.getSplitUploadSize () * 1024L * 1024L );
+            uploader = uploaderV2;
+        }
+        uploader.setBandwidthLimit ( this.bandwidthLimit );
+        uploader.setPriority ( this.options.getPriority () );
+        return uploader;
+    }
+
+    /*
+     * Returns the folder where keep data between builds, next to the workspace like other plugins do.
+     */
+    protected File getCacheDir ( final File basedir )
+    {
+        final File workspace = this.cacheBase != null ? new File ( this.cacheBase ) : basedir;
+        return new File ( new File ( workspace.getParentFile (), workspace.getName () + "@tmp" ), "package-drone" );
+    }
+
+    /*
+     * Returns the index of the files uploaded by the previous build to the given channels, null if disabled.
+     */
+    protected UploadIndex loadIndex ( final File basedir, final List<ServerData> serverDataList )
+    {
+        if ( !this.options.isSkipUnchanged () )
+        {
+            return null;
+        }
+        return UnchangedFiles.loadIndex ( getCacheDir ( basedir ), serverDataList );
+    }
+
+    protected void reportFailure ( final IOException e, final LoggerListenerWrapper listener )
+    {
+        String message = e.getMessage ();
+        if ( message == null )
+        {
+            e.printStackTrace ( listener.error ( Messages.DroneRecorder_failedToUpload ( includes ) ) );
+        }
+        else
+        {
+            listener.error ( e.getMessage () );
+        }
+    }
+
+}
@@ -14,9 +14,12 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
@@ -25,7 +28,10 @@ import org.apache.commons.io.IOUtils;
 import org.apache.http.HttpEntity;
 
 import de.dentrassi.pm.jenkins.UploaderResult.ArtifactResult;
+import de.dentrassi.pm.jenkins.http.AdaptiveLimit;
 import de.dentrassi.pm.jenkins.http.DroneClient;
+import de.dentrassi.pm.jenkins.http.TokenBucket;
+import jenkins.util.VirtualFile;
 
 public abstract class AbstractUploader implements Uploader
 {
@@ -33,6 +39,15 @@ public abstract class AbstractUploader implements Uploader
 
     protected final Map<File, String> filesToUpload;
 
+    protected final Map<VirtualFile, String> archivedToUpload;
+
+    /**
+     * The parent of each gathered file uploaded as a child
+     */
+    protected final Map<File, File> fileParents;
+
+    protected final Map<VirtualFile, VirtualFile> archivedParents;
+
     private final DroneClient client;
 
     private final RunData runData;
@@ -41,6 +56,14 @@ public abstract class AbstractUploader implements Uploader
 
     private final SimpleDateFormat sdf;
 
+    private TokenBucket bandwidthLimit;
+
+    private UploadPriority priority = UploadPriority.NORMAL;
+
+    private long queueTime;
+
+    private long maxQueueTime;
+
     /**
      * Map containing the id and filename of the successfully uploaded artifacts
      * Fill from the upload results
@@ -51,6 +74,9 @@ public abstract class AbstractUploader implements Uploader
     {
         this.runData = runData;
         this.filesToUpload = new LinkedHashMap<> ();
+        this.archivedToUpload = new LinkedHashMap<> ();
+        this.fileParents = new HashMap<> ();
+        this.archivedParents = new HashMap<> ();
         this.uploadedArtifacts = new LinkedHashSet<> ();
         this.sdf = new SimpleDateFormat ( "yyyy-MM-dd HH:mm:ss.SSS" );
         this.sdf.setTimeZone ( TimeZone.getTimeZone ( "UTC" ) );
@@ -74,6 +100,80 @@ public abstract class AbstractUploader implements Uploader
         this.getClient ().setCredentials ( "deploy", this.serverData.getDeployKey () );
         this.getClient ().setChannel ( this.serverData.getChannel () );
         this.getClient ().setProxy ( this.runData.getProxy () );
+        this.getClient ().setBandwidthLimit ( this.bandwidthLimit );
+    }
+
+    /**
+     * Sets the bandwidth limit of the build step, shared with the other
+     * uploaders of the same step.
+     *
+     * @param bandwidthLimit
+     *            the limit or {@code null} if unlimited.
+     */
+    public void setBandwidthLimit ( final TokenBucket bandwidthLimit )
+    {
+        this.bandwidthLimit = bandwidthLimit;
+    }
+
+    /**
+     * Sets the priority of the uploads when waiting for a slot of the server.
+     *
+     * @param priority
+     *            the upload priority.
+     */
+    public void setPriority ( final UploadPriority priority )
+    {
+        this.priority = priority;
+    }
+
+    /**
+     * Waits for a free upload slot of the server, must be closed when the
+     * upload is complete.
+     * <p>
+     * An unhealthy server is waited for before taking the slot, so the slot
+     * is left to the uploads of other builds meanwhile.
+     */
+    protected UploadScheduler.Slot acquireUploadSlot () throws IOException
+    {
+        getClient ().awaitServer ();
+        final UploadScheduler.Slot slot = UploadScheduler.get ().acquire ( this.serverData.getServerURL (), this.priority );
+        synchronized ( this )
+        {
+            this.queueTime += slot.getQueueTime ();
+            this.maxQueueTime = Math.max ( this.maxQueueTime, slot.getQueueTime () );
+        }
+        return slot;
+    }
+
+    /**
+     * Returns how long uploads waited for a slot of the server.
+     *
+     * @return the total time in milliseconds.
+     */
+    public synchronized long getQueueTime ()
+    {
+        return queueTime;
+    }
+
+    /**
+     * Returns the longest time an upload waited for a slot of the server.
+     *
+     * @return the time in milliseconds.
+     */
+    public synchronized long getMaxQueueTime ()
+    {
+        return maxQueueTime;
+    }
+
+    /**
+     * Returns the limit of the concurrent uploads adapted to the server.
+     *
+     * @return the limit or {@code null} if the number of concurrent uploads
+     *         did not adapt.
+     */
+    public AdaptiveLimit getAdaptiveLimit ()
+    {
+        return null;
     }
 
     protected DroneClient getClient ()
@@ -101,6 +201,72 @@ public abstract class AbstractUploader implements Uploader
         filesToUpload.put ( file, filename );
     }
 
+    /*
+     * (non-Javadoc)
+     * @see de.dentrassi.pm.jenkins.Uploader#addArtifact(jenkins.util.VirtualFile, java.lang.String)
+     */
+    @Override
+    public void addArtifact ( final VirtualFile file, final String filename )
+    {
+        archivedToUpload.put ( file, filename );
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see de.dentrassi.pm.jenkins.Uploader#addChildArtifact(java.io.File, java.lang.String, java.io.File)
+     */
+    @Override
+    public void addChildArtifact ( final File file, final String filename, final File parent )
+    {
+        filesToUpload.put ( file, filename );
+        fileParents.put ( file, parent );
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see de.dentrassi.pm.jenkins.Uploader#addChildArtifact(jenkins.util.VirtualFile, java.lang.String, jenkins.util.VirtualFile)
+     */
+    @Override
+    public void addChildArtifact ( final VirtualFile file, final String filename, final VirtualFile parent )
+    {
+        archivedToUpload.put ( file, filename );
+        archivedParents.put ( file, parent );
+    }
+
+    /**
+     * Returns the children of each gathered file, in the order they were
+     * gathered.
+     *
+     * @param files
+     *            the gathered files.
+     * @param parents
+     *            the parent of each child.
+     * @return the children of each parent, the files without a parent are
+     *         under the {@code null} key.
+     */
+    protected static <T> Map<T, List<T>> makeTree ( final Map<T, String> files, final Map<T, T> parents )
+    {
+        final Map<T, List<T>> result = new HashMap<> ();
+        for ( final T file : files.keySet () )
+        {
+            T parent = parents.get ( file );
+            if ( parent != null && !files.containsKey ( parent ) )
+            {
+                // the parent is not uploaded
+                parent = null;
+            }
+
+            List<T> children = result.get ( parent );
+            if ( children == null )
+            {
+                children = new ArrayList<> ();
+                result.put ( parent, children );
+            }
+            children.add ( file );
+        }
+        return result;
+    }
+
     /*
      * (non-Javadoc)
      * @see de.dentrassi.pm.jenkins.Uploader#getUploadedArtifacts()
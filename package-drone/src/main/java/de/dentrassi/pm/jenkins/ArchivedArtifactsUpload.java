@@ -0,0 +1,187 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBH SYSTEMS GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBH SYSTEMS GmbH - initial API and implementation
+ *******************************************************************************/
+package de.dentrassi.pm.jenkins;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.types.selectors.SelectorUtils;
+
+import de.dentrassi.pm.jenkins.http.TokenBucket;
+import de.dentrassi.pm.jenkins.util.LoggerListenerWrapper;
+import hudson.model.Run;
+import jenkins.util.VirtualFile;
+
+/**
+ * Uploads the artifacts archived by a build, reading them from the artifact
+ * manager on the master instead of a workspace.
+ */
+class ArchivedArtifactsUpload
+{
+    private final String excludes;
+
+    private final boolean defaultExcludes;
+
+    private final boolean stripPath;
+
+    private final UploadOptions options;
+
+    /**
+     * Creates the upload configured by the given recorder.
+     *
+     * @param recorder
+     *            the excludes, the path handling and the options of the
+     *            upload.
+     */
+    ArchivedArtifactsUpload ( final DroneRecorder recorder )
+    {
+        this.excludes = recorder.getExcludes ();
+        this.defaultExcludes = recorder.isDefaultExcludes ();
+        this.stripPath = recorder.isStripPath ();
+        this.options = recorder.createOptions ();
+    }
+
+    /**
+     * Uploads the archived artifacts matching the given patterns to each
+     * channel.
+     *
+     * @param run
+     *            the build whose artifacts are uploaded.
+     * @param listener
+     *            where log the upload.
+     * @param artifacts
+     *            the ant glob pattern of the artifacts to upload.
+     * @param serverDataList
+     *            the channels, the main channel first.
+     * @return the result of each channel.
+     * @throws IOException
+     *             if the archived artifacts cannot be listed
+     */
+    List<UploaderResult> upload ( final Run<?, ?> run, final LoggerListenerWrapper listener, final String artifacts, final List<ServerData> serverDataList ) throws IOException
+    {
+        final Map<VirtualFile, String> files = scan ( run.getArtifactManager ().root (), artifacts );
+
+        final TokenBucket bandwidthLimit = options.getBandwidthLimit () > 0 ? new TokenBucket ( options.getBandwidthLimit () * 1024L ) : null;
+        final RunData runData = new RunData ( run );
+
+        final Map<VirtualFile, VirtualFile> parents = DroneChildArtifacts.findParents ( options.getChildArtifacts (), files );
+
+        final List<UploaderResult> results = new ArrayList<> ( serverDataList.size () );
+        for ( final ServerData serverData : serverDataList )
+        {
+            final UploaderResult result = new UploaderResult ();
+            result.setEmptyUpload ( files.isEmpty () );
+
+            if ( !files.isEmpty () )
+            {
+                final AbstractUploader uploader;
+                if ( serverData.isUploadV3 () )
+                {
+                    uploader = new UploaderV3 ( runData, listener, serverData );
+                }
+                else
+                {
+                    final UploaderV2 uploaderV2 = new UploaderV2 ( runData, listener, serverData );
+                    uploaderV2.setParallelism ( options.getParallelUploads () );
+                    uploaderV2.setAdaptiveParallelism ( options.isAdaptiveParallelism () );
+                    uploaderV2.setSplitSize ( options.getSplitUploadSize () * 1024L * 1024L );
+                    uploader = uploaderV2;
+                }
+                uploader.setBandwidthLimit ( bandwidthLimit );
+                uploader.setPriority ( options.getPriority () );
+                try
+                {
+                    for ( final Entry<VirtualFile, String> entry : files.entrySet () )
+                    {
+                        final VirtualFile parent = parents.get ( entry.getKey () );
+                        if ( parent == null )
+                        {
+                            uploader.addArtifact ( entry.getKey (), entry.getValue () );
+                        }
+                        else
+                        {
+                            uploader.addChildArtifact ( entry.getKey (), entry.getValue (), parent );
+                        }
+                    }
+                    uploader.performUpload ();
+                }
+                catch ( IOException e )
+                {
+                    result.setFailed ( true );
+                    e.printStackTrace ( listener.error ( Messages.DroneRecorder_failedToUpload ( artifacts ) ) );
+                }
+                finally
+                {
+                    result.addUploadedArtifacts ( uploader.getUploadedArtifacts () );
+                    result.addQueueTime ( uploader.getQueueTime (), uploader.getMaxQueueTime () );
+                    result.setAdaptiveLimit ( uploader.getAdaptiveLimit () );
+                    uploader.close ();
+                }
+            }
+            results.add ( result );
+        }
+
+        return results;
+    }
+
+    /*
+     * Returns the archived artifacts matching the patterns with their upload name.
+     */
+    private Map<VirtualFile, String> scan ( final VirtualFile root, final String includes ) throws IOException
+    {
+        final List<String> excludePatterns = new ArrayList<> ();
+        if ( this.excludes != null )
+        {
+            for ( final String pattern : this.excludes.split ( "," ) )
+            {
+                if ( !pattern.trim ().isEmpty () )
+                {
+                    excludePatterns.add ( pattern.trim () );
+                }
+            }
+        }
+        if ( this.defaultExcludes )
+        {
+            excludePatterns.addAll ( Arrays.asList ( DirectoryScanner.getDefaultExcludes () ) );
+        }
+
+        final Map<VirtualFile, String> files = new LinkedHashMap<> ();
+        for ( final String path : root.list ( includes ) )
+        {
+            if ( isExcluded ( path, excludePatterns ) )
+            {
+                continue;
+            }
+            final String filename = this.stripPath ? path.substring ( path.lastIndexOf ( '/' ) + 1 ) : path;
+            files.put ( root.child ( path ), filename );
+        }
+        return files;
+    }
+
+    private static boolean isExcluded ( final String path, final List<String> excludePatterns )
+    {
+        for ( final String pattern : excludePatterns )
+        {
+            if ( SelectorUtils.matchPath ( pattern, path ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
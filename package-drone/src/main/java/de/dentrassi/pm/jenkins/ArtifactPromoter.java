@@ -0,0 +1,176 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBH SYSTEMS GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBH SYSTEMS GmbH - initial API and implementation
+ *******************************************************************************/
+package de.dentrassi.pm.jenkins;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.eclipse.packagedrone.repo.api.upload.ArtifactInformation;
+import org.eclipse.packagedrone.repo.api.upload.RejectedArtifact;
+import org.eclipse.packagedrone.repo.api.upload.UploadError;
+import org.eclipse.packagedrone.repo.api.upload.UploadResult;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import de.dentrassi.pm.jenkins.UploaderResult.ArtifactResult;
+import de.dentrassi.pm.jenkins.http.DroneClient;
+import de.dentrassi.pm.jenkins.util.LoggerListenerWrapper;
+import hudson.ProxyConfiguration;
+
+/**
+ * Promotes artifacts already uploaded to a channel into another channel of the
+ * same server.
+ * <p>
+ * The server copies the artifacts by their identifiers, their content is not
+ * transferred again. Identifiers are sent in batches of {@link #BATCH_SIZE} so
+ * a promotion of a large build needs only a few calls.
+ */
+class ArtifactPromoter implements Closeable
+{
+    static final int BATCH_SIZE = 100;
+
+    private static final Gson GSON = new GsonBuilder ().create ();
+
+    private final ServerData serverData;
+
+    private final LoggerListenerWrapper listener;
+
+    private final DroneClient client;
+
+    private final Set<ArtifactResult> promotedArtifacts = new LinkedHashSet<> ();
+
+    /**
+     * Creates a promoter to the channel of the given server.
+     *
+     * @param serverData
+     *            the server and the channel where promote the artifacts.
+     * @param proxy
+     *            the proxy configuration, {@code null} if none.
+     * @param listener
+     *            where log the progress.
+     * @throws IOException
+     *             if the server URL is not valid
+     */
+    ArtifactPromoter ( final ServerData serverData, final ProxyConfiguration proxy, final LoggerListenerWrapper listener ) throws IOException
+    {
+        this.serverData = serverData;
+        this.listener = listener;
+        this.client = new DroneClient ();
+        this.client.setServerURL ( serverData.getServerURL () );
+        this.client.setCredentials ( "deploy", serverData.getDeployKey () );
+        this.client.setChannel ( serverData.getChannel () );
+        this.client.setProxy ( proxy );
+    }
+
+    /**
+     * Copies the given artifacts into the target channel.
+     *
+     * @param sourceChannel
+     *            the channel where the artifacts were uploaded.
+     * @param artifacts
+     *            the identifiers of the artifacts with their name.
+     * @throws IOException
+     *             if the server does not support copies or a call fails
+     */
+    public void promote ( final String sourceChannel, final Map<String, String> artifacts ) throws IOException
+    {
+        final List<String> ids = new ArrayList<> ( artifacts.keySet () );
+        for ( int i = 0; i < ids.size (); i += BATCH_SIZE )
+        {
+            final List<String> batch = ids.subList ( i, Math.min ( ids.size (), i + BATCH_SIZE ) );
+            listener.debug ( "Promoting %s artifacts from channel %s", batch.size (), sourceChannel );
+
+            processResponse ( client.copyToChannel ( sourceChannel, batch ) );
+        }
+    }
+
+    /**
+     * Returns the artifacts created in the target channel.
+     * <p>
+     * After a failed promotion these are the artifacts of the batches copied
+     * before the failure.
+     *
+     * @return the promoted and the rejected artifacts.
+     */
+    public Set<ArtifactResult> getPromotedArtifacts ()
+    {
+        return Collections.unmodifiableSet ( promotedArtifacts );
+    }
+
+    private void processResponse ( final HttpResponse response ) throws IOException
+    {
+        final HttpEntity entity = response.getEntity ();
+
+        listener.debug ( "Call returned: " + response.getStatusLine () );
+
+        switch ( response.getStatusLine ().getStatusCode () )
+        {
+            case 200:
+                if ( entity == null )
+                {
+                    throw new IOException ( Messages.ArtifactPromoter_noResult () );
+                }
+                final UploadResult result = GSON.fromJson ( makeString ( entity ), UploadResult.class );
+                for ( final ArtifactInformation ai : result.getCreatedArtifacts () )
+                {
+                    promotedArtifacts.add ( new ArtifactResult ( ai.getId (), ai.getName (), ai.getSize (), ai.getErrors (), ai.getWarnings () ) );
+                }
+                for ( final RejectedArtifact ai : result.getRejectedArtifacts () )
+                {
+                    promotedArtifacts.add ( new ArtifactResult ( ai.getName (), ai.getReason (), -1 ) );
+                }
+                break;
+            case 404:
+                throw new IOException ( Messages.ArtifactPromoter_copyNotSupported ( serverData.getServerURL () ) );
+            default:
+                String errorMessage = Messages.ArtifactPromoter_failedToPromote ( response.getStatusLine () );
+                final String httpResponseErrorMessage = getErrorMessage ( entity );
+                if ( httpResponseErrorMessage != null )
+                {
+                    errorMessage += "\n" + httpResponseErrorMessage;
+                }
+                throw new IOException ( errorMessage );
+        }
+    }
+
+    private static String getErrorMessage ( final HttpEntity entity ) throws IOException
+    {
+        if ( entity == null || entity.getContentType () == null || !entity.getContentType ().getValue ().equals ( "application/json" ) )
+        {
+            return null;
+        }
+
+        final UploadError error = GSON.fromJson ( makeString ( entity ), UploadError.class );
+        return error != null ? error.getMessage () : null;
+    }
+
+    private static String makeString ( final HttpEntity entity ) throws IOException
+    {
+        return IOUtils.toString ( entity.getContent (), AbstractUploader.UTF_8 );
+    }
+
+    @Override
+    public void close ()
+    {
+        client.close ();
+    }
+
+}
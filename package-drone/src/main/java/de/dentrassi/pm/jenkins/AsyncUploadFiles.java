@@ -0,0 +1,243 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBH SYSTEMS GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBH SYSTEMS GmbH - initial API and implementation
+ *******************************************************************************/
+package de.dentrassi.pm.jenkins;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import hudson.FilePath.FileCallable;
+import hudson.remoting.Channel;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Starts an upload in a background thread of the node holding the workspace
+ * and returns at once.
+ * <p>
+ * When the upload completes its results are passed to a {@link Callback}
+ * exported by the master, so neither an executor nor a thread of the master
+ * waits for the upload meanwhile.
+ */
+class AsyncUploadFiles extends MasterToSlaveFileCallable<AsyncUploadFiles.Handle>
+{
+    private static final long serialVersionUID = -6310214587042338763L;
+
+    /**
+     * Receives the result of the upload on the master.
+     */
+    public interface Callback
+    {
+        /**
+         * Called when the upload completed.
+         *
+         * @param results
+         *            the result of each channel, the main channel first.
+         */
+        void onUploaded ( List<UploaderResult> results );
+
+        /**
+         * Called when the upload could not complete.
+         *
+         * @param cause
+         *            the error which stopped the upload.
+         */
+        void onFailure ( Throwable cause );
+    }
+
+    /**
+     * Controls the running upload from the master.
+     */
+    public interface Handle
+    {
+        /**
+         * Interrupts the upload, the callback is not notified if the upload
+         * did not start yet.
+         */
+        void cancel ();
+    }
+
+    /*
+     * Shared by all asynchronous uploads of the node, threads are only kept while uploads run.
+     */
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool ( new NamingThreadFactory ( new DaemonThreadFactory (), "pdrone-async-upload" ) );
+
+    private final FileCallable<?> upload;
+
+    private final Callback callback;
+
+    /**
+     * @param upload
+     *            the upload to run, returning either an {@link UploaderResult}
+     *            or a list of them.
+     * @param callback
+     *            the callback exported by the master.
+     */
+    AsyncUploadFiles ( final FileCallable<?> upload, final Callback callback )
+    {
+        this.upload = upload;
+        this.callback = callback;
+    }
+
+    @Override
+    public Handle invoke ( final File basedir, final VirtualChannel channel )
+    {
+        final Future<?> future = EXECUTOR.submit ( new Runnable () {
+
+            @Override
+            public void run ()
+            {
+                final List<UploaderResult> results;
+                try
+                {
+                    results = toList ( upload.invoke ( basedir, channel ) );
+                }
+                catch ( final Throwable e )
+                {
+                    callback.onFailure ( e );
+                    return;
+                }
+                callback.onUploaded ( results );
+            }
+        } );
+
+        return channel.export ( Handle.class, new Handle () {
+
+            @Override
+            public void cancel ()
+            {
+                future.cancel ( true );
+            }
+        } );
+    }
+
+    /**
+     * Wraps the callback so it fails when the channel to the node closes
+     * before the node reported the results, since the node cannot call back
+     * anymore then.
+     *
+     * @param channel
+     *            the channel to the node running the upload.
+     * @param callback
+     *            the callback to notify.
+     * @return the callback to export to the node, which notifies the given
+     *         one only once.
+     */
+    static ClosingCallback failOnClose ( final VirtualChannel channel, final Callback callback )
+    {
+        final ClosingCallback result = new ClosingCallback ( channel instanceof Channel ? (Channel)channel : null, callback );
+        result.register ();
+        return result;
+    }
+
+    /**
+     * Notifies a callback once, with the results of the node or with the
+     * closing of its channel.
+     */
+    static class ClosingCallback extends Channel.Listener implements Callback
+    {
+        private final Channel channel;
+
+        private final Callback callback;
+
+        private final AtomicBoolean done = new AtomicBoolean ();
+
+        ClosingCallback ( final Channel channel, final Callback callback )
+        {
+            this.channel = channel;
+            this.callback = callback;
+        }
+
+        private void register ()
+        {
+            if ( channel == null )
+            {
+                // the master itself
+                return;
+            }
+            channel.addListener ( this );
+            if ( channel.isClosingOrClosed () )
+            {
+                // closed before the listener was added
+                onClosed ( channel, null );
+            }
+        }
+
+        /**
+         * Stops watching the channel, when the upload could not be started.
+         */
+        void unregister ()
+        {
+            if ( done.compareAndSet ( false, true ) && channel != null )
+            {
+                channel.removeListener ( this );
+            }
+        }
+
+        @Override
+        public void onUploaded ( final List<UploaderResult> results )
+        {
+            if ( complete () )
+            {
+                callback.onUploaded ( results );
+            }
+        }
+
+        @Override
+        public void onFailure ( final Throwable cause )
+        {
+            if ( complete () )
+            {
+                callback.onFailure ( cause );
+            }
+        }
+
+        @Override
+        public void onClosed ( final Channel channel, final IOException cause )
+        {
+            if ( complete () )
+            {
+                callback.onFailure ( new IOException ( Messages.AsyncUploadFiles_channelClosed ( channel.getName () ), cause ) );
+            }
+        }
+
+        private boolean complete ()
+        {
+            if ( !done.compareAndSet ( false, true ) )
+            {
+                return false;
+            }
+            if ( channel != null )
+            {
+                channel.removeListener ( this );
+            }
+            return true;
+        }
+    }
+
+    @SuppressWarnings ( "unchecked" )
+    private static List<UploaderResult> toList ( final Object result )
+    {
+        if ( result instanceof UploaderResult )
+        {
+            return Collections.singletonList ( (UploaderResult)result );
+        }
+        return (List<UploaderResult>)result;
+    }
+
+}
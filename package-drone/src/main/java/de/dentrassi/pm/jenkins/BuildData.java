@@ -11,6 +11,7 @@
 package de.dentrassi.pm.jenkins;
 
 import java.io.Serializable;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -32,11 +33,23 @@ public class BuildData implements Action, Serializable, Cloneable, ProminentProj
 
     private final Map<String, String> artifacts;
 
+    /**
+     * Whether the artifacts were copied by a {@link DronePromoter} instead of
+     * uploaded, {@code false} for the data of older builds.
+     */
+    private final boolean promoted;
+
     public BuildData ( final String serverUrl, final String channel, final Map<String, String> artifacts )
+    {
+        this ( serverUrl, channel, artifacts, false );
+    }
+
+    public BuildData ( final String serverUrl, final String channel, final Map<String, String> artifacts, final boolean promoted )
     {
         this.serverUrl = serverUrl;
         this.channel = channel;
         this.artifacts = artifacts;
+        this.promoted = promoted;
     }
 
     @Override
@@ -80,6 +93,26 @@ public class BuildData implements Action, Serializable, Cloneable, ProminentProj
         return artifactsURL;
     }
 
+    /**
+     * Returns the artifacts uploaded to the channel.
+     *
+     * @return an unmodifiable map of the artifact identifiers with their name.
+     */
+    public Map<String, String> getArtifactIds ()
+    {
+        return Collections.unmodifiableMap ( this.artifacts );
+    }
+
+    /**
+     * Returns whether the artifacts were promoted from another channel.
+     *
+     * @return {@code true} if a {@link DronePromoter} copied the artifacts.
+     */
+    public boolean isPromoted ()
+    {
+        return this.promoted;
+    }
+
     public Object readResolve ()
     {
         return this;
@@ -94,7 +127,7 @@ public class BuildData implements Action, Serializable, Cloneable, ProminentProj
         }
         else
         {
-            return new BuildData ( this.serverUrl, this.channel, new HashMap<> ( this.artifacts ) );
+            return new BuildData ( this.serverUrl, this.channel, new HashMap<> ( this.artifacts ), this.promoted );
         }
     }
 
@@ -12,6 +12,11 @@
 package de.dentrassi.pm.jenkins;
 
 import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 
 import de.dentrassi.pm.jenkins.UploaderResult.ArtifactResult;
 import hudson.console.ExpandableDetailsNote;
@@ -22,10 +27,32 @@ import hudson.console.ExpandableDetailsNote;
 public final class ConsoleUtils
 {
 
+    /**
+     * Rejected artifacts listed for each reason, the others are only counted.
+     */
+    private static final int MAX_REJECTED_ROWS = 20;
+
     private ConsoleUtils ()
     {
     }
 
+    /**
+     * Generates one line for each reason artifacts were rejected for.
+     *
+     * @param result
+     *            of the uploaded files.
+     * @return the lines like "3 artifacts rejected because X".
+     */
+    public static List<String> buildRejectSummary ( final UploaderResult result )
+    {
+        final List<String> lines = new ArrayList<> ( result.getRejectReasons ().size () );
+        for ( final Entry<String, Integer> reason : result.getRejectReasons ().entrySet () )
+        {
+            lines.add ( MessageFormat.format ( "{0,choice,1#1 artifact|1<{0,number,integer} artifacts} rejected because {1}", reason.getValue (), reason.getKey () ) );
+        }
+        return lines;
+    }
+
     /**
      * Generates a summary of all artifacts uploaded to a pdrone server
      * instance.
@@ -45,46 +72,83 @@ public final class ConsoleUtils
 
         sb.append ( "<tbody>" );
 
-        int rejectedCount = 0;
         for ( final ArtifactResult entry : result.getUploadedArtifacts () )
         {
+            if ( entry.isRejected () )
+            {
+                // rejected artifacts are listed after the others grouped by reason
+                continue;
+            }
+
             sb.append ( "<tr>" );
 
             sb.append ( "<td>" ).append ( entry.getName () ).append ( "</td>" );
-            if ( !entry.isRejected () )
-            {
-                sb.append ( "<td>" ).append ( "<a target=\"_blank\" href=\"" ).append ( URLMaker.make ( serverData.getServerURL (), serverData.getChannel (), entry.getId () ) ).append ( "\">" ).append ( entry.getId () ).append ( "</a>" ).append ( "</td>" );
-                sb.append ( "<td>" ).append ( entry.getSize () ).append ( "</td>" );
+            sb.append ( "<td>" ).append ( "<a target=\"_blank\" href=\"" ).append ( URLMaker.make ( serverData.getServerURL (), serverData.getChannel (), entry.getId () ) ).append ( "\">" ).append ( entry.getId () ).append ( "</a>" ).append ( "</td>" );
+            sb.append ( "<td>" ).append ( entry.getSize () ).append ( "</td>" );
 
-                sb.append ( "<td>" );
-                long errorsCount = entry.getErrors ();
-                long warningsCount = entry.getWarnings ();
+            sb.append ( "<td>" );
+            long errorsCount = entry.getErrors ();
+            long warningsCount = entry.getWarnings ();
 
+            if ( errorsCount > 0 )
+            {
+                sb.append ( MessageFormat.format ( "{0,choice,1#1 error|1<{0,number,integer} errors}", errorsCount ) );
+            }
+            if ( warningsCount > 0 )
+            {
                 if ( errorsCount > 0 )
                 {
-                    sb.append ( MessageFormat.format ( "{0,choice,1#1 error|1<{0,number,integer} errors}", errorsCount ) );
-                }
-                if ( warningsCount > 0 )
-                {
-                    if ( errorsCount > 0 )
-                    {
-                        sb.append ( ", " );
-                    }
-                    sb.append ( MessageFormat.format ( "{0,choice,1#1 error|1<{0,number,integer} warnings}", warningsCount ) );
+                    sb.append ( ", " );
                 }
-                sb.append ( "</td>" );
+                sb.append ( MessageFormat.format ( "{0,choice,1#1 error|1<{0,number,integer} warnings}", warningsCount ) );
+            }
+            if ( entry.isReused () )
+            {
+                sb.append ( "unchanged, reused" );
+            }
+            sb.append ( "</td>" );
+
+            sb.append ( "</tr>" );
+        }
+
+        final Map<String, Integer> shownRejects = new HashMap<> ();
+        for ( final ArtifactResult entry : result.getUploadedArtifacts () )
+        {
+            if ( !entry.isRejected () )
+            {
+                continue;
             }
-            else
+
+            final Integer shown = shownRejects.get ( entry.getReason () );
+            if ( shown != null && shown >= MAX_REJECTED_ROWS )
             {
-                rejectedCount++;
-                sb.append ( "<td>" ).append ( entry.getReason () ).append ( "</td>" );
+                continue;
             }
+            shownRejects.put ( entry.getReason (), shown == null ? 1 : shown + 1 );
 
+            sb.append ( "<tr>" );
+            sb.append ( "<td>" ).append ( entry.getName () ).append ( "</td>" );
+            sb.append ( "<td>" ).append ( entry.getReason () ).append ( "</td>" );
             sb.append ( "</tr>" );
         }
+
+        for ( final Entry<String, Integer> reason : result.getRejectReasons ().entrySet () )
+        {
+            if ( reason.getValue () > MAX_REJECTED_ROWS )
+            {
+                sb.append ( "<tr><td colspan=\"4\">" );
+                sb.append ( MessageFormat.format ( "... and {0,number,integer} more rejected because {1}", reason.getValue () - MAX_REJECTED_ROWS, reason.getKey () ) );
+                sb.append ( "</td></tr>" );
+            }
+        }
         sb.append ( "</tbody></table>" );
 
-        return new ExpandableDetailsNote ( String.format ( "Uploaded: %s, rejected: %s", result.getUploadedArtifacts ().size (), rejectedCount ), sb.toString () );
+        String summary = String.format ( "Uploaded: %s, rejected: %s", result.getUploadedArtifacts ().size () - result.getReusedCount (), result.getRejectedCount () );
+        if ( result.getReusedCount () > 0 )
+        {
+            summary += String.format ( ", reused: %s", result.getReusedCount () );
+        }
+        return new ExpandableDetailsNote ( summary, sb.toString () );
     }
 
 }
@@ -0,0 +1,57 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBH SYSTEMS GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBH SYSTEMS GmbH - initial API and implementation
+ *******************************************************************************/
+package de.dentrassi.pm.jenkins;
+
+import java.util.List;
+
+import org.jenkinsci.plugins.plaincredentials.StringCredentials;
+
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.domains.DomainRequirement;
+import com.cloudbees.plugins.credentials.domains.URIRequirementBuilder;
+
+import hudson.AbortException;
+import hudson.model.Run;
+
+/**
+ * Looks up the deploy keys of the channels in the credentials of Jenkins.
+ */
+final class DeployKeys
+{
+    private DeployKeys ()
+    {
+    }
+
+    /**
+     * Returns the deploy key stored in the given credentials.
+     *
+     * @param run
+     *            the build using the credentials.
+     * @param serverURL
+     *            the server the key is for.
+     * @param credentialsId
+     *            the id of the secret text credentials.
+     * @return the deploy key.
+     * @throws AbortException
+     *             if there are no such credentials.
+     */
+    static String resolve ( final Run<?, ?> run, final String serverURL, final String credentialsId ) throws AbortException
+    {
+        List<DomainRequirement> domainRequirement = URIRequirementBuilder.fromUri ( serverURL ).build ();
+        StringCredentials secret = CredentialsProvider.findCredentialById ( credentialsId, StringCredentials.class, run, domainRequirement );
+        if ( secret == null )
+        {
+            throw new AbortException ( Messages.DroneRecorder_noCredentialIdFound ( credentialsId ) );
+        }
+        return secret.getSecret ().getPlainText ();
+    }
+
+}
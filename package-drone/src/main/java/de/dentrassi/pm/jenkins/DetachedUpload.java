@@ -0,0 +1,377 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBH SYSTEMS GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBH SYSTEMS GmbH - initial API and implementation
+ *******************************************************************************/
+package de.dentrassi.pm.jenkins;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import de.dentrassi.pm.jenkins.util.LoggerListenerWrapper;
+import hudson.AbortException;
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.model.Run;
+import hudson.remoting.VirtualChannel;
+import hudson.util.StreamTaskListener;
+import jenkins.model.Jenkins;
+
+/**
+ * An upload queued by a build which does not wait for it.
+ * <p>
+ * The files are read from a copy in the workspace node, or from the archived
+ * artifacts of the build. The upload writes its own log into the build
+ * directory, since the log of the build may be already closed.
+ * <p>
+ * The upload is stored in the journal of the {@link DetachedUploadQueue}
+ * without any secret: the configuration of the recorder without the legacy
+ * deploy key, and the channels with their credentials id. The deploy keys are
+ * resolved again from the credentials when the upload is resumed after a
+ * restart.
+ */
+class DetachedUpload
+{
+    /**
+     * The name of the log of the upload in the build directory.
+     */
+    static final String LOG_NAME = "pdrone-upload.log";
+
+    private static final Charset LOG_CHARSET = Charset.forName ( "UTF-8" );
+
+    /*
+     * A channel of the upload, without deploy key.
+     */
+    private static class Channel
+    {
+        private String serverUrl;
+
+        private String channel;
+
+        private String credentialsId;
+
+        private boolean uploadV3;
+    }
+
+    private String id;
+
+    private String runId;
+
+    private String artifacts;
+
+    /*
+     * The node and the directory holding the copy of the files, null for archived artifacts.
+     */
+    private String nodeName;
+
+    private String stagingPath;
+
+    /*
+     * The workspace the files were copied from, which holds the cache kept between builds.
+     */
+    private String workspacePath;
+
+    /*
+     * The configuration of the recorder as XML, without the legacy deploy key.
+     */
+    private String recorder;
+
+    /*
+     * The channels not uploaded yet.
+     */
+    private List<Channel> channels;
+
+    private long queued;
+
+    private int failures;
+
+    private transient int attempts;
+
+    private transient DroneRecorder recorderInstance;
+
+    private transient List<ServerData> serverDataList;
+
+    DetachedUpload ( final DroneRecorder recorder, final Run<?, ?> run, final String artifacts, final List<ServerData> serverDataList )
+    {
+        this ( recorder, run, artifacts, serverDataList, null, null );
+    }
+
+    /**
+     * Creates the upload of files copied from the given workspace, each upload
+     * gets its own copy next to the workspace.
+     */
+    DetachedUpload ( final DroneRecorder recorder, final Run<?, ?> run, final String artifacts, final List<ServerData> serverDataList, final String nodeName, final FilePath workspace )
+    {
+        this.id = UUID.randomUUID ().toString ();
+        this.runId = run.getExternalizableId ();
+        this.artifacts = artifacts;
+        this.nodeName = nodeName;
+        if ( workspace != null )
+        {
+            this.workspacePath = workspace.getRemote ();
+            this.stagingPath = workspace.sibling ( workspace.getName () + "@tmp" ).child ( "pdrone-" + this.id ).getRemote ();
+        }
+        this.queued = System.currentTimeMillis ();
+
+        final DroneRecorder copy = (DroneRecorder)Jenkins.XSTREAM2.fromXML ( Jenkins.XSTREAM2.toXML ( recorder ) );
+        copy.setDeployKey ( null );
+        this.recorder = Jenkins.XSTREAM2.toXML ( copy );
+
+        this.channels = new ArrayList<> ( serverDataList.size () );
+        for ( final ServerData serverData : serverDataList )
+        {
+            final Channel channel = new Channel ();
+            channel.serverUrl = serverData.getServerURL ();
+            channel.channel = serverData.getChannel ();
+            channel.credentialsId = serverData.getCredentialsId ();
+            channel.uploadV3 = serverData.isUploadV3 ();
+            this.channels.add ( channel );
+        }
+
+        this.recorderInstance = recorder;
+        this.serverDataList = new ArrayList<> ( serverDataList );
+    }
+
+    String getId ()
+    {
+        return id;
+    }
+
+    /**
+     * Returns the build which queued the upload.
+     *
+     * @return the build or {@code null} if it was deleted meanwhile.
+     */
+    Run<?, ?> getRun ()
+    {
+        return Run.fromExternalizableId ( runId );
+    }
+
+    String getRunId ()
+    {
+        return runId;
+    }
+
+    /**
+     * Returns the node holding the copy of the files.
+     *
+     * @return the node name, empty for the master, {@code null} if the
+     *         archived artifacts are uploaded.
+     */
+    String getNodeName ()
+    {
+        return nodeName;
+    }
+
+    boolean isArchived ()
+    {
+        return stagingPath == null;
+    }
+
+    /**
+     * Returns when the upload was queued.
+     *
+     * @return the time in milliseconds since the epoch.
+     */
+    long getQueued ()
+    {
+        return queued;
+    }
+
+    /**
+     * Counts the starts of the upload, each start gets its own number.
+     *
+     * @return the number of this attempt.
+     */
+    synchronized int nextAttempt ()
+    {
+        return ++attempts;
+    }
+
+    synchronized int getAttempts ()
+    {
+        return attempts;
+    }
+
+    /**
+     * Counts the failed attempts.
+     *
+     * @return the number of failed attempts so far.
+     */
+    synchronized int addFailure ()
+    {
+        return ++failures;
+    }
+
+    synchronized int getFailures ()
+    {
+        return failures;
+    }
+
+    /**
+     * Prepares the upload to run, resolving the deploy keys again if the
+     * upload was read from the journal.
+     *
+     * @throws AbortException
+     *             if a deploy key cannot be resolved.
+     */
+    synchronized void resolve ( final Run<?, ?> run ) throws AbortException
+    {
+        if ( serverDataList != null )
+        {
+            return;
+        }
+
+        final List<ServerData> result = new ArrayList<> ( channels.size () );
+        for ( final Channel channel : channels )
+        {
+            if ( channel.credentialsId == null )
+            {
+                throw new AbortException ( Messages.DetachedUpload_noCredentials ( channel.channel ) );
+            }
+            final String deployKey = DeployKeys.resolve ( run, channel.serverUrl, channel.credentialsId );
+            result.add ( new ServerData ( channel.serverUrl, channel.channel, deployKey, channel.uploadV3, channel.credentialsId ) );
+        }
+        this.recorderInstance = (DroneRecorder)Jenkins.XSTREAM2.fromXML ( recorder );
+        this.serverDataList = result;
+    }
+
+    /**
+     * Opens the log of the background uploads in the build directory,
+     * appending to the log of previous attempts.
+     */
+    static StreamTaskListener openLog ( final Run<?, ?> run ) throws IOException
+    {
+        return new StreamTaskListener ( new File ( run.getRootDir (), LOG_NAME ), true, LOG_CHARSET );
+    }
+
+    /**
+     * Uploads the archived artifacts of the build, waiting for the upload.
+     *
+     * @return the result of each remaining channel.
+     */
+    synchronized List<UploaderResult> uploadArchived ( final Run<?, ?> run, final StreamTaskListener log ) throws IOException
+    {
+        return new ArchivedArtifactsUpload ( recorderInstance ).upload ( run, new LoggerListenerWrapper ( log, true ), artifacts, serverDataList );
+    }
+
+    /**
+     * Starts the upload of the copied files on their node.
+     *
+     * @param channel
+     *            the channel to the node holding the files.
+     * @param callback
+     *            the callback receiving the results on the master.
+     * @return the handle of the running upload.
+     */
+    synchronized AsyncUploadFiles.Handle start ( final Run<?, ?> run, final StreamTaskListener log, final VirtualChannel channel, final AsyncUploadFiles.Callback callback ) throws IOException, InterruptedException
+    {
+        final LoggerListenerWrapper listener = new LoggerListenerWrapper ( log, true );
+        final FileCallable<?> upload = createCallable ( run, listener );
+        return getStaging ( channel ).act ( new AsyncUploadFiles ( upload, channel.export ( AsyncUploadFiles.Callback.class, callback ) ) );
+    }
+
+    /*
+     * Creates the upload of the files copied aside, the cache is kept in the original workspace.
+     */
+    private FileCallable<?> createCallable ( final Run<?, ?> run, final LoggerListenerWrapper listener )
+    {
+        final AbstractUploadFiles<?> upload;
+        if ( serverDataList.size () == 1 )
+        {
+            upload = new UploadFiles ( artifacts, recorderInstance.getExcludes (), recorderInstance.isDefaultExcludes (), recorderInstance.isStripPath (), recorderInstance.createOptions (), serverDataList.get ( 0 ), run, listener );
+        }
+        else
+        {
+            // nothing waits for a detached upload, there is no point returning before all channels are done
+            final UploadOptions options = recorderInstance.createOptions ();
+            options.setQuorum ( 0 );
+            upload = new FanOutUploadFiles ( artifacts, recorderInstance.getExcludes (), recorderInstance.isDefaultExcludes (), recorderInstance.isStripPath (), options, serverDataList, run, listener );
+        }
+        upload.setCacheBase ( workspacePath );
+        return upload;
+    }
+
+    /**
+     * Records the results on the build, the channels which failed are kept
+     * for the next attempt unless this is the last one.
+     *
+     * @param results
+     *            the result of each remaining channel.
+     * @param lastAttempt
+     *            if the failed channels are recorded as well.
+     * @return {@code true} if no channel remains.
+     */
+    synchronized boolean complete ( final Run<?, ?> run, final StreamTaskListener log, final List<UploaderResult> results, final boolean lastAttempt ) throws IOException
+    {
+        final List<ServerData> recorded = new ArrayList<> ();
+        final List<UploaderResult> recordedResults = new ArrayList<> ();
+
+        final List<Channel> remaining = new ArrayList<> ();
+        final List<ServerData> remainingData = new ArrayList<> ();
+
+        for ( int i = 0; i < results.size (); i++ )
+        {
+            if ( results.get ( i ).isFailed () && !lastAttempt )
+            {
+                remaining.add ( channels.get ( i ) );
+                remainingData.add ( serverDataList.get ( i ) );
+            }
+            else
+            {
+                recorded.add ( serverDataList.get ( i ) );
+                recordedResults.add ( results.get ( i ) );
+            }
+        }
+
+        if ( !recorded.isEmpty () )
+        {
+            recorderInstance.processDetachedResults ( run, log, artifacts, recorded, recordedResults );
+        }
+
+        this.channels = remaining;
+        this.serverDataList = remainingData;
+        return remaining.isEmpty ();
+    }
+
+    /**
+     * Deletes the copy of the files, and the cache of uploads queued before
+     * the cache was kept in the workspace.
+     */
+    void cleanUp ( final VirtualChannel channel ) throws IOException, InterruptedException
+    {
+        if ( !isArchived () )
+        {
+            final FilePath staging = getStaging ( channel );
+            staging.deleteRecursive ();
+            staging.sibling ( staging.getName () + "@tmp" ).deleteRecursive ();
+        }
+    }
+
+    /**
+     * Returns the directory holding the copy of the files.
+     *
+     * @param channel
+     *            the channel to the node of the workspace.
+     */
+    FilePath getStaging ( final VirtualChannel channel )
+    {
+        return new FilePath ( channel, stagingPath );
+    }
+
+    @Override
+    public String toString ()
+    {
+        return String.format ( "%s (%s)", runId, id );
+    }
+
+}
@@ -0,0 +1,203 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBH SYSTEMS GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBH SYSTEMS GmbH - initial API and implementation
+ *******************************************************************************/
+package de.dentrassi.pm.jenkins;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+
+/**
+ * The append-only log of the detached uploads not completed yet.
+ * <p>
+ * Each line is a JSON record which adds, updates or removes an upload. The
+ * log is read once at startup and rewritten with the pending uploads only,
+ * and it is emptied whenever no upload is pending. A line cut by a crash is
+ * ignored together with the lines after it.
+ */
+class DetachedUploadJournal
+{
+    private static final Logger LOGGER = Logger.getLogger ( DetachedUploadJournal.class.getName () );
+
+    private static final Charset CHARSET = Charset.forName ( "UTF-8" );
+
+    private static final String ADD = "add";
+
+    private static final String UPDATE = "update";
+
+    private static final String REMOVE = "remove";
+
+    private static class Record
+    {
+        private String op;
+
+        private String id;
+
+        private DetachedUpload upload;
+
+        Record ( final String op, final String id, final DetachedUpload upload )
+        {
+            this.op = op;
+            this.id = id;
+            this.upload = upload;
+        }
+    }
+
+    private final File file;
+
+    private final Gson gson = new GsonBuilder ().create ();
+
+    DetachedUploadJournal ( final File file )
+    {
+        this.file = file;
+    }
+
+    void added ( final DetachedUpload upload ) throws IOException
+    {
+        append ( new Record ( ADD, upload.getId (), upload ) );
+    }
+
+    void updated ( final DetachedUpload upload ) throws IOException
+    {
+        append ( new Record ( UPDATE, upload.getId (), upload ) );
+    }
+
+    void removed ( final DetachedUpload upload ) throws IOException
+    {
+        append ( new Record ( REMOVE, upload.getId (), null ) );
+    }
+
+    /**
+     * Reads the pending uploads and compacts the log.
+     *
+     * @return the pending uploads in the order they were queued.
+     */
+    synchronized List<DetachedUpload> load () throws IOException
+    {
+        final Map<String, DetachedUpload> uploads = new LinkedHashMap<> ();
+        if ( file.isFile () )
+        {
+            try ( BufferedReader reader = new BufferedReader ( new InputStreamReader ( new FileInputStream ( file ), CHARSET ) ) )
+            {
+                String line;
+                while ( ( line = reader.readLine () ) != null )
+                {
+                    if ( line.isEmpty () )
+                    {
+                        continue;
+                    }
+
+                    final Record record;
+                    try
+                    {
+                        record = gson.fromJson ( line, Record.class );
+                    }
+                    catch ( final JsonParseException e )
+                    {
+                        LOGGER.log ( Level.WARNING, "Ignoring the rest of the damaged upload journal " + file, e );
+                        break;
+                    }
+
+                    if ( REMOVE.equals ( record.op ) )
+                    {
+                        uploads.remove ( record.id );
+                    }
+                    else if ( record.upload != null )
+                    {
+                        uploads.put ( record.id, record.upload );
+                    }
+                }
+            }
+        }
+
+        final List<DetachedUpload> result = new ArrayList<> ( uploads.values () );
+        compact ( result );
+        return result;
+    }
+
+    /**
+     * Rewrites the log with the given uploads only.
+     */
+    synchronized void compact ( final Collection<DetachedUpload> uploads ) throws IOException
+    {
+        if ( uploads.isEmpty () )
+        {
+            if ( file.exists () && !file.delete () )
+            {
+                throw new IOException ( "Failed to delete " + file );
+            }
+            return;
+        }
+
+        final File tmp = new File ( file.getPath () + ".tmp" );
+        try ( FileOutputStream out = new FileOutputStream ( tmp ) )
+        {
+            final Writer writer = new OutputStreamWriter ( out, CHARSET );
+            for ( final DetachedUpload upload : uploads )
+            {
+                writer.write ( gson.toJson ( new Record ( ADD, upload.getId (), upload ) ) );
+                writer.write ( '\n' );
+            }
+            writer.flush ();
+            // the new log must be complete before it replaces the old one
+            out.getFD ().sync ();
+        }
+
+        // a crash leaves either the old or the new log, never none
+        try
+        {
+            Files.move ( tmp.toPath (), file.toPath (), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+        }
+        catch ( final AtomicMoveNotSupportedException e )
+        {
+            Files.move ( tmp.toPath (), file.toPath (), StandardCopyOption.REPLACE_EXISTING );
+        }
+    }
+
+    private synchronized void append ( final Record record ) throws IOException
+    {
+        final File parent = file.getParentFile ();
+        if ( parent != null && !parent.isDirectory () && !parent.mkdirs () && !parent.isDirectory () )
+        {
+            throw new IOException ( "Failed to create " + parent );
+        }
+
+        try ( FileOutputStream out = new FileOutputStream ( file, true ) )
+        {
+            final Writer writer = new OutputStreamWriter ( out, CHARSET );
+            writer.write ( gson.toJson ( record ) );
+            writer.write ( '\n' );
+            writer.flush ();
+            // the record must survive a crash right after
+            out.getFD ().sync ();
+        }
+    }
+
+}
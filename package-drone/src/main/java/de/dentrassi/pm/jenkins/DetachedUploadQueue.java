@@ -0,0 +1,580 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBH SYSTEMS GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBH SYSTEMS GmbH - initial API and implementation
+ *******************************************************************************/
+package de.dentrassi.pm.jenkins;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.Extension;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Computer;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.remoting.ChannelClosedException;
+import hudson.remoting.VirtualChannel;
+import hudson.slaves.ComputerListener;
+import hudson.slaves.OfflineCause;
+import hudson.util.StreamTaskListener;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+/**
+ * The uploads of builds which do not wait for them.
+ * <p>
+ * Queued uploads are kept in a journal in <code>JENKINS_HOME</code> and
+ * resumed after a restart. At most {@link #MAX_RUNNING} uploads run at the
+ * same time, each on the node holding the copy of its files, the master only
+ * waits for the callback of the node. If the node disconnects before the
+ * upload completes, the upload starts again once the node is back online. The
+ * channels which failed are retried with a growing delay, up to
+ * {@link #MAX_FAILURES} times.
+ */
+@Extension
+public class DetachedUploadQueue extends ComputerListener
+{
+    private static final Logger LOGGER = Logger.getLogger ( DetachedUploadQueue.class.getName () );
+
+    /**
+     * How many uploads run at the same time.
+     */
+    static final int MAX_RUNNING = Integer.getInteger ( DetachedUploadQueue.class.getName () + ".maxRunning", 4 );
+
+    /**
+     * How many times an upload fails before it is given up.
+     */
+    static final int MAX_FAILURES = Integer.getInteger ( DetachedUploadQueue.class.getName () + ".maxFailures", 5 );
+
+    private static final long RETRY_DELAY = TimeUnit.SECONDS.toMillis ( 30 );
+
+    private static final long MAX_RETRY_DELAY = TimeUnit.MINUTES.toMillis ( 15 );
+
+    private static final String JOURNAL_NAME = "pdrone-uploads.log";
+
+    /*
+     * Uploads ready to run, in the order they were queued.
+     */
+    private final List<DetachedUpload> pending = new ArrayList<> ();
+
+    /*
+     * Uploads running on a node.
+     */
+    private final List<DetachedUpload> running = new ArrayList<> ();
+
+    /*
+     * Uploads waiting for their node to come back online.
+     */
+    private final List<DetachedUpload> offline = new ArrayList<> ();
+
+    /*
+     * Uploads waiting for the delay before their next attempt.
+     */
+    private final List<DetachedUpload> delayed = new ArrayList<> ();
+
+    private DetachedUploadJournal journal;
+
+    public DetachedUploadQueue ()
+    {
+    }
+
+    DetachedUploadQueue ( final DetachedUploadJournal journal )
+    {
+        this.journal = journal;
+    }
+
+    public static DetachedUploadQueue get ()
+    {
+        return Jenkins.getActiveInstance ().getExtensionList ( ComputerListener.class ).get ( DetachedUploadQueue.class );
+    }
+
+    /**
+     * Resumes the uploads queued before the restart.
+     */
+    @Initializer ( after = InitMilestone.JOB_LOADED )
+    public static void resume ()
+    {
+        final DetachedUploadQueue queue = get ();
+        try
+        {
+            final List<DetachedUpload> uploads = queue.getJournal ().load ();
+            if ( !uploads.isEmpty () )
+            {
+                LOGGER.log ( Level.INFO, "Resuming {0} uploads", uploads.size () );
+            }
+            synchronized ( queue )
+            {
+                queue.pending.addAll ( uploads );
+            }
+        }
+        catch ( final IOException e )
+        {
+            LOGGER.log ( Level.WARNING, "Failed to read the queued uploads", e );
+        }
+        queue.dispatch ();
+    }
+
+    /**
+     * Queues the upload and starts it as soon as its node is online.
+     *
+     * @param upload
+     *            the upload to run.
+     * @throws IOException
+     *             if the upload cannot be stored in the journal.
+     */
+    void submit ( final DetachedUpload upload ) throws IOException
+    {
+        // under the lock, so the journal is not deleted by the removal of the last upload meanwhile
+        synchronized ( this )
+        {
+            pending.add ( upload );
+            try
+            {
+                getJournal ().added ( upload );
+            }
+            catch ( final IOException e )
+            {
+                pending.remove ( upload );
+                throw e;
+            }
+        }
+        dispatch ();
+    }
+
+    /**
+     * Returns the number of uploads queued and not completed yet.
+     *
+     * @return the number of uploads.
+     */
+    public synchronized int getDepth ()
+    {
+        return pending.size () + running.size () + offline.size () + delayed.size ();
+    }
+
+    /**
+     * Returns since how long the oldest upload not completed yet is queued.
+     *
+     * @return the age in milliseconds, zero if the queue is empty.
+     */
+    public synchronized long getOldestAge ()
+    {
+        final long oldest = Math.min ( Math.min ( getOldest ( pending ), getOldest ( running ) ), Math.min ( getOldest ( offline ), getOldest ( delayed ) ) );
+        return oldest == Long.MAX_VALUE ? 0 : Math.max ( System.currentTimeMillis () - oldest, 0 );
+    }
+
+    private static long getOldest ( final List<DetachedUpload> uploads )
+    {
+        long oldest = Long.MAX_VALUE;
+        for ( final DetachedUpload upload : uploads )
+        {
+            oldest = Math.min ( oldest, upload.getQueued () );
+        }
+        return oldest;
+    }
+
+    @Override
+    public void onOnline ( final Computer c, final TaskListener listener )
+    {
+        synchronized ( this )
+        {
+            for ( final Iterator<DetachedUpload> i = offline.iterator (); i.hasNext (); )
+            {
+                final DetachedUpload upload = i.next ();
+                if ( c.getName ().equals ( upload.getNodeName () ) )
+                {
+                    i.remove ();
+                    pending.add ( upload );
+                    listener.getLogger ().println ( Messages.DetachedUploadQueue_resuming ( upload.getRunId () ) );
+                }
+            }
+        }
+        dispatch ();
+    }
+
+    @Override
+    public void onOffline ( final Computer c, final OfflineCause cause )
+    {
+        // the node can not report anymore, a late callback is ignored as its attempt is over
+        synchronized ( this )
+        {
+            for ( final Iterator<DetachedUpload> i = running.iterator (); i.hasNext (); )
+            {
+                final DetachedUpload upload = i.next ();
+                if ( c.getName ().equals ( upload.getNodeName () ) )
+                {
+                    i.remove ();
+                    upload.nextAttempt ();
+                    offline.add ( upload );
+                }
+            }
+        }
+        dispatch ();
+    }
+
+    /*
+     * Starts the pending uploads while there are free places.
+     */
+    void dispatch ()
+    {
+        final List<DetachedUpload> started = new ArrayList<> ();
+        synchronized ( this )
+        {
+            for ( final Iterator<DetachedUpload> i = pending.iterator (); i.hasNext () && running.size () < MAX_RUNNING; )
+            {
+                final DetachedUpload upload = i.next ();
+                i.remove ();
+                if ( upload.isArchived () || getChannel ( upload ) != null )
+                {
+                    upload.nextAttempt ();
+                    running.add ( upload );
+                    started.add ( upload );
+                }
+                else
+                {
+                    offline.add ( upload );
+                }
+            }
+        }
+
+        for ( final DetachedUpload upload : started )
+        {
+            start ( upload, upload.getAttempts () );
+        }
+    }
+
+    /*
+     * Starts an attempt of the upload, its outcome is reported to completed or failed.
+     */
+    void start ( final DetachedUpload upload, final int attempt )
+    {
+        final Run<?, ?> run = upload.getRun ();
+        if ( run == null )
+        {
+            LOGGER.log ( Level.WARNING, "Build {0} was deleted, dropping its upload", upload.getRunId () );
+            remove ( upload, attempt );
+            return;
+        }
+
+        final StreamTaskListener log;
+        try
+        {
+            log = DetachedUpload.openLog ( run );
+        }
+        catch ( final IOException e )
+        {
+            LOGGER.log ( Level.WARNING, "Failed to open the log of the upload " + upload, e );
+            remove ( upload, attempt );
+            return;
+        }
+
+        try
+        {
+            log.getLogger ().println ( Messages.DetachedUploadQueue_starting ( upload.getFailures () + 1, TimeUnit.MILLISECONDS.toSeconds ( System.currentTimeMillis () - upload.getQueued () ), getDepth () ) );
+            upload.resolve ( run );
+
+            if ( upload.isArchived () )
+            {
+                Computer.threadPoolForRemoting.submit ( new Runnable () {
+
+                    @Override
+                    public void run ()
+                    {
+                        try
+                        {
+                            completed ( upload, attempt, run, log, upload.uploadArchived ( run, log ) );
+                        }
+                        catch ( final IOException | RuntimeException e )
+                        {
+                            failed ( upload, attempt, log, e );
+                        }
+                    }
+                } );
+                return;
+            }
+
+            final VirtualChannel channel = getChannel ( upload );
+            if ( channel == null )
+            {
+                nodeLost ( upload, attempt, log );
+                return;
+            }
+            upload.start ( run, log, channel, new Callback ( upload, run, log, attempt ) );
+        }
+        catch ( final IOException | InterruptedException | RuntimeException e )
+        {
+            failed ( upload, attempt, log, e );
+        }
+    }
+
+    /*
+     * Receives the result of an attempt on the master.
+     */
+    private class Callback implements AsyncUploadFiles.Callback
+    {
+        private final DetachedUpload upload;
+
+        private final Run<?, ?> run;
+
+        private final StreamTaskListener log;
+
+        private final int attempt;
+
+        Callback ( final DetachedUpload upload, final Run<?, ?> run, final StreamTaskListener log, final int attempt )
+        {
+            this.upload = upload;
+            this.run = run;
+            this.log = log;
+            this.attempt = attempt;
+        }
+
+        @Override
+        public void onUploaded ( final List<UploaderResult> results )
+        {
+            // do not block the thread of the node calling back
+            Computer.threadPoolForRemoting.submit ( new Runnable () {
+
+                @Override
+                public void run ()
+                {
+                    completed ( upload, attempt, run, log, results );
+                }
+            } );
+        }
+
+        @Override
+        public void onFailure ( final Throwable cause )
+        {
+            Computer.threadPoolForRemoting.submit ( new Runnable () {
+
+                @Override
+                public void run ()
+                {
+                    failed ( upload, attempt, log, cause );
+                }
+            } );
+        }
+    }
+
+    void completed ( final DetachedUpload upload, final int attempt, final Run<?, ?> run, final StreamTaskListener log, final List<UploaderResult> results )
+    {
+        if ( !isCurrent ( upload, attempt ) )
+        {
+            log.closeQuietly ();
+            return;
+        }
+
+        boolean failed = false;
+        for ( final UploaderResult result : results )
+        {
+            failed |= result.isFailed ();
+        }
+
+        try
+        {
+            final boolean lastAttempt = failed && upload.getFailures () + 1 >= MAX_FAILURES;
+            if ( upload.complete ( run, log, results, lastAttempt ) )
+            {
+                if ( lastAttempt )
+                {
+                    log.error ( Messages.DetachedUploadQueue_givenUp ( MAX_FAILURES ) );
+                }
+                finished ( upload, attempt, log );
+                return;
+            }
+        }
+        catch ( final IOException e )
+        {
+            e.printStackTrace ( log.error ( Messages.DetachedUploadQueue_failed ( upload.getRunId () ) ) );
+        }
+        retry ( upload, attempt, log );
+    }
+
+    void failed ( final DetachedUpload upload, final int attempt, final StreamTaskListener log, final Throwable cause )
+    {
+        if ( !isCurrent ( upload, attempt ) )
+        {
+            log.closeQuietly ();
+            return;
+        }
+
+        if ( !upload.isArchived () && ( cause instanceof ChannelClosedException || getChannel ( upload ) == null ) )
+        {
+            // not a failure of the upload, it starts again when the node is back
+            nodeLost ( upload, attempt, log );
+            return;
+        }
+
+        cause.printStackTrace ( log.error ( Messages.DetachedUploadQueue_failed ( upload.getRunId () ) ) );
+        if ( upload.getFailures () + 1 >= MAX_FAILURES )
+        {
+            log.error ( Messages.DetachedUploadQueue_givenUp ( MAX_FAILURES ) );
+            finished ( upload, attempt, log );
+            return;
+        }
+        retry ( upload, attempt, log );
+    }
+
+    private void nodeLost ( final DetachedUpload upload, final int attempt, final StreamTaskListener log )
+    {
+        log.getLogger ().println ( Messages.DetachedUploadQueue_nodeLost ( upload.getNodeName () ) );
+        log.closeQuietly ();
+        synchronized ( this )
+        {
+            if ( upload.getAttempts () != attempt || !running.remove ( upload ) )
+            {
+                return;
+            }
+            upload.nextAttempt ();
+            if ( getChannel ( upload ) == null )
+            {
+                offline.add ( upload );
+            }
+            else
+            {
+                // the node reconnected meanwhile
+                pending.add ( upload );
+            }
+        }
+        dispatch ();
+    }
+
+    /*
+     * Schedules the next attempt of the channels which are not uploaded yet.
+     */
+    private void retry ( final DetachedUpload upload, final int attempt, final StreamTaskListener log )
+    {
+        final int failures = upload.addFailure ();
+        final long delay = Math.min ( RETRY_DELAY << Math.min ( failures - 1, 20 ), MAX_RETRY_DELAY );
+        log.getLogger ().println ( Messages.DetachedUploadQueue_retrying ( TimeUnit.MILLISECONDS.toSeconds ( delay ), failures, MAX_FAILURES ) );
+        log.closeQuietly ();
+
+        try
+        {
+            getJournal ().updated ( upload );
+        }
+        catch ( final IOException e )
+        {
+            LOGGER.log ( Level.WARNING, "Failed to store the state of the upload " + upload, e );
+        }
+
+        synchronized ( this )
+        {
+            if ( upload.getAttempts () != attempt || !running.remove ( upload ) )
+            {
+                return;
+            }
+            delayed.add ( upload );
+        }
+
+        schedule ( new Runnable () {
+
+            @Override
+            public void run ()
+            {
+                synchronized ( DetachedUploadQueue.this )
+                {
+                    if ( !delayed.remove ( upload ) )
+                    {
+                        return;
+                    }
+                    pending.add ( upload );
+                }
+                dispatch ();
+            }
+        }, delay );
+        dispatch ();
+    }
+
+    void schedule ( final Runnable task, final long delay )
+    {
+        Timer.get ().schedule ( task, delay, TimeUnit.MILLISECONDS );
+    }
+
+    private void finished ( final DetachedUpload upload, final int attempt, final StreamTaskListener log )
+    {
+        try
+        {
+            final VirtualChannel channel = upload.isArchived () ? null : getChannel ( upload );
+            if ( channel != null )
+            {
+                upload.cleanUp ( channel );
+            }
+        }
+        catch ( final IOException | InterruptedException e )
+        {
+            LOGGER.log ( Level.FINE, "Failed to delete the copied files of " + upload, e );
+        }
+        finally
+        {
+            log.closeQuietly ();
+        }
+        remove ( upload, attempt );
+    }
+
+    private void remove ( final DetachedUpload upload, final int attempt )
+    {
+        synchronized ( this )
+        {
+            if ( upload.getAttempts () != attempt || !running.remove ( upload ) )
+            {
+                return;
+            }
+
+            // the journal is deleted only if no upload was submitted since the check
+            try
+            {
+                if ( getDepth () == 0 )
+                {
+                    getJournal ().compact ( Collections.<DetachedUpload> emptyList () );
+                }
+                else
+                {
+                    getJournal ().removed ( upload );
+                }
+            }
+            catch ( final IOException e )
+            {
+                LOGGER.log ( Level.WARNING, "Failed to remove the upload from the journal " + upload, e );
+            }
+        }
+        dispatch ();
+    }
+
+    private synchronized boolean isCurrent ( final DetachedUpload upload, final int attempt )
+    {
+        return upload.getAttempts () == attempt && running.contains ( upload );
+    }
+
+    private synchronized DetachedUploadJournal getJournal ()
+    {
+        if ( journal == null )
+        {
+            journal = new DetachedUploadJournal ( new File ( Jenkins.getActiveInstance ().getRootDir (), JOURNAL_NAME ) );
+        }
+        return journal;
+    }
+
+    /*
+     * Returns the channel to the node holding the files of the upload, null if it is offline.
+     */
+    VirtualChannel getChannel ( final DetachedUpload upload )
+    {
+        final Computer computer = Jenkins.getActiveInstance ().getComputer ( upload.getNodeName () );
+        return computer == null ? null : computer.getChannel ();
+    }
+
+}
@@ -0,0 +1,202 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBH SYSTEMS GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBH SYSTEMS GmbH - initial API and implementation
+ *******************************************************************************/
+package de.dentrassi.pm.jenkins;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.apache.tools.ant.types.selectors.SelectorUtils;
+import org.jenkinsci.Symbol;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+
+/**
+ * Maps the artifacts gathered by a {@link DroneRecorder} to the artifacts
+ * uploaded as their children, like sources, signatures or checksums.
+ * <p>
+ * The parents are matched with an ant glob pattern against their upload name.
+ * The name of each child is derived from the name of the parent, where
+ * <code>{file}</code> is replaced by the whole name of the parent and
+ * <code>{base}</code> by the name without its extension. For example the
+ * children <code>{file}.asc, {base}-sources.jar</code> of
+ * <code>lib/foo.jar</code> are <code>lib/foo.jar.asc</code> and
+ * <code>lib/foo-sources.jar</code>.
+ */
+public class DroneChildArtifacts extends AbstractDescribableImpl<DroneChildArtifacts> implements Serializable
+{
+    private static final long serialVersionUID = -3204859917340316125L;
+
+    private final String parents;
+
+    private final String children;
+
+    @DataBoundConstructor
+    public DroneChildArtifacts ( final String parents, final String children )
+    {
+        this.parents = Util.fixEmptyAndTrim ( parents );
+        this.children = Util.fixEmptyAndTrim ( children );
+    }
+
+    /**
+     * Returns the ant glob patterns of the parent artifacts.
+     *
+     * @return the comma separated patterns.
+     */
+    public String getParents ()
+    {
+        return parents;
+    }
+
+    /**
+     * Returns the name patterns of the children of each parent.
+     *
+     * @return the comma separated patterns.
+     */
+    public String getChildren ()
+    {
+        return children;
+    }
+
+    /**
+     * Returns if the given upload name is a parent of this mapping.
+     */
+    boolean isParent ( final String name )
+    {
+        for ( final String pattern : split ( parents ) )
+        {
+            if ( SelectorUtils.matchPath ( pattern, name ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the upload names of the children of the given parent.
+     */
+    List<String> makeChildNames ( final String parent )
+    {
+        final int slash = parent.lastIndexOf ( '/' );
+        final int dot = parent.lastIndexOf ( '.' );
+        final String base = dot > slash + 1 ? parent.substring ( 0, dot ) : parent;
+
+        final List<String> result = new ArrayList<> ();
+        for ( final String pattern : split ( children ) )
+        {
+            result.add ( pattern.replace ( "{file}", parent ).replace ( "{base}", base ) );
+        }
+        return result;
+    }
+
+    /**
+     * Finds the parent of each file to upload.
+     * <p>
+     * Only files which are uploaded are considered as children, a file is
+     * child of the first parent claiming it. A file is never made a child of
+     * one of its own descendants.
+     *
+     * @param mappings
+     *            the mappings between parents and children.
+     * @param files
+     *            the files to upload with their upload name.
+     * @return the parent of each child, files without a parent are not
+     *         contained.
+     */
+    public static <T> Map<T, T> findParents ( final List<DroneChildArtifacts> mappings, final Map<T, String> files )
+    {
+        final Map<T, T> result = new LinkedHashMap<> ();
+        if ( mappings == null || mappings.isEmpty () )
+        {
+            return result;
+        }
+
+        final Map<String, T> byName = new HashMap<> ( files.size () );
+        for ( final Entry<T, String> entry : files.entrySet () )
+        {
+            byName.put ( entry.getValue (), entry.getKey () );
+        }
+
+        for ( final Entry<T, String> entry : files.entrySet () )
+        {
+            for ( final DroneChildArtifacts mapping : mappings )
+            {
+                if ( !mapping.isParent ( entry.getValue () ) )
+                {
+                    continue;
+                }
+                for ( final String childName : mapping.makeChildNames ( entry.getValue () ) )
+                {
+                    final T child = byName.get ( childName );
+                    if ( child != null && !result.containsKey ( child ) && !isAncestor ( result, child, entry.getKey () ) )
+                    {
+                        result.put ( child, entry.getKey () );
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /*
+     * Returns true if candidate is the file itself or one of its ancestors.
+     */
+    private static <T> boolean isAncestor ( final Map<T, T> parents, final T candidate, T file )
+    {
+        while ( file != null )
+        {
+            if ( file.equals ( candidate ) )
+            {
+                return true;
+            }
+            file = parents.get ( file );
+        }
+        return false;
+    }
+
+    private static List<String> split ( final String patterns )
+    {
+        final List<String> result = new ArrayList<> ();
+        if ( patterns == null )
+        {
+            return result;
+        }
+        for ( final String pattern : patterns.split ( "," ) )
+        {
+            if ( !pattern.trim ().isEmpty () )
+            {
+                result.add ( pattern.trim () );
+            }
+        }
+        return result;
+    }
+
+    @Symbol ( "children" )
+    @Extension
+    public static final class DescriptorImpl extends Descriptor<DroneChildArtifacts>
+    {
+        @Override
+        public String getDisplayName ()
+        {
+            return Messages.DroneChildArtifacts_DescriptorImpl_displayName ();
+        }
+    }
+
+}
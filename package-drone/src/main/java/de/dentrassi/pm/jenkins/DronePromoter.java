@@ -0,0 +1,303 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBH SYSTEMS GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBH SYSTEMS GmbH - initial API and implementation
+ *******************************************************************************/
+package de.dentrassi.pm.jenkins;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.CheckForNull;
+
+import org.apache.commons.lang.StringUtils;
+import org.jenkinsci.Symbol;
+import org.kohsuke.stapler.AncestorInPath;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+
+import de.dentrassi.pm.jenkins.UploaderResult.ArtifactResult;
+import de.dentrassi.pm.jenkins.util.LoggerListenerWrapper;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.AbstractProject;
+import hudson.model.Item;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.tasks.BuildStepDescriptor;
+import hudson.tasks.BuildStepMonitor;
+import hudson.tasks.Publisher;
+import hudson.tasks.Recorder;
+import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
+import jenkins.model.Jenkins;
+import jenkins.tasks.SimpleBuildStep;
+
+/**
+ * Promotes the artifacts uploaded by a {@link DroneRecorder} of the same build
+ * into another channel of the server.
+ * <p>
+ * The identifiers recorded in the {@link BuildData} of the build are sent to
+ * the server which copies the artifacts, nothing is uploaded again and the
+ * workspace is not used.
+ */
+public class DronePromoter extends Recorder implements SimpleBuildStep
+{
+    private final String serverUrl;
+
+    private final String channel;
+
+    private final String credentialsId;
+
+    /**
+     * The channel where the artifacts to promote were uploaded, all channels
+     * of the server if not set.
+     */
+    private String sourceChannel;
+
+    @DataBoundConstructor
+    public DronePromoter ( final String serverUrl, final String channel, final String credentialsId )
+    {
+        this.serverUrl = Util.fixEmptyAndTrim ( serverUrl );
+        this.channel = Util.fixEmptyAndTrim ( channel );
+        this.credentialsId = Util.fixEmptyAndTrim ( credentialsId );
+    }
+
+    /**
+     * Sets the channel where the artifacts to promote were uploaded.
+     *
+     * @param sourceChannel
+     *            the channel id or name.
+     */
+    @DataBoundSetter
+    public void setSourceChannel ( final String sourceChannel )
+    {
+        this.sourceChannel = Util.fixEmptyAndTrim ( sourceChannel );
+    }
+
+    /**
+     * Returns the channel where the artifacts to promote were uploaded.
+     *
+     * @return the channel id or name, {@code null} for all channels.
+     */
+    public String getSourceChannel ()
+    {
+        return sourceChannel;
+    }
+
+    /**
+     * Returns the URL of the package drone server till the context root path.
+     *
+     * @return the package drone server URL string
+     */
+    public String getServerUrl ()
+    {
+        return serverUrl;
+    }
+
+    /**
+     * Returns the channel id where promote the artifacts.
+     *
+     * @return the channel id
+     */
+    public String getChannel ()
+    {
+        return channel;
+    }
+
+    /**
+     * Returns the stored credentials id used as deploy key.
+     *
+     * @return credentials id
+     */
+    public String getCredentialsId ()
+    {
+        return credentialsId;
+    }
+
+    @Override
+    public BuildStepMonitor getRequiredMonitorService ()
+    {
+        return BuildStepMonitor.NONE;
+    }
+
+    @Override
+    public void perform ( final Run<?, ?> run, final FilePath workspace, final Launcher launcher, final TaskListener taskListener ) throws InterruptedException, IOException
+    {
+        final LoggerListenerWrapper listener = new LoggerListenerWrapper ( taskListener, true );
+        final EnvVars env = run.getEnvironment ( taskListener );
+
+        final String serverURL = Util.replaceMacro ( this.serverUrl, env );
+        final String channel = Util.replaceMacro ( this.channel, env );
+        final String credentialsId = Util.replaceMacro ( this.credentialsId, env );
+        final String sourceChannel = Util.replaceMacro ( this.sourceChannel, env );
+
+        if ( !validateStart ( serverURL, channel, credentialsId, listener ) )
+        {
+            run.setResult ( Result.FAILURE );
+            return;
+        }
+
+        final ServerData serverData = new ServerData ( serverURL, channel, DeployKeys.resolve ( run, serverURL, credentialsId ), false );
+        listener.info ( Messages.DroneRecorder_serverUrl ( serverURL ) );
+
+        final List<BuildData> sources = findSources ( run, env, serverData, sourceChannel );
+        if ( sources.isEmpty () )
+        {
+            listener.error ( Messages.DronePromoter_nothingToPromote ( serverURL ) );
+            run.setResult ( Result.FAILURE );
+            return;
+        }
+
+        final UploaderResult result = new UploaderResult ();
+        boolean failed = false;
+        try ( ArtifactPromoter promoter = new ArtifactPromoter ( serverData, new RunData ( run ).getProxy (), listener ) )
+        {
+            try
+            {
+                for ( final BuildData source : sources )
+                {
+                    final String from = Util.replaceMacro ( source.getChannel (), env );
+                    listener.info ( Messages.DronePromoter_promoting ( source.getArtifactIds ().size (), from, channel ) );
+                    promoter.promote ( from, source.getArtifactIds () );
+                }
+            }
+            finally
+            {
+                // the batches copied before a failure are in the channel anyway
+                result.addUploadedArtifacts ( promoter.getPromotedArtifacts () );
+            }
+        }
+        catch ( IOException e )
+        {
+            Util.displayIOException ( e, listener );
+            e.printStackTrace ( listener.error ( Messages.DronePromoter_failedToPromote ( channel ) ) );
+            run.setResult ( Result.FAILURE );
+            failed = true;
+        }
+
+        if ( failed && result.getUploadedArtifacts ().isEmpty () )
+        {
+            return;
+        }
+
+        listener.getLogger ().print ( "Promoted to channel: " );
+        listener.hyperlink ( URLMaker.make ( serverData.getServerURL (), serverData.getChannel () ), serverData.getChannel () );
+        listener.getLogger ().println ();
+        listener.annotate ( ConsoleUtils.buildArtifactsList ( serverData, result ) );
+        listener.getLogger ().println ();
+        for ( final String line : ConsoleUtils.buildRejectSummary ( result ) )
+        {
+            listener.warning ( line );
+        }
+
+        final Map<String, String> promotedArtifactsMap = new LinkedHashMap<> ();
+        for ( final ArtifactResult ar : result.getUploadedArtifacts () )
+        {
+            if ( !ar.isRejected () )
+            {
+                promotedArtifactsMap.put ( ar.getId (), ar.getName () );
+            }
+        }
+        run.addAction ( new BuildData ( this.serverUrl, this.channel, promotedArtifactsMap, true ) );
+    }
+
+    /*
+     * Returns the uploads of this build to the same server, except the ones to
+     * the target channel and the copies made by earlier promotions.
+     */
+    private List<BuildData> findSources ( final Run<?, ?> run, final EnvVars env, final ServerData serverData, final String sourceChannel )
+    {
+        final List<BuildData> sources = new ArrayList<> ();
+        for ( final BuildData buildData : run.getActions ( BuildData.class ) )
+        {
+            final String buildServerURL = StringUtils.removeEnd ( Util.replaceMacro ( buildData.getServerUrl (), env ), "/" );
+            final String buildChannel = Util.replaceMacro ( buildData.getChannel (), env );
+            if ( buildData.isPromoted () || !serverData.getServerURL ().equals ( buildServerURL ) || buildData.getArtifactIds ().isEmpty () )
+            {
+                continue;
+            }
+            if ( buildChannel.equals ( serverData.getChannel () ) || sourceChannel != null && !sourceChannel.equals ( buildChannel ) )
+            {
+                continue;
+            }
+            sources.add ( buildData );
+        }
+        return sources;
+    }
+
+    private boolean validateStart ( final String serverURL, final String channel, final String credentialsId, final TaskListener listener )
+    {
+        if ( serverURL == null || serverURL.isEmpty () )
+        {
+            listener.fatalError ( Messages.DroneRecorder_emptyServerUrl () );
+            return false;
+        }
+
+        if ( channel == null || channel.isEmpty () )
+        {
+            listener.fatalError ( Messages.DroneRecorder_emptyChannel () );
+            return false;
+        }
+
+        if ( credentialsId == null || credentialsId.isEmpty () )
+        {
+            listener.fatalError ( Messages.DroneRecorder_emptyCredentialsId () );
+            return false;
+        }
+
+        return true;
+    }
+
+    @Symbol ( "pdronePromote" )
+    @Extension
+    public static final class DescriptorImpl extends BuildStepDescriptor<Publisher>
+    {
+        @SuppressWarnings ( "rawtypes" )
+        @Override
+        public boolean isApplicable ( final Class<? extends AbstractProject> jobType )
+        {
+            return true;
+        }
+
+        @Override
+        public String getDisplayName ()
+        {
+            return Messages.DronePromoter_DescriptorImpl_displayName ();
+        }
+
+        public FormValidation doCheckServerUrl ( @CheckForNull @QueryParameter final String serverUrl ) throws IOException
+        {
+            return getRecorderDescriptor ().doCheckServerUrl ( serverUrl );
+        }
+
+        public FormValidation doCheckCredentialsId ( @CheckForNull @AncestorInPath Item item, @QueryParameter String credentialsId, @QueryParameter String serverUrl )
+        {
+            return getRecorderDescriptor ().doCheckCredentialsId ( item, credentialsId, serverUrl );
+        }
+
+        public ListBoxModel doFillCredentialsIdItems ( @CheckForNull @AncestorInPath Item item, @QueryParameter String credentialsId, @QueryParameter String serverUrl )
+        {
+            return getRecorderDescriptor ().doFillCredentialsIdItems ( item, credentialsId, serverUrl );
+        }
+
+        private DroneRecorder.DescriptorImpl getRecorderDescriptor ()
+        {
+            return Jenkins.getActiveInstance ().getDescriptorByType ( DroneRecorder.DescriptorImpl.class );
+        }
+    }
+
+}
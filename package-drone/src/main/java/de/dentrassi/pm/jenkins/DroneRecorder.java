@@ -12,11 +12,11 @@
  *******************************************************************************/
 package de.dentrassi.pm.jenkins;
 
-import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.LinkedHashMap;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.regex.Pattern;
@@ -25,7 +25,6 @@ import javax.annotation.CheckForNull;
 
 import org.acegisecurity.Authentication;
 import org.apache.commons.lang.StringUtils;
-import org.apache.tools.ant.types.FileSet;
 import org.jenkinsci.Symbol;
 import org.jenkinsci.plugins.plaincredentials.StringCredentials;
 import org.kohsuke.stapler.AncestorInPath;
@@ -39,7 +38,7 @@ import com.cloudbees.plugins.credentials.common.StandardListBoxModel;
 import com.cloudbees.plugins.credentials.domains.DomainRequirement;
 import com.cloudbees.plugins.credentials.domains.URIRequirementBuilder;
 
-import de.dentrassi.pm.jenkins.UploaderResult.ArtifactResult;
+import de.dentrassi.pm.jenkins.http.DroneClient;
 import de.dentrassi.pm.jenkins.util.LoggerListenerWrapper;
 import hudson.AbortException;
 import hudson.EnvVars;
@@ -55,7 +54,6 @@ import hudson.model.Result;
 import hudson.model.Run;
 import hudson.model.TaskListener;
 import hudson.model.queue.Tasks;
-import hudson.remoting.VirtualChannel;
 import hudson.security.ACL;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.BuildStepMonitor;
@@ -63,7 +61,6 @@ import hudson.tasks.Publisher;
 import hudson.tasks.Recorder;
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
-import jenkins.MasterToSlaveFileCallable;
 import jenkins.model.Jenkins;
 import jenkins.tasks.SimpleBuildStep;
 
@@ -101,6 +98,73 @@ public class DroneRecorder extends Recorder implements SimpleBuildStep
      */
     private boolean uploadV3 = false;
 
+    /**
+     * Upload only the changed blocks of files already uploaded by a previous
+     * build.
+     */
+    private boolean deltaUpload = false;
+
+    /**
+     * Upload the artifacts archived by the build instead of the workspace
+     * files.
+     */
+    private boolean archivedArtifacts = false;
+
+    /**
+     * Do not upload again files unchanged since the previous build.
+     */
+    private boolean skipUnchanged = false;
+
+    /**
+     * Maximum upload bandwidth of this step in KiB/s, zero means unlimited.
+     */
+    private int bandwidthLimit = 0;
+
+    /**
+     * Priority of the uploads when other steps upload to the same server from
+     * the same node.
+     */
+    private UploadPriority priority = UploadPriority.NORMAL;
+
+    /**
+     * How many channels must acknowledge the upload when there are additional
+     * channels, zero means all.
+     */
+    private int quorum = 0;
+
+    /**
+     * How many artifacts are uploaded at the same time with the protocol V2.
+     */
+    private int parallelUploads = 1;
+
+    /**
+     * Adapt the number of concurrent uploads to the server, starting from the
+     * parallel uploads.
+     */
+    private boolean adaptiveParallelism = false;
+
+    /**
+     * Size in MiB of the ranges of large files uploaded in parallel with the
+     * protocol V2, zero means files are never split.
+     */
+    private int splitUploadSize = 0;
+
+    /**
+     * Upload in the background after the build, without waiting for the
+     * upload.
+     */
+    private boolean detached = false;
+
+    /**
+     * Additional channels where upload the same artifacts.
+     */
+    private List<DroneTarget> targets;
+
+    /**
+     * Artifacts uploaded as children of other artifacts.
+     */
+    private List<DroneChildArtifacts> childArtifacts;
+
     @DataBoundConstructor
     public DroneRecorder ( final String serverUrl, final String channel, final String credentialsId, final String artifacts )
     {
@@ -191,6 +255,207 @@ public class DroneRecorder extends Recorder implements SimpleBuildStep
         this.uploadV3 = uploadV3;
     }
 
+    /**
+     * Sets if upload only the changed blocks of files already uploaded by a
+     * previous build.
+     * <p>
+     * This requires a server supporting delta uploads, otherwise files are
+     * uploaded in full.
+     *
+     * @param deltaUpload
+     *            if use delta uploads.
+     */
+    @DataBoundSetter
+    public void setDeltaUpload ( final boolean deltaUpload )
+    {
+        this.deltaUpload = deltaUpload;
+    }
+
+    /**
+     * Sets if upload the artifacts archived by the build instead of the files
+     * in the workspace.
+     * <p>
+     * The artifacts are read from the artifact manager on the master, no
+     * workspace or agent is needed. This allows to publish a build later, for
+     * example when it is promoted.
+     *
+     * @param archivedArtifacts
+     *            if upload the archived artifacts.
+     */
+    @DataBoundSetter
+    public void setArchivedArtifacts ( final boolean archivedArtifacts )
+    {
+        this.archivedArtifacts = archivedArtifacts;
+    }
+
+    /**
+     * Sets if skip the files uploaded unchanged by the previous build.
+     * <p>
+     * The artifacts of the previous build are reported instead. An index of
+     * the uploaded files is kept next to the workspace on the node performing
+     * the upload.
+     *
+     * @param skipUnchanged
+     *            if upload only new or changed files.
+     */
+    @DataBoundSetter
+    public void setSkipUnchanged ( final boolean skipUnchanged )
+    {
+        this.skipUnchanged = skipUnchanged;
+    }
+
+    /**
+     * Sets the maximum bandwidth used by this step to upload artifacts.
+     * <p>
+     * The limit is shared by all channels the artifacts are uploaded to. An
+     * agent wide limit can be set with the system property
+     * {@link DroneClient#BANDWIDTH_LIMIT_PROPERTY}.
+     *
+     * @param bandwidthLimit
+     *            the limit in KiB per second, zero or less means unlimited.
+     */
+    @DataBoundSetter
+    public void setBandwidthLimit ( final int bandwidthLimit )
+    {
+        this.bandwidthLimit = Math.max ( bandwidthLimit, 0 );
+    }
+
+    /**
+     * Sets the priority of the uploads of this step.
+     * <p>
+     * Uploads from the same node to the same server are limited, when all
+     * slots are busy the uploads with higher priority are served first.
+     *
+     * @param priority
+     *            the upload priority.
+     */
+    @DataBoundSetter
+    public void setPriority ( final UploadPriority priority )
+    {
+        this.priority = priority == null ? UploadPriority.NORMAL : priority;
+    }
+
+    /**
+     * Sets additional channels, also on other servers, where upload the same
+     * artifacts.
+     *
+     * @param targets
+     *            the additional channels.
+     */
+    @DataBoundSetter
+    public void setTargets ( final List<DroneTarget> targets )
+    {
+        this.targets = targets == null ? null : new ArrayList<> ( targets );
+    }
+
+    /**
+     * Sets how many channels must acknowledge the upload when there are
+     * additional channels.
+     * <p>
+     * Once the quorum is reached the build goes on while the slower channels
+     * complete in the background, a failure of the other channels does not
+     * fail the build.
+     *
+     * @param quorum
+     *            the number of channels, zero or less means all.
+     */
+    @DataBoundSetter
+    public void setQuorum ( final int quorum )
+    {
+        this.quorum = Math.max ( quorum, 0 );
+    }
+
+    /**
+     * Sets how many artifacts are uploaded at the same time with the protocol
+     * V2.
+     * <p>
+     * Concurrent uploads reuse the kept alive connections to the server, so
+     * many small artifacts are not bound by the round trip time. Each upload
+     * takes a slot of the server.
+     *
+     * @param parallelUploads
+     *            the number of concurrent uploads, one or less uploads the
+     *            artifacts one after the other.
+     */
+    @DataBoundSetter
+    public void setParallelUploads ( final int parallelUploads )
+    {
+        this.parallelUploads = Math.max ( parallelUploads, 1 );
+    }
+
+    /**
+     * Sets if the number of artifacts uploaded at the same time with the
+     * protocol V2 adapts to the server.
+     * <p>
+     * The number starts from the parallel uploads, grows while the server
+     * answers in time and shrinks when the server answers it is overloaded or
+     * slows down.
+     *
+     * @param adaptiveParallelism
+     *            if the number of concurrent uploads adapts to the server.
+     */
+    @DataBoundSetter
+    public void setAdaptiveParallelism ( final boolean adaptiveParallelism )
+    {
+        this.adaptiveParallelism = adaptiveParallelism;
+    }
+
+    /**
+     * Sets the size of the ranges of large files uploaded with the protocol
+     * V2.
+     * <p>
+     * A file larger than a range is split into ranges uploaded at the same
+     * time over several connections, and the server reassembles them. This
+     * raises the throughput of a single large file on links with a high
+     * latency. Servers without support for split uploads receive the file in
+     * a single request.
+     *
+     * @param splitUploadSize
+     *            the size of a range in MiB, zero or less never splits files.
+     */
+    @DataBoundSetter
+    public void setSplitUploadSize ( final int splitUploadSize )
+    {
+        this.splitUploadSize = Math.max ( splitUploadSize, 0 );
+    }
+
+    /**
+     * Sets which artifacts are uploaded as children of other artifacts, like
+     * sources, signatures or checksums of a bundle.
+     * <p>
+     * Only the protocol V3 uploads them as children, the protocol V2 uploads
+     * them as ordinary artifacts.
+     *
+     * @param childArtifacts
+     *            the mappings between parents and children.
+     */
+    @DataBoundSetter
+    public void setChildArtifacts ( final List<DroneChildArtifacts> childArtifacts )
+    {
+        this.childArtifacts = childArtifacts == null ? null : new ArrayList<> ( childArtifacts );
+    }
+
+    /**
+     * Sets if the artifacts are uploaded in the background while the build
+     * goes on and finishes.
+     * <p>
+     * The files are copied aside in the workspace node, so later builds do
+     * not change them, and are uploaded from there. The log of the upload is
+     * stored in the build directory and the uploaded artifacts are recorded
+     * on the build when the upload completes. A failed upload does not fail
+     * the build. If the node disconnects meanwhile the upload starts again
+     * once the node is back online. The queued uploads survive a restart of
+     * Jenkins, see {@link DetachedUploadQueue}.
+     *
+     * @param detached
+     *            if the build does not wait for the upload.
+     */
+    @DataBoundSetter
+    public void setDetached ( final boolean detached )
+    {
+        this.detached = detached;
+    }
+
     @Deprecated
     @DataBoundSetter
     public void setDeployKey ( final String deployKey )
@@ -318,6 +583,137 @@ public class DroneRecorder extends Recorder implements SimpleBuildStep
         return this.uploadV3;
     }
 
+    /**
+     * Returns if upload only the changed blocks of files already uploaded by a
+     * previous build.
+     *
+     * @return {@code true} if use delta uploads, {@code false} otherwise
+     */
+    public boolean isDeltaUpload ()
+    {
+        return this.deltaUpload;
+    }
+
+    /**
+     * Returns if upload the artifacts archived by the build instead of the
+     * files in the workspace.
+     *
+     * @return {@code true} if upload the archived artifacts, {@code false}
+     *         otherwise
+     */
+    public boolean isArchivedArtifacts ()
+    {
+        return this.archivedArtifacts;
+    }
+
+    /**
+     * Returns if skip the files uploaded unchanged by the previous build.
+     *
+     * @return {@code true} if upload only new or changed files, {@code false}
+     *         otherwise
+     */
+    public boolean isSkipUnchanged ()
+    {
+        return this.skipUnchanged;
+    }
+
+    /**
+     * Returns the maximum bandwidth used by this step to upload artifacts.
+     *
+     * @return the limit in KiB per second, zero if unlimited.
+     */
+    public int getBandwidthLimit ()
+    {
+        return this.bandwidthLimit;
+    }
+
+    /**
+     * Returns the priority of the uploads of this step.
+     *
+     * @return the upload priority, never {@code null}.
+     */
+    public UploadPriority getPriority ()
+    {
+        // configurations saved before priorities were introduced
+        return this.priority == null ? UploadPriority.NORMAL : this.priority;
+    }
+
+    /**
+     * Returns how many channels must acknowledge the upload when there are
+     * additional channels.
+     *
+     * @return the number of channels, zero if all.
+     */
+    public int getQuorum ()
+    {
+        return this.quorum;
+    }
+
+    /**
+     * Returns the additional channels where upload the same artifacts.
+     *
+     * @return the additional channels, never {@code null}.
+     */
+    public List<DroneTarget> getTargets ()
+    {
+        return targets == null ? Collections.<DroneTarget> emptyList () : Collections.unmodifiableList ( targets );
+    }
+
+    /**
+     * Returns how many artifacts are uploaded at the same time with the
+     * protocol V2.
+     *
+     * @return the number of concurrent uploads.
+     */
+    public int getParallelUploads ()
+    {
+        // configurations saved before parallel uploads were introduced
+        return Math.max ( this.parallelUploads, 1 );
+    }
+
+    /**
+     * Returns if the number of artifacts uploaded at the same time with the
+     * protocol V2 adapts to the server.
+     *
+     * @return if the number of concurrent uploads adapts to the server.
+     */
+    public boolean isAdaptiveParallelism ()
+    {
+        return adaptiveParallelism;
+    }
+
+    /**
+     * Returns the size of the ranges of large files uploaded with the
+     * protocol V2.
+     *
+     * @return the size in MiB, zero if files are never split.
+     */
+    public int getSplitUploadSize ()
+    {
+        return splitUploadSize;
+    }
+
+    /**
+     * Returns if the artifacts are uploaded in the background while the build
+     * goes on and finishes.
+     *
+     * @return if the build does not wait for the upload.
+     */
+    public boolean isDetached ()
+    {
+        return detached;
+    }
+
+    /**
+     * Returns which artifacts are uploaded as children of other artifacts.
+     *
+     * @return the mappings between parents and children, never {@code null}.
+     */
+    public List<DroneChildArtifacts> getChildArtifacts ()
+    {
+        return childArtifacts == null ? Collections.<DroneChildArtifacts> emptyList () : Collections.unmodifiableList ( childArtifacts );
+    }
+
     @Symbol ( "pdrone" )
     @Extension
     public static final class DescriptorImpl extends BuildStepDescriptor<Publisher>
@@ -432,84 +828,171 @@ public class DroneRecorder extends Recorder implements SimpleBuildStep
 
     @Override
     public void perform ( final Run<?, ?> run, final FilePath workspace, final Launcher launcher, final TaskListener taskListener ) throws InterruptedException, IOException
+    {
+        upload ( run, workspace, taskListener );
+    }
+
+    /**
+     * Uploads the artifacts and records the results on the build.
+     *
+     * @return the result of each channel with its resolved server data, the
+     *         main channel first; empty if the upload was not started because
+     *         of an invalid configuration.
+     */
+    Map<ServerData, UploaderResult> upload ( final Run<?, ?> run, final FilePath workspace, final TaskListener taskListener ) throws InterruptedException, IOException
+    {
+        final RecorderUpload upload = prepareUpload ( run, taskListener );
+        if ( upload == null )
+        {
+            run.setResult ( Result.FAILURE );
+            return Collections.emptyMap ();
+        }
+        return upload.upload ( workspace );
+    }
+
+    /**
+     * Receives the results of an upload started with
+     * {@link DroneRecorder#startUpload}.
+     */
+    interface UploadListener
+    {
+        /**
+         * Called once the results are recorded on the build.
+         *
+         * @param results
+         *            the result of each channel, like returned by
+         *            {@link DroneRecorder#upload}.
+         */
+        void onUploaded ( Map<ServerData, UploaderResult> results );
+
+        /**
+         * Called if the upload was interrupted or failed unexpectedly.
+         *
+         * @param cause
+         *            the error.
+         */
+        void onFailure ( Throwable cause );
+    }
+
+    /**
+     * Starts the upload and returns without waiting for it.
+     * <p>
+     * The upload runs in a background thread of the node holding the
+     * workspace, or of the master for archived artifacts. Once it completes
+     * the results are recorded on the build and passed to the listener.
+     *
+     * @return the handle to cancel the upload, {@code null} if there is
+     *         nothing to wait for: the configuration is not valid or the
+     *         upload is detached from the build.
+     */
+    AsyncUploadFiles.Handle startUpload ( final Run<?, ?> run, final FilePath workspace, final TaskListener taskListener, final UploadListener uploadListener ) throws InterruptedException, IOException
+    {
+        final RecorderUpload upload = prepareUpload ( run, taskListener );
+        if ( upload == null )
+        {
+            run.setResult ( Result.FAILURE );
+            return null;
+        }
+        return upload.start ( workspace, uploadListener );
+    }
+
+    /*
+     * Returns the upload with the variables of the build expanded, null if the configuration is not valid.
+     */
+    private RecorderUpload prepareUpload ( final Run<?, ?> run, final TaskListener taskListener ) throws InterruptedException, IOException
     {
         final LoggerListenerWrapper listener = new LoggerListenerWrapper ( taskListener, true ); // TODO move debug as advanced option
         final EnvVars env = run.getEnvironment ( taskListener );
+        final String artifacts = env.expand ( this.artifacts );
+
+        final List<ServerData> serverDataList = resolveServerData ( run, env, artifacts, listener );
+        if ( serverDataList == null )
+        {
+            return null;
+        }
+        return new RecorderUpload ( this, run, listener, artifacts, serverDataList );
+    }
 
+    /*
+     * Records the results of a detached upload on the build, which may be already finished.
+     */
+    void processDetachedResults ( final Run<?, ?> run, final TaskListener taskListener, final String artifacts, final List<ServerData> serverDataList, final List<UploaderResult> results ) throws IOException
+    {
+        new UploadResults ( this, run, artifacts, serverDataList ).recordDetached ( new LoggerListenerWrapper ( taskListener, true ), results );
+        run.save ();
+    }
+
+    /*
+     * Returns the main channel followed by the additional channels, null if any is not valid.
+     */
+    private List<ServerData> resolveServerData ( final Run<?, ?> run, final EnvVars env, final String artifacts, final LoggerListenerWrapper listener ) throws AbortException
+    {
         // do not change constructor values because we can reuse the same step instance with different Environment variables (for example in pipeline)
         final String serverURL = Util.replaceMacro ( this.serverUrl, env );
         final String channel = Util.replaceMacro ( this.channel, env );
         final String credentialsId = Util.replaceMacro ( this.credentialsId, env );
-        final String artifacts = env.expand ( this.artifacts );
-        String deployKey = Util.replaceMacro ( this.deployKey, env );
+        final String deployKey = Util.replaceMacro ( this.deployKey, env );
 
         if ( !validateStart ( serverURL, channel, ( credentialsId == null ? deployKey : credentialsId ), artifacts, listener ) )
         {
-            run.setResult ( Result.FAILURE );
-            return;
-        }
-
-        // to be back compatible use deployKey
-        if ( credentialsId != null )
-        {
-            List<DomainRequirement> domainRequirement = URIRequirementBuilder.fromUri ( serverURL ).build ();
-            StringCredentials secret = CredentialsProvider.findCredentialById ( credentialsId, StringCredentials.class, run, domainRequirement );
-            if ( secret == null )
-            {
-                throw new AbortException ( Messages.DroneRecorder_noCredentialIdFound ( credentialsId ) );
-            }
-            deployKey = secret.getSecret ().getPlainText ();
+            return null;
         }
 
-        final ServerData serverData = new ServerData ( serverURL, channel, deployKey, uploadV3 );
+        final List<ServerData> serverDataList = new ArrayList<> ();
+        serverDataList.add ( createServerData ( run, serverURL, channel, credentialsId, deployKey ) );
         listener.info ( Messages.DroneRecorder_serverUrl ( serverURL ) );
 
-        final FileCallable<UploaderResult> uploader = createCallable ( run, listener, artifacts, serverData );
-        try
+        for ( final DroneTarget target : getTargets () )
         {
-            UploaderResult result = workspace.act ( uploader );
-            // add logs
-            listener.getLogger ().print ( "Uploaded to chanel: " );
-            listener.hyperlink ( URLMaker.make ( serverURL, channel ), channel );
-            listener.getLogger ().println ();
-            listener.annotate ( ConsoleUtils.buildArtifactsList ( serverData, result ) );
-            listener.getLogger ().println ();
-
-            if ( ( result.isFailed () && failsAsUpload ) )
-            {
-                run.setResult ( Result.FAILURE );
-            }
-            else if ( result.isEmptyUpload () )
-            {
-                if ( this.allowEmptyArchive )
-                {
-                    listener.warning ( Messages.DroneRecorder_noMatchFound ( artifacts ) );
-                }
-                else
-                {
-                    listener.error ( Messages.DroneRecorder_noMatchFound ( artifacts ) ); // nothing to upload
-                    run.setResult ( Result.FAILURE );
-                }
-            }
+            final String targetServerURL = Util.replaceMacro ( target.getServerUrl (), env );
+            final String targetChannel = Util.replaceMacro ( target.getChannel (), env );
+            final String targetCredentialsId = Util.replaceMacro ( target.getCredentialsId (), env );
 
-            Map<String, String> uploadedArtifactsMap = new LinkedHashMap<> ();
-            for ( ArtifactResult ar : result.getUploadedArtifacts () )
+            if ( !validateStart ( targetServerURL, targetChannel, targetCredentialsId, artifacts, listener ) )
             {
-                uploadedArtifactsMap.put ( ar.getId (), ar.getName () );
+                return null;
             }
-            run.addAction ( new BuildData ( this.serverUrl, this.channel, uploadedArtifactsMap ) );
-        }
-        catch ( IOException e )
-        {
-            Util.displayIOException ( e, listener );
-            e.printStackTrace ( listener.error ( Messages.DroneRecorder_failedToUpload ( artifacts ) ) );
-            run.setResult ( Result.FAILURE );
+
+            serverDataList.add ( createServerData ( run, targetServerURL, targetChannel, targetCredentialsId, null ) );
+            listener.info ( Messages.DroneRecorder_serverUrl ( targetServerURL ) );
         }
+        return serverDataList;
+    }
+
+    private ServerData createServerData ( final Run<?, ?> run, final String serverURL, final String channel, final String credentialsId, final String deployKey ) throws AbortException
+    {
+        // to be back compatible use deployKey
+        final String key = credentialsId != null ? DeployKeys.resolve ( run, serverURL, credentialsId ) : deployKey;
+
+        return new ServerData ( serverURL, channel, key, uploadV3, credentialsId );
     }
 
     protected FileCallable<UploaderResult> createCallable ( final Run<?, ?> run, final LoggerListenerWrapper listener, final String artifacts, final ServerData serverData )
     {
-        return new UploadFiles ( artifacts, this.excludes, this.defaultExcludes, this.stripPath, serverData, run, listener );
+        return new UploadFiles ( artifacts, this.excludes, this.defaultExcludes, this.stripPath, createOptions (), serverData, run, listener );
+    }
+
+    protected FileCallable<List<UploaderResult>> createCallable ( final Run<?, ?> run, final LoggerListenerWrapper listener, final String artifacts, final List<ServerData> serverDataList )
+    {
+        return new FanOutUploadFiles ( artifacts, this.excludes, this.defaultExcludes, this.stripPath, createOptions (), serverDataList, run, listener );
+    }
+
+    /*
+     * Returns the options of the uploaders.
+     */
+    UploadOptions createOptions ()
+    {
+        final UploadOptions options = new UploadOptions ();
+        options.setDeltaUpload ( this.deltaUpload );
+        options.setBandwidthLimit ( this.bandwidthLimit );
+        options.setPriority ( getPriority () );
+        options.setSkipUnchanged ( this.skipUnchanged );
+        options.setQuorum ( this.quorum );
+        options.setChildArtifacts ( this.childArtifacts );
+        options.setParallelUploads ( getParallelUploads () );
+        options.setAdaptiveParallelism ( this.adaptiveParallelism );
+        options.setSplitUploadSize ( this.splitUploadSize );
+        return options;
     }
 
     /*
@@ -544,106 +1027,4 @@ public class DroneRecorder extends Recorder implements SimpleBuildStep
         return true;
     }
 
-    /*
-     * Callable used to perform the upload of archives in a master or slave node.
-     */
-    static class UploadFiles extends MasterToSlaveFileCallable<UploaderResult>
-    {
-        private static final long serialVersionUID = 4105845253120795102L;
-
-        private final String includes, excludes;
-
-        private final boolean defaultExcludes;
-
-        private final RunData runData;
-
-        private final LoggerListenerWrapper listener;
-
-        private final boolean stripPath;
-
-        private final ServerData serverData;
-
-        UploadFiles ( final String includes, final String excludes, final boolean defaultExcludes, final boolean stripPath, final ServerData serverData, final Run<?, ?> run, final LoggerListenerWrapper listener )
-        {
-            this.includes = includes;
-            this.excludes = excludes;
-            this.defaultExcludes = defaultExcludes;
-            this.stripPath = stripPath;
-            this.serverData = serverData;
-            this.runData = new RunData ( run );
-            this.listener = listener;
-        }
-
-        @Override
-        public UploaderResult invoke ( final File basedir, final VirtualChannel channel )
-        {
-            UploaderResult uploadResult = new UploaderResult ();
-            final FileSet fileSet = Util.createFileSet ( basedir, this.includes, this.excludes );
-            fileSet.setDefaultexcludes ( this.defaultExcludes );
-
-            final String[] includedFiles = fileSet.getDirectoryScanner ().getIncludedFiles ();
-            if ( includedFiles.length == 0 )
-            {
-                uploadResult.setEmptyUpload ( true );
-                return uploadResult;
-            }
-            else
-            {
-                try ( Uploader uploader = createUploader () )
-                {
-                    try
-                    {
-                        for ( final String f : includedFiles )
-                        {
-                            final File file = new File ( basedir, f );
-                            String filename;
-                            if ( this.stripPath )
-                            {
-                                filename = file.getName ();
-                            }
-                            else
-                            {
-                                filename = f;
-                            }
-                            uploader.addArtifact ( file, filename );
-                        }
-                        uploader.performUpload ();
-                    }
-                    finally
-                    {
-                        uploadResult.addUploadedArtifacts ( uploader.getUploadedArtifacts () );
-                    }
-                }
-                catch ( IOException e )
-                {
-                    uploadResult.setFailed ( true );
-                    String message = e.getMessage ();
-                    if ( message == null )
-                    {
-                        e.printStackTrace ( this.listener.error ( Messages.DroneRecorder_failedToUpload ( includes ) ) );
-                    }
-                    else
-                    {
-                        this.listener.error ( e.getMessage () );
-                    }
-                }
-            }
-
-            return uploadResult;
-        }
-
-        private Uploader createUploader () throws IOException
-        {
-            if ( this.serverData.isUploadV3 () )
-            {
-                return new UploaderV3 ( this.runData, this.listener, serverData );
-            }
-            else
-            {
-                return new UploaderV2 ( this.runData, this.listener, serverData );
-            }
-        }
-
-    }
-
 }
@@ -0,0 +1,112 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBH SYSTEMS GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBH SYSTEMS GmbH - initial API and implementation
+ *******************************************************************************/
+package de.dentrassi.pm.jenkins;
+
+import java.io.IOException;
+
+import javax.annotation.CheckForNull;
+
+import org.jenkinsci.Symbol;
+import org.kohsuke.stapler.AncestorInPath;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.model.Item;
+import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
+import jenkins.model.Jenkins;
+
+/**
+ * An additional channel, possibly on a different server, where the artifacts
+ * gathered by a {@link DroneRecorder} are uploaded too.
+ */
+public class DroneTarget extends AbstractDescribableImpl<DroneTarget>
+{
+    private final String serverUrl;
+
+    private final String channel;
+
+    private final String credentialsId;
+
+    @DataBoundConstructor
+    public DroneTarget ( final String serverUrl, final String channel, final String credentialsId )
+    {
+        this.serverUrl = Util.fixEmptyAndTrim ( serverUrl );
+        this.channel = Util.fixEmptyAndTrim ( channel );
+        this.credentialsId = Util.fixEmptyAndTrim ( credentialsId );
+    }
+
+    /**
+     * Returns the URL of the package drone server till the context root path.
+     *
+     * @return the package drone server URL string
+     */
+    public String getServerUrl ()
+    {
+        return serverUrl;
+    }
+
+    /**
+     * Returns the channel id where upload collected files.
+     *
+     * @return the channel id
+     */
+    public String getChannel ()
+    {
+        return channel;
+    }
+
+    /**
+     * Returns the stored credentials id used as deploy key.
+     *
+     * @return credentials id
+     */
+    public String getCredentialsId ()
+    {
+        return credentialsId;
+    }
+
+    @Symbol ( "target" )
+    @Extension
+    public static final class DescriptorImpl extends Descriptor<DroneTarget>
+    {
+        @Override
+        public String getDisplayName ()
+        {
+            return Messages.DroneTarget_DescriptorImpl_displayName ();
+        }
+
+        public FormValidation doCheckServerUrl ( @CheckForNull @QueryParameter final String serverUrl ) throws IOException
+        {
+            return getRecorderDescriptor ().doCheckServerUrl ( serverUrl );
+        }
+
+        public FormValidation doCheckCredentialsId ( @CheckForNull @AncestorInPath Item item, @QueryParameter String credentialsId, @QueryParameter String serverUrl )
+        {
+            return getRecorderDescriptor ().doCheckCredentialsId ( item, credentialsId, serverUrl );
+        }
+
+        public ListBoxModel doFillCredentialsIdItems ( @CheckForNull @AncestorInPath Item item, @QueryParameter String credentialsId, @QueryParameter String serverUrl )
+        {
+            return getRecorderDescriptor ().doFillCredentialsIdItems ( item, credentialsId, serverUrl );
+        }
+
+        private DroneRecorder.DescriptorImpl getRecorderDescriptor ()
+        {
+            return Jenkins.getActiveInstance ().getDescriptorByType ( DroneRecorder.DescriptorImpl.class );
+        }
+    }
+
+}
@@ -0,0 +1,528 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBH SYSTEMS GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBH SYSTEMS GmbH - initial API and implementation
+ *******************************************************************************/
+package de.dentrassi.pm.jenkins;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import javax.annotation.CheckForNull;
+
+import org.jenkinsci.Symbol;
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.kohsuke.stapler.AncestorInPath;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+
+import com.google.common.collect.ImmutableSet;
+
+import de.dentrassi.pm.jenkins.UploaderResult.ArtifactResult;
+import hudson.AbortException;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.Item;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
+import jenkins.model.Jenkins;
+
+/**
+ * Pipeline step which uploads artifacts like a {@link DroneRecorder} and
+ * returns what was uploaded.
+ * <p>
+ * The returned value is built from the results collected during the upload,
+ * no further request is sent to the server. It is a map with the server URL,
+ * the channel, the counts of accepted, rejected and reused artifacts, their
+ * total size and the list of the artifacts. Additional channels are returned
+ * in the same form in the list <code>targets</code>. With
+ * <code>countsOnly</code> the list of artifacts is left out.
+ * <p>
+ * The upload runs in the background of the node holding the workspace, the
+ * step waits for it without holding a thread, so uploads of parallel branches
+ * run concurrently.
+ */
+public class DroneUploadStep extends Step
+{
+    /*
+     * The upload is delegated to a recorder, which also keeps the configuration.
+     */
+    private final DroneRecorder recorder;
+
+    /**
+     * Return only the counts of the artifacts, not the artifacts themselves.
+     */
+    private boolean countsOnly = false;
+
+    @DataBoundConstructor
+    public DroneUploadStep ( final String serverUrl, final String channel, final String credentialsId, final String artifacts )
+    {
+        this.recorder = new DroneRecorder ( serverUrl, channel, credentialsId, artifacts );
+    }
+
+    /**
+     * Sets if only the counts of the uploaded artifacts are returned.
+     *
+     * @param countsOnly
+     *            if the list of artifacts is left out of the result.
+     */
+    @DataBoundSetter
+    public void setCountsOnly ( final boolean countsOnly )
+    {
+        this.countsOnly = countsOnly;
+    }
+
+    /**
+     * Returns if only the counts of the uploaded artifacts are returned.
+     *
+     * @return if the list of artifacts is left out of the result.
+     */
+    public boolean isCountsOnly ()
+    {
+        return countsOnly;
+    }
+
+    @DataBoundSetter
+    public void setExcludes ( final String excludes )
+    {
+        recorder.setExcludes ( excludes );
+    }
+
+    @DataBoundSetter
+    public void setDefaultExcludes ( final boolean defaultExcludes )
+    {
+        recorder.setDefaultExcludes ( defaultExcludes );
+    }
+
+    @DataBoundSetter
+    public void setStripPath ( final boolean stripPath )
+    {
+        recorder.setStripPath ( stripPath );
+    }
+
+    @DataBoundSetter
+    public void setAllowEmptyArchive ( final boolean allowEmptyArchive )
+    {
+        recorder.setAllowEmptyArchive ( allowEmptyArchive );
+    }
+
+    @DataBoundSetter
+    public void setFailsAsUpload ( final boolean failsAsUpload )
+    {
+        recorder.setFailsAsUpload ( failsAsUpload );
+    }
+
+    @DataBoundSetter
+    public void setUploadV3 ( final boolean uploadV3 )
+    {
+        recorder.setUploadV3 ( uploadV3 );
+    }
+
+    @DataBoundSetter
+    public void setDeltaUpload ( final boolean deltaUpload )
+    {
+        recorder.setDeltaUpload ( deltaUpload );
+    }
+
+    @DataBoundSetter
+    public void setArchivedArtifacts ( final boolean archivedArtifacts )
+    {
+        recorder.setArchivedArtifacts ( archivedArtifacts );
+    }
+
+    @DataBoundSetter
+    public void setSkipUnchanged ( final boolean skipUnchanged )
+    {
+        recorder.setSkipUnchanged ( skipUnchanged );
+    }
+
+    @DataBoundSetter
+    public void setBandwidthLimit ( final int bandwidthLimit )
+    {
+        recorder.setBandwidthLimit ( bandwidthLimit );
+    }
+
+    @DataBoundSetter
+    public void setPriority ( final UploadPriority priority )
+    {
+        recorder.setPriority ( priority );
+    }
+
+    @DataBoundSetter
+    public void setTargets ( final List<DroneTarget> targets )
+    {
+        recorder.setTargets ( targets );
+    }
+
+    @DataBoundSetter
+    public void setQuorum ( final int quorum )
+    {
+        recorder.setQuorum ( quorum );
+    }
+
+    @DataBoundSetter
+    public void setParallelUploads ( final int parallelUploads )
+    {
+        recorder.setParallelUploads ( parallelUploads );
+    }
+
+    @DataBoundSetter
+    public void setAdaptiveParallelism ( final boolean adaptiveParallelism )
+    {
+        recorder.setAdaptiveParallelism ( adaptiveParallelism );
+    }
+
+    @DataBoundSetter
+    public void setSplitUploadSize ( final int splitUploadSize )
+    {
+        recorder.setSplitUploadSize ( splitUploadSize );
+    }
+
+    @DataBoundSetter
+    public void setDetached ( final boolean detached )
+    {
+        recorder.setDetached ( detached );
+    }
+
+    @DataBoundSetter
+    public void setChildArtifacts ( final List<DroneChildArtifacts> childArtifacts )
+    {
+        recorder.setChildArtifacts ( childArtifacts );
+    }
+
+    public String getServerUrl ()
+    {
+        return recorder.getServerUrl ();
+    }
+
+    public String getChannel ()
+    {
+        return recorder.getChannel ();
+    }
+
+    public String getCredentialsId ()
+    {
+        return recorder.getCredentialsId ();
+    }
+
+    public String getArtifacts ()
+    {
+        return recorder.getArtifacts ();
+    }
+
+    public String getExcludes ()
+    {
+        return recorder.getExcludes ();
+    }
+
+    public boolean isDefaultExcludes ()
+    {
+        return recorder.isDefaultExcludes ();
+    }
+
+    public boolean isStripPath ()
+    {
+        return recorder.isStripPath ();
+    }
+
+    public boolean isAllowEmptyArchive ()
+    {
+        return recorder.isAllowEmptyArchive ();
+    }
+
+    public boolean isFailsAsUpload ()
+    {
+        return recorder.isFailsAsUpload ();
+    }
+
+    public boolean isUploadV3 ()
+    {
+        return recorder.isUploadV3 ();
+    }
+
+    public boolean isDeltaUpload ()
+    {
+        return recorder.isDeltaUpload ();
+    }
+
+    public boolean isArchivedArtifacts ()
+    {
+        return recorder.isArchivedArtifacts ();
+    }
+
+    public boolean isSkipUnchanged ()
+    {
+        return recorder.isSkipUnchanged ();
+    }
+
+    public int getBandwidthLimit ()
+    {
+        return recorder.getBandwidthLimit ();
+    }
+
+    public UploadPriority getPriority ()
+    {
+        return recorder.getPriority ();
+    }
+
+    public List<DroneTarget> getTargets ()
+    {
+        return recorder.getTargets ();
+    }
+
+    public int getQuorum ()
+    {
+        return recorder.getQuorum ();
+    }
+
+    public int getParallelUploads ()
+    {
+        return recorder.getParallelUploads ();
+    }
+
+    public boolean isAdaptiveParallelism ()
+    {
+        return recorder.isAdaptiveParallelism ();
+    }
+
+    public int getSplitUploadSize ()
+    {
+        return recorder.getSplitUploadSize ();
+    }
+
+    public boolean isDetached ()
+    {
+        return recorder.isDetached ();
+    }
+
+    public List<DroneChildArtifacts> getChildArtifacts ()
+    {
+        return recorder.getChildArtifacts ();
+    }
+
+    @Override
+    public StepExecution start ( final StepContext context ) throws Exception
+    {
+        return new Execution ( this, context );
+    }
+
+    /**
+     * Converts the results of an upload into the value returned by the step.
+     *
+     * @param results
+     *            the result of each channel, the main channel first.
+     * @param countsOnly
+     *            if the list of artifacts is left out.
+     * @return the result of the main channel with the additional channels in
+     *         <code>targets</code>, an empty map if nothing was uploaded.
+     */
+    static Map<String, Object> toReturnValue ( final Map<ServerData, UploaderResult> results, final boolean countsOnly )
+    {
+        Map<String, Object> main = null;
+        final List<Map<String, Object>> targets = new ArrayList<> ();
+        for ( final Entry<ServerData, UploaderResult> entry : results.entrySet () )
+        {
+            final Map<String, Object> value = toReturnValue ( entry.getKey (), entry.getValue (), countsOnly );
+            if ( main == null )
+            {
+                main = value;
+            }
+            else
+            {
+                targets.add ( value );
+            }
+        }
+
+        if ( main == null )
+        {
+            return new LinkedHashMap<> ();
+        }
+        if ( !targets.isEmpty () )
+        {
+            main.put ( "targets", targets );
+        }
+        return main;
+    }
+
+    private static Map<String, Object> toReturnValue ( final ServerData serverData, final UploaderResult result, final boolean countsOnly )
+    {
+        final Map<String, Object> value = new LinkedHashMap<> ();
+        value.put ( "serverUrl", serverData.getServerURL () );
+        value.put ( "channel", serverData.getChannel () );
+        value.put ( "failed", result.isFailed () );
+        value.put ( "pending", result.isPending () );
+        value.put ( "accepted", result.getAcceptedCount () );
+        value.put ( "rejected", result.getRejectedCount () );
+        value.put ( "reused", result.getReusedCount () );
+        value.put ( "size", result.getUploadedSize () );
+
+        if ( countsOnly )
+        {
+            return value;
+        }
+
+        final List<Map<String, Object>> artifacts = new ArrayList<> ( result.getUploadedArtifacts ().size () );
+        for ( final ArtifactResult artifact : result.getUploadedArtifacts () )
+        {
+            final Map<String, Object> item = new LinkedHashMap<> ();
+            item.put ( "name", artifact.getName () );
+            item.put ( "size", artifact.getSize () );
+            if ( artifact.isRejected () )
+            {
+                item.put ( "rejected", true );
+                item.put ( "reason", artifact.getReason () );
+            }
+            else
+            {
+                item.put ( "id", artifact.getId () );
+                item.put ( "url", URLMaker.make ( serverData.getServerURL (), serverData.getChannel (), artifact.getId () ) );
+                item.put ( "reused", artifact.isReused () );
+            }
+            artifacts.add ( item );
+        }
+        value.put ( "artifacts", artifacts );
+        return value;
+    }
+
+    /*
+     * Starts the upload on the node of the workspace and returns at once, the step completes when the node reports the
+     * results. Neither the CPS thread nor another thread of the master waits for the upload.
+     */
+    private static class Execution extends StepExecution implements DroneRecorder.UploadListener
+    {
+        private static final long serialVersionUID = 6071934568232461470L;
+
+        private final transient DroneUploadStep step;
+
+        private final boolean countsOnly;
+
+        private transient volatile AsyncUploadFiles.Handle handle;
+
+        Execution ( final DroneUploadStep step, final StepContext context )
+        {
+            super ( context );
+            this.step = step;
+            this.countsOnly = step.countsOnly;
+        }
+
+        @Override
+        public boolean start () throws Exception
+        {
+            final Run<?, ?> run = getContext ().get ( Run.class );
+            final FilePath workspace = getContext ().get ( FilePath.class );
+            final TaskListener listener = getContext ().get ( TaskListener.class );
+
+            this.handle = step.recorder.startUpload ( run, workspace, listener, this );
+            if ( this.handle == null )
+            {
+                // not started, the configuration errors are already reported
+                getContext ().onSuccess ( toReturnValue ( Collections.<ServerData, UploaderResult> emptyMap (), countsOnly ) );
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void onUploaded ( final Map<ServerData, UploaderResult> results )
+        {
+            getContext ().onSuccess ( toReturnValue ( results, countsOnly ) );
+        }
+
+        @Override
+        public void onFailure ( final Throwable cause )
+        {
+            getContext ().onFailure ( cause );
+        }
+
+        @Override
+        public void stop ( final Throwable cause ) throws Exception
+        {
+            final AsyncUploadFiles.Handle handle = this.handle;
+            if ( handle != null )
+            {
+                handle.cancel ();
+            }
+            getContext ().onFailure ( cause );
+        }
+
+        @Override
+        public void onResume ()
+        {
+            // the upload does not survive a restart of the master
+            getContext ().onFailure ( new AbortException ( Messages.DroneUploadStep_uploadLost () ) );
+        }
+    }
+
+    @Symbol ( "pdroneUpload" )
+    @Extension
+    public static final class DescriptorImpl extends StepDescriptor
+    {
+        @Override
+        public String getFunctionName ()
+        {
+            return "pdroneUpload";
+        }
+
+        @Override
+        public String getDisplayName ()
+        {
+            return Messages.DroneUploadStep_DescriptorImpl_displayName ();
+        }
+
+        @Override
+        public Set<? extends Class<?>> getRequiredContext ()
+        {
+            return ImmutableSet.of ( Run.class, FilePath.class, TaskListener.class );
+        }
+
+        @Override
+        public String getHelpFile ( final String fieldName )
+        {
+            final String helpFile = super.getHelpFile ( fieldName );
+            if ( helpFile != null || fieldName == null )
+            {
+                return helpFile;
+            }
+            // the options shared with the recorder are documented there
+            return getRecorderDescriptor ().getHelpFile ( fieldName );
+        }
+
+        public FormValidation doCheckServerUrl ( @CheckForNull @QueryParameter final String serverUrl ) throws IOException
+        {
+            return getRecorderDescriptor ().doCheckServerUrl ( serverUrl );
+        }
+
+        public FormValidation doCheckCredentialsId ( @CheckForNull @AncestorInPath final Item item, @QueryParameter final String credentialsId, @QueryParameter final String serverUrl )
+        {
+            return getRecorderDescriptor ().doCheckCredentialsId ( item, credentialsId, serverUrl );
+        }
+
+        public ListBoxModel doFillCredentialsIdItems ( @CheckForNull @AncestorInPath final Item item, @QueryParameter final String credentialsId, @QueryParameter final String serverUrl )
+        {
+            return getRecorderDescriptor ().doFillCredentialsIdItems ( item, credentialsId, serverUrl );
+        }
+
+        private static DroneRecorder.DescriptorImpl getRecorderDescriptor ()
+        {
+            return Jenkins.getActiveInstance ().getDescriptorByType ( DroneRecorder.DescriptorImpl.class );
+        }
+    }
+
+}
@@ -0,0 +1,221 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBH SYSTEMS GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBH SYSTEMS GmbH - initial API and implementation
+ *******************************************************************************/
+package de.dentrassi.pm.jenkins;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import de.dentrassi.pm.jenkins.UploaderResult.ArtifactResult;
+import de.dentrassi.pm.jenkins.index.UploadIndex;
+import de.dentrassi.pm.jenkins.util.LoggerListenerWrapper;
+import hudson.Util;
+import hudson.model.Run;
+
+/*
+ * Callable used to upload the same archives to several channels with a single scan of the workspace.
+ */
+class FanOutUploadFiles extends AbstractUploadFiles<List<UploaderResult>>
+{
+    private static final long serialVersionUID = 6391380874373427335L;
+
+    private static final Logger LOGGER = Logger.getLogger ( FanOutUploadFiles.class.getName () );
+
+    private final List<ServerData> serverDataList;
+
+    FanOutUploadFiles ( final String includes, final String excludes, final boolean defaultExcludes, final boolean stripPath, final UploadOptions options, final List<ServerData> serverDataList, final Run<?, ?> run, final LoggerListenerWrapper listener )
+    {
+        super ( includes, excludes, defaultExcludes, stripPath, options, run, listener );
+        this.serverDataList = new ArrayList<> ( serverDataList );
+    }
+
+    /**
+     * Receives on the master the result of each channel which completes
+     * after the step returned.
+     */
+    public interface BackgroundCallback
+    {
+        /**
+         * Called when a channel below the quorum completed.
+         *
+         * @param index
+         *            the index of the channel, the main channel first.
+         * @param result
+         *            the result of the channel.
+         * @param log
+         *            the log of the channel.
+         */
+        void onUploaded ( int index, UploaderResult result, String log );
+    }
+
+    /*
+     * Where the channels completing after the step returned report, null if all channels are waited for.
+     */
+    private BackgroundCallback background;
+
+    /**
+     * Lets the channels below the quorum report to the given callback.
+     * The files are read from a copy, which is deleted once all channels
+     * are done.
+     */
+    void setBackground ( final BackgroundCallback background )
+    {
+        this.background = background;
+    }
+
+    @Override
+    protected List<UploaderResult> upload ( final File basedir, final LoggerListenerWrapper listener ) throws InterruptedException
+    {
+        boolean pending = false;
+        try
+        {
+            final List<UploaderResult> results = uploadFiles ( basedir, listener );
+            for ( final UploaderResult result : results )
+            {
+                pending |= result.isPending ();
+            }
+            return results;
+        }
+        finally
+        {
+            if ( !pending )
+            {
+                deleteCopy ( basedir );
+            }
+        }
+    }
+
+    private List<UploaderResult> uploadFiles ( final File basedir, final LoggerListenerWrapper listener ) throws InterruptedException
+    {
+        final Map<File, String> files = scan ( basedir );
+
+        final UploadIndex index = loadIndex ( basedir, serverDataList );
+        final List<Set<ArtifactResult>> reused = new ArrayList<> ( serverDataList.size () );
+        for ( int i = 0; i < serverDataList.size (); i++ )
+        {
+            reused.add ( new LinkedHashSet<ArtifactResult> () );
+        }
+        final Map<File, File> parents = DroneChildArtifacts.findParents ( options.getChildArtifacts (), files );
+        final Map<File, String> changed = UnchangedFiles.skipUnchanged ( index, files, parents, reused, listener );
+
+        // the channels which complete after the step returned cannot write to the build log
+        final List<ByteArrayOutputStream> logs = background == null ? null : new ArrayList<ByteArrayOutputStream> ( serverDataList.size () );
+        final List<AbstractUploader> uploaders = new ArrayList<> ( serverDataList.size () );
+        try
+        {
+            if ( !changed.isEmpty () )
+            {
+                for ( final ServerData serverData : serverDataList )
+                {
+                    if ( logs == null )
+                    {
+                        uploaders.add ( createUploader ( basedir, serverData, listener ) );
+                    }
+                    else
+                    {
+                        final ByteArrayOutputStream log = new ByteArrayOutputStream ();
+                        logs.add ( log );
+                        uploaders.add ( createUploader ( basedir, serverData, listener.redirect ( log ) ) );
+                    }
+                }
+            }
+        }
+        catch ( IOException e )
+        {
+            for ( final AbstractUploader uploader : uploaders )
+            {
+                uploader.close ();
+            }
+            uploaders.clear ();
+            reportFailure ( e, listener );
+        }
+
+        final List<UploaderResult> results;
+        if ( uploaders.isEmpty () )
+        {
+            results = new ArrayList<> ( serverDataList.size () );
+            for ( int i = 0; i < serverDataList.size (); i++ )
+            {
+                final UploaderResult result = new UploaderResult ();
+                result.setEmptyUpload ( files.isEmpty () );
+                result.setFailed ( !changed.isEmpty () );
+                results.add ( result );
+            }
+        }
+        else
+        {
+            try ( FanOutUploader fanOut = new FanOutUploader ( uploaders, options.getQuorum (), listener ) )
+            {
+                if ( background != null )
+                {
+                    fanOut.setBackgroundListener ( new FanOutUploader.BackgroundListener () {
+
+                        @Override
+                        public void onCompleted ( final int index, final UploaderResult result, final String log )
+                        {
+                            result.addUploadedArtifacts ( reused.get ( index ) );
+                            try
+                            {
+                                background.onUploaded ( index, result, log );
+                            }
+                            catch ( final RuntimeException e )
+                            {
+                                // the master is gone, the result is lost like the log of the build
+                                LOGGER.log ( Level.FINE, "Failed to report a background upload", e );
+                            }
+                        }
+
+                        @Override
+                        public void onAllCompleted ()
+                        {
+                            deleteCopy ( basedir );
+                        }
+                    }, logs );
+                }
+                results = fanOut.performUpload ( changed, parents );
+            }
+            UnchangedFiles.updateIndex ( index, changed, results, listener );
+        }
+
+        for ( int i = 0; i < results.size (); i++ )
+        {
+            results.get ( i ).addUploadedArtifacts ( reused.get ( i ) );
+        }
+        return results;
+    }
+
+    /*
+     * Deletes the copy of the files read by the channels below the quorum, once no channel reads it anymore.
+     */
+    private void deleteCopy ( final File basedir )
+    {
+        if ( background == null )
+        {
+            return;
+        }
+        try
+        {
+            Util.deleteRecursive ( basedir );
+        }
+        catch ( final IOException e )
+        {
+            LOGGER.log ( Level.FINE, "Failed to delete the copied files " + basedir, e );
+        }
+    }
+
+}
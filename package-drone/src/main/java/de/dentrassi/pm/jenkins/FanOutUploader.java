@@ -0,0 +1,514 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBH SYSTEMS GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBH SYSTEMS GmbH - initial API and implementation
+ *******************************************************************************/
+package de.dentrassi.pm.jenkins;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import de.dentrassi.pm.jenkins.util.LoggerListenerWrapper;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+/**
+ * Uploads the same set of files to several channels at once.
+ * <p>
+ * With the protocol V3 the transfer archive is created a single time and sent
+ * to every channel, so each file is read only once. With the protocol V2 each
+ * channel reads and sends the files on its own, without waiting for the other
+ * channels, so a file is read once for each channel, usually from the file
+ * system cache. Each channel uploads as many files at the same time as its
+ * uploader is configured for, like a single channel does.
+ * <p>
+ * With a quorum lower than the number of channels the upload completes as soon
+ * as enough channels acknowledged all files, the slower channels keep
+ * uploading in the background and report to the {@link BackgroundListener}
+ * when done.
+ */
+class FanOutUploader implements Closeable
+{
+    /**
+     * Receives the results of the channels which complete after the upload
+     * returned.
+     */
+    interface BackgroundListener
+    {
+        /**
+         * Called when a channel completed in the background.
+         *
+         * @param index
+         *            the index of the channel in the uploaders.
+         * @param result
+         *            the result of the channel.
+         * @param log
+         *            the whole log of the channel.
+         */
+        void onCompleted ( int index, UploaderResult result, String log );
+
+        /**
+         * Called once all channels completed, after the last
+         * {@link #onCompleted}.
+         */
+        void onAllCompleted ();
+    }
+
+    private final List<AbstractUploader> uploaders;
+
+    private final LoggerListenerWrapper listener;
+
+    private final ExecutorService executor;
+
+    private final int quorum;
+
+    private final IOException[] failures;
+
+    private final boolean[] finished;
+
+    private final long[] latencies;
+
+    /*
+     * The channels completed in background, each one is closed by its own replica.
+     */
+    private final boolean[] detached;
+
+    private int finishedCount;
+
+    /*
+     * The channels reporting their completion in background, the end of all is reported after them.
+     */
+    private int reporting;
+
+    private boolean allCompleted;
+
+    private int succeededCount;
+
+    private long start;
+
+    private File archiveFile;
+
+    private boolean background;
+
+    private BackgroundListener backgroundListener;
+
+    private List<ByteArrayOutputStream> logs;
+
+    /**
+     * Creates a fan out over the given uploaders that waits for all channels.
+     *
+     * @param uploaders
+     *            one uploader for each channel, all using the same protocol.
+     * @param listener
+     *            where report failures.
+     */
+    FanOutUploader ( final List<AbstractUploader> uploaders, final LoggerListenerWrapper listener )
+    {
+        this ( uploaders, 0, listener );
+    }
+
+    /**
+     * Creates a fan out over the given uploaders.
+     *
+     * @param uploaders
+     *            one uploader for each channel, all using the same protocol.
+     * @param quorum
+     *            how many channels must acknowledge the upload before
+     *            returning, zero or more than the channels means all.
+     * @param listener
+     *            where report failures.
+     */
+    FanOutUploader ( final List<AbstractUploader> uploaders, final int quorum, final LoggerListenerWrapper listener )
+    {
+        this.uploaders = uploaders;
+        this.listener = listener;
+        this.quorum = quorum <= 0 || quorum > uploaders.size () ? uploaders.size () : quorum;
+        this.failures = new IOException[uploaders.size ()];
+        this.finished = new boolean[uploaders.size ()];
+        this.latencies = new long[uploaders.size ()];
+        this.detached = new boolean[uploaders.size ()];
+        this.executor = Executors.newFixedThreadPool ( uploaders.size (), new NamingThreadFactory ( new DaemonThreadFactory (), "pdrone-fan-out" ) );
+    }
+
+    /**
+     * Lets the channels which complete after the upload returned report to
+     * the given listener, since the build log may be closed by then.
+     * <p>
+     * Each uploader must log into its own buffer, the log of a channel which
+     * completes in time is copied into the log of the fan out.
+     *
+     * @param backgroundListener
+     *            the listener of the channels completing in the background.
+     * @param logs
+     *            the log buffer of each uploader, in the same order.
+     */
+    void setBackgroundListener ( final BackgroundListener backgroundListener, final List<ByteArrayOutputStream> logs )
+    {
+        this.backgroundListener = backgroundListener;
+        this.logs = logs;
+    }
+
+    /**
+     * Uploads all given files to every channel.
+     *
+     * @param files
+     *            the local files to upload with their upload name.
+     * @return the result of each channel, in the same order of the uploaders.
+     *         The result of a channel still uploading in the background is
+     *         marked as pending.
+     * @throws InterruptedException
+     *             if interrupted while waiting the uploads to complete.
+     */
+    public List<UploaderResult> performUpload ( final Map<File, String> files ) throws InterruptedException
+    {
+        return performUpload ( files, Collections.<File, File> emptyMap () );
+    }
+
+    /**
+     * Uploads all given files to every channel, some of them as children of
+     * other ones.
+     *
+     * @param files
+     *            the local files to upload with their upload name.
+     * @param parents
+     *            the parent of each file uploaded as a child.
+     * @return the result of each channel, in the same order of the uploaders.
+     *         The result of a channel still uploading in the background is
+     *         marked as pending.
+     * @throws InterruptedException
+     *             if interrupted while waiting the uploads to complete.
+     */
+    public List<UploaderResult> performUpload ( final Map<File, String> files, final Map<File, File> parents ) throws InterruptedException
+    {
+        for ( final AbstractUploader uploader : uploaders )
+        {
+            for ( final Entry<File, String> entry : files.entrySet () )
+            {
+                final File parent = parents.get ( entry.getKey () );
+                if ( parent == null )
+                {
+                    uploader.addArtifact ( entry.getKey (), entry.getValue () );
+                }
+                else
+                {
+                    uploader.addChildArtifact ( entry.getKey (), entry.getValue (), parent );
+                }
+            }
+            uploader.setupClient ();
+        }
+
+        start = System.nanoTime ();
+        if ( uploaders.get ( 0 ) instanceof UploaderV3 )
+        {
+            uploadArchive ();
+        }
+        else
+        {
+            uploadFiles ();
+        }
+
+        synchronized ( this )
+        {
+            final List<UploaderResult> results = new ArrayList<> ( uploaders.size () );
+            for ( int i = 0; i < uploaders.size (); i++ )
+            {
+                final ServerData serverData = uploaders.get ( i ).getServerData ();
+                if ( !finished[i] )
+                {
+                    background = true;
+                    final UploaderResult result = new UploaderResult ();
+                    result.setPending ( true );
+                    listener.info ( Messages.FanOutUploader_pending ( serverData.getServerURL (), serverData.getChannel () ) );
+                    results.add ( result );
+                    continue;
+                }
+
+                if ( logs != null )
+                {
+                    listener.getLogger ().print ( getLog ( i ) );
+                }
+                final UploaderResult result = createResult ( i );
+                if ( failures[i] != null )
+                {
+                    listener.error ( Messages.FanOutUploader_failedToUpload ( serverData.getServerURL (), serverData.getChannel (), failures[i].getMessage () ) );
+                }
+                results.add ( result );
+            }
+            return results;
+        }
+    }
+
+    private UploaderResult createResult ( final int index )
+    {
+        final AbstractUploader uploader = uploaders.get ( index );
+
+        final UploaderResult result = new UploaderResult ();
+        result.addUploadedArtifacts ( uploader.getUploadedArtifacts () );
+        result.addQueueTime ( uploader.getQueueTime (), uploader.getMaxQueueTime () );
+        result.setAdaptiveLimit ( uploader.getAdaptiveLimit () );
+        result.setLatency ( latencies[index] );
+        result.setFailed ( failures[index] != null );
+        return result;
+    }
+
+    private String getLog ( final int index )
+    {
+        try
+        {
+            return logs.get ( index ).toString ( "UTF-8" );
+        }
+        catch ( final UnsupportedEncodingException e )
+        {
+            // every Java platform supports UTF-8
+            throw new IllegalStateException ( e );
+        }
+    }
+
+    private void uploadArchive () throws InterruptedException
+    {
+        final UploaderV3 first = (UploaderV3)uploaders.get ( 0 );
+
+        final File archive;
+        try
+        {
+            archive = first.createTransferArchive ();
+        }
+        catch ( final IOException e )
+        {
+            Arrays.fill ( failures, e );
+            Arrays.fill ( finished, true );
+            return;
+        }
+        synchronized ( this )
+        {
+            archiveFile = archive;
+        }
+
+        for ( int i = 0; i < uploaders.size (); i++ )
+        {
+            final UploaderV3 uploader = (UploaderV3)uploaders.get ( i );
+            executor.execute ( new Replica ( i ) {
+
+                @Override
+                protected void upload () throws IOException
+                {
+                    uploader.uploadArchive ( archive, first.getArchiveChecksums () );
+                }
+            } );
+        }
+        awaitQuorum ();
+    }
+
+    private void uploadFiles () throws InterruptedException
+    {
+        for ( int i = 0; i < uploaders.size (); i++ )
+        {
+            final AbstractUploader uploader = uploaders.get ( i );
+            executor.execute ( new Replica ( i ) {
+
+                @Override
+                protected void upload () throws IOException
+                {
+                    // the same upload as a single channel, with the parallelism of the uploader
+                    uploader.performUpload ();
+                }
+            } );
+        }
+        awaitQuorum ();
+    }
+
+    /*
+     * Waits until enough channels acknowledged the upload or all channels are done.
+     */
+    private synchronized void awaitQuorum () throws InterruptedException
+    {
+        while ( succeededCount < quorum && finishedCount < uploaders.size () )
+        {
+            wait ();
+        }
+    }
+
+    /*
+     * Only the state is updated under the lock, closing the uploader and the callbacks to the master are slow and
+     * must not block the other channels nor the quorum.
+     */
+    private void complete ( final int index, final IOException failure )
+    {
+        final boolean inBackground;
+        final BackgroundListener backgroundListener;
+        synchronized ( this )
+        {
+            latencies[index] = elapsed ();
+            failures[index] = failure;
+            finished[index] = true;
+            finishedCount++;
+            if ( failure == null )
+            {
+                succeededCount++;
+            }
+            inBackground = background;
+            backgroundListener = this.backgroundListener;
+            if ( inBackground )
+            {
+                detached[index] = true;
+                reporting++;
+            }
+            notifyAll ();
+        }
+
+        try
+        {
+            if ( inBackground )
+            {
+                reportBackground ( index, failure, backgroundListener );
+            }
+        }
+        finally
+        {
+            final boolean last;
+            synchronized ( this )
+            {
+                if ( inBackground )
+                {
+                    reporting--;
+                }
+                last = finishedCount == uploaders.size () && reporting == 0 && !allCompleted;
+                if ( last )
+                {
+                    allCompleted = true;
+                }
+            }
+
+            if ( last )
+            {
+                deleteArchive ();
+                if ( inBackground && backgroundListener != null )
+                {
+                    backgroundListener.onAllCompleted ();
+                }
+            }
+        }
+    }
+
+    private void reportBackground ( final int index, final IOException failure, final BackgroundListener backgroundListener )
+    {
+        // the build step has already returned, its log may be closed
+        final AbstractUploader uploader = uploaders.get ( index );
+        final ServerData serverData = uploader.getServerData ();
+        final LoggerListenerWrapper log = logs == null ? listener : listener.redirect ( logs.get ( index ) );
+        if ( failure == null )
+        {
+            log.info ( Messages.FanOutUploader_backgroundFinished ( serverData.getServerURL (), serverData.getChannel (), latencies[index] ) );
+        }
+        else
+        {
+            log.error ( Messages.FanOutUploader_backgroundFailed ( serverData.getServerURL (), serverData.getChannel (), failure.getMessage () ) );
+        }
+        log.flush ();
+        uploader.close ();
+
+        if ( backgroundListener != null )
+        {
+            backgroundListener.onCompleted ( index, createResult ( index ), getLog ( index ) );
+        }
+    }
+
+    private long elapsed ()
+    {
+        return TimeUnit.NANOSECONDS.toMillis ( System.nanoTime () - start );
+    }
+
+    private void deleteArchive ()
+    {
+        final File archive;
+        synchronized ( this )
+        {
+            archive = archiveFile;
+            archiveFile = null;
+        }
+        if ( archive != null )
+        {
+            ( (UploaderV3)uploaders.get ( 0 ) ).deleteFile ( archive );
+        }
+    }
+
+    @Override
+    public synchronized void close ()
+    {
+        if ( background )
+        {
+            // let the slower channels complete, each one is closed when done
+            executor.shutdown ();
+            for ( int i = 0; i < uploaders.size (); i++ )
+            {
+                if ( finished[i] && !detached[i] )
+                {
+                    uploaders.get ( i ).close ();
+                }
+            }
+            return;
+        }
+
+        executor.shutdownNow ();
+        for ( final AbstractUploader uploader : uploaders )
+        {
+            uploader.close ();
+        }
+        deleteArchive ();
+    }
+
+    /**
+     * Uploads all files to a single channel.
+     */
+    private abstract class Replica implements Runnable
+    {
+        private final int index;
+
+        Replica ( final int index )
+        {
+            this.index = index;
+        }
+
+        protected abstract void upload () throws IOException;
+
+        @Override
+        public void run ()
+        {
+            IOException failure = null;
+            try
+            {
+                upload ();
+            }
+            catch ( final IOException e )
+            {
+                failure = e;
+            }
+            catch ( final RuntimeException e )
+            {
+                failure = new IOException ( e );
+            }
+            finally
+            {
+                complete ( index, failure );
+            }
+        }
+    }
+
+}
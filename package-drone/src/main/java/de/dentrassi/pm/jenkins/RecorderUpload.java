@@ -0,0 +1,300 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBH SYSTEMS GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBH SYSTEMS GmbH - initial API and implementation
+ *******************************************************************************/
+package de.dentrassi.pm.jenkins;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import de.dentrassi.pm.jenkins.util.LoggerListenerWrapper;
+import hudson.AbortException;
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.model.Computer;
+import hudson.model.Run;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DirScanner;
+import hudson.util.StreamTaskListener;
+
+/**
+ * Performs the upload configured by a {@link DroneRecorder} for a build.
+ * <p>
+ * The upload is detached from the build, reads the archived artifacts on the
+ * master, or reads the workspace files for a single channel or for several
+ * channels, where the ones below the quorum may complete in the background.
+ * Either way the results are recorded by {@link UploadResults}.
+ */
+class RecorderUpload
+{
+    private static final Logger LOGGER = Logger.getLogger ( RecorderUpload.class.getName () );
+
+    private final DroneRecorder recorder;
+
+    private final Run<?, ?> run;
+
+    private final LoggerListenerWrapper listener;
+
+    private final String artifacts;
+
+    private final List<ServerData> serverDataList;
+
+    private final UploadResults results;
+
+    /**
+     * Creates the upload of a build.
+     *
+     * @param recorder
+     *            the configuration of the upload.
+     * @param run
+     *            the build whose artifacts are uploaded.
+     * @param listener
+     *            where log the upload.
+     * @param artifacts
+     *            the ant glob pattern of the artifacts, with the variables
+     *            expanded.
+     * @param serverDataList
+     *            the channels, the main channel first.
+     */
+    RecorderUpload ( final DroneRecorder recorder, final Run<?, ?> run, final LoggerListenerWrapper listener, final String artifacts, final List<ServerData> serverDataList )
+    {
+        this.recorder = recorder;
+        this.run = run;
+        this.listener = listener;
+        this.artifacts = artifacts;
+        this.serverDataList = serverDataList;
+        this.results = new UploadResults ( recorder, run, artifacts, serverDataList );
+    }
+
+    /**
+     * Uploads the artifacts and records the results on the build.
+     *
+     * @return the result of each channel with its resolved server data, the
+     *         main channel first; empty if the upload is detached.
+     */
+    Map<ServerData, UploaderResult> upload ( final FilePath workspace ) throws InterruptedException, IOException
+    {
+        if ( recorder.isDetached () )
+        {
+            detach ( workspace );
+            return Collections.emptyMap ();
+        }
+
+        if ( recorder.isArchivedArtifacts () )
+        {
+            return results.record ( listener, new ArchivedArtifactsUpload ( recorder ).upload ( run, listener, artifacts, serverDataList ) );
+        }
+
+        if ( recorder.getTargets ().isEmpty () )
+        {
+            final FileCallable<UploaderResult> uploader = recorder.createCallable ( run, listener, artifacts, serverDataList.get ( 0 ) );
+            try
+            {
+                return results.record ( listener, Collections.singletonList ( workspace.act ( uploader ) ) );
+            }
+            catch ( IOException e )
+            {
+                return results.failed ( listener, e );
+            }
+        }
+
+        try
+        {
+            final FileCallable<List<UploaderResult>> upload = recorder.createCallable ( run, listener, artifacts, serverDataList );
+            return results.record ( listener, prepareFanOut ( workspace, upload ).act ( upload ) );
+        }
+        catch ( IOException e )
+        {
+            return results.failed ( listener, e );
+        }
+    }
+
+    /**
+     * Starts the upload and returns without waiting for it.
+     * <p>
+     * The upload runs in a background thread of the node holding the
+     * workspace, or of the master for archived artifacts. Once it completes
+     * the results are recorded on the build and passed to the listener.
+     *
+     * @return the handle to cancel the upload, {@code null} if the upload is
+     *         detached from the build.
+     */
+    AsyncUploadFiles.Handle start ( final FilePath workspace, final DroneRecorder.UploadListener uploadListener ) throws InterruptedException, IOException
+    {
+        if ( recorder.isDetached () )
+        {
+            detach ( workspace );
+            return null;
+        }
+
+        if ( recorder.isArchivedArtifacts () )
+        {
+            // the artifact manager is read on the master
+            final Future<?> future = Computer.threadPoolForRemoting.submit ( new Runnable () {
+
+                @Override
+                public void run ()
+                {
+                    try
+                    {
+                        uploadListener.onUploaded ( results.record ( listener, new ArchivedArtifactsUpload ( recorder ).upload ( run, listener, artifacts, serverDataList ) ) );
+                    }
+                    catch ( final Throwable e )
+                    {
+                        uploadListener.onFailure ( e );
+                    }
+                }
+            } );
+            return new AsyncUploadFiles.Handle () {
+
+                @Override
+                public void cancel ()
+                {
+                    future.cancel ( true );
+                }
+            };
+        }
+
+        final FileCallable<?> upload;
+        FilePath basedir = workspace;
+        if ( recorder.getTargets ().isEmpty () )
+        {
+            upload = recorder.createCallable ( run, listener, artifacts, serverDataList.get ( 0 ) );
+        }
+        else
+        {
+            final FileCallable<List<UploaderResult>> fanOut = recorder.createCallable ( run, listener, artifacts, serverDataList );
+            basedir = prepareFanOut ( workspace, fanOut );
+            upload = fanOut;
+        }
+
+        final AsyncUploadFiles.Callback callback = new AsyncUploadFiles.Callback () {
+
+            @Override
+            public void onUploaded ( final List<UploaderResult> uploaded )
+            {
+                try
+                {
+                    uploadListener.onUploaded ( results.record ( listener, uploaded ) );
+                }
+                catch ( final Throwable e )
+                {
+                    uploadListener.onFailure ( e );
+                }
+            }
+
+            @Override
+            public void onFailure ( final Throwable cause )
+            {
+                if ( cause instanceof IOException )
+                {
+                    uploadListener.onUploaded ( results.failed ( listener, (IOException)cause ) );
+                }
+                else
+                {
+                    uploadListener.onFailure ( cause );
+                }
+            }
+        };
+
+        // a node disconnecting during the upload never calls back, fail the upload instead of waiting forever
+        final VirtualChannel channel = workspace.getChannel ();
+        final AsyncUploadFiles.ClosingCallback closingCallback = AsyncUploadFiles.failOnClose ( channel, callback );
+        try
+        {
+            return basedir.act ( new AsyncUploadFiles ( upload, channel.export ( AsyncUploadFiles.Callback.class, closingCallback ) ) );
+        }
+        catch ( final IOException | InterruptedException | RuntimeException e )
+        {
+            closingCallback.unregister ();
+            throw e;
+        }
+    }
+
+    /*
+     * Returns where the upload to several channels reads the files. The channels below the quorum go on after the step
+     * returned while the next steps change the workspace, so they read a copy of the files, deleted once all channels
+     * are done, and record their results on the build when they complete.
+     */
+    private FilePath prepareFanOut ( final FilePath workspace, final FileCallable<?> upload ) throws IOException, InterruptedException
+    {
+        if ( recorder.getQuorum () <= 0 || recorder.getQuorum () >= serverDataList.size () || !( upload instanceof FanOutUploadFiles ) )
+        {
+            return workspace;
+        }
+
+        final FilePath copy = workspace.sibling ( workspace.getName () + "@tmp" ).child ( "pdrone-" + UUID.randomUUID () );
+        workspace.copyRecursiveTo ( new DirScanner.Glob ( artifacts, recorder.getExcludes (), recorder.isDefaultExcludes () ), copy, artifacts );
+
+        final FanOutUploadFiles fanOut = (FanOutUploadFiles)upload;
+        fanOut.setCacheBase ( workspace.getRemote () );
+        fanOut.setBackground ( workspace.getChannel ().export ( FanOutUploadFiles.BackgroundCallback.class, new BackgroundResults () ) );
+        return copy;
+    }
+
+    /*
+     * Records the result of a channel which completed after the step returned, into the log of background uploads
+     * since the log of the build may be already closed.
+     */
+    private class BackgroundResults implements FanOutUploadFiles.BackgroundCallback
+    {
+        @Override
+        public void onUploaded ( final int index, final UploaderResult result, final String log )
+        {
+            try ( StreamTaskListener taskListener = DetachedUpload.openLog ( run ) )
+            {
+                final LoggerListenerWrapper listener = new LoggerListenerWrapper ( taskListener, true );
+                listener.getLogger ().print ( log );
+
+                results.recordBackground ( listener, index, result );
+                run.save ();
+            }
+            catch ( final IOException e )
+            {
+                LOGGER.log ( Level.WARNING, "Failed to record the background upload of " + run, e );
+            }
+        }
+    }
+
+    /*
+     * Copies the files to upload aside and queues their upload, which completes after the build.
+     */
+    private void detach ( final FilePath workspace ) throws IOException, InterruptedException
+    {
+        final DetachedUpload upload;
+        if ( recorder.isArchivedArtifacts () )
+        {
+            // archived artifacts are kept by the build itself
+            upload = new DetachedUpload ( recorder, run, artifacts, serverDataList );
+            listener.info ( Messages.DroneRecorder_detachedArchived ( DetachedUpload.LOG_NAME ) );
+        }
+        else
+        {
+            final Computer computer = workspace.toComputer ();
+            if ( computer == null )
+            {
+                throw new AbortException ( Messages.DroneRecorder_detachedNodeOffline () );
+            }
+
+            // the workspace is reused by the next builds, copy the files to upload as they are now
+            upload = new DetachedUpload ( recorder, run, artifacts, serverDataList, computer.getName (), workspace );
+            final int count = workspace.copyRecursiveTo ( new DirScanner.Glob ( artifacts, recorder.getExcludes (), recorder.isDefaultExcludes () ), upload.getStaging ( workspace.getChannel () ), artifacts );
+            listener.info ( Messages.DroneRecorder_detached ( count, DetachedUpload.LOG_NAME ) );
+        }
+
+        DetachedUploadQueue.get ().submit ( upload );
+    }
+
+}
@@ -13,6 +13,7 @@ package de.dentrassi.pm.jenkins;
 import java.io.Serializable;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 /**
  * This bean is used to transport the necessary information of the build step to
@@ -32,12 +33,20 @@ public class ServerData implements Serializable
 
     private final boolean uploadV3;
 
+    private final String credentialsId;
+
     public ServerData ( @Nonnull final String serverURL, @Nonnull final String channel, @Nonnull final String deployKey, final boolean uploadV3 )
+    {
+        this ( serverURL, channel, deployKey, uploadV3, null );
+    }
+
+    public ServerData ( @Nonnull final String serverURL, @Nonnull final String channel, @Nonnull final String deployKey, final boolean uploadV3, @Nullable final String credentialsId )
     {
         this.serverURL = normalizeURL ( serverURL );
         this.channel = channel;
         this.deployKey = deployKey;
         this.uploadV3 = uploadV3;
+        this.credentialsId = credentialsId;
     }
 
     private String normalizeURL ( String url )
@@ -85,4 +94,15 @@ public class ServerData implements Serializable
         return uploadV3;
     }
 
+    /**
+     * Returns the id of the credentials holding the deployment key.
+     *
+     * @return the credentials id or {@code null} if the deployment key was
+     *         configured directly.
+     */
+    public String getCredentialsId ()
+    {
+        return credentialsId;
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,178 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBH SYSTEMS GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBH SYSTEMS GmbH - initial API and implementation
+ *******************************************************************************/
+package de.dentrassi.pm.jenkins;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import de.dentrassi.pm.jenkins.UploaderResult.ArtifactResult;
+import de.dentrassi.pm.jenkins.index.UploadIndex;
+import de.dentrassi.pm.jenkins.util.LoggerListenerWrapper;
+import hudson.Util;
+
+/**
+ * Skips the files uploaded unchanged by the previous build, using the
+ * {@link UploadIndex} kept on the node doing the upload.
+ */
+final class UnchangedFiles
+{
+    private UnchangedFiles ()
+    {
+    }
+
+    /**
+     * Returns the index of the files uploaded by the previous build to the
+     * given channels.
+     *
+     * @param cacheDir
+     *            the folder where data is kept between builds.
+     * @param serverDataList
+     *            the channels of the upload.
+     * @return the index, empty if there is none yet.
+     */
+    static UploadIndex loadIndex ( final File cacheDir, final List<ServerData> serverDataList )
+    {
+        final StringBuilder key = new StringBuilder ();
+        for ( final ServerData serverData : serverDataList )
+        {
+            key.append ( serverData.getServerURL () ).append ( '\n' ).append ( serverData.getChannel () ).append ( '\n' );
+        }
+        final File file = new File ( new File ( cacheDir, "index" ), Util.getDigestOf ( key.toString () ) + ".idx" );
+        return UploadIndex.load ( file, serverDataList.size () );
+    }
+
+    /*
+     * Returns the new or changed files, the unchanged ones are added to the reused artifacts of each channel.
+     * A parent and its children are skipped or uploaded together, so a child is never nested into a parent
+     * uploaded by another build, nor uploaded without its parent.
+     */
+    static Map<File, String> skipUnchanged ( final UploadIndex index, final Map<File, String> files, final Map<File, File> parents, final List<Set<ArtifactResult>> reused, final LoggerListenerWrapper listener )
+    {
+        if ( index == null )
+        {
+            return files;
+        }
+
+        final Map<File, String[]> unchanged = new HashMap<> ();
+        final Set<File> changedFamilies = new HashSet<> ();
+        for ( final Entry<File, String> entry : files.entrySet () )
+        {
+            String[] ids;
+            try
+            {
+                ids = index.findUnchanged ( entry.getKey (), entry.getValue () );
+            }
+            catch ( final IOException e )
+            {
+                ids = null;
+            }
+
+            if ( ids == null )
+            {
+                changedFamilies.add ( getRoot ( parents, entry.getKey () ) );
+            }
+            else
+            {
+                unchanged.put ( entry.getKey (), ids );
+            }
+        }
+
+        final Map<File, String> changed = new LinkedHashMap<> ();
+        for ( final Entry<File, String> entry : files.entrySet () )
+        {
+            final String[] ids = unchanged.get ( entry.getKey () );
+            if ( ids == null || changedFamilies.contains ( getRoot ( parents, entry.getKey () ) ) )
+            {
+                changed.put ( entry.getKey (), entry.getValue () );
+                continue;
+            }
+            for ( int i = 0; i < ids.length; i++ )
+            {
+                reused.get ( i ).add ( ArtifactResult.reused ( ids[i], entry.getValue (), entry.getKey ().length () ) );
+            }
+        }
+
+        if ( changed.size () < files.size () )
+        {
+            listener.info ( Messages.DroneRecorder_unchangedFiles ( files.size () - changed.size () ) );
+        }
+        return changed;
+    }
+
+    private static File getRoot ( final Map<File, File> parents, File file )
+    {
+        File parent;
+        while ( ( parent = parents.get ( file ) ) != null )
+        {
+            file = parent;
+        }
+        return file;
+    }
+
+    /*
+     * Adds to the index the files accepted by all channels and stores it for the next build.
+     */
+    static void updateIndex ( final UploadIndex index, final Map<File, String> uploaded, final List<UploaderResult> results, final LoggerListenerWrapper listener )
+    {
+        if ( index == null )
+        {
+            return;
+        }
+
+        final List<Map<String, String>> accepted = new ArrayList<> ( results.size () );
+        for ( final UploaderResult result : results )
+        {
+            final Map<String, String> ids = new HashMap<> ();
+            for ( final ArtifactResult artifact : result.getUploadedArtifacts () )
+            {
+                if ( !artifact.isRejected () && !artifact.isReused () && !ids.containsKey ( artifact.getName () ) )
+                {
+                    ids.put ( artifact.getName (), artifact.getId () );
+                }
+            }
+            accepted.add ( ids );
+        }
+
+        try
+        {
+            for ( final Entry<File, String> entry : uploaded.entrySet () )
+            {
+                final String[] ids = new String[accepted.size ()];
+                boolean complete = true;
+                for ( int i = 0; i < ids.length && complete; i++ )
+                {
+                    ids[i] = accepted.get ( i ).get ( entry.getValue () );
+                    complete = ids[i] != null;
+                }
+                if ( complete )
+                {
+                    // a file missing on any channel is uploaded again to all of them
+                    index.add ( entry.getKey (), entry.getValue (), ids );
+                }
+            }
+            index.store ();
+        }
+        catch ( final IOException e )
+        {
+            // the next build will upload everything again
+            listener.warning ( Messages.DroneRecorder_failedToStoreIndex ( e.getMessage () ) );
+        }
+    }
+
+}
@@ -0,0 +1,100 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBH SYSTEMS GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBH SYSTEMS GmbH - initial API and implementation
+ *******************************************************************************/
+package de.dentrassi.pm.jenkins;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import de.dentrassi.pm.jenkins.UploaderResult.ArtifactResult;
+import de.dentrassi.pm.jenkins.index.UploadIndex;
+import de.dentrassi.pm.jenkins.util.LoggerListenerWrapper;
+import hudson.model.Run;
+
+/*
+ * Callable used to perform the upload of archives in a master or slave node.
+ */
+class UploadFiles extends AbstractUploadFiles<UploaderResult>
+{
+    private static final long serialVersionUID = 4105845253120795102L;
+
+    private final ServerData serverData;
+
+    UploadFiles ( final String includes, final String excludes, final boolean defaultExcludes, final boolean stripPath, final UploadOptions options, final ServerData serverData, final Run<?, ?> run, final LoggerListenerWrapper listener )
+    {
+        super ( includes, excludes, defaultExcludes, stripPath, options, run, listener );
+        this.serverData = serverData;
+    }
+
+    @Override
+    protected UploaderResult upload ( final File basedir, final LoggerListenerWrapper listener )
+    {
+        UploaderResult uploadResult = new UploaderResult ();
+
+        final Map<File, String> files = scan ( basedir );
+        if ( files.isEmpty () )
+        {
+            uploadResult.setEmptyUpload ( true );
+            return uploadResult;
+        }
+
+        final List<ServerData> serverDataList = Collections.singletonList ( this.serverData );
+        final UploadIndex index = loadIndex ( basedir, serverDataList );
+        final Set<ArtifactResult> reused = new LinkedHashSet<> ();
+        final Map<File, File> parents = DroneChildArtifacts.findParents ( options.getChildArtifacts (), files );
+        final Map<File, String> changed = UnchangedFiles.skipUnchanged ( index, files, parents, Collections.singletonList ( reused ), listener );
+
+        if ( !changed.isEmpty () )
+        {
+            try ( AbstractUploader uploader = createUploader ( basedir, this.serverData, listener ) )
+            {
+                try
+                {
+                    for ( final Entry<File, String> entry : changed.entrySet () )
+                    {
+                        final File parent = parents.get ( entry.getKey () );
+                        if ( parent == null )
+                        {
+                            uploader.addArtifact ( entry.getKey (), entry.getValue () );
+                        }
+                        else
+                        {
+                            uploader.addChildArtifact ( entry.getKey (), entry.getValue (), parent );
+                        }
+                    }
+                    uploader.performUpload ();
+                }
+                finally
+                {
+                    uploadResult.addUploadedArtifacts ( uploader.getUploadedArtifacts () );
+                    uploadResult.addQueueTime ( uploader.getQueueTime (), uploader.getMaxQueueTime () );
+                    uploadResult.setAdaptiveLimit ( uploader.getAdaptiveLimit () );
+                }
+            }
+            catch ( IOException e )
+            {
+                uploadResult.setFailed ( true );
+                reportFailure ( e, listener );
+            }
+        }
+
+        UnchangedFiles.updateIndex ( index, changed, Collections.singletonList ( uploadResult ), listener );
+        uploadResult.addUploadedArtifacts ( reused );
+
+        return uploadResult;
+    }
+
+}
@@ -0,0 +1,187 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBH SYSTEMS GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBH SYSTEMS GmbH - initial API and implementation
+ *******************************************************************************/
+package de.dentrassi.pm.jenkins;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This bean is used to transport the tuning options of the build step to the
+ * node where the upload is performed.
+ */
+public class UploadOptions implements Serializable
+{
+    private static final long serialVersionUID = 2468026582271519871L;
+
+    private boolean deltaUpload;
+
+    private int bandwidthLimit;
+
+    private boolean skipUnchanged;
+
+    private UploadPriority priority = UploadPriority.NORMAL;
+
+    private int quorum;
+
+    private List<DroneChildArtifacts> childArtifacts;
+
+    private int parallelUploads = 1;
+
+    private boolean adaptiveParallelism;
+
+    private int splitUploadSize;
+
+    /**
+     * Returns if upload only the changed blocks of files uploaded by a
+     * previous build.
+     *
+     * @return {@literal true} when delta upload is enabled.
+     */
+    public boolean isDeltaUpload ()
+    {
+        return deltaUpload;
+    }
+
+    public void setDeltaUpload ( final boolean deltaUpload )
+    {
+        this.deltaUpload = deltaUpload;
+    }
+
+    /**
+     * Returns the maximum bandwidth of the build step, shared by all its
+     * concurrent uploads.
+     *
+     * @return the limit in KiB per second, zero if unlimited.
+     */
+    public int getBandwidthLimit ()
+    {
+        return bandwidthLimit;
+    }
+
+    public void setBandwidthLimit ( final int bandwidthLimit )
+    {
+        this.bandwidthLimit = bandwidthLimit;
+    }
+
+    /**
+     * Returns the priority of the uploads when waiting for a slot of the
+     * server.
+     *
+     * @return the upload priority.
+     */
+    public UploadPriority getPriority ()
+    {
+        return priority;
+    }
+
+    public void setPriority ( final UploadPriority priority )
+    {
+        this.priority = priority;
+    }
+
+    /**
+     * Returns if skip the files uploaded unchanged by the previous build.
+     *
+     * @return {@literal true} when unchanged files are not uploaded again.
+     */
+    public boolean isSkipUnchanged ()
+    {
+        return skipUnchanged;
+    }
+
+    public void setSkipUnchanged ( final boolean skipUnchanged )
+    {
+        this.skipUnchanged = skipUnchanged;
+    }
+
+    /**
+     * Returns how many channels must acknowledge the upload before the build
+     * goes on.
+     *
+     * @return the number of channels, zero if all.
+     */
+    public int getQuorum ()
+    {
+        return quorum;
+    }
+
+    public void setQuorum ( final int quorum )
+    {
+        this.quorum = quorum;
+    }
+
+    /**
+     * Returns the mappings of the artifacts uploaded as children of other
+     * ones.
+     *
+     * @return the mappings, never {@code null}.
+     */
+    public List<DroneChildArtifacts> getChildArtifacts ()
+    {
+        return childArtifacts == null ? Collections.<DroneChildArtifacts> emptyList () : childArtifacts;
+    }
+
+    public void setChildArtifacts ( final List<DroneChildArtifacts> childArtifacts )
+    {
+        this.childArtifacts = childArtifacts == null ? null : new ArrayList<> ( childArtifacts );
+    }
+
+    /**
+     * Returns how many artifacts are uploaded at the same time with the
+     * protocol V2.
+     *
+     * @return the number of concurrent uploads to each channel.
+     */
+    public int getParallelUploads ()
+    {
+        return parallelUploads;
+    }
+
+    public void setParallelUploads ( final int parallelUploads )
+    {
+        this.parallelUploads = parallelUploads;
+    }
+
+    /**
+     * Returns if the number of artifacts uploaded at the same time with the
+     * protocol V2 adapts to the server, starting from the parallel uploads.
+     *
+     * @return {@literal true} when the number of concurrent uploads adapts.
+     */
+    public boolean isAdaptiveParallelism ()
+    {
+        return adaptiveParallelism;
+    }
+
+    public void setAdaptiveParallelism ( final boolean adaptiveParallelism )
+    {
+        this.adaptiveParallelism = adaptiveParallelism;
+    }
+
+    /**
+     * Returns the size of the ranges of large files uploaded in parallel with
+     * the protocol V2.
+     *
+     * @return the size in MiB, zero if files are never split.
+     */
+    public int getSplitUploadSize ()
+    {
+        return splitUploadSize;
+    }
+
+    public void setSplitUploadSize ( final int splitUploadSize )
+    {
+        this.splitUploadSize = splitUploadSize;
+    }
+
+}
@@ -0,0 +1,46 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBH SYSTEMS GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBH SYSTEMS GmbH - initial API and implementation
+ *******************************************************************************/
+package de.dentrassi.pm.jenkins;
+
+/**
+ * The priority of the uploads of a build step when several steps upload to
+ * the same server from the same node.
+ */
+public enum UploadPriority
+{
+    LOW
+    {
+        @Override
+        public String getDisplayName ()
+        {
+            return Messages.UploadPriority_low ();
+        }
+    },
+    NORMAL
+    {
+        @Override
+        public String getDisplayName ()
+        {
+            return Messages.UploadPriority_normal ();
+        }
+    },
+    HIGH
+    {
+        @Override
+        public String getDisplayName ()
+        {
+            return Messages.UploadPriority_high ();
+        }
+    };
+
+    public abstract String getDisplayName ();
+
+}
@@ -0,0 +1,233 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBH SYSTEMS GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBH SYSTEMS GmbH - initial API and implementation
+ *******************************************************************************/
+package de.dentrassi.pm.jenkins;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.dentrassi.pm.jenkins.UploaderResult.ArtifactResult;
+import de.dentrassi.pm.jenkins.util.LoggerListenerWrapper;
+import hudson.Util;
+import hudson.model.Result;
+import hudson.model.Run;
+
+/**
+ * Records the results of the upload of a {@link DroneRecorder} on the build:
+ * the log of each channel, the {@link BuildData} of the uploaded artifacts
+ * and the build result according to the configuration of the recorder.
+ */
+class UploadResults
+{
+    private final DroneRecorder recorder;
+
+    private final Run<?, ?> run;
+
+    private final String artifacts;
+
+    private final List<ServerData> serverDataList;
+
+    /**
+     * Creates the results of an upload to the given channels.
+     *
+     * @param recorder
+     *            the configuration of the upload.
+     * @param run
+     *            the build where record the results.
+     * @param artifacts
+     *            the ant glob pattern of the uploaded artifacts.
+     * @param serverDataList
+     *            the channels, in the order of their results.
+     */
+    UploadResults ( final DroneRecorder recorder, final Run<?, ?> run, final String artifacts, final List<ServerData> serverDataList )
+    {
+        this.recorder = recorder;
+        this.run = run;
+        this.artifacts = artifacts;
+        this.serverDataList = serverDataList;
+    }
+
+    /**
+     * Reports the results of the upload to the main channel followed by the
+     * additional channels, checking the quorum.
+     *
+     * @return the result of each channel with its server data.
+     */
+    Map<ServerData, UploaderResult> record ( final LoggerListenerWrapper listener, final List<UploaderResult> results ) throws IOException
+    {
+        boolean quorumReached = false;
+        if ( recorder.getQuorum () > 0 && results.size () > 1 )
+        {
+            final int required = Math.min ( recorder.getQuorum (), results.size () );
+            int acknowledged = 0;
+            for ( final UploaderResult result : results )
+            {
+                if ( !result.isFailed () && !result.isPending () && !result.isEmptyUpload () )
+                {
+                    acknowledged++;
+                }
+            }
+
+            quorumReached = acknowledged >= required;
+            if ( quorumReached )
+            {
+                listener.info ( Messages.DroneRecorder_quorumReached ( acknowledged, results.size (), required ) );
+            }
+            else
+            {
+                listener.error ( Messages.DroneRecorder_quorumNotReached ( acknowledged, results.size (), required ) );
+                markFailed ();
+            }
+        }
+
+        final Map<ServerData, UploaderResult> recorded = new LinkedHashMap<> ();
+        for ( int i = 0; i < results.size (); i++ )
+        {
+            record ( listener, i, results.get ( i ), quorumReached );
+            recorded.put ( serverDataList.get ( i ), results.get ( i ) );
+        }
+        return recorded;
+    }
+
+    /**
+     * Reports the result of a channel which completed after the step returned
+     * because the quorum was reached.
+     *
+     * @param index
+     *            the index of the channel, the main channel first.
+     */
+    void recordBackground ( final LoggerListenerWrapper listener, final int index, final UploaderResult result ) throws IOException
+    {
+        record ( listener, index, result, true );
+    }
+
+    /**
+     * Reports the results of a detached upload, the channels are the ones
+     * given to this instance and may be only a part of the configured ones.
+     */
+    void recordDetached ( final LoggerListenerWrapper listener, final List<UploaderResult> results ) throws IOException
+    {
+        for ( int i = 0; i < results.size (); i++ )
+        {
+            final ServerData serverData = serverDataList.get ( i );
+            record ( listener, serverData, results.get ( i ), serverData.getServerURL (), serverData.getChannel (), false );
+        }
+    }
+
+    /**
+     * Reports an upload which did not complete for any channel, nothing is
+     * known about the artifacts.
+     *
+     * @return a failed result for each channel.
+     */
+    Map<ServerData, UploaderResult> failed ( final LoggerListenerWrapper listener, final IOException e )
+    {
+        Util.displayIOException ( e, listener );
+        e.printStackTrace ( listener.error ( Messages.DroneRecorder_failedToUpload ( artifacts ) ) );
+        markFailed ();
+
+        final Map<ServerData, UploaderResult> result = new LinkedHashMap<> ();
+        for ( final ServerData serverData : serverDataList )
+        {
+            final UploaderResult failed = new UploaderResult ();
+            failed.setFailed ( true );
+            result.put ( serverData, failed );
+        }
+        return result;
+    }
+
+    /*
+     * The build data keeps the configured server and channel, which may contain variables.
+     */
+    private void record ( final LoggerListenerWrapper listener, final int index, final UploaderResult result, final boolean quorumReached ) throws IOException
+    {
+        final String buildServerUrl = index == 0 ? recorder.getServerUrl () : recorder.getTargets ().get ( index - 1 ).getServerUrl ();
+        final String buildChannel = index == 0 ? recorder.getChannel () : recorder.getTargets ().get ( index - 1 ).getChannel ();
+        record ( listener, serverDataList.get ( index ), result, buildServerUrl, buildChannel, quorumReached );
+    }
+
+    /*
+     * When the quorum is reached the failure of a channel is not a failure of the build.
+     */
+    private void record ( final LoggerListenerWrapper listener, final ServerData serverData, final UploaderResult result, final String buildServerUrl, final String buildChannel, final boolean quorumReached ) throws IOException
+    {
+        if ( result.isPending () )
+        {
+            // nothing known yet, the artifacts are recorded when the channel completes
+            listener.info ( Messages.DroneRecorder_uploadInBackground ( serverData.getChannel (), DetachedUpload.LOG_NAME ) );
+            return;
+        }
+
+        // add logs
+        listener.getLogger ().print ( "Uploaded to chanel: " );
+        listener.hyperlink ( URLMaker.make ( serverData.getServerURL (), serverData.getChannel () ), serverData.getChannel () );
+        listener.getLogger ().println ();
+        listener.annotate ( ConsoleUtils.buildArtifactsList ( serverData, result ) );
+        listener.getLogger ().println ();
+        for ( final String line : ConsoleUtils.buildRejectSummary ( result ) )
+        {
+            listener.warning ( line );
+        }
+        if ( result.getQueueTime () > 0 )
+        {
+            listener.info ( Messages.DroneRecorder_queueTime ( result.getQueueTime (), result.getMaxQueueTime () ) );
+        }
+        if ( result.getParallelism () > 0 )
+        {
+            listener.info ( Messages.DroneRecorder_parallelism ( result.getParallelism (), result.getMinParallelism (), result.getMaxParallelism () ) );
+        }
+        if ( result.getLatency () > 0 )
+        {
+            listener.info ( Messages.DroneRecorder_latency ( serverData.getChannel (), result.getLatency () ) );
+        }
+
+        if ( result.isFailed () && quorumReached )
+        {
+            listener.warning ( Messages.DroneRecorder_failedBelowQuorum ( serverData.getChannel () ) );
+        }
+        else if ( ( result.isFailed () && recorder.isFailsAsUpload () ) )
+        {
+            markFailed ();
+        }
+        else if ( result.isEmptyUpload () )
+        {
+            if ( recorder.isAllowEmptyArchive () )
+            {
+                listener.warning ( Messages.DroneRecorder_noMatchFound ( artifacts ) );
+            }
+            else
+            {
+                listener.error ( Messages.DroneRecorder_noMatchFound ( artifacts ) ); // nothing to upload
+                markFailed ();
+            }
+        }
+
+        Map<String, String> uploadedArtifactsMap = new LinkedHashMap<> ();
+        for ( ArtifactResult ar : result.getUploadedArtifacts () )
+        {
+            uploadedArtifactsMap.put ( ar.getId (), ar.getName () );
+        }
+        run.addAction ( new BuildData ( buildServerUrl, buildChannel, uploadedArtifactsMap ) );
+    }
+
+    /*
+     * A detached upload does not change the result of the build, which may be already completed.
+     */
+    private void markFailed ()
+    {
+        if ( !recorder.isDetached () && run.isBuilding () )
+        {
+            run.setResult ( Result.FAILURE );
+        }
+    }
+
+}
@@ -0,0 +1,256 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBH SYSTEMS GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBH SYSTEMS GmbH - initial API and implementation
+ *******************************************************************************/
+package de.dentrassi.pm.jenkins;
+
+import java.io.Closeable;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of concurrent uploads to the same server from this JVM.
+ * <p>
+ * Every upload of a file or of a transfer archive takes a slot of its server
+ * before starting. When all slots are taken the uploads wait in a queue, the
+ * ones with higher priority first and then in arrival order.
+ */
+class UploadScheduler
+{
+    /**
+     * The system property to set the maximum number of concurrent uploads to
+     * the same server.
+     */
+    static final String MAX_CONCURRENT_UPLOADS_PROPERTY = UploadScheduler.class.getName () + ".maxConcurrentUploads";
+
+    private static final int DEFAULT_MAX_CONCURRENT_UPLOADS = 4;
+
+    private static final UploadScheduler INSTANCE = new UploadScheduler ( Integer.getInteger ( MAX_CONCURRENT_UPLOADS_PROPERTY, DEFAULT_MAX_CONCURRENT_UPLOADS ) );
+
+    private final ReentrantLock lock = new ReentrantLock ();
+
+    private final Map<String, ServerQueue> queues = new HashMap<> ();
+
+    private final int maxConcurrentUploads;
+
+    private long sequence;
+
+    UploadScheduler ( final int maxConcurrentUploads )
+    {
+        this.maxConcurrentUploads = Math.max ( maxConcurrentUploads, 1 );
+    }
+
+    /**
+     * Returns the scheduler shared by all uploads of this JVM.
+     *
+     * @return the scheduler instance.
+     */
+    static UploadScheduler get ()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns how many uploads to the same server run at the same time.
+     *
+     * @return the number of slots of each server.
+     */
+    int getMaxConcurrentUploads ()
+    {
+        return maxConcurrentUploads;
+    }
+
+    /**
+     * Waits for a free upload slot of the given server.
+     *
+     * @param serverURL
+     *            the server where upload.
+     * @param priority
+     *            the priority of the upload.
+     * @return the slot, to be closed when the upload is complete.
+     * @throws InterruptedIOException
+     *             if interrupted while waiting.
+     */
+    Slot acquire ( final String serverURL, final UploadPriority priority ) throws InterruptedIOException
+    {
+        final long start = System.nanoTime ();
+
+        lock.lock ();
+        try
+        {
+            ServerQueue queue = queues.get ( serverURL );
+            if ( queue == null )
+            {
+                queue = new ServerQueue ();
+                queues.put ( serverURL, queue );
+            }
+
+            if ( queue.waiting.isEmpty () && queue.active < maxConcurrentUploads )
+            {
+                queue.active++;
+                return new Slot ( serverURL, 0 );
+            }
+
+            final Ticket ticket = new Ticket ( priority, sequence++, lock.newCondition () );
+            queue.waiting.add ( ticket );
+            try
+            {
+                while ( !ticket.granted )
+                {
+                    ticket.condition.await ();
+                }
+            }
+            catch ( final InterruptedException e )
+            {
+                if ( ticket.granted )
+                {
+                    // the slot was passed to us meanwhile, give it to the next one
+                    release ( serverURL );
+                }
+                else
+                {
+                    queue.waiting.remove ( ticket );
+                }
+                Thread.currentThread ().interrupt ();
+                throw new InterruptedIOException ( "Interrupted while waiting for an upload slot" );
+            }
+
+            return new Slot ( serverURL, TimeUnit.NANOSECONDS.toMillis ( System.nanoTime () - start ) );
+        }
+        finally
+        {
+            lock.unlock ();
+        }
+    }
+
+    /**
+     * Returns the number of uploads waiting for a slot of the given server.
+     *
+     * @param serverURL
+     *            the server URL.
+     * @return the count of queued uploads.
+     */
+    int getQueueLength ( final String serverURL )
+    {
+        lock.lock ();
+        try
+        {
+            final ServerQueue queue = queues.get ( serverURL );
+            return queue == null ? 0 : queue.waiting.size ();
+        }
+        finally
+        {
+            lock.unlock ();
+        }
+    }
+
+    private void release ( final String serverURL )
+    {
+        lock.lock ();
+        try
+        {
+            final ServerQueue queue = queues.get ( serverURL );
+            final Ticket next = queue.waiting.poll ();
+            if ( next != null )
+            {
+                // the slot passes to the next one in the queue
+                next.granted = true;
+                next.condition.signal ();
+            }
+            else if ( --queue.active == 0 )
+            {
+                queues.remove ( serverURL );
+            }
+        }
+        finally
+        {
+            lock.unlock ();
+        }
+    }
+
+    /**
+     * A slot taken for an upload.
+     */
+    final class Slot implements Closeable
+    {
+        private final String serverURL;
+
+        private final long queueTime;
+
+        private boolean released;
+
+        private Slot ( final String serverURL, final long queueTime )
+        {
+            this.serverURL = serverURL;
+            this.queueTime = queueTime;
+        }
+
+        /**
+         * Returns how long the upload waited for this slot.
+         *
+         * @return the time in milliseconds.
+         */
+        long getQueueTime ()
+        {
+            return queueTime;
+        }
+
+        @Override
+        public void close ()
+        {
+            if ( !released )
+            {
+                released = true;
+                release ( serverURL );
+            }
+        }
+    }
+
+    private static final class ServerQueue
+    {
+        private final PriorityQueue<Ticket> waiting = new PriorityQueue<> ();
+
+        private int active;
+    }
+
+    private static final class Ticket implements Comparable<Ticket>
+    {
+        private final UploadPriority priority;
+
+        private final long sequence;
+
+        private final Condition condition;
+
+        private boolean granted;
+
+        Ticket ( final UploadPriority priority, final long sequence, final Condition condition )
+        {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.condition = condition;
+        }
+
+        @Override
+        public int compareTo ( final Ticket other )
+        {
+            final int result = other.priority.compareTo ( priority );
+            if ( result != 0 )
+            {
+                return result;
+            }
+            return sequence < other.sequence ? -1 : sequence == other.sequence ? 0 : 1;
+        }
+    }
+
+}
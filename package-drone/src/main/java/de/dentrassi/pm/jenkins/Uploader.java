@@ -16,6 +16,7 @@ import java.io.IOException;
 import java.util.Set;
 
 import de.dentrassi.pm.jenkins.UploaderResult.ArtifactResult;
+import jenkins.util.VirtualFile;
 
 /**
  * The interface represent a task to perform the physical operations to upload
@@ -33,6 +34,48 @@ public interface Uploader extends Closeable
      */
     public void addArtifact ( File file, String filename );
 
+    /**
+     * Gathers a single artifact archived by a build for upload with the given
+     * filename.
+     * <p>
+     * The content is read from the artifact manager while uploading, no local
+     * copy is made.
+     *
+     * @param file
+     *            the archived artifact to be uploaded.
+     * @param filename
+     *            the name for the uploaded file.
+     */
+    public void addArtifact ( VirtualFile file, String filename );
+
+    /**
+     * Gathers a single file for upload as child of another one.
+     * <p>
+     * Uploaders not supporting child artifacts upload it as an ordinary
+     * artifact.
+     *
+     * @param file
+     *            the local file to be uploaded.
+     * @param filename
+     *            the name for the uploaded file.
+     * @param parent
+     *            the gathered file this one is a child of.
+     */
+    public void addChildArtifact ( File file, String filename, File parent );
+
+    /**
+     * Gathers a single artifact archived by a build for upload as child of
+     * another one.
+     *
+     * @param file
+     *            the archived artifact to be uploaded.
+     * @param filename
+     *            the name for the uploaded file.
+     * @param parent
+     *            the gathered artifact this one is a child of.
+     */
+    public void addChildArtifact ( VirtualFile file, String filename, VirtualFile parent );
+
     /**
      * Uploads all gathered artifacts to the server.
      *
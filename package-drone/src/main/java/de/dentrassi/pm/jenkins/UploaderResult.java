@@ -10,13 +10,34 @@
  *******************************************************************************/
 package de.dentrassi.pm.jenkins;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import de.dentrassi.pm.jenkins.http.AdaptiveLimit;
 
 /**
  * Results of the Upload operation.
+ * <p>
+ * This object is returned from the agent to the master, the details of the
+ * artifacts are sent as a single compressed block in columns instead of an
+ * object graph.
  *
  * @author Christian Mathis
  */
@@ -40,6 +61,8 @@ public class UploaderResult implements Serializable
 
         private boolean isRejected;
 
+        private boolean isReused;
+
         private ArtifactResult ( final String id, final String name, final long size, final String rejectReason, final long errorsCount, final long warningsCount )
         {
             this.id = id;
@@ -62,6 +85,25 @@ public class UploaderResult implements Serializable
             this ( id, name, size, null, errorsCount, warningsCount );
         }
 
+        /**
+         * Creates the result of a file not uploaded because the artifact
+         * uploaded by a previous build has the same content.
+         *
+         * @param id
+         *            the identifier of the existing artifact.
+         * @param name
+         *            the upload name of the file.
+         * @param size
+         *            the size of the file.
+         * @return the result of the reused artifact.
+         */
+        public static ArtifactResult reused ( final String id, final String name, final long size )
+        {
+            final ArtifactResult result = new ArtifactResult ( id, name, size, null, 0l, 0l );
+            result.isReused = true;
+            return result;
+        }
+
         public String getId ()
         {
             return id;
@@ -87,6 +129,11 @@ public class UploaderResult implements Serializable
             return isRejected;
         }
 
+        public boolean isReused ()
+        {
+            return isReused;
+        }
+
         public long getErrors ()
         {
             return errors;
@@ -112,6 +159,7 @@ public class UploaderResult implements Serializable
             result = prime * result + ( ( id == null ) ? 0 : id.hashCode () );
             result = prime * result + ( ( name == null ) ? 0 : name.hashCode () );
             result = prime * result + ( ( reason == null ) ? 0 : reason.hashCode () );
+            result = prime * result + ( isReused ? 1231 : 1237 );
             result = prime * result + (int) ( size ^ ( size >>> 32 ) );
             result = prime * result + (int) ( warnings ^ ( warnings >>> 32 ) );
             return result;
@@ -170,6 +218,10 @@ public class UploaderResult implements Serializable
             {
                 return false;
             }
+            if ( isReused != other.isReused )
+            {
+                return false;
+            }
             if ( size != other.size )
             {
                 return false;
@@ -182,15 +234,59 @@ public class UploaderResult implements Serializable
         }
     }
 
+    private static final class RejectReason
+    {
+        private final String reason;
+
+        private int count;
+
+        RejectReason ( final String reason )
+        {
+            this.reason = reason;
+        }
+    }
+
     private static final long serialVersionUID = -3089286880912224513L;
 
-    // collection of details of the uploaded artifacts
-    private Set<ArtifactResult> uploadedArtifacts = new LinkedHashSet<> ();
+    private static final int REJECTED = 1;
+
+    private static final int REUSED = 2;
+
+    // deflate expands a compressed byte to at most this many bytes
+    private static final int MAX_INFLATE_RATIO = 1032;
+
+    private static final int READ_CHUNK = 64 * 1024;
+
+    // collection of details of the uploaded artifacts, serialised by writeObject
+    private transient Set<ArtifactResult> uploadedArtifacts = new LinkedHashSet<> ();
 
     private boolean isEmptyUpload = false;
 
     private boolean isFailed = false;
 
+    private int rejectedCount = 0;
+
+    private int reusedCount = 0;
+
+    private long uploadedSize = 0;
+
+    // distinct reject reasons with the number of artifacts rejected for each
+    private transient Map<String, RejectReason> rejectReasons = new LinkedHashMap<> ();
+
+    private long queueTime = 0;
+
+    private long maxQueueTime = 0;
+
+    private long latency = 0;
+
+    private int parallelism = 0;
+
+    private int minParallelism = 0;
+
+    private int maxParallelism = 0;
+
+    private boolean isPending = false;
+
     /**
      * Returns a unmodifiable map containing the successfully uploaded
      * artifacts.
@@ -211,7 +307,239 @@ public class UploaderResult implements Serializable
      */
     public void addUploadedArtifacts ( Set<ArtifactResult> artifacts )
     {
-        this.uploadedArtifacts.addAll ( artifacts );
+        for ( ArtifactResult artifact : artifacts )
+        {
+            if ( artifact.isRejected () )
+            {
+                // keep a single copy of each reason, a policy usually rejects many artifacts for the same one
+                final String reason = internReason ( artifact.getReason () );
+                if ( reason != artifact.getReason () )
+                {
+                    artifact = new ArtifactResult ( artifact.getName (), reason, artifact.getSize () );
+                }
+            }
+
+            if ( this.uploadedArtifacts.add ( artifact ) )
+            {
+                if ( artifact.isRejected () )
+                {
+                    rejectedCount++;
+                    countReason ( artifact.getReason () );
+                }
+                else if ( artifact.isReused () )
+                {
+                    reusedCount++;
+                }
+                else
+                {
+                    uploadedSize += artifact.getSize ();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of artifacts accepted by the server.
+     *
+     * @return the count of accepted artifacts.
+     */
+    public int getAcceptedCount ()
+    {
+        return uploadedArtifacts.size () - rejectedCount - reusedCount;
+    }
+
+    /**
+     * Returns the reasons the artifacts were rejected for.
+     *
+     * @return an unmodifiable map of each distinct reason with the number of
+     *         artifacts rejected for it, in order of first occurrence.
+     */
+    public Map<String, Integer> getRejectReasons ()
+    {
+        final Map<String, Integer> result = new LinkedHashMap<> ( rejectReasons.size () * 2 );
+        for ( RejectReason reason : rejectReasons.values () )
+        {
+            result.put ( reason.reason, reason.count );
+        }
+        return Collections.unmodifiableMap ( result );
+    }
+
+    private String internReason ( final String reason )
+    {
+        final RejectReason known = reason == null ? null : rejectReasons.get ( reason );
+        return known == null ? reason : known.reason;
+    }
+
+    private void countReason ( final String reason )
+    {
+        RejectReason known = rejectReasons.get ( reason );
+        if ( known == null )
+        {
+            known = new RejectReason ( reason );
+            rejectReasons.put ( reason, known );
+        }
+        known.count++;
+    }
+
+    /**
+     * Returns the number of files not uploaded because unchanged since the
+     * previous build.
+     *
+     * @return the count of reused artifacts.
+     */
+    public int getReusedCount ()
+    {
+        return reusedCount;
+    }
+
+    /**
+     * Returns the number of artifacts rejected by the server.
+     *
+     * @return the count of rejected artifacts.
+     */
+    public int getRejectedCount ()
+    {
+        return rejectedCount;
+    }
+
+    /**
+     * Returns the total size of the artifacts accepted by the server.
+     *
+     * @return the size in bytes.
+     */
+    public long getUploadedSize ()
+    {
+        return uploadedSize;
+    }
+
+    /**
+     * Adds the time the uploads waited for a free slot of the server.
+     *
+     * @param total
+     *            the total time waited in milliseconds.
+     * @param max
+     *            the longest time a single upload waited in milliseconds.
+     */
+    public void addQueueTime ( long total, long max )
+    {
+        this.queueTime += total;
+        this.maxQueueTime = Math.max ( this.maxQueueTime, max );
+    }
+
+    /**
+     * Returns how long the uploads waited for a free slot of the server.
+     *
+     * @return the total time in milliseconds.
+     */
+    public long getQueueTime ()
+    {
+        return queueTime;
+    }
+
+    /**
+     * Returns the longest time a single upload waited for a free slot of the
+     * server.
+     *
+     * @return the time in milliseconds.
+     */
+    public long getMaxQueueTime ()
+    {
+        return maxQueueTime;
+    }
+
+    /**
+     * Sets how long the channel took to acknowledge all the artifacts.
+     *
+     * @param latency
+     *            the time in milliseconds since the upload started.
+     */
+    public void setLatency ( long latency )
+    {
+        this.latency = latency;
+    }
+
+    /**
+     * Returns how long the channel took to acknowledge all the artifacts.
+     *
+     * @return the time in milliseconds, zero if not measured.
+     */
+    public long getLatency ()
+    {
+        return latency;
+    }
+
+    /**
+     * Records the number of concurrent uploads the uploader adapted to the
+     * server.
+     *
+     * @param limit
+     *            the limit of the concurrent uploads, {@code null} if the
+     *            number of concurrent uploads did not adapt.
+     */
+    public void setAdaptiveLimit ( AdaptiveLimit limit )
+    {
+        if ( limit != null )
+        {
+            this.parallelism = limit.getLimit ();
+            this.minParallelism = limit.getLowest ();
+            this.maxParallelism = limit.getHighest ();
+        }
+    }
+
+    /**
+     * Returns the number of concurrent uploads chosen at the end of the
+     * upload when it adapted to the server.
+     *
+     * @return the number of uploads, zero if it did not adapt.
+     */
+    public int getParallelism ()
+    {
+        return parallelism;
+    }
+
+    /**
+     * Returns the lowest number of concurrent uploads chosen during the
+     * upload.
+     *
+     * @return the number of uploads, zero if it did not adapt.
+     */
+    public int getMinParallelism ()
+    {
+        return minParallelism;
+    }
+
+    /**
+     * Returns the highest number of concurrent uploads chosen during the
+     * upload.
+     *
+     * @return the number of uploads, zero if it did not adapt.
+     */
+    public int getMaxParallelism ()
+    {
+        return maxParallelism;
+    }
+
+    /**
+     * Returns if the upload is still running in the background, its artifacts
+     * are not known yet.
+     *
+     * @return {@literal true} if the upload did not complete when the result
+     *         was collected, {@literal false} otherwise.
+     */
+    public boolean isPending ()
+    {
+        return isPending;
+    }
+
+    /**
+     * Marks this upload as still running in the background.
+     *
+     * @param pending
+     *            the status of this upload.
+     */
+    public void setPending ( boolean pending )
+    {
+        this.isPending = pending;
     }
 
     /**
@@ -262,4 +590,248 @@ public class UploaderResult implements Serializable
         this.isEmptyUpload = isEmptyUpload;
     }
 
+    /*
+     * The artifacts are written in columns inside a single deflated block: the flags, the numbers as variable length
+     * longs and the strings as indices into a table where each distinct string, like a repeated reject reason, is
+     * written once.
+     */
+    private void writeObject ( final ObjectOutputStream out ) throws IOException
+    {
+        out.defaultWriteObject ();
+
+        final int count = uploadedArtifacts.size ();
+        final byte[] flags = new byte[count];
+        final int[] ids = new int[count];
+        final int[] names = new int[count];
+        final int[] reasons = new int[count];
+        final Map<String, Integer> strings = new LinkedHashMap<> ();
+
+        int i = 0;
+        for ( ArtifactResult artifact : uploadedArtifacts )
+        {
+            flags[i] = (byte) ( ( artifact.isRejected () ? REJECTED : 0 ) | ( artifact.isReused () ? REUSED : 0 ) );
+            ids[i] = intern ( strings, artifact.getId () );
+            names[i] = intern ( strings, artifact.getName () );
+            reasons[i] = intern ( strings, artifact.getReason () );
+            i++;
+        }
+
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream ();
+        try ( DataOutputStream data = new DataOutputStream ( new BufferedOutputStream ( new DeflaterOutputStream ( buffer ) ) ) )
+        {
+            data.writeInt ( strings.size () );
+            for ( String value : strings.keySet () )
+            {
+                writeString ( data, value );
+            }
+
+            data.writeInt ( count );
+            data.write ( flags );
+            writeIndices ( data, ids );
+            writeIndices ( data, names );
+            writeIndices ( data, reasons );
+            for ( ArtifactResult artifact : uploadedArtifacts )
+            {
+                writeVarLong ( data, artifact.getSize () );
+            }
+            for ( ArtifactResult artifact : uploadedArtifacts )
+            {
+                writeVarLong ( data, artifact.getErrors () );
+            }
+            for ( ArtifactResult artifact : uploadedArtifacts )
+            {
+                writeVarLong ( data, artifact.getWarnings () );
+            }
+        }
+
+        final byte[] bytes = buffer.toByteArray ();
+        out.writeInt ( bytes.length );
+        out.write ( bytes );
+    }
+
+    private void readObject ( final ObjectInputStream in ) throws IOException, ClassNotFoundException
+    {
+        in.defaultReadObject ();
+
+        final byte[] bytes = readBytes ( in, in.readInt () );
+
+        try ( DataInputStream data = new DataInputStream ( new BufferedInputStream ( new InflaterInputStream ( new ByteArrayInputStream ( bytes ) ) ) ) )
+        {
+            // index 0 is null, each string takes at least its length
+            final String[] strings = new String[checkCount ( data.readInt (), bytes.length, 1 ) + 1];
+            for ( int i = 1; i < strings.length; i++ )
+            {
+                strings[i] = readString ( data, bytes.length );
+            }
+
+            // each artifact takes at least its flags and a byte for each index and number
+            final int count = checkCount ( data.readInt (), bytes.length, 7 );
+            final byte[] flags = new byte[count];
+            data.readFully ( flags );
+            final int[] ids = readIndices ( data, count, strings.length );
+            final int[] names = readIndices ( data, count, strings.length );
+            final int[] reasons = readIndices ( data, count, strings.length );
+            final long[] sizes = readVarLongs ( data, count );
+            final long[] errors = readVarLongs ( data, count );
+            final long[] warnings = readVarLongs ( data, count );
+
+            uploadedArtifacts = new LinkedHashSet<> ( count * 2 );
+            rejectReasons = new LinkedHashMap<> ();
+            for ( int i = 0; i < count; i++ )
+            {
+                if ( ( flags[i] & REJECTED ) != 0 )
+                {
+                    // reasons are already shared by the string table
+                    uploadedArtifacts.add ( new ArtifactResult ( strings[names[i]], strings[reasons[i]], sizes[i] ) );
+                    countReason ( strings[reasons[i]] );
+                }
+                else if ( ( flags[i] & REUSED ) != 0 )
+                {
+                    uploadedArtifacts.add ( ArtifactResult.reused ( strings[ids[i]], strings[names[i]], sizes[i] ) );
+                }
+                else
+                {
+                    uploadedArtifacts.add ( new ArtifactResult ( strings[ids[i]], strings[names[i]], sizes[i], errors[i], warnings[i] ) );
+                }
+            }
+        }
+    }
+
+    /*
+     * Reads the compressed block or a string, the buffer grows with the bytes actually read instead of the length read
+     * before them.
+     */
+    private static byte[] readBytes ( final DataInput in, final int length ) throws IOException
+    {
+        if ( length < 0 )
+        {
+            throw new IOException ( "Malformed length of uploaded artifacts: " + length );
+        }
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream ( Math.min ( length, READ_CHUNK ) );
+        final byte[] chunk = new byte[Math.min ( length, READ_CHUNK )];
+        int remaining = length;
+        while ( remaining > 0 )
+        {
+            final int len = Math.min ( remaining, chunk.length );
+            in.readFully ( chunk, 0, len );
+            out.write ( chunk, 0, len );
+            remaining -= len;
+        }
+        return out.toByteArray ();
+    }
+
+    /*
+     * Checks a count against the bytes the counted items take at least, once the compressed block is inflated.
+     */
+    private static int checkCount ( final int count, final int compressedLength, final int minBytes ) throws IOException
+    {
+        if ( count < 0 || (long)count * minBytes > (long)compressedLength * MAX_INFLATE_RATIO )
+        {
+            throw new IOException ( "Malformed count of uploaded artifacts: " + count );
+        }
+        return count;
+    }
+
+    /*
+     * Writes the UTF-8 bytes after their length, unlike writeUTF there is no 64 KiB limit.
+     */
+    private static void writeString ( final DataOutputStream out, final String value ) throws IOException
+    {
+        final byte[] bytes = value.getBytes ( StandardCharsets.UTF_8 );
+        writeVarLong ( out, bytes.length );
+        out.write ( bytes );
+    }
+
+    private static String readString ( final DataInputStream in, final int compressedLength ) throws IOException
+    {
+        final long length = readVarLong ( in );
+        if ( length < 0 || length > (long)compressedLength * MAX_INFLATE_RATIO || length > Integer.MAX_VALUE )
+        {
+            throw new IOException ( "Malformed string length: " + length );
+        }
+        return new String ( readBytes ( in, (int)length ), StandardCharsets.UTF_8 );
+    }
+
+    private static int intern ( final Map<String, Integer> strings, final String value )
+    {
+        if ( value == null )
+        {
+            return 0;
+        }
+
+        Integer index = strings.get ( value );
+        if ( index == null )
+        {
+            index = strings.size () + 1;
+            strings.put ( value, index );
+        }
+        return index;
+    }
+
+    private static void writeIndices ( final DataOutputStream out, final int[] indices ) throws IOException
+    {
+        for ( int index : indices )
+        {
+            writeVarLong ( out, index );
+        }
+    }
+
+    private static int[] readIndices ( final DataInputStream in, final int count, final int bound ) throws IOException
+    {
+        final int[] result = new int[count];
+        for ( int i = 0; i < count; i++ )
+        {
+            final long index = readVarLong ( in );
+            if ( index < 0 || index >= bound )
+            {
+                throw new IOException ( "Malformed string index: " + index );
+            }
+            result[i] = (int)index;
+        }
+        return result;
+    }
+
+    private static long[] readVarLongs ( final DataInputStream in, final int count ) throws IOException
+    {
+        final long[] result = new long[count];
+        for ( int i = 0; i < count; i++ )
+        {
+            result[i] = readVarLong ( in );
+        }
+        return result;
+    }
+
+    /*
+     * Writes 7 bits per byte, zig-zag encoded so that the -1 size of rejected artifacts takes one byte.
+     */
+    private static void writeVarLong ( final DataOutputStream out, final long value ) throws IOException
+    {
+        long v = ( value << 1 ) ^ ( value >> 63 );
+        while ( ( v & ~0x7FL ) != 0 )
+        {
+            out.writeByte ( (int) ( ( v & 0x7F ) | 0x80 ) );
+            v >>>= 7;
+        }
+        out.writeByte ( (int)v );
+    }
+
+    private static long readVarLong ( final DataInputStream in ) throws IOException
+    {
+        long v = 0;
+        int shift = 0;
+        int b;
+        do
+        {
+            if ( shift > 63 )
+            {
+                throw new IOException ( "Malformed variable length number" );
+            }
+            b = in.readUnsignedByte ();
+            v |= (long) ( b & 0x7F ) << shift;
+            shift += 7;
+        } while ( ( b & 0x80 ) != 0 );
+        return ( v >>> 1 ) ^ -( v & 1 );
+    }
+
 }
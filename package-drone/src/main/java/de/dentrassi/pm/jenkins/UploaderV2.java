@@ -10,23 +10,78 @@
  *******************************************************************************/
 package de.dentrassi.pm.jenkins;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 
 import de.dentrassi.pm.jenkins.UploaderResult.ArtifactResult;
+import de.dentrassi.pm.jenkins.delta.DeltaEncoder;
+import de.dentrassi.pm.jenkins.delta.FileSignature;
+import de.dentrassi.pm.jenkins.delta.SignatureCache;
+import de.dentrassi.pm.jenkins.http.AdaptiveLimit;
+import de.dentrassi.pm.jenkins.http.Checksums;
+import de.dentrassi.pm.jenkins.http.DroneClient;
 import de.dentrassi.pm.jenkins.util.LoggerListenerWrapper;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.util.VirtualFile;
 
 public class UploaderV2 extends AbstractUploader
 {
+    /**
+     * Smaller files are always uploaded in full.
+     */
+    private static final long DELTA_MIN_SIZE = 64 * 1024;
+
+    /**
+     * How many ranges of a split file are uploaded at the same time when the
+     * artifacts are uploaded one after the other.
+     */
+    private static final int SPLIT_PARALLELISM = 4;
+
+    /**
+     * The highest number of artifacts uploaded at the same time when the
+     * number adapts to the server.
+     */
+    static final int MAX_ADAPTIVE_PARALLELISM = Integer.getInteger ( UploaderV2.class.getName () + ".maxAdaptiveParallelism", 16 );
+
     private final LoggerListenerWrapper listener;
 
+    private SignatureCache signatureCache;
+
+    private volatile boolean deltaSupported = true;
+
+    private int parallelism = 1;
+
+    private boolean adaptiveParallelism;
+
+    private AdaptiveLimit adaptiveLimit;
+
+    private long splitSize;
+
+    private volatile boolean splitSupported = true;
+
     public UploaderV2 ( final RunData runData, final LoggerListenerWrapper listener, final ServerData serverData )
     {
         super ( runData, serverData );
@@ -44,19 +99,307 @@ public class UploaderV2 extends AbstractUploader
     {
         setupClient ();
 
+        if ( ( parallelism > 1 || adaptiveParallelism ) && filesToUpload.size () + archivedToUpload.size () > 1 )
+        {
+            uploadInParallel ();
+            return;
+        }
+
         Set<Entry<File, String>> entries = filesToUpload.entrySet ();
         for ( Entry<File, String> entry : entries )
         {
             uploadArtifact ( entry.getKey (), entry.getValue () );
         }
+
+        for ( Entry<VirtualFile, String> entry : archivedToUpload.entrySet () )
+        {
+            uploadArchivedArtifact ( entry.getKey (), entry.getValue () );
+        }
     }
 
-    private void uploadArtifact ( final File file, final String filename ) throws IOException
+    /**
+     * Sets how many artifacts are uploaded at the same time.
+     * <p>
+     * Each upload takes its own slot of the server, the pooled connections
+     * to the server are kept alive and reused between the uploads.
+     *
+     * @param parallelism
+     *            the number of concurrent uploads, one or less uploads the
+     *            artifacts one after the other.
+     */
+    public void setParallelism ( final int parallelism )
+    {
+        this.parallelism = Math.max ( parallelism, 1 );
+    }
+
+    /**
+     * Lets the number of artifacts uploaded at the same time adapt to the
+     * server, starting from the parallelism.
+     * <p>
+     * The number grows while the uploads complete in time, and shrinks when
+     * the server answers it is overloaded or the uploads slow down. It never
+     * exceeds {@link #MAX_ADAPTIVE_PARALLELISM}.
+     *
+     * @param adaptiveParallelism
+     *            if the number of concurrent uploads adapts to the server.
+     */
+    public void setAdaptiveParallelism ( final boolean adaptiveParallelism )
+    {
+        this.adaptiveParallelism = adaptiveParallelism;
+    }
+
+    @Override
+    public AdaptiveLimit getAdaptiveLimit ()
+    {
+        return adaptiveLimit;
+    }
+
+    /**
+     * Enables the upload of large files split into ranges sent at the same
+     * time, the server reassembles them.
+     * <p>
+     * The ranges are sent over as many connections as the parallel uploads,
+     * or four if the artifacts are uploaded one after the other. Each range
+     * takes its own upload slot of the server, and the checksums of the
+     * reassembled file are verified. Files uploaded as delta and files not
+     * larger than one range are uploaded in a single request.
+     *
+     * @param splitSize
+     *            the size of a range in bytes, zero or less disables split
+     *            uploads.
+     */
+    public void setSplitSize ( final long splitSize )
+    {
+        this.splitSize = Math.max ( splitSize, 0 );
+    }
+
+    /*
+     * Uploads the artifacts concurrently, so many small uploads are not bound by the round trip time of the server.
+     * All artifacts are tried, the first failure is reported once all uploads are complete.
+     */
+    private void uploadInParallel () throws IOException
+    {
+        final List<Callable<Void>> tasks = new ArrayList<> ( filesToUpload.size () + archivedToUpload.size () );
+        for ( final Entry<File, String> entry : filesToUpload.entrySet () )
+        {
+            tasks.add ( new Callable<Void> () {
+
+                @Override
+                public Void call () throws IOException
+                {
+                    uploadArtifact ( entry.getKey (), entry.getValue () );
+                    return null;
+                }
+            } );
+        }
+        for ( final Entry<VirtualFile, String> entry : archivedToUpload.entrySet () )
+        {
+            tasks.add ( new Callable<Void> () {
+
+                @Override
+                public Void call () throws IOException
+                {
+                    uploadArchivedArtifact ( entry.getKey (), entry.getValue () );
+                    return null;
+                }
+            } );
+        }
+
+        if ( !adaptiveParallelism )
+        {
+            runAll ( tasks, parallelism, "pdrone-upload" );
+            return;
+        }
+
+        // more uploads than the slots of the server would wait for a slot, and grow the limit without testing it
+        final int max = Math.min ( MAX_ADAPTIVE_PARALLELISM, UploadScheduler.get ().getMaxConcurrentUploads () );
+        final AdaptiveLimit limit = new AdaptiveLimit ( parallelism, 1, max );
+        final List<Callable<Void>> limitedTasks = new ArrayList<> ( tasks.size () );
+        for ( final Callable<Void> task : tasks )
+        {
+            limitedTasks.add ( new Callable<Void> () {
+
+                @Override
+                public Void call () throws Exception
+                {
+                    limit.acquire ();
+                    try
+                    {
+                        return task.call ();
+                    }
+                    finally
+                    {
+                        limit.release ();
+                    }
+                }
+            } );
+        }
+
+        this.adaptiveLimit = limit;
+        getClient ().setAdaptiveLimit ( limit );
+        try
+        {
+            runAll ( limitedTasks, Math.min ( limitedTasks.size (), limit.getMax () ), "pdrone-upload" );
+        }
+        finally
+        {
+            getClient ().setAdaptiveLimit ( null );
+            this.listener.debug ( "Uploaded with an adaptive parallelism of %s, between %s and %s", limit.getLimit (), limit.getLowest (), limit.getHighest () );
+        }
+    }
+
+    /*
+     * Runs the tasks with the given number of threads and waits for all of them, the first failure is reported once
+     * all tasks are complete.
+     */
+    private static void runAll ( final List<Callable<Void>> tasks, final int threads, final String threadName ) throws IOException
+    {
+        final ExecutorService executor = Executors.newFixedThreadPool ( threads, new NamingThreadFactory ( new DaemonThreadFactory (), threadName ) );
+        try
+        {
+            final List<Future<Void>> futures = new ArrayList<> ( tasks.size () );
+            for ( final Callable<Void> task : tasks )
+            {
+                futures.add ( executor.submit ( task ) );
+            }
+
+            IOException failure = null;
+            for ( final Future<Void> future : futures )
+            {
+                try
+                {
+                    future.get ();
+                }
+                catch ( final ExecutionException e )
+                {
+                    if ( failure == null )
+                    {
+                        failure = e.getCause () instanceof IOException ? (IOException)e.getCause () : new IOException ( e.getCause () );
+                    }
+                }
+            }
+            if ( failure != null )
+            {
+                throw failure;
+            }
+        }
+        catch ( final InterruptedException e )
+        {
+            Thread.currentThread ().interrupt ();
+            throw new InterruptedIOException ( "Interrupted while waiting for uploads" );
+        }
+        finally
+        {
+            executor.shutdownNow ();
+        }
+    }
+
+    /*
+     * Streams an archived artifact, delta uploads need a local file so they are not used.
+     */
+    private void uploadArchivedArtifact ( final VirtualFile file, final String filename ) throws IOException
     {
         final Map<String, String> properties = new HashMap<> ();
         fillProperties ( properties );
 
-        final HttpResponse response = getClient ().uploadToChannelV2 ( properties, filename, file );
+        final long length = file.length ();
+        final Checksums checksums = new Checksums ();
+        final HttpResponse response;
+        try ( UploadScheduler.Slot slot = acquireUploadSlot (); InputStream in = file.open () )
+        {
+            response = getClient ().uploadToChannelV2 ( properties, filename, in, length, checksums );
+        }
+
+        processResponse ( filename, response, length, checksums );
+    }
+
+    /**
+     * Enables the upload of the changed blocks only for files uploaded by a
+     * previous build.
+     *
+     * @param signatureCache
+     *            where the signatures of the uploaded files are kept.
+     */
+    public void setSignatureCache ( final SignatureCache signatureCache )
+    {
+        this.signatureCache = signatureCache;
+    }
+
+    void uploadArtifact ( final File file, final String filename ) throws IOException
+    {
+        final Map<String, String> properties = new HashMap<> ();
+        fillProperties ( properties );
+
+        FileSignature signature = null;
+        File delta = null;
+        Checksums checksums = null;
+        final HttpResponse response;
+        try
+        {
+            final FileSignature previous = loadSignature ( file, filename );
+            if ( previous != null )
+            {
+                // the delta stays on the disk of the cache, which is sized for files like this one
+                delta = signatureCache.createDeltaFile ();
+                try ( InputStream in = new BufferedInputStream ( new FileInputStream ( file ) ); OutputStream out = new BufferedOutputStream ( new FileOutputStream ( delta ) ) )
+                {
+                    signature = DeltaEncoder.encode ( previous, in, out, file.length () );
+                }
+            }
+
+            // the delta is computed before taking a slot of the server, it is not sent if it is not smaller
+            HttpResponse deltaResponse = null;
+            if ( signature != null )
+            {
+                try ( UploadScheduler.Slot slot = acquireUploadSlot () )
+                {
+                    deltaResponse = uploadDelta ( properties, filename, previous, delta );
+                }
+            }
+
+            if ( deltaResponse != null )
+            {
+                // the server rebuilds the file, there is nothing sent to compare with
+                response = deltaResponse;
+            }
+            else
+            {
+                // each range takes its own slot of the server
+                checksums = new Checksums ();
+                final HttpResponse splitResponse = uploadSplit ( properties, filename, file, checksums );
+                if ( splitResponse != null )
+                {
+                    response = splitResponse;
+                }
+                else
+                {
+                    try ( UploadScheduler.Slot slot = acquireUploadSlot () )
+                    {
+                        response = getClient ().uploadToChannelV2 ( properties, filename, file, checksums );
+                    }
+                }
+            }
+        }
+        finally
+        {
+            if ( delta != null && !delta.delete () )
+            {
+                delta.deleteOnExit ();
+            }
+        }
+
+        final String artId = processResponse ( filename, response, file.length (), checksums );
+        if ( artId != null )
+        {
+            storeSignature ( file, filename, signature, artId );
+        }
+    }
+
+    /*
+     * Returns the identifier of the uploaded artifact or null if no result was received.
+     */
+    private String processResponse ( final String filename, final HttpResponse response, final long size, final Checksums checksums ) throws IOException
+    {
         final HttpEntity resEntity = response.getEntity ();
 
         if ( resEntity != null )
@@ -64,13 +407,212 @@ public class UploaderV2 extends AbstractUploader
             switch ( response.getStatusLine ().getStatusCode () )
             {
                 case 200:
-                    addUploadedArtifacts ( filename, resEntity, file.length () );
-                    break;
+                    verifyChecksums ( filename, response, size, checksums );
+                    return addUploadedArtifacts ( filename, resEntity, size );
                 default:
                     addUploadFailure ( filename, response );
                     break;
             }
         }
+        return null;
+    }
+
+    /*
+     * Compares the checksums computed while sending the file with the ones reported by the server, if any.
+     */
+    private void verifyChecksums ( final String filename, final HttpResponse response, final long size, final Checksums checksums ) throws IOException
+    {
+        if ( checksums == null || checksums.getLength () != size )
+        {
+            // the content was not sent in full through the digesting entity
+            return;
+        }
+
+        final String mismatch = Checksums.findMismatch ( checksums.getValues (), DroneClient.getChecksums ( response ) );
+        if ( mismatch != null )
+        {
+            throw new IOException ( Messages.UploaderV2_checksumMismatch ( filename, mismatch ) );
+        }
+        this.listener.debug ( "Uploaded %s with sha256 %s", filename, checksums.getValues ().get ( Checksums.SHA256 ) );
+    }
+
+    private FileSignature loadSignature ( final File file, final String filename )
+    {
+        if ( signatureCache == null || !deltaSupported || file.length () < DELTA_MIN_SIZE )
+        {
+            return null;
+        }
+        return signatureCache.load ( filename );
+    }
+
+    private HttpResponse uploadDelta ( final Map<String, String> properties, final String filename, final FileSignature previous, final File delta ) throws IOException
+    {
+        final HttpResponse response = getClient ().uploadDeltaToChannelV2 ( properties, filename, previous.getArtifactId (), delta );
+        final int statusCode = response.getStatusLine ().getStatusCode ();
+        if ( statusCode == 404 )
+        {
+            // the server does not know delta uploads, do not try again
+            this.deltaSupported = false;
+            this.listener.info ( Messages.UploaderV2_deltaNotSupported () );
+            return null;
+        }
+        if ( statusCode < 200 || statusCode >= 300 )
+        {
+            // the previous version may be gone from the server, do not base the next delta on it either
+            this.signatureCache.remove ( filename );
+            this.listener.info ( Messages.UploaderV2_deltaRejected ( filename, statusCode, response.getStatusLine ().getReasonPhrase () ) );
+            return null;
+        }
+
+        this.listener.debug ( "Uploaded %s as delta of %s bytes instead of %s", filename, delta.length (), previous.getLength () );
+        return response;
+    }
+
+    /*
+     * Uploads a large file in ranges sent at the same time. The first range finds out if the server supports split
+     * uploads, if it does not null is returned and the file must be uploaded in a single request.
+     * Each range takes its own slot of the server, so the ranges of all files never exceed the slots of the server.
+     * The file is read once more to compute its checksums, which are compared with the ones of the reassembled file.
+     */
+    private HttpResponse uploadSplit ( final Map<String, String> properties, final String filename, final File file, final Checksums checksums ) throws IOException
+    {
+        final long length = file.length ();
+        if ( splitSize <= 0 || !splitSupported || length <= splitSize )
+        {
+            return null;
+        }
+
+        final String uploadId = UUID.randomUUID ().toString ();
+        final Checksums firstChecksums = new Checksums ();
+        final HttpResponse first;
+        try ( UploadScheduler.Slot slot = acquireUploadSlot () )
+        {
+            first = getClient ().uploadRangeV2 ( uploadId, filename, file, 0, splitSize, firstChecksums );
+        }
+        if ( first.getStatusLine ().getStatusCode () == 404 )
+        {
+            // the server does not know split uploads, do not try again
+            this.splitSupported = false;
+            this.listener.info ( Messages.UploaderV2_splitNotSupported () );
+            return null;
+        }
+
+        try
+        {
+            verifyRange ( filename, 0, first, firstChecksums );
+
+            final List<Callable<Void>> tasks = new ArrayList<> ();
+            tasks.add ( new Callable<Void> () {
+
+                @Override
+                public Void call () throws IOException
+                {
+                    digestFile ( file, checksums );
+                    return null;
+                }
+            } );
+            for ( long offset = splitSize; offset < length; offset += splitSize )
+            {
+                final long rangeOffset = offset;
+                final long rangeLength = Math.min ( splitSize, length - offset );
+                tasks.add ( new Callable<Void> () {
+
+                    @Override
+                    public Void call () throws IOException
+                    {
+                        final Checksums rangeChecksums = new Checksums ();
+                        final HttpResponse response;
+                        try ( UploadScheduler.Slot slot = acquireUploadSlot () )
+                        {
+                            response = getClient ().uploadRangeV2 ( uploadId, filename, file, rangeOffset, rangeLength, rangeChecksums );
+                        }
+                        verifyRange ( filename, rangeOffset, response, rangeChecksums );
+                        return null;
+                    }
+                } );
+            }
+            // more ranges than the slots of the server would only wait, one more thread digests the file
+            final int rangeThreads = Math.min ( parallelism > 1 ? parallelism : SPLIT_PARALLELISM, UploadScheduler.get ().getMaxConcurrentUploads () );
+            runAll ( tasks, Math.min ( tasks.size (), rangeThreads + 1 ), "pdrone-upload-range" );
+        }
+        catch ( final IOException e )
+        {
+            abortSplit ( uploadId, filename );
+            throw e;
+        }
+
+        this.listener.debug ( "Uploaded %s in %s ranges", filename, ( length + splitSize - 1 ) / splitSize );
+        try ( UploadScheduler.Slot slot = acquireUploadSlot () )
+        {
+            return getClient ().completeSplitUploadV2 ( properties, filename, uploadId, length );
+        }
+    }
+
+    private static void digestFile ( final File file, final Checksums checksums ) throws IOException
+    {
+        try ( InputStream in = new FileInputStream ( file ) )
+        {
+            final byte[] buffer = new byte[64 * 1024];
+            int len;
+            while ( ( len = in.read ( buffer ) ) >= 0 )
+            {
+                checksums.update ( buffer, 0, len );
+            }
+        }
+    }
+
+    private void verifyRange ( final String filename, final long offset, final HttpResponse response, final Checksums checksums ) throws IOException
+    {
+        final int statusCode = response.getStatusLine ().getStatusCode ();
+        if ( statusCode < 200 || statusCode >= 300 )
+        {
+            final String message = response.getEntity () == null ? "" : makeString ( response.getEntity () );
+            throw new IOException ( Messages.UploaderV2_failedToUploadRange ( filename, String.valueOf ( offset ), statusCode, response.getStatusLine ().getReasonPhrase (), message ) );
+        }
+
+        // the server may report the checksums of each range it received
+        final String mismatch = Checksums.findMismatch ( checksums.getValues (), DroneClient.getChecksums ( response ) );
+        if ( mismatch != null )
+        {
+            throw new IOException ( Messages.UploaderV2_rangeChecksumMismatch ( filename, String.valueOf ( offset ), mismatch ) );
+        }
+    }
+
+    /*
+     * Lets the server discard the ranges received so far, the server drops them after a while anyway.
+     */
+    private void abortSplit ( final String uploadId, final String filename )
+    {
+        try
+        {
+            getClient ().abortSplitUploadV2 ( uploadId, filename );
+        }
+        catch ( final IOException e )
+        {
+            this.listener.debug ( "Failed to abort the split upload of %s: %s", filename, e.getMessage () );
+        }
+    }
+
+    private void storeSignature ( final File file, final String filename, FileSignature signature, final String artifactId )
+    {
+        if ( signatureCache == null || file.length () < DELTA_MIN_SIZE )
+        {
+            return;
+        }
+
+        try
+        {
+            if ( signature == null )
+            {
+                signature = FileSignature.of ( file );
+            }
+            signatureCache.store ( filename, signature.withArtifactId ( artifactId ) );
+        }
+        catch ( final IOException e )
+        {
+            // the next upload will be a full one
+            this.listener.warning ( Messages.UploaderV2_failedToStoreSignature ( filename, e.getMessage () ) );
+        }
     }
 
     private void addUploadFailure ( final String fileName, final HttpResponse response ) throws IOException
@@ -80,11 +622,15 @@ public class UploaderV2 extends AbstractUploader
         throw new IOException ( Messages.UploaderV2_failedToUpload ( fileName, response.getStatusLine ().getStatusCode (), response.getStatusLine ().getReasonPhrase (), message ) );
     }
 
-    private void addUploadedArtifacts ( final String fileName, final HttpEntity resEntity, long size ) throws IOException
+    private String addUploadedArtifacts ( final String fileName, final HttpEntity resEntity, long size ) throws IOException
     {
         final String artId = makeString ( resEntity );
 
-        uploadedArtifacts.add ( new ArtifactResult ( artId, fileName, size, 0, 0 ) );
+        synchronized ( uploadedArtifacts )
+        {
+            uploadedArtifacts.add ( new ArtifactResult ( artId, fileName, size, 0, 0 ) );
+        }
+        return artId;
     }
 
 }
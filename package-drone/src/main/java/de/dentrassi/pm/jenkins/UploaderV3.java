@@ -10,7 +10,6 @@
  *******************************************************************************/
 package de.dentrassi.pm.jenkins;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -18,26 +17,51 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 
+import org.apache.commons.io.output.CloseShieldOutputStream;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
+import org.apache.http.entity.ContentProducer;
 import org.eclipse.packagedrone.repo.api.transfer.TransferArchiveWriter;
 import org.eclipse.packagedrone.repo.api.upload.ArtifactInformation;
 import org.eclipse.packagedrone.repo.api.upload.RejectedArtifact;
 import org.eclipse.packagedrone.repo.api.upload.UploadError;
 import org.eclipse.packagedrone.repo.api.upload.UploadResult;
 
+import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 
 import de.dentrassi.pm.jenkins.UploaderResult.ArtifactResult;
+import de.dentrassi.pm.jenkins.http.ArchivePipeline;
+import de.dentrassi.pm.jenkins.http.Checksums;
 import de.dentrassi.pm.jenkins.util.LoggerListenerWrapper;
+import jenkins.util.VirtualFile;
 
 public class UploaderV3 extends AbstractUploader
 {
+    /**
+     * The system property with the size in KiB of the buffer used to copy
+     * the artifacts into the transfer archive.
+     */
+    public static final String COPY_BUFFER_SIZE_PROPERTY = UploaderV3.class.getName () + ".copyBufferSize";
+
+    private static final int COPY_BUFFER_SIZE = Math.max ( Integer.getInteger ( COPY_BUFFER_SIZE_PROPERTY, TransferArchiveWriter.DEFAULT_BUFFER_SIZE / 1024 ), 4 ) * 1024;
+
+    private static final Gson GSON = new GsonBuilder ().create ();
+
     private final LoggerListenerWrapper listener;
 
+    /**
+     * The checksum properties of each artifact of the last written archive
+     */
+    private volatile Map<List<String>, List<Map<String, String>>> archiveChecksums = Collections.emptyMap ();
+
     public UploaderV3 ( final RunData runData, final LoggerListenerWrapper listener, final ServerData serverData ) throws IOException
     {
         super ( runData, serverData );
@@ -55,60 +79,191 @@ public class UploaderV3 extends AbstractUploader
     {
         setupClient ();
 
-        File archiveFile = null;
+        if ( !archivedToUpload.isEmpty () )
+        {
+            uploadArchivedArtifacts ();
+            return;
+        }
+
+        final File archiveFile = createTransferArchive ();
         try
         {
-            HttpResponse response = getClient().uploadToChannelV3 ( createTransferArchive () );
-            HttpEntity resEntity = response.getEntity ();
+            uploadArchive ( archiveFile, this.archiveChecksums );
+        }
+        finally
+        {
+            deleteFile ( archiveFile );
+        }
+    }
 
-            this.listener.debug ( "Call returned: " + response.getStatusLine () );
+    /*
+     * Streams the transfer archive while sending it, the archived artifacts are read only once. The archive is written
+     * by another thread into a bounded pool of buffers so a slow server blocks the reading of the artifacts.
+     */
+    private void uploadArchivedArtifacts () throws IOException
+    {
+        final ArchivePipeline pipeline = new ArchivePipeline ( new ContentProducer () {
 
-            if ( resEntity != null )
+            @Override
+            public void writeTo ( final OutputStream out ) throws IOException
             {
-                switch ( response.getStatusLine ().getStatusCode () )
-                {
-                    case 200:
-                        processUploadResult ( makeString ( resEntity ) );
-                        break;
-                    case 404:
-                        throw new IOException ( Messages.UploaderV3_failedToFindEndpoint () );
-                    default:
-                        String errorMessage = Messages.UploaderV3_failedToUpload ( response.getStatusLine () );
-                        String httpResponseErrorMessage = getErrorMessage ( response );
-                        if ( httpResponseErrorMessage != null )
-                        {
-                            errorMessage += "\n" + httpResponseErrorMessage;
-                        }
-                        throw new IOException ( errorMessage );
-                }
+                // the pipeline completes the request body when the archive is closed
+                final TransferArchiveWriter transfer = new TransferArchiveWriter ( new CloseShieldOutputStream ( out ), COPY_BUFFER_SIZE );
+                transfer.setChecksumProperties ( Checksums.PROPERTY_ALGORITHMS );
+                final byte[] properties = encodeProperties ( transfer );
+                final Map<File, List<File>> fileTree = makeTree ( filesToUpload, fileParents );
+                writeFiles ( transfer.getRootContext (), fileTree.get ( null ), fileTree, properties );
+                final Map<VirtualFile, List<VirtualFile>> archivedTree = makeTree ( archivedToUpload, archivedParents );
+                writeArchived ( transfer.getRootContext (), archivedTree.get ( null ), archivedTree, properties );
+                transfer.close ();
+                archiveChecksums = transfer.getChecksums ();
             }
-            else
+        } );
+
+        final HttpResponse response;
+        try ( UploadScheduler.Slot slot = acquireUploadSlot () )
+        {
+            response = getClient ().uploadToChannelV3 ( pipeline );
+        }
+        this.listener.debug ( "Archive pipeline: %s of %s buffers of %s bytes used at most, producer waited %s ms", pipeline.getMaxOccupancy (), pipeline.getBufferCount (), pipeline.getBufferSize (), pipeline.getProducerWaitTime () );
+
+        processResponse ( response, this.archiveChecksums );
+    }
+
+    /*
+     * All artifacts of an upload share the same properties, they are encoded once for the whole archive.
+     */
+    private byte[] encodeProperties ( final TransferArchiveWriter transfer ) throws IOException
+    {
+        final Map<String, String> properties = new HashMap<> ();
+        fillProperties ( properties );
+        return transfer.encodeProperties ( properties );
+    }
+
+    /*
+     * Writes the given files and, nested into each of them, their children.
+     */
+    private void writeFiles ( final TransferArchiveWriter.EntryContext context, final List<File> files, final Map<File, List<File>> tree, final byte[] properties ) throws IOException
+    {
+        if ( files == null )
+        {
+            return;
+        }
+
+        for ( final File file : files )
+        {
+            final TransferArchiveWriter.EntryContext entry;
+            try ( InputStream in = new FileInputStream ( file ) )
             {
-                this.listener.error ( "Did not receive a result" );
+                entry = context.createEntry ( filesToUpload.get ( file ), properties, in );
             }
+            writeFiles ( entry, tree.get ( file ), tree, properties );
         }
-        finally
+    }
+
+    private void writeArchived ( final TransferArchiveWriter.EntryContext context, final List<VirtualFile> files, final Map<VirtualFile, List<VirtualFile>> tree, final byte[] properties ) throws IOException
+    {
+        if ( files == null )
         {
-            deleteFile ( archiveFile );
+            return;
+        }
+
+        for ( final VirtualFile file : files )
+        {
+            final TransferArchiveWriter.EntryContext entry;
+            try ( InputStream in = file.open () )
+            {
+                entry = context.createEntry ( archivedToUpload.get ( file ), properties, in );
+            }
+            writeArchived ( entry, tree.get ( file ), tree, properties );
         }
     }
 
-    private File createTransferArchive () throws IOException
+    /**
+     * Uploads an already created transfer archive.
+     * <p>
+     * The client must have been set up before.
+     *
+     * @param archiveFile
+     *            the transfer archive containing the artifacts.
+     * @param checksums
+     *            the checksum properties of the artifacts of the archive by
+     *            their path, compared with the checksums reported by the
+     *            server.
+     * @throws IOException
+     *             if performing the upload fails
+     */
+    void uploadArchive ( final File archiveFile, final Map<List<String>, List<Map<String, String>>> checksums ) throws IOException
     {
-        File archiveFile = File.createTempFile ( "pdrone-", "upload" );
-        try ( OutputStream os = new FileOutputStream ( archiveFile ) )
+        final HttpResponse response;
+        try ( UploadScheduler.Slot slot = acquireUploadSlot () )
+        {
+            response = getClient ().uploadToChannelV3 ( archiveFile );
+        }
+
+        processResponse ( response, checksums );
+    }
+
+    /**
+     * Returns the checksum properties of each artifact of the last archive
+     * created by {@link #createTransferArchive()}.
+     *
+     * @return the checksum properties by the path of the artifacts, see
+     *         {@link TransferArchiveWriter#getChecksums()}.
+     */
+    Map<List<String>, List<Map<String, String>>> getArchiveChecksums ()
+    {
+        return archiveChecksums;
+    }
+
+    private void processResponse ( final HttpResponse response, final Map<List<String>, List<Map<String, String>>> checksums ) throws IOException
+    {
+        HttpEntity resEntity = response.getEntity ();
+
+        this.listener.debug ( "Call returned: " + response.getStatusLine () );
+
+        if ( resEntity != null )
         {
-            TransferArchiveWriter transfer = new TransferArchiveWriter ( new BufferedOutputStream ( os ) );
-            for ( java.util.Map.Entry<File, String> entry : filesToUpload.entrySet () )
+            switch ( response.getStatusLine ().getStatusCode () )
             {
-                final Map<String, String> properties = new HashMap<> ();
-                fillProperties ( properties );
-                try ( InputStream in = new FileInputStream ( entry.getKey () ) )
-                {
-                    transfer.createEntry ( entry.getValue (), properties, new BufferedInputStream ( in ) );
-                }
+                case 200:
+                    final UploadResult result = parseUploadResult ( makeString ( resEntity ) );
+                    if ( result != null )
+                    {
+                        createArtifactsMap ( result );
+                        verifyChecksums ( result, checksums );
+                    }
+                    break;
+                case 404:
+                    throw new IOException ( Messages.UploaderV3_failedToFindEndpoint () );
+                default:
+                    String errorMessage = Messages.UploaderV3_failedToUpload ( response.getStatusLine () );
+                    String httpResponseErrorMessage = getErrorMessage ( response );
+                    if ( httpResponseErrorMessage != null )
+                    {
+                        errorMessage += "\n" + httpResponseErrorMessage;
+                    }
+                    throw new IOException ( errorMessage );
             }
+        }
+        else
+        {
+            this.listener.error ( "Did not receive a result" );
+        }
+    }
+
+    File createTransferArchive () throws IOException
+    {
+        File archiveFile = File.createTempFile ( "pdrone-", "upload" );
+        try ( OutputStream os = new FileOutputStream ( archiveFile ) )
+        {
+            TransferArchiveWriter transfer = new TransferArchiveWriter ( new BufferedOutputStream ( os ), COPY_BUFFER_SIZE );
+            transfer.setChecksumProperties ( Checksums.PROPERTY_ALGORITHMS );
+            final byte[] properties = encodeProperties ( transfer );
+            final Map<File, List<File>> tree = makeTree ( filesToUpload, fileParents );
+            writeFiles ( transfer.getRootContext (), tree.get ( null ), tree, properties );
             transfer.close ();
+            this.archiveChecksums = transfer.getChecksums ();
         }
         catch ( IOException e )
         {
@@ -118,7 +273,7 @@ public class UploaderV3 extends AbstractUploader
         return archiveFile;
     }
 
-    private void deleteFile ( File archiveFile )
+    void deleteFile ( File archiveFile )
     {
         if ( archiveFile != null && !archiveFile.delete () )
         {
@@ -134,7 +289,7 @@ public class UploaderV3 extends AbstractUploader
             return null;
         }
 
-        final UploadError error = new GsonBuilder ().create ().fromJson ( makeString ( entity ), UploadError.class );
+        final UploadError error = GSON.fromJson ( makeString ( entity ), UploadError.class );
         if ( error == null )
         {
             return null;
@@ -143,17 +298,79 @@ public class UploaderV3 extends AbstractUploader
         return error.getMessage ();
     }
 
-    private void processUploadResult ( final String string )
+    private UploadResult parseUploadResult ( final String string )
     {
         try
         {
-            final UploadResult result = new GsonBuilder ().create ().fromJson ( string, UploadResult.class );
-            createArtifactsMap ( result );
+            return GSON.fromJson ( string, UploadResult.class );
         }
         catch ( final Exception e )
         {
             e.printStackTrace ( this.listener.error ( "Failed to parse upload result" ) );
+            return null;
+        }
+    }
+
+    /*
+     * Compares the checksums computed while writing the archive with the ones reported by the server, if any.
+     */
+    private void verifyChecksums ( final UploadResult result, final Map<List<String>, List<Map<String, String>>> checksums ) throws IOException
+    {
+        final Map<String, ArtifactInformation> created = new HashMap<> ();
+        for ( final ArtifactInformation ai : result.getCreatedArtifacts () )
+        {
+            created.put ( ai.getId (), ai );
+        }
+
+        // artifacts with the same path are matched in the order they were written
+        final Map<List<String>, Integer> occurrences = new HashMap<> ();
+
+        final List<String> mismatches = new ArrayList<> ();
+        for ( final ArtifactInformation ai : result.getCreatedArtifacts () )
+        {
+            final List<String> path = getPath ( ai, created );
+            final Integer occurrence = occurrences.get ( path );
+            final int index = occurrence == null ? 0 : occurrence;
+            occurrences.put ( path, index + 1 );
+
+            final List<Map<String, String>> entries = checksums.get ( path );
+            if ( entries == null || index >= entries.size () )
+            {
+                continue;
+            }
+            final Map<String, String> properties = entries.get ( index );
+
+            final Map<String, String> computed = new HashMap<> ();
+            for ( final Map.Entry<String, String> entry : properties.entrySet () )
+            {
+                computed.put ( entry.getKey ().substring ( Checksums.PROPERTY_PREFIX.length () ), entry.getValue () );
+            }
+            if ( Checksums.findMismatch ( computed, ai.getChecksums () ) != null )
+            {
+                mismatches.add ( ai.getName () );
+            }
+        }
+
+        if ( !mismatches.isEmpty () )
+        {
+            throw new IOException ( Messages.UploaderV3_checksumMismatch ( mismatches ) );
+        }
+    }
+
+    /*
+     * Returns the names of the artifact and its created parents, the root first, like the paths of the archive entries.
+     */
+    private static List<String> getPath ( final ArtifactInformation ai, final Map<String, ArtifactInformation> created )
+    {
+        final LinkedList<String> path = new LinkedList<> ();
+        ArtifactInformation current = ai;
+        // the size bound guards against a parent loop in the reply
+        while ( current != null && path.size () < created.size () )
+        {
+            path.addFirst ( current.getName () );
+            current = current.getParentId () == null ? null : created.get ( current.getParentId () );
         }
+        return path;
     }
 
     private void createArtifactsMap ( final UploadResult result )
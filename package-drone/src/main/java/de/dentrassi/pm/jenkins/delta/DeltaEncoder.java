@@ -0,0 +1,249 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBH SYSTEMS GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBH SYSTEMS GmbH - initial API and implementation
+ *******************************************************************************/
+package de.dentrassi.pm.jenkins.delta;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.List;
+
+import org.apache.commons.io.output.CountingOutputStream;
+
+/**
+ * Encodes a file as the difference to a previous version known by the server.
+ * <p>
+ * The new content is scanned with a rolling checksum looking for the blocks of
+ * the previous version at any offset. The delta is a stream of:
+ * <ul>
+ * <li>a header made of the int {@link #MAGIC} and the int block size;</li>
+ * <li>{@link #OP_COPY} followed by the int index of a block of the previous
+ * version;</li>
+ * <li>{@link #OP_DATA} followed by an int length and the literal bytes;</li>
+ * <li>{@link #OP_END} at the end of the stream.</li>
+ * </ul>
+ * The new file is read only once, its signature is computed at the same time
+ * so it can be cached for the next upload.
+ */
+public final class DeltaEncoder
+{
+    public static final int MAGIC = 0x5044444C; // PDDL
+
+    public static final int OP_END = 0;
+
+    public static final int OP_COPY = 1;
+
+    public static final int OP_DATA = 2;
+
+    private static final int MAX_LITERAL = 64 * 1024;
+
+    private final FileSignature base;
+
+    private final InputStream in;
+
+    private final CountingOutputStream counter;
+
+    private final DataOutputStream out;
+
+    private final long maxLength;
+
+    private final int blockSize;
+
+    private final byte[] window;
+
+    private final RollingChecksum checksum = new RollingChecksum ();
+
+    private final MessageDigest digest = FileSignature.createDigest ();
+
+    private final FileSignature.Builder signature;
+
+    private final ByteArrayOutputStream literal = new ByteArrayOutputStream ();
+
+    private int head;
+
+    private int length;
+
+    private DeltaEncoder ( final FileSignature base, final InputStream in, final OutputStream out, final long maxLength )
+    {
+        this.base = base;
+        this.in = in;
+        this.counter = new CountingOutputStream ( out );
+        this.out = new DataOutputStream ( counter );
+        this.maxLength = maxLength;
+        this.blockSize = base.getBlockSize ();
+        this.window = new byte[blockSize];
+        this.signature = new FileSignature.Builder ( blockSize );
+    }
+
+    /**
+     * Writes the delta between a previous version of a file and its new
+     * content.
+     *
+     * @param base
+     *            the signature of the version known by the server.
+     * @param in
+     *            the new content, should be buffered.
+     * @param out
+     *            where write the delta.
+     * @return the signature of the new content, without artifact identifier.
+     * @throws IOException
+     *             if reading the content or writing the delta fails
+     */
+    public static FileSignature encode ( final FileSignature base, final InputStream in, final OutputStream out ) throws IOException
+    {
+        return encode ( base, in, out, Long.MAX_VALUE );
+    }
+
+    /**
+     * Writes the delta between a previous version of a file and its new
+     * content, unless the delta is not smaller than the given length.
+     *
+     * @param base
+     *            the signature of the version known by the server.
+     * @param in
+     *            the new content, should be buffered.
+     * @param out
+     *            where write the delta.
+     * @param maxLength
+     *            the length the delta must stay below, usually the length
+     *            of the new content.
+     * @return the signature of the new content, without artifact identifier,
+     *         or {@code null} if the encoding was stopped because the delta
+     *         reached the length, what was written must be discarded then.
+     * @throws IOException
+     *             if reading the content or writing the delta fails
+     */
+    public static FileSignature encode ( final FileSignature base, final InputStream in, final OutputStream out, final long maxLength ) throws IOException
+    {
+        return new DeltaEncoder ( base, in, out, maxLength ).encode ();
+    }
+
+    private FileSignature encode () throws IOException
+    {
+        out.writeInt ( MAGIC );
+        out.writeInt ( blockSize );
+
+        fill ();
+        while ( length > 0 )
+        {
+            if ( counter.getByteCount () + literal.size () >= maxLength )
+            {
+                // the file is better sent in full, there is no point reading it to the end
+                return null;
+            }
+
+            final int block = findBlock ();
+            if ( block >= 0 )
+            {
+                flushLiteral ();
+                out.writeByte ( OP_COPY );
+                out.writeInt ( block );
+                fill ();
+                continue;
+            }
+
+            // no block starts here, move one byte forward
+            final byte first = window[head];
+            literal.write ( first );
+            if ( literal.size () >= MAX_LITERAL )
+            {
+                flushLiteral ();
+            }
+
+            final int next = in.read ();
+            if ( next < 0 )
+            {
+                checksum.shrink ( first );
+                length--;
+            }
+            else
+            {
+                window[head] = (byte)next;
+                signature.update ( (byte)next );
+                checksum.roll ( first, (byte)next );
+            }
+            head = ( head + 1 ) % blockSize;
+        }
+
+        flushLiteral ();
+        out.writeByte ( OP_END );
+        out.flush ();
+
+        if ( counter.getByteCount () >= maxLength )
+        {
+            return null;
+        }
+
+        return signature.build ();
+    }
+
+    /*
+     * Fills the window with the next block of the content.
+     */
+    private void fill () throws IOException
+    {
+        head = 0;
+        length = 0;
+
+        int read;
+        while ( length < blockSize && ( read = in.read ( window, length, blockSize - length ) ) >= 0 )
+        {
+            length += read;
+        }
+        signature.update ( window, 0, length );
+        checksum.reset ( window, 0, length );
+    }
+
+    private int findBlock ()
+    {
+        final List<Integer> candidates = base.findCandidates ( checksum.getValue () );
+        if ( candidates == null )
+        {
+            return -1;
+        }
+
+        byte[] strong = null;
+        for ( final int block : candidates )
+        {
+            if ( base.getBlockLength ( block ) != length )
+            {
+                continue;
+            }
+            if ( strong == null )
+            {
+                final int tail = Math.min ( length, blockSize - head );
+                digest.update ( window, head, tail );
+                digest.update ( window, 0, length - tail );
+                strong = digest.digest ();
+            }
+            if ( base.matches ( block, strong ) )
+            {
+                return block;
+            }
+        }
+        return -1;
+    }
+
+    private void flushLiteral () throws IOException
+    {
+        if ( literal.size () == 0 )
+        {
+            return;
+        }
+        out.writeByte ( OP_DATA );
+        out.writeInt ( literal.size () );
+        literal.writeTo ( out );
+        literal.reset ();
+    }
+
+}
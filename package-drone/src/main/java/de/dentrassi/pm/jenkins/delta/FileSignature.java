@@ -0,0 +1,333 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBH SYSTEMS GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBH SYSTEMS GmbH - initial API and implementation
+ *******************************************************************************/
+package de.dentrassi.pm.jenkins.delta;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The block signatures of a file uploaded to the server.
+ * <p>
+ * The file is split in blocks of a fixed size, each block is described by a
+ * weak rolling checksum and a strong MD5 digest. The content of the file is
+ * not kept, the signature is enough to find which parts of a new version are
+ * already known by the server.
+ */
+public final class FileSignature
+{
+    private static final int MAGIC = 0x50445347; // PDSG
+
+    private static final int MIN_BLOCK_SIZE = 2 * 1024;
+
+    private static final int MAX_BLOCK_SIZE = 64 * 1024;
+
+    private final String artifactId;
+
+    private final long length;
+
+    private final int blockSize;
+
+    private final int[] weak;
+
+    private final byte[][] strong;
+
+    private Map<Integer, List<Integer>> index;
+
+    FileSignature ( final String artifactId, final long length, final int blockSize, final int[] weak, final byte[][] strong )
+    {
+        this.artifactId = artifactId;
+        this.length = length;
+        this.blockSize = blockSize;
+        this.weak = weak;
+        this.strong = strong;
+    }
+
+    /**
+     * Returns the identifier assigned by the server to the artifact this
+     * signature describes.
+     *
+     * @return the artifact identifier, {@code null} if not uploaded yet.
+     */
+    public String getArtifactId ()
+    {
+        return artifactId;
+    }
+
+    /**
+     * Returns the size of the file.
+     *
+     * @return the size in bytes.
+     */
+    public long getLength ()
+    {
+        return length;
+    }
+
+    /**
+     * Returns the size of a block.
+     *
+     * @return the size in bytes.
+     */
+    public int getBlockSize ()
+    {
+        return blockSize;
+    }
+
+    /**
+     * Returns the number of blocks.
+     *
+     * @return the blocks count.
+     */
+    public int getBlockCount ()
+    {
+        return weak.length;
+    }
+
+    /**
+     * Returns a copy of this signature bound to the given artifact.
+     *
+     * @param artifactId
+     *            the identifier assigned by the server.
+     * @return a signature with the artifact identifier.
+     */
+    public FileSignature withArtifactId ( final String artifactId )
+    {
+        return new FileSignature ( artifactId, length, blockSize, weak, strong );
+    }
+
+    /**
+     * Returns the length of the given block, only the last one can be shorter
+     * than the block size.
+     */
+    int getBlockLength ( final int block )
+    {
+        if ( block < weak.length - 1 )
+        {
+            return blockSize;
+        }
+        return (int) ( length - (long)block * blockSize );
+    }
+
+    /**
+     * Returns the blocks having the given weak checksum.
+     *
+     * @return the indices of the candidate blocks or {@code null} if none.
+     */
+    List<Integer> findCandidates ( final int weakChecksum )
+    {
+        if ( index == null )
+        {
+            index = new HashMap<> ( weak.length * 2 );
+            for ( int i = 0; i < weak.length; i++ )
+            {
+                List<Integer> blocks = index.get ( weak[i] );
+                if ( blocks == null )
+                {
+                    blocks = new ArrayList<> ( 1 );
+                    index.put ( weak[i], blocks );
+                }
+                blocks.add ( i );
+            }
+        }
+        return index.get ( weakChecksum );
+    }
+
+    boolean matches ( final int block, final byte[] strongChecksum )
+    {
+        return Arrays.equals ( strong[block], strongChecksum );
+    }
+
+    /**
+     * Computes the signature of a local file.
+     *
+     * @param file
+     *            the file to read.
+     * @return the signature of the file, without artifact identifier.
+     * @throws IOException
+     *             if reading the file fails
+     */
+    public static FileSignature of ( final File file ) throws IOException
+    {
+        final Builder builder = new Builder ( blockSizeFor ( file.length () ) );
+        try ( InputStream in = new BufferedInputStream ( new FileInputStream ( file ) ) )
+        {
+            final byte[] buffer = new byte[8 * 1024];
+            int read;
+            while ( ( read = in.read ( buffer ) ) >= 0 )
+            {
+                builder.update ( buffer, 0, read );
+            }
+        }
+        return builder.build ();
+    }
+
+    /**
+     * Returns the block size for a file, around the square root of its length
+     * like rsync does.
+     *
+     * @param length
+     *            the size of the file.
+     * @return the block size in bytes.
+     */
+    static int blockSizeFor ( final long length )
+    {
+        int size = MIN_BLOCK_SIZE;
+        while ( size < MAX_BLOCK_SIZE && (long)size * size < length )
+        {
+            size <<= 1;
+        }
+        return size;
+    }
+
+    public void write ( final DataOutputStream out ) throws IOException
+    {
+        out.writeInt ( MAGIC );
+        out.writeUTF ( artifactId );
+        out.writeLong ( length );
+        out.writeInt ( blockSize );
+        out.writeInt ( weak.length );
+        for ( int i = 0; i < weak.length; i++ )
+        {
+            out.writeInt ( weak[i] );
+            out.write ( strong[i] );
+        }
+    }
+
+    public static FileSignature read ( final DataInputStream in ) throws IOException
+    {
+        if ( in.readInt () != MAGIC )
+        {
+            throw new IOException ( "Not a signature file" );
+        }
+
+        final String artifactId = in.readUTF ();
+        final long length = in.readLong ();
+        final int blockSize = in.readInt ();
+        final int count = in.readInt ();
+
+        final int[] weak = new int[count];
+        final byte[][] strong = new byte[count][];
+        for ( int i = 0; i < count; i++ )
+        {
+            weak[i] = in.readInt ();
+            strong[i] = new byte[Builder.STRONG_LENGTH];
+            in.readFully ( strong[i] );
+        }
+        return new FileSignature ( artifactId, length, blockSize, weak, strong );
+    }
+
+    static MessageDigest createDigest ()
+    {
+        try
+        {
+            return MessageDigest.getInstance ( "MD5" );
+        }
+        catch ( final NoSuchAlgorithmException e )
+        {
+            // every JVM must support MD5
+            throw new IllegalStateException ( e );
+        }
+    }
+
+    /**
+     * Computes a signature from the bytes of a file passed in order.
+     */
+    static final class Builder
+    {
+        static final int STRONG_LENGTH = 16;
+
+        private final int blockSize;
+
+        private final byte[] block;
+
+        private final RollingChecksum checksum = new RollingChecksum ();
+
+        private final MessageDigest digest = createDigest ();
+
+        private final List<Integer> weak = new ArrayList<> ();
+
+        private final List<byte[]> strong = new ArrayList<> ();
+
+        private int position;
+
+        private long length;
+
+        Builder ( final int blockSize )
+        {
+            this.blockSize = blockSize;
+            this.block = new byte[blockSize];
+        }
+
+        void update ( final byte[] buffer, int offset, int count )
+        {
+            length += count;
+            while ( count > 0 )
+            {
+                final int chunk = Math.min ( count, blockSize - position );
+                System.arraycopy ( buffer, offset, block, position, chunk );
+                position += chunk;
+                offset += chunk;
+                count -= chunk;
+                if ( position == blockSize )
+                {
+                    finishBlock ();
+                }
+            }
+        }
+
+        void update ( final byte value )
+        {
+            length++;
+            block[position++] = value;
+            if ( position == blockSize )
+            {
+                finishBlock ();
+            }
+        }
+
+        private void finishBlock ()
+        {
+            checksum.reset ( block, 0, position );
+            weak.add ( checksum.getValue () );
+            digest.update ( block, 0, position );
+            strong.add ( digest.digest () );
+            position = 0;
+        }
+
+        FileSignature build ()
+        {
+            if ( position > 0 )
+            {
+                finishBlock ();
+            }
+
+            final int[] weakValues = new int[weak.size ()];
+            for ( int i = 0; i < weakValues.length; i++ )
+            {
+                weakValues[i] = weak.get ( i );
+            }
+            return new FileSignature ( null, length, blockSize, weakValues, strong.toArray ( new byte[strong.size ()][] ) );
+        }
+    }
+
+}
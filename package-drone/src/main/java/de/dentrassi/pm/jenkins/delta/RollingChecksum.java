@@ -0,0 +1,84 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBH SYSTEMS GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBH SYSTEMS GmbH - initial API and implementation
+ *******************************************************************************/
+package de.dentrassi.pm.jenkins.delta;
+
+/**
+ * The weak rolling checksum of the rsync algorithm.
+ * <p>
+ * The checksum of a window of bytes can be moved forward by one byte in
+ * constant time, this allows to find blocks of a previous version of a file at
+ * any offset of the new version.
+ */
+final class RollingChecksum
+{
+    private int a;
+
+    private int b;
+
+    private int length;
+
+    /**
+     * Computes the checksum of a new window.
+     *
+     * @param buffer
+     *            the bytes of the window.
+     * @param offset
+     *            the start of the window in the buffer.
+     * @param length
+     *            the size of the window.
+     */
+    public void reset ( final byte[] buffer, final int offset, final int length )
+    {
+        this.a = 0;
+        this.b = 0;
+        this.length = length;
+        for ( int i = 0; i < length; i++ )
+        {
+            final int x = buffer[offset + i] & 0xFF;
+            a += x;
+            b += ( length - i ) * x;
+        }
+    }
+
+    /**
+     * Moves the window forward by one byte.
+     *
+     * @param out
+     *            the byte leaving the window.
+     * @param in
+     *            the byte entering the window.
+     */
+    public void roll ( final byte out, final byte in )
+    {
+        a += ( in & 0xFF ) - ( out & 0xFF );
+        b += a - length * ( out & 0xFF );
+    }
+
+    /**
+     * Removes the first byte of the window without adding a new one, as
+     * happens at the end of a file.
+     *
+     * @param out
+     *            the byte leaving the window.
+     */
+    public void shrink ( final byte out )
+    {
+        a -= out & 0xFF;
+        b -= length * ( out & 0xFF );
+        length--;
+    }
+
+    public int getValue ()
+    {
+        return ( b & 0xFFFF ) << 16 | ( a & 0xFFFF );
+    }
+
+}
@@ -0,0 +1,149 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBH SYSTEMS GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBH SYSTEMS GmbH - initial API and implementation
+ *******************************************************************************/
+package de.dentrassi.pm.jenkins.delta;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import hudson.Util;
+
+/**
+ * Keeps on the local disk the signatures of the files uploaded to a channel.
+ * <p>
+ * There is a signature file for each upload name, it is replaced every time a
+ * new version of the file is uploaded.
+ */
+public class SignatureCache
+{
+    private final File directory;
+
+    private final String prefix;
+
+    /**
+     * Creates a cache of signatures of a channel.
+     *
+     * @param directory
+     *            where store the signatures.
+     * @param serverURL
+     *            the package drone server URL.
+     * @param channel
+     *            the channel where files are uploaded.
+     */
+    public SignatureCache ( final File directory, final String serverURL, final String channel )
+    {
+        this.directory = directory;
+        this.prefix = serverURL + '\n' + channel + '\n';
+    }
+
+    /**
+     * Returns the signature of the last uploaded version of a file.
+     *
+     * @param name
+     *            the upload name of the file.
+     * @return the signature or {@code null} if not known.
+     */
+    public FileSignature load ( final String name )
+    {
+        final File file = getFile ( name );
+        if ( !file.isFile () )
+        {
+            return null;
+        }
+
+        try ( DataInputStream in = new DataInputStream ( new BufferedInputStream ( new FileInputStream ( file ) ) ) )
+        {
+            return FileSignature.read ( in );
+        }
+        catch ( final IOException e )
+        {
+            // a broken entry is the same as a missing one
+            return null;
+        }
+    }
+
+    /**
+     * Stores the signature of the uploaded version of a file.
+     *
+     * @param name
+     *            the upload name of the file.
+     * @param signature
+     *            the signature, including the artifact identifier.
+     * @throws IOException
+     *             if writing the signature fails
+     */
+    public void store ( final String name, final FileSignature signature ) throws IOException
+    {
+        createDirectory ();
+
+        final File file = getFile ( name );
+        final File temp = new File ( directory, file.getName () + ".tmp" );
+        try ( DataOutputStream out = new DataOutputStream ( new BufferedOutputStream ( new FileOutputStream ( temp ) ) ) )
+        {
+            signature.write ( out );
+        }
+
+        if ( file.exists () && !file.delete () || !temp.renameTo ( file ) )
+        {
+            temp.delete ();
+            throw new IOException ( "Failed to store signature " + file );
+        }
+    }
+
+    /**
+     * Forgets the signature of a file, the next version is uploaded in full.
+     *
+     * @param name
+     *            the upload name of the file.
+     */
+    public void remove ( final String name )
+    {
+        final File file = getFile ( name );
+        if ( file.exists () && !file.delete () )
+        {
+            file.deleteOnExit ();
+        }
+    }
+
+    /**
+     * Creates a file next to the signatures where a delta is written before
+     * it is sent, the caller deletes it.
+     *
+     * @return the new empty file.
+     * @throws IOException
+     *             if creating the file fails
+     */
+    public File createDeltaFile () throws IOException
+    {
+        createDirectory ();
+        return File.createTempFile ( "pdrone-", ".delta", directory );
+    }
+
+    private void createDirectory () throws IOException
+    {
+        // concurrent uploads may create the directory at the same time
+        if ( !directory.mkdirs () && !directory.isDirectory () )
+        {
+            throw new IOException ( "Failed to create directory " + directory );
+        }
+    }
+
+    private File getFile ( final String name )
+    {
+        return new File ( directory, Util.getDigestOf ( prefix + name ) + ".sig" );
+    }
+
+}
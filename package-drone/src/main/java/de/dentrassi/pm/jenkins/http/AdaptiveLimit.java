@@ -0,0 +1,232 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBH SYSTEMS GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBH SYSTEMS GmbH - initial API and implementation
+ *******************************************************************************/
+package de.dentrassi.pm.jenkins.http;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits how many uploads run at the same time, adapting the limit to the
+ * load of the server.
+ * <p>
+ * The limit grows by one each time a full limit of uploads completed in time,
+ * and it is halved when the server answers it is overloaded or a request
+ * fails. A request taking more than twice as long as the fastest recent ones,
+ * per byte sent, reduces the limit by a tenth, at least by one. Only requests
+ * started after the last reduction can reduce the limit again, so the answers
+ * to requests sent under the old limit do not reduce it several times.
+ */
+public class AdaptiveLimit
+{
+    /*
+     * The fixed cost of a request in bytes, so the latency of small requests is dominated by the round trip time.
+     */
+    private static final long REQUEST_OVERHEAD = 64 * 1024;
+
+    /*
+     * Shorter requests are taken as this long, so the jitter of fast requests is not taken as a slow down.
+     */
+    private static final long MIN_LATENCY = TimeUnit.MILLISECONDS.toNanos ( 10 );
+
+    private static final double OVERLOAD_BACKOFF = 0.5;
+
+    private static final double LATENCY_BACKOFF = 0.9;
+
+    private static final double LATENCY_TOLERANCE = 2.0;
+
+    /*
+     * How fast the fastest latency follows slower ones, so it is not stuck to a single lucky request.
+     */
+    private static final double BASELINE_DRIFT = 0.01;
+
+    private final int min;
+
+    private final int max;
+
+    private double limit;
+
+    private int inFlight;
+
+    private double baseline;
+
+    private boolean decreased;
+
+    private long lastDecrease;
+
+    private int lowest;
+
+    private int highest;
+
+    /**
+     * Creates a limit with the given bounds.
+     *
+     * @param initial
+     *            the limit to start with.
+     * @param min
+     *            the lowest limit, at least one.
+     * @param max
+     *            the highest limit.
+     */
+    public AdaptiveLimit ( final int initial, final int min, final int max )
+    {
+        this.min = Math.max ( min, 1 );
+        this.max = Math.max ( max, this.min );
+        this.limit = Math.min ( Math.max ( initial, this.min ), this.max );
+        this.lowest = getLimit ();
+        this.highest = getLimit ();
+    }
+
+    /**
+     * Waits until an upload can start, the upload must call {@link #release()}
+     * when it is complete.
+     *
+     * @throws InterruptedIOException
+     *             if interrupted while waiting.
+     */
+    public synchronized void acquire () throws InterruptedIOException
+    {
+        try
+        {
+            while ( inFlight >= getLimit () )
+            {
+                wait ();
+            }
+            inFlight++;
+        }
+        catch ( final InterruptedException e )
+        {
+            Thread.currentThread ().interrupt ();
+            throw new InterruptedIOException ( "Interrupted while waiting for a free upload" );
+        }
+    }
+
+    public synchronized void release ()
+    {
+        inFlight--;
+        notifyAll ();
+    }
+
+    /**
+     * Records the response to a request.
+     *
+     * @param start
+     *            when the request was sent, from {@link System#nanoTime()}.
+     * @param end
+     *            when the response was received.
+     * @param sent
+     *            the bytes sent, negative if the latency of the request does
+     *            not depend on them.
+     * @param statusCode
+     *            the status code of the response.
+     */
+    public synchronized void onResponse ( final long start, final long end, final long sent, final int statusCode )
+    {
+        if ( statusCode == 429 || statusCode == 503 )
+        {
+            decrease ( start, end, OVERLOAD_BACKOFF );
+            return;
+        }
+        if ( sent < 0 || statusCode >= 400 )
+        {
+            return;
+        }
+
+        final double cost = (double)Math.max ( end - start, MIN_LATENCY ) / ( sent + REQUEST_OVERHEAD );
+        if ( baseline <= 0 || cost < baseline )
+        {
+            baseline = cost;
+        }
+        else
+        {
+            baseline += ( cost - baseline ) * BASELINE_DRIFT;
+        }
+
+        if ( cost > baseline * LATENCY_TOLERANCE )
+        {
+            decrease ( start, end, LATENCY_BACKOFF );
+        }
+        else if ( inFlight >= getLimit () - 1 )
+        {
+            // only grow when the limit is used, otherwise it grows without being tested
+            setLimit ( limit + 1.0 / limit );
+        }
+    }
+
+    /**
+     * Records a request which failed without response, like a connection
+     * reset by an overloaded server.
+     *
+     * @param start
+     *            when the request was sent, from {@link System#nanoTime()}.
+     * @param end
+     *            when the request failed.
+     */
+    public synchronized void onFailure ( final long start, final long end )
+    {
+        decrease ( start, end, OVERLOAD_BACKOFF );
+    }
+
+    private void decrease ( final long start, final long end, final double factor )
+    {
+        if ( decreased && start - lastDecrease < 0 )
+        {
+            // sent under the previous limit
+            return;
+        }
+        decreased = true;
+        lastDecrease = end;
+        setLimit ( Math.floor ( limit * factor ) );
+    }
+
+    private void setLimit ( final double limit )
+    {
+        this.limit = Math.min ( Math.max ( limit, min ), max );
+        this.lowest = Math.min ( this.lowest, getLimit () );
+        this.highest = Math.max ( this.highest, getLimit () );
+        notifyAll ();
+    }
+
+    /**
+     * Returns the current limit.
+     *
+     * @return the number of uploads allowed at the same time.
+     */
+    public synchronized int getLimit ()
+    {
+        return (int)limit;
+    }
+
+    public int getMax ()
+    {
+        return max;
+    }
+
+    /**
+     * Returns the lowest limit reached so far.
+     *
+     * @return the number of uploads.
+     */
+    public synchronized int getLowest ()
+    {
+        return lowest;
+    }
+
+    /**
+     * Returns the highest limit reached so far.
+     *
+     * @return the number of uploads.
+     */
+    public synchronized int getHighest ()
+    {
+        return highest;
+    }
+
+}
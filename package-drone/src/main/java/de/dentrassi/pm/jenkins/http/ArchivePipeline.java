@@ -0,0 +1,368 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBH SYSTEMS GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBH SYSTEMS GmbH - initial API and implementation
+ *******************************************************************************/
+package de.dentrassi.pm.jenkins.http;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.entity.ContentProducer;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+/**
+ * Decouples the production of a streamed request body from its sending with a
+ * fixed pool of reusable direct buffers.
+ * <p>
+ * The producer runs in its own thread and fills the buffers, the connection
+ * thread sends them. When the server or the network is slower than the
+ * producer all buffers fill up and the producer blocks, so the memory used by
+ * a request never exceeds the buffer count times the buffer size whatever the
+ * size of the body.
+ * <p>
+ * The pool is sized by the system properties {@link #BUFFER_COUNT_PROPERTY}
+ * and {@link #BUFFER_SIZE_PROPERTY}.
+ */
+public final class ArchivePipeline implements ContentProducer
+{
+    /**
+     * The system property with the number of buffers of a pipeline.
+     */
+    public static final String BUFFER_COUNT_PROPERTY = ArchivePipeline.class.getName () + ".bufferCount";
+
+    /**
+     * The system property with the size in KiB of each buffer of a pipeline.
+     */
+    public static final String BUFFER_SIZE_PROPERTY = ArchivePipeline.class.getName () + ".bufferSize";
+
+    private static final int DEFAULT_BUFFER_COUNT = 8;
+
+    private static final int DEFAULT_BUFFER_SIZE = 64;
+
+    private static final long POLL_INTERVAL = 100;
+
+    // marks the end of the body, never recycled
+    private static final ByteBuffer END = ByteBuffer.allocate ( 0 );
+
+    private final ContentProducer producer;
+
+    private final int bufferCount;
+
+    private final int bufferSize;
+
+    private final BlockingQueue<ByteBuffer> free;
+
+    private final BlockingQueue<ByteBuffer> filled;
+
+    private volatile boolean aborted;
+
+    private volatile IOException failure;
+
+    private int maxOccupancy;
+
+    private long producerWaitTime;
+
+    /**
+     * Creates a pipeline sized by the system properties.
+     *
+     * @param producer
+     *            writes the request body, called in another thread.
+     */
+    public ArchivePipeline ( final ContentProducer producer )
+    {
+        this ( producer, Math.max ( Integer.getInteger ( BUFFER_COUNT_PROPERTY, DEFAULT_BUFFER_COUNT ), 2 ), Math.max ( Integer.getInteger ( BUFFER_SIZE_PROPERTY, DEFAULT_BUFFER_SIZE ), 1 ) * 1024 );
+    }
+
+    /**
+     * Creates a pipeline with the given pool of buffers.
+     *
+     * @param producer
+     *            writes the request body, called in another thread.
+     * @param bufferCount
+     *            the number of buffers.
+     * @param bufferSize
+     *            the size of each buffer in bytes.
+     */
+    public ArchivePipeline ( final ContentProducer producer, final int bufferCount, final int bufferSize )
+    {
+        this.producer = producer;
+        this.bufferCount = bufferCount;
+        this.bufferSize = bufferSize;
+        this.free = new ArrayBlockingQueue<> ( bufferCount );
+        this.filled = new ArrayBlockingQueue<> ( bufferCount + 1 );
+        for ( int i = 0; i < bufferCount; i++ )
+        {
+            this.free.add ( ByteBuffer.allocateDirect ( bufferSize ) );
+        }
+    }
+
+    /*
+     * Called by the connection, may be called again if the request is retried.
+     */
+    @Override
+    public void writeTo ( final OutputStream out ) throws IOException
+    {
+        reset ();
+
+        final Thread thread = new NamingThreadFactory ( new DaemonThreadFactory (), "pdrone-archive-producer" ).newThread ( new Runnable () {
+
+            @Override
+            public void run ()
+            {
+                produce ();
+            }
+        } );
+        thread.start ();
+
+        try
+        {
+            final WritableByteChannel channel = Channels.newChannel ( out );
+            ByteBuffer buffer;
+            while ( ( buffer = take ( filled ) ) != END )
+            {
+                buffer.flip ();
+                try
+                {
+                    while ( buffer.hasRemaining () )
+                    {
+                        channel.write ( buffer );
+                    }
+                }
+                finally
+                {
+                    // a failed send must not take the buffer out of the pool
+                    buffer.clear ();
+                    free.add ( buffer );
+                }
+            }
+            if ( failure != null )
+            {
+                throw failure;
+            }
+        }
+        finally
+        {
+            aborted = true;
+            join ( thread );
+        }
+    }
+
+    private void produce ()
+    {
+        try ( PipelineOutputStream out = new PipelineOutputStream () )
+        {
+            producer.writeTo ( out );
+        }
+        catch ( final IOException e )
+        {
+            failure = e;
+        }
+        catch ( final RuntimeException e )
+        {
+            failure = new IOException ( e );
+        }
+        finally
+        {
+            filled.add ( END );
+        }
+    }
+
+    private void reset ()
+    {
+        aborted = false;
+        failure = null;
+        for ( ByteBuffer buffer; ( buffer = filled.poll () ) != null; )
+        {
+            if ( buffer != END )
+            {
+                buffer.clear ();
+                free.add ( buffer );
+            }
+        }
+    }
+
+    private static ByteBuffer take ( final BlockingQueue<ByteBuffer> queue ) throws IOException
+    {
+        try
+        {
+            return queue.take ();
+        }
+        catch ( final InterruptedException e )
+        {
+            Thread.currentThread ().interrupt ();
+            throw new InterruptedIOException ( "Interrupted while sending the request body" );
+        }
+    }
+
+    private static void join ( final Thread thread ) throws InterruptedIOException
+    {
+        try
+        {
+            thread.join ();
+        }
+        catch ( final InterruptedException e )
+        {
+            Thread.currentThread ().interrupt ();
+            throw new InterruptedIOException ( "Interrupted while waiting the request body producer" );
+        }
+    }
+
+    /**
+     * Returns the number of buffers of the pool.
+     *
+     * @return the buffers count.
+     */
+    public int getBufferCount ()
+    {
+        return bufferCount;
+    }
+
+    /**
+     * Returns the size of each buffer of the pool.
+     *
+     * @return the size in bytes.
+     */
+    public int getBufferSize ()
+    {
+        return bufferSize;
+    }
+
+    /**
+     * Returns how many buffers are filled and waiting to be sent.
+     *
+     * @return the buffers count.
+     */
+    public int getOccupancy ()
+    {
+        return filled.size ();
+    }
+
+    /**
+     * Returns the highest number of filled buffers waiting to be sent, when
+     * it is the buffer count the producer was faster than the connection.
+     *
+     * @return the buffers count.
+     */
+    public synchronized int getMaxOccupancy ()
+    {
+        return maxOccupancy;
+    }
+
+    /**
+     * Returns how long the producer was blocked waiting for a free buffer.
+     *
+     * @return the time in milliseconds.
+     */
+    public synchronized long getProducerWaitTime ()
+    {
+        return producerWaitTime;
+    }
+
+    private synchronized void updateMetrics ( final long waitTime )
+    {
+        producerWaitTime += waitTime;
+        maxOccupancy = Math.max ( maxOccupancy, filled.size () );
+    }
+
+    /**
+     * Fills the buffers of the pool, blocks while they are all waiting to be
+     * sent.
+     */
+    private final class PipelineOutputStream extends OutputStream
+    {
+        private ByteBuffer current;
+
+        @Override
+        public void write ( final int b ) throws IOException
+        {
+            ensureCurrent ();
+            current.put ( (byte)b );
+            if ( !current.hasRemaining () )
+            {
+                pass ();
+            }
+        }
+
+        @Override
+        public void write ( final byte[] b, int off, int len ) throws IOException
+        {
+            while ( len > 0 )
+            {
+                ensureCurrent ();
+                final int chunk = Math.min ( len, current.remaining () );
+                current.put ( b, off, chunk );
+                off += chunk;
+                len -= chunk;
+                if ( !current.hasRemaining () )
+                {
+                    pass ();
+                }
+            }
+        }
+
+        @Override
+        public void flush ()
+        {
+            // buffers are sent when full, a flush would only send smaller chunks
+        }
+
+        @Override
+        public void close () throws IOException
+        {
+            if ( current != null && current.position () > 0 )
+            {
+                pass ();
+            }
+        }
+
+        private void ensureCurrent () throws IOException
+        {
+            if ( current != null )
+            {
+                return;
+            }
+
+            final long start = System.nanoTime ();
+            try
+            {
+                while ( current == null )
+                {
+                    if ( aborted )
+                    {
+                        throw new IOException ( "The request was aborted" );
+                    }
+                    current = free.poll ( POLL_INTERVAL, TimeUnit.MILLISECONDS );
+                }
+            }
+            catch ( final InterruptedException e )
+            {
+                Thread.currentThread ().interrupt ();
+                throw new InterruptedIOException ( "Interrupted while waiting for a free buffer" );
+            }
+            updateMetrics ( TimeUnit.NANOSECONDS.toMillis ( System.nanoTime () - start ) );
+        }
+
+        private void pass ()
+        {
+            filled.add ( current );
+            current = null;
+            updateMetrics ( 0 );
+        }
+    }
+
+}
@@ -0,0 +1,154 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBH SYSTEMS GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBH SYSTEMS GmbH - initial API and implementation
+ *******************************************************************************/
+package de.dentrassi.pm.jenkins.http;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import hudson.Util;
+
+/**
+ * The checksums of an artifact, computed while its content is sent.
+ * <p>
+ * The checksums are identified by the same keys the server uses to report the
+ * checksums of the stored artifacts.
+ */
+public class Checksums
+{
+    public static final String SHA256 = "sha256";
+
+    public static final String MD5 = "md5";
+
+    /**
+     * The prefix of the artifact properties carrying the checksums.
+     */
+    public static final String PROPERTY_PREFIX = "jenkins:";
+
+    /**
+     * The message digest algorithm of each checksum property.
+     */
+    public static final Map<String, String> PROPERTY_ALGORITHMS;
+
+    static
+    {
+        final Map<String, String> algorithms = new LinkedHashMap<> ();
+        algorithms.put ( PROPERTY_PREFIX + SHA256, "SHA-256" );
+        algorithms.put ( PROPERTY_PREFIX + MD5, "MD5" );
+        PROPERTY_ALGORITHMS = Collections.unmodifiableMap ( algorithms );
+    }
+
+    private final MessageDigest sha256;
+
+    private final MessageDigest md5;
+
+    private long length;
+
+    private Map<String, String> values;
+
+    public Checksums ()
+    {
+        this.sha256 = createDigest ( "SHA-256" );
+        this.md5 = createDigest ( "MD5" );
+    }
+
+    public static MessageDigest createDigest ( final String algorithm )
+    {
+        try
+        {
+            return MessageDigest.getInstance ( algorithm );
+        }
+        catch ( final NoSuchAlgorithmException e )
+        {
+            // every Java platform supports MD5 and SHA-256
+            throw new IllegalStateException ( e );
+        }
+    }
+
+    public synchronized void update ( final byte[] b, final int off, final int len )
+    {
+        sha256.update ( b, off, len );
+        md5.update ( b, off, len );
+        length += len;
+    }
+
+    /**
+     * Discards the bytes digested so far, when the content is sent again.
+     */
+    public synchronized void reset ()
+    {
+        sha256.reset ();
+        md5.reset ();
+        length = 0;
+        values = null;
+    }
+
+    /**
+     * Returns how many bytes were digested.
+     *
+     * @return the number of bytes.
+     */
+    public synchronized long getLength ()
+    {
+        return length;
+    }
+
+    /**
+     * Returns the checksums of all digested bytes, no more bytes can be
+     * digested afterwards.
+     *
+     * @return the hex encoded checksums by their key.
+     */
+    public synchronized Map<String, String> getValues ()
+    {
+        if ( values == null )
+        {
+            final Map<String, String> result = new LinkedHashMap<> ();
+            result.put ( SHA256, Util.toHexString ( sha256.digest () ) );
+            result.put ( MD5, Util.toHexString ( md5.digest () ) );
+            values = Collections.unmodifiableMap ( result );
+        }
+        return values;
+    }
+
+    /**
+     * Returns the first checksum reported by the server which differs from
+     * the computed one.
+     *
+     * @param computed
+     *            the computed checksums by their key.
+     * @param reported
+     *            the checksums reported by the server by their key, may be
+     *            {@code null} if the server does not report them.
+     * @return the key of the differing checksum or {@code null} if all
+     *         reported checksums match.
+     */
+    public static String findMismatch ( final Map<String, String> computed, final Map<String, String> reported )
+    {
+        if ( reported == null )
+        {
+            return null;
+        }
+
+        for ( final Map.Entry<String, String> entry : computed.entrySet () )
+        {
+            final String value = reported.get ( entry.getKey () );
+            if ( value != null && !value.equalsIgnoreCase ( entry.getValue () ) )
+            {
+                return entry.getKey ();
+            }
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,63 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBH SYSTEMS GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBH SYSTEMS GmbH - initial API and implementation
+ *******************************************************************************/
+package de.dentrassi.pm.jenkins.http;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+/**
+ * An entity computing the checksums of its content while it is sent.
+ */
+class DigestingEntity extends HttpEntityWrapper
+{
+    private final Checksums checksums;
+
+    DigestingEntity ( final HttpEntity entity, final Checksums checksums )
+    {
+        super ( entity );
+        this.checksums = checksums;
+    }
+
+    @Override
+    public void writeTo ( final OutputStream out ) throws IOException
+    {
+        // a request sent again digests the content from the start
+        checksums.reset ();
+        super.writeTo ( new FilterOutputStream ( out ) {
+
+            @Override
+            public void write ( final int b ) throws IOException
+            {
+                checksums.update ( new byte[] { (byte)b }, 0, 1 );
+                out.write ( b );
+            }
+
+            @Override
+            public void write ( final byte[] b, final int off, final int len ) throws IOException
+            {
+                checksums.update ( b, off, len );
+                out.write ( b, off, len );
+            }
+
+            @Override
+            public void close () throws IOException
+            {
+                // the connection closes the stream
+                flush ();
+            }
+        } );
+    }
+
+}
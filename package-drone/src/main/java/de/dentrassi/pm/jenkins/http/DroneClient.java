@@ -13,35 +13,106 @@ package de.dentrassi.pm.jenkins.http;
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
-import java.net.Proxy;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
 import org.apache.commons.httpclient.URIException;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpResponse;
-import org.apache.http.auth.AuthScope;
-import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.fluent.Executor;
 import org.apache.http.client.fluent.Request;
 import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.entity.ContentProducer;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.EntityTemplate;
+import org.apache.http.entity.FileEntity;
+import org.apache.http.entity.InputStreamEntity;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
 
 import hudson.ProxyConfiguration;
-import hudson.util.Secret;
 
 /**
  * An HTTP client to comunicate with the package drone server endpoints.
  * <p>
  * This class also take in account also the Jenkins proxy settings.
+ * <p>
+ * All clients of the JVM sending requests to the same server honour its
+ * {@code Retry-After} answers and stop sending requests for a while when it
+ * keeps failing, see {@link ServerHealth}.
  *
  * @author nikolasfalco
  */
 public class DroneClient implements Closeable
 {
+    /**
+     * The header carrying the identifier of the artifact a delta upload is
+     * based on.
+     */
+    public static final String DELTA_BASE_HEADER = "X-Delta-Base";
+
+    public static final String DELTA_CONTENT_TYPE = "application/x-pdrone-delta";
+
+    /**
+     * The prefix of the response headers carrying the checksums the server
+     * computed for an uploaded artifact, followed by the checksum key like
+     * {@link Checksums#SHA256}.
+     */
+    public static final String CHECKSUM_HEADER_PREFIX = "X-Checksum-";
+
+    /**
+     * The header carrying the length of an artifact uploaded in ranges, so the
+     * server can verify it received all of them.
+     */
+    public static final String SPLIT_LENGTH_HEADER = "X-Split-Length";
+
+    /**
+     * The system property to limit the upload bandwidth, in KiB per second,
+     * shared by all uploads running in this JVM.
+     */
+    public static final String BANDWIDTH_LIMIT_PROPERTY = DroneClient.class.getName () + ".bandwidthLimit";
+
+    /**
+     * The system property with the longest time, in seconds, a request waits
+     * for an overloaded or unhealthy server before failing.
+     */
+    public static final String MAX_WAIT_PROPERTY = DroneClient.class.getName () + ".maxWait";
+
+    /**
+     * The system property with the number of consecutive failures of a
+     * server after which no request is sent to it for a while, zero to never
+     * stop sending requests.
+     */
+    public static final String FAILURE_THRESHOLD_PROPERTY = DroneClient.class.getName () + ".failureThreshold";
+
+    /*
+     * How many times a request is sent when the server answers when to send it again.
+     */
+    private static final int MAX_ATTEMPTS = 3;
+
+    /*
+     * How long a probe of an unhealthy server waits to connect and for the answer, in milliseconds.
+     */
+    private static final int PROBE_TIMEOUT = 10000;
+
+    private static final TokenBucket JVM_BANDWIDTH_LIMIT = createJvmBandwidthLimit ();
+
     private String serverURL;
 
     private String password;
@@ -56,20 +127,32 @@ public class DroneClient implements Closeable
 
     private HttpHost proxyHost;
 
+    private TokenBucket bandwidthLimit;
+
+    private volatile AdaptiveLimit adaptiveLimit;
+
+    private ServerHealth health;
+
     public void setServerURL ( @Nonnull String serverURL )
     {
-        this.serverURL = serverURL;
+        if ( !Objects.equals ( this.serverURL, serverURL ) )
+        {
+            this.serverURL = serverURL;
 
-        // execute must be re-initialised
-        disposeExecutor ();
+            // execute must be re-initialised
+            disposeExecutor ();
+        }
     }
 
     public void setCredentials ( @Nonnull String user, @Nullable String password )
     {
-        this.user = user;
-        this.password = password;
+        if ( !Objects.equals ( this.user, user ) || !Objects.equals ( this.password, password ) )
+        {
+            this.user = user;
+            this.password = password;
 
-        disposeExecutor ();
+            disposeExecutor ();
+        }
     }
 
     public void setChannel ( String channel )
@@ -79,20 +162,265 @@ public class DroneClient implements Closeable
 
     public void setProxy ( ProxyConfiguration proxy )
     {
-        this.proxy = proxy;
+        if ( this.proxy != proxy )
+        {
+            this.proxy = proxy;
+
+            disposeExecutor ();
+        }
+    }
+
+    /**
+     * Sets the bandwidth limit of the build step, it can be shared by several
+     * clients uploading at the same time.
+     *
+     * @param bandwidthLimit
+     *            the limit or {@code null} if unlimited.
+     */
+    public void setBandwidthLimit ( @Nullable TokenBucket bandwidthLimit )
+    {
+        this.bandwidthLimit = bandwidthLimit;
+    }
+
+    /**
+     * Sets the limit of the concurrent uploads of this client, which learns
+     * from the latency and the status code of each request.
+     *
+     * @param adaptiveLimit
+     *            the limit or {@code null} if the requests are not recorded.
+     */
+    public void setAdaptiveLimit ( @Nullable AdaptiveLimit adaptiveLimit )
+    {
+        this.adaptiveLimit = adaptiveLimit;
     }
 
     public HttpResponse uploadToChannelV2 ( Map<String, String> properties, String artifact, File file ) throws IOException
+    {
+        return uploadToChannelV2 ( properties, artifact, file, null );
+    }
+
+    /**
+     * Uploads an artifact computing its checksums while it is sent.
+     *
+     * @param properties
+     *            the artifact properties.
+     * @param artifact
+     *            the artifact name.
+     * @param file
+     *            the content of the artifact.
+     * @param checksums
+     *            where compute the checksums of the content, {@code null} to
+     *            not compute them.
+     * @return the server response.
+     * @throws IOException
+     *             if the request fails
+     */
+    public HttpResponse uploadToChannelV2 ( Map<String, String> properties, String artifact, File file, @Nullable Checksums checksums ) throws IOException
     {
         verify ();
         initialiseExecutor ();
 
-        final URI uri;
+        final URI uri = buildV2URI ( "%s/api/v2/upload/channel/%s/%s", properties, artifact );
+
+        final Request httpPut = Request.Put ( uri ).body ( throttle ( digest ( new FileEntity ( file ), checksums ) ) );
+
+        return execute ( httpPut, file.length (), true );
+    }
+
+    /**
+     * Uploads an artifact reading its content from a stream.
+     *
+     * @param properties
+     *            the artifact properties.
+     * @param artifact
+     *            the artifact name.
+     * @param in
+     *            the content of the artifact, it is not closed.
+     * @param length
+     *            the length of the content.
+     * @return the server response.
+     * @throws IOException
+     *             if the request fails
+     */
+    public HttpResponse uploadToChannelV2 ( Map<String, String> properties, String artifact, InputStream in, long length ) throws IOException
+    {
+        return uploadToChannelV2 ( properties, artifact, in, length, null );
+    }
+
+    /**
+     * Uploads an artifact reading its content from a stream and computing its
+     * checksums while it is sent.
+     *
+     * @param properties
+     *            the artifact properties.
+     * @param artifact
+     *            the artifact name.
+     * @param in
+     *            the content of the artifact, it is not closed.
+     * @param length
+     *            the length of the content.
+     * @param checksums
+     *            where compute the checksums of the content, {@code null} to
+     *            not compute them.
+     * @return the server response.
+     * @throws IOException
+     *             if the request fails
+     */
+    public HttpResponse uploadToChannelV2 ( Map<String, String> properties, String artifact, InputStream in, long length, @Nullable Checksums checksums ) throws IOException
+    {
+        verify ();
+        initialiseExecutor ();
+
+        final URI uri = buildV2URI ( "%s/api/v2/upload/channel/%s/%s", properties, artifact );
+
+        final Request httpPut = Request.Put ( uri ).body ( throttle ( digest ( new InputStreamEntity ( in, length ), checksums ) ) );
+
+        return execute ( httpPut, length, false );
+    }
+
+    /**
+     * Uploads an artifact as the difference to a previous version already
+     * stored on the server.
+     * <p>
+     * A server that does not support delta uploads answers with a 404 status
+     * code, a server which cannot apply the delta, for example because the
+     * previous version was deleted, answers with another error status code.
+     * In both cases the artifact must be uploaded with
+     * {@link #uploadToChannelV2(Map, String, File)}.
+     *
+     * @param properties
+     *            the artifact properties.
+     * @param artifact
+     *            the artifact name.
+     * @param baseArtifactId
+     *            the identifier of the previous version on the server.
+     * @param delta
+     *            the file containing the delta.
+     * @return the server response.
+     * @throws IOException
+     *             if the request fails
+     */
+    public HttpResponse uploadDeltaToChannelV2 ( Map<String, String> properties, String artifact, String baseArtifactId, File delta ) throws IOException
+    {
+        verify ();
+        initialiseExecutor ();
+
+        final URI uri = buildV2URI ( "%s/api/v2/upload/delta/channel/%s/%s", properties, artifact );
+
+        final Request httpPut = Request.Put ( uri ) //
+                .addHeader ( DELTA_BASE_HEADER, baseArtifactId ) //
+                .body ( createEntity ( delta, ContentType.create ( DELTA_CONTENT_TYPE ) ) );
+
+        return execute ( httpPut, delta.length (), true );
+    }
+
+    /**
+     * Uploads a range of bytes of an artifact split into several ranges.
+     * <p>
+     * The ranges of the same upload can be sent concurrently and in any order,
+     * the server keeps them until the upload is completed with
+     * {@link #completeSplitUploadV2(Map, String, String, long)}. A server that
+     * does not support split uploads answers with a 404 status code, in that
+     * case the artifact must be uploaded with
+     * {@link #uploadToChannelV2(Map, String, File, Checksums)}.
+     *
+     * @param uploadId
+     *            the identifier of the split upload chosen by the client.
+     * @param artifact
+     *            the artifact name.
+     * @param file
+     *            the content of the artifact.
+     * @param offset
+     *            the position of the first byte of the range.
+     * @param length
+     *            the length of the range.
+     * @param checksums
+     *            where compute the checksums of the range, {@code null} to
+     *            not compute them.
+     * @return the server response.
+     * @throws IOException
+     *             if the request fails
+     */
+    public HttpResponse uploadRangeV2 ( String uploadId, String artifact, File file, long offset, long length, @Nullable Checksums checksums ) throws IOException
+    {
+        verify ();
+        initialiseExecutor ();
+
+        final URI uri = buildSplitURI ( uploadId, Collections.<String, String> emptyMap (), artifact );
+
+        final Request httpPut = Request.Put ( uri ) //
+                .addHeader ( HttpHeaders.CONTENT_RANGE, String.format ( "bytes %d-%d/%d", offset, offset + length - 1, file.length () ) ) //
+                .body ( throttle ( digest ( new FileRangeEntity ( file, offset, length ), checksums ) ) );
+
+        return execute ( httpPut, length, true );
+    }
+
+    /**
+     * Asks the server to reassemble the ranges of a split upload into the
+     * artifact.
+     *
+     * @param properties
+     *            the artifact properties.
+     * @param artifact
+     *            the artifact name.
+     * @param uploadId
+     *            the identifier of the split upload.
+     * @param length
+     *            the length of the artifact.
+     * @return the server response, like the one of a plain upload.
+     * @throws IOException
+     *             if the request fails
+     */
+    public HttpResponse completeSplitUploadV2 ( Map<String, String> properties, String artifact, String uploadId, long length ) throws IOException
+    {
+        verify ();
+        initialiseExecutor ();
+
+        final URI uri = buildSplitURI ( uploadId, properties, artifact );
+
+        final Request httpPost = Request.Post ( uri ).addHeader ( SPLIT_LENGTH_HEADER, String.valueOf ( length ) );
+
+        return execute ( httpPost, -1, true );
+    }
+
+    /**
+     * Asks the server to discard the ranges of a split upload which will not
+     * be completed.
+     *
+     * @param uploadId
+     *            the identifier of the split upload.
+     * @param artifact
+     *            the artifact name.
+     * @return the server response.
+     * @throws IOException
+     *             if the request fails
+     */
+    public HttpResponse abortSplitUploadV2 ( String uploadId, String artifact ) throws IOException
+    {
+        verify ();
+        initialiseExecutor ();
+
+        final URI uri = buildSplitURI ( uploadId, Collections.<String, String> emptyMap (), artifact );
+
+        return execute ( Request.Delete ( uri ), -1, true );
+    }
+
+    private URI buildSplitURI ( final String uploadId, final Map<String, String> properties, final String artifact ) throws IOException
+    {
+        if ( !uploadId.matches ( "[A-Za-z0-9-]+" ) )
+        {
+            throw new IllegalArgumentException ( "Invalid split upload identifier: " + uploadId );
+        }
+        return buildV2URI ( "%s/api/v2/upload/split/" + uploadId + "/channel/%s/%s", properties, artifact );
+    }
+
+    private URI buildV2URI ( final String pathFormat, final Map<String, String> properties, final String artifact ) throws URIException
+    {
         try
         {
             final URIBuilder builder = new URIBuilder ( serverURL );
 
-            builder.setPath ( String.format ( "%s/api/v2/upload/channel/%s/%s", builder.getPath (), channel, artifact ) );
+            builder.setPath ( String.format ( pathFormat, builder.getPath (), channel, artifact ) );
 
             for ( final Map.Entry<String, String> entry : properties.entrySet () )
             {
@@ -100,19 +428,62 @@ public class DroneClient implements Closeable
             }
 
             // builder automatically encode path and query parameters
-            uri = builder.build ();
+            return builder.build ();
         }
         catch ( URISyntaxException e )
         {
             throw new URIException ( e.getReason () );
         }
+    }
+
+    public HttpResponse uploadToChannelV3 ( File file ) throws IOException
+    {
+        verify ();
+        initialiseExecutor ();
 
-        final Request httpPut = Request.Put ( uri ).bodyFile ( file, null );
+        final Request httpPut = Request.Put ( buildV3URI () ).body ( createEntity ( file, null ) );
 
-        return execute ( httpPut );
+        return execute ( httpPut, file.length (), true );
     }
 
-    public HttpResponse uploadToChannelV3 ( File file ) throws IOException
+    /**
+     * Uploads a transfer archive written while sending the request, without
+     * storing it first.
+     *
+     * @param archive
+     *            writes the transfer archive.
+     * @return the server response.
+     * @throws IOException
+     *             if the request fails
+     */
+    public HttpResponse uploadToChannelV3 ( ContentProducer archive ) throws IOException
+    {
+        verify ();
+        initialiseExecutor ();
+
+        final EntityTemplate entity = new EntityTemplate ( archive );
+        entity.setChunked ( true );
+
+        final Request httpPut = Request.Put ( buildV3URI () ).body ( throttle ( entity ) );
+
+        return execute ( httpPut, -1, false );
+    }
+
+    /**
+     * Asks the server to copy artifacts already stored in another channel
+     * into the channel of this client, without transferring their content.
+     * <p>
+     * A server that does not support copies answers with a 404 status code.
+     *
+     * @param sourceChannel
+     *            the channel where the artifacts are stored.
+     * @param artifactIds
+     *            the identifiers of the artifacts to copy.
+     * @return the server response, its payload is an upload result.
+     * @throws IOException
+     *             if the request fails
+     */
+    public HttpResponse copyToChannel ( String sourceChannel, Collection<String> artifactIds ) throws IOException
     {
         verify ();
         initialiseExecutor ();
@@ -121,57 +492,235 @@ public class DroneClient implements Closeable
         try
         {
             final URIBuilder builder = new URIBuilder ( serverURL );
-            builder.setPath ( String.format ( "%s/api/v3/upload/archive/channel/%s", builder.getPath (), channel ) );
+            builder.setPath ( String.format ( "%s/api/v3/copy/channel/%s", builder.getPath (), channel ) );
             uri = builder.build ();
         }
         catch ( URISyntaxException e )
+        {
+            throw new IOException ( "Copy URL syntax error: " + e.getReason (), e );
+        }
+
+        final JsonObject payload = new JsonObject ();
+        payload.addProperty ( "sourceChannel", sourceChannel );
+        final JsonArray artifacts = new JsonArray ();
+        for ( final String id : artifactIds )
+        {
+            artifacts.add ( new JsonPrimitive ( id ) );
+        }
+        payload.add ( "artifacts", artifacts );
+
+        final Request httpPost = Request.Post ( uri ).bodyString ( payload.toString (), ContentType.APPLICATION_JSON );
+
+        // a retried copy would create the artifacts twice
+        return execute ( httpPost, -1, false );
+    }
+
+    private URI buildV3URI () throws IOException
+    {
+        try
+        {
+            final URIBuilder builder = new URIBuilder ( serverURL );
+            builder.setPath ( String.format ( "%s/api/v3/upload/archive/channel/%s", builder.getPath (), channel ) );
+            return builder.build ();
+        }
+        catch ( URISyntaxException e )
         {
             throw new IOException ( "Upload URL syntax error: " + e.getReason (), e );
         }
+    }
 
-        final Request httpPut = Request.Put ( uri ).bodyFile ( file, null );
+    private HttpEntity createEntity ( final File file, final ContentType contentType )
+    {
+        return throttle ( new FileEntity ( file, contentType ) );
+    }
 
-        return execute ( httpPut );
+    private HttpEntity digest ( final HttpEntity entity, final Checksums checksums )
+    {
+        return checksums == null ? entity : new DigestingEntity ( entity, checksums );
     }
 
-    private HttpResponse execute ( final Request request ) throws IOException
+    /**
+     * Returns the checksums the server computed for an uploaded artifact.
+     *
+     * @param response
+     *            the response to the upload.
+     * @return the hex encoded checksums by their key, empty if the server did
+     *         not report them.
+     */
+    public static Map<String, String> getChecksums ( HttpResponse response )
     {
-        return executor.execute ( request.viaProxy ( proxyHost ) ).returnResponse ();
+        final Map<String, String> result = new HashMap<> ();
+        for ( final String key : new String[] { Checksums.SHA256, Checksums.MD5 } )
+        {
+            final Header header = response.getFirstHeader ( CHECKSUM_HEADER_PREFIX + key );
+            if ( header != null )
+            {
+                result.put ( key, header.getValue () );
+            }
+        }
+        return result;
     }
 
-    private void initialiseExecutor () throws IOException
+    private HttpEntity throttle ( final HttpEntity entity )
     {
-        if ( executor != null )
+        final List<TokenBucket> buckets = new ArrayList<> ( 2 );
+        if ( bandwidthLimit != null )
         {
-            return;
+            buckets.add ( bandwidthLimit );
+        }
+        if ( JVM_BANDWIDTH_LIMIT != null )
+        {
+            buckets.add ( JVM_BANDWIDTH_LIMIT );
         }
 
-        executor = createExecutor ();
+        if ( buckets.isEmpty () )
+        {
+            return entity;
+        }
+        return new ThrottledEntity ( entity, Collections.unmodifiableList ( buckets ) );
+    }
 
-        try
+    private static TokenBucket createJvmBandwidthLimit ()
+    {
+        final Long limit = Long.getLong ( BANDWIDTH_LIMIT_PROPERTY );
+        if ( limit == null || limit <= 0 )
         {
-            URI pdroneServer = new URIBuilder ( serverURL ).build ();
-            HttpHost targetHost = new HttpHost ( pdroneServer.getHost (), pdroneServer.getPort (), pdroneServer.getScheme () );
+            return null;
+        }
+        return new TokenBucket ( limit * 1024 );
+    }
 
-            executor = executor.auth ( new AuthScope ( targetHost ), new UsernamePasswordCredentials ( user, password ) ).authPreemptive ( targetHost );
+    /*
+     * Sends the request once the server accepts requests, and again when it answers it is overloaded and when to send
+     * it again, if the request can be repeated. The last answer is returned, also if the server is still overloaded.
+     */
+    private HttpResponse execute ( final Request request, final long sent, final boolean repeatable ) throws IOException
+    {
+        for ( int attempt = 1;; attempt++ )
+        {
+            final HttpResponse response = executeOnce ( request, sent );
+            if ( !repeatable || attempt >= MAX_ATTEMPTS || response.getFirstHeader ( HttpHeaders.RETRY_AFTER ) == null || !ServerHealth.isUnhealthy ( response.getStatusLine ().getStatusCode () ) )
+            {
+                return response;
+            }
+            // the next attempt waits for the time asked by the server, together with all requests to it
+        }
+    }
+
+    /**
+     * Waits until the server accepts requests, probing it if it was
+     * unhealthy.
+     * <p>
+     * Requests wait for the server anyway, waiting before taking a limited
+     * resource like an upload slot leaves it to the uploads of other servers
+     * meanwhile.
+     *
+     * @throws ServerUnavailableException
+     *             if the server does not accept requests within the maximum
+     *             wait.
+     * @throws IOException
+     *             if interrupted while waiting.
+     */
+    public void awaitServer () throws IOException
+    {
+        verify ();
+        initialiseExecutor ();
+
+        awaitServer ( this.health );
+    }
+
+    private void awaitServer ( final ServerHealth health ) throws IOException
+    {
+        while ( health.beforeRequest () )
+        {
+            probe ( health );
+        }
+    }
 
-            if ( proxy != null && !Proxy.NO_PROXY.equals ( proxy.createProxy ( pdroneServer.getHost () ) ) )
+    /*
+     * Sends a short request to the server, any answer which is not an overload shows it is back.
+     */
+    private void probe ( final ServerHealth health )
+    {
+        boolean reported = false;
+        try
+        {
+            final Request request = Request.Head ( serverURL ).connectTimeout ( PROBE_TIMEOUT ).socketTimeout ( PROBE_TIMEOUT );
+            final HttpResponse response = executor.execute ( request.viaProxy ( proxyHost ) ).returnResponse ();
+            health.onResponse ( true, response.getStatusLine ().getStatusCode (), response.getFirstHeader ( HttpHeaders.RETRY_AFTER ) );
+            reported = true;
+        }
+        catch ( final IOException | RuntimeException e )
+        {
+            // reported as failure below
+        }
+        finally
+        {
+            if ( !reported )
             {
-                proxyHost = new HttpHost ( proxy.name, proxy.port );
+                health.onFailure ( true );
+            }
+        }
+    }
 
-                String userName = proxy.getUserName ();
-                if ( userName != null && proxy.getEncryptedPassword () != null )
-                {
-                    String userPassword = Secret.decrypt ( proxy.getEncryptedPassword () ).getPlainText ();
+    /*
+     * The bytes sent tell the adaptive limit how long the request should take, negative if it does not depend on them.
+     */
+    private HttpResponse executeOnce ( final Request request, final long sent ) throws IOException
+    {
+        final ServerHealth health = this.health;
+        final AdaptiveLimit limit = this.adaptiveLimit;
 
-                    executor = executor.auth ( new AuthScope ( proxyHost ), new UsernamePasswordCredentials ( userName, userPassword ) ).authPreemptiveProxy ( proxyHost );
-                }
+        awaitServer ( health );
+        final long start = System.nanoTime ();
+        final HttpResponse response;
+        try
+        {
+            response = executor.execute ( request.viaProxy ( proxyHost ) ).returnResponse ();
+        }
+        catch ( final IOException | RuntimeException e )
+        {
+            health.onFailure ( false );
+            if ( limit != null )
+            {
+                limit.onFailure ( start, System.nanoTime () );
             }
+            throw e;
         }
-        catch ( URISyntaxException e )
+
+        final int statusCode = response.getStatusLine ().getStatusCode ();
+        health.onResponse ( false, statusCode, response.getFirstHeader ( HttpHeaders.RETRY_AFTER ) );
+        if ( limit != null )
+        {
+            limit.onResponse ( start, System.nanoTime (), sent, statusCode );
+        }
+        return response;
+    }
+
+    /*
+     * Concurrent uploads of the same client share the executor and its pooled connections.
+     */
+    private synchronized void initialiseExecutor () throws IOException
+    {
+        if ( executor != null )
         {
-            throw new IOException ( "Server URL syntax error: " + e.getReason (), e );
+            return;
         }
+
+        // the proxy decision and the credentials are resolved once for all clients
+        final ServerConnection connection = ServerConnection.get ( serverURL, user, password, proxy );
+
+        Executor newExecutor = createExecutor ();
+        newExecutor = newExecutor.auth ( connection.getTargetScope (), connection.getTargetCredentials () ).authPreemptive ( connection.getTargetHost () );
+
+        health = ServerHealth.get ( connection.getTargetHost () );
+        proxyHost = connection.getProxyHost ();
+        if ( connection.getProxyCredentials () != null )
+        {
+            newExecutor = newExecutor.auth ( connection.getProxyScope (), connection.getProxyCredentials () ).authPreemptiveProxy ( proxyHost );
+        }
+
+        executor = newExecutor;
     }
 
     protected Executor createExecutor ()
@@ -179,10 +728,14 @@ public class DroneClient implements Closeable
         return Executor.newInstance ();
     }
 
+    /*
+     * The pooled connections are shared by all clients of this JVM and kept alive for the next uploads to the same
+     * server, the pool validates a connection idle for a while before reusing it.
+     */
     @Override
     public void close ()
     {
-        Executor.closeIdleConnections ();
+        disposeExecutor ();
     }
 
     private void verify ()
@@ -205,10 +758,13 @@ public class DroneClient implements Closeable
         }
     }
 
-    private void disposeExecutor ()
+    /*
+     * The connections are pooled by all executors, they are kept for the next one.
+     */
+    private synchronized void disposeExecutor ()
     {
-        close ();
         this.executor = null;
+        this.proxyHost = null;
     }
 
 }
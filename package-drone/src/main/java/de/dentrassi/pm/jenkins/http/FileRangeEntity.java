@@ -0,0 +1,128 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBH SYSTEMS GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBH SYSTEMS GmbH - initial API and implementation
+ *******************************************************************************/
+package de.dentrassi.pm.jenkins.http;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+
+/**
+ * An entity sending a range of bytes of a file.
+ */
+class FileRangeEntity extends AbstractHttpEntity
+{
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File file;
+
+    private final long offset;
+
+    private final long length;
+
+    FileRangeEntity ( final File file, final long offset, final long length )
+    {
+        this.file = file;
+        this.offset = offset;
+        this.length = length;
+        setContentType ( ContentType.APPLICATION_OCTET_STREAM.toString () );
+    }
+
+    @Override
+    public boolean isRepeatable ()
+    {
+        return true;
+    }
+
+    @Override
+    public long getContentLength ()
+    {
+        return length;
+    }
+
+    @Override
+    public InputStream getContent () throws IOException
+    {
+        final RandomAccessFile in = new RandomAccessFile ( file, "r" );
+        try
+        {
+            in.seek ( offset );
+            return new BoundedInputStream ( new RandomAccessFileInputStream ( in ), length );
+        }
+        catch ( final IOException e )
+        {
+            in.close ();
+            throw e;
+        }
+    }
+
+    @Override
+    public void writeTo ( final OutputStream out ) throws IOException
+    {
+        try ( RandomAccessFile in = new RandomAccessFile ( file, "r" ) )
+        {
+            in.seek ( offset );
+
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            long remaining = length;
+            while ( remaining > 0 )
+            {
+                final int read = in.read ( buffer, 0, (int)Math.min ( buffer.length, remaining ) );
+                if ( read < 0 )
+                {
+                    throw new IOException ( String.format ( "%s is shorter than expected, %s bytes missing", file, remaining ) );
+                }
+                out.write ( buffer, 0, read );
+                remaining -= read;
+            }
+        }
+    }
+
+    @Override
+    public boolean isStreaming ()
+    {
+        return false;
+    }
+
+    private static class RandomAccessFileInputStream extends InputStream
+    {
+        private final RandomAccessFile file;
+
+        RandomAccessFileInputStream ( final RandomAccessFile file )
+        {
+            this.file = file;
+        }
+
+        @Override
+        public int read () throws IOException
+        {
+            return file.read ();
+        }
+
+        @Override
+        public int read ( final byte[] b, final int off, final int len ) throws IOException
+        {
+            return file.read ( b, off, len );
+        }
+
+        @Override
+        public void close () throws IOException
+        {
+            file.close ();
+        }
+    }
+
+}
@@ -0,0 +1,192 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBH SYSTEMS GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBH SYSTEMS GmbH - initial API and implementation
+ *******************************************************************************/
+package de.dentrassi.pm.jenkins.http;
+
+import java.io.IOException;
+import java.net.Proxy;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.CheckForNull;
+
+import org.apache.http.HttpHost;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.utils.URIBuilder;
+
+import hudson.ProxyConfiguration;
+import hudson.Util;
+import hudson.util.Secret;
+
+/**
+ * The resolved settings to connect to a server: the target host, the proxy to
+ * use, if any, and the credentials of both.
+ * <p>
+ * Deciding the proxy and decrypting its password is done once for each
+ * combination of server, credentials and proxy configuration, the result is
+ * shared by all clients of this JVM. Uploads of a build, also from different
+ * steps, reuse it instead of resolving it again for every uploader.
+ */
+final class ServerConnection
+{
+    private static final int CACHE_SIZE = 32;
+
+    private static final Map<String, ServerConnection> CACHE = new LinkedHashMap<String, ServerConnection> ( CACHE_SIZE, 0.75f, true ) {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry ( final Map.Entry<String, ServerConnection> eldest )
+        {
+            return size () > CACHE_SIZE;
+        }
+    };
+
+    private final HttpHost targetHost;
+
+    private final AuthScope targetScope;
+
+    private final UsernamePasswordCredentials targetCredentials;
+
+    private final HttpHost proxyHost;
+
+    private final AuthScope proxyScope;
+
+    private final UsernamePasswordCredentials proxyCredentials;
+
+    private ServerConnection ( final HttpHost targetHost, final UsernamePasswordCredentials targetCredentials, final HttpHost proxyHost, final UsernamePasswordCredentials proxyCredentials )
+    {
+        this.targetHost = targetHost;
+        this.targetScope = new AuthScope ( targetHost );
+        this.targetCredentials = targetCredentials;
+        this.proxyHost = proxyHost;
+        this.proxyScope = proxyHost == null ? null : new AuthScope ( proxyHost );
+        this.proxyCredentials = proxyCredentials;
+    }
+
+    /**
+     * Returns the settings to connect to the given server, resolving them only
+     * if not already done.
+     *
+     * @param serverURL
+     *            the URL of the server.
+     * @param user
+     *            the user to authenticate with.
+     * @param password
+     *            the password of the user.
+     * @param proxy
+     *            the Jenkins proxy configuration, may be {@code null}.
+     * @return the resolved settings.
+     * @throws IOException
+     *             if the server URL is not valid
+     */
+    static ServerConnection get ( final String serverURL, final String user, final String password, @CheckForNull final ProxyConfiguration proxy ) throws IOException
+    {
+        final StringBuilder sb = new StringBuilder ();
+        sb.append ( serverURL ).append ( '\n' ).append ( user ).append ( '\n' ).append ( password );
+        if ( proxy != null )
+        {
+            sb.append ( '\n' ).append ( proxy.name ).append ( ':' ).append ( proxy.port );
+            sb.append ( '\n' ).append ( proxy.getUserName () ).append ( '\n' ).append ( proxy.getEncryptedPassword () );
+            sb.append ( '\n' ).append ( proxy.noProxyHost );
+        }
+        // the key holds secrets, only its digest is kept
+        final String key = Util.getDigestOf ( sb.toString () );
+
+        synchronized ( CACHE )
+        {
+            final ServerConnection connection = CACHE.get ( key );
+            if ( connection != null )
+            {
+                return connection;
+            }
+        }
+
+        final ServerConnection connection = resolve ( serverURL, user, password, proxy );
+        synchronized ( CACHE )
+        {
+            CACHE.put ( key, connection );
+        }
+        return connection;
+    }
+
+    private static ServerConnection resolve ( final String serverURL, final String user, final String password, final ProxyConfiguration proxy ) throws IOException
+    {
+        try
+        {
+            final URI pdroneServer = new URIBuilder ( serverURL ).build ();
+            final HttpHost targetHost = new HttpHost ( pdroneServer.getHost (), pdroneServer.getPort (), pdroneServer.getScheme () );
+
+            HttpHost proxyHost = null;
+            UsernamePasswordCredentials proxyCredentials = null;
+            if ( proxy != null && !Proxy.NO_PROXY.equals ( proxy.createProxy ( pdroneServer.getHost () ) ) )
+            {
+                proxyHost = new HttpHost ( proxy.name, proxy.port );
+
+                final String userName = proxy.getUserName ();
+                if ( userName != null && proxy.getEncryptedPassword () != null )
+                {
+                    proxyCredentials = new UsernamePasswordCredentials ( userName, Secret.decrypt ( proxy.getEncryptedPassword () ).getPlainText () );
+                }
+            }
+
+            return new ServerConnection ( targetHost, new UsernamePasswordCredentials ( user, password ), proxyHost, proxyCredentials );
+        }
+        catch ( final URISyntaxException e )
+        {
+            throw new IOException ( "Server URL syntax error: " + e.getReason (), e );
+        }
+    }
+
+    HttpHost getTargetHost ()
+    {
+        return targetHost;
+    }
+
+    AuthScope getTargetScope ()
+    {
+        return targetScope;
+    }
+
+    UsernamePasswordCredentials getTargetCredentials ()
+    {
+        return targetCredentials;
+    }
+
+    /**
+     * Returns the proxy to connect through.
+     *
+     * @return the proxy host or {@code null} if connecting directly.
+     */
+    HttpHost getProxyHost ()
+    {
+        return proxyHost;
+    }
+
+    AuthScope getProxyScope ()
+    {
+        return proxyScope;
+    }
+
+    /**
+     * Returns the credentials of the proxy.
+     *
+     * @return the credentials or {@code null} if the proxy does not need
+     *         authentication.
+     */
+    UsernamePasswordCredentials getProxyCredentials ()
+    {
+        return proxyCredentials;
+    }
+
+}
@@ -0,0 +1,310 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBH SYSTEMS GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBH SYSTEMS GmbH - initial API and implementation
+ *******************************************************************************/
+package de.dentrassi.pm.jenkins.http;
+
+import java.io.InterruptedIOException;
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHost;
+import org.apache.http.client.utils.DateUtils;
+
+/**
+ * The health of a server as seen by all clients of this JVM.
+ * <p>
+ * When the server answers with a {@code Retry-After} header, no request is
+ * sent to it until that time. After several consecutive failures, like
+ * overloaded answers or connections refused, the circuit opens and no request
+ * is sent for a while. Then the server is probed with short requests, one at
+ * a time, until a few of them succeed, so a recovering server is not
+ * stampeded by all waiting uploads at once and the uploads do not wait for a
+ * large upload sent as probe.
+ * <p>
+ * Requests wait for the server to accept them again, but a request which
+ * would wait longer than the maximum wait fails immediately with a
+ * {@link ServerUnavailableException}. The time spent waiting for a running
+ * probe does not count against the maximum wait.
+ */
+class ServerHealth
+{
+    private static final ConcurrentMap<String, ServerHealth> SERVERS = new ConcurrentHashMap<> ();
+
+    private static final long MAX_RETRY_AFTER = TimeUnit.HOURS.toMillis ( 1 );
+
+    private static final int PROBE_SUCCESSES = 3;
+
+    private enum State
+    {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String server;
+
+    private final int failureThreshold;
+
+    private final long minOpenTime;
+
+    private final long maxOpenTime;
+
+    private final long maxWait;
+
+    private State state = State.CLOSED;
+
+    private int failures;
+
+    private int successes;
+
+    private boolean probing;
+
+    private long openTime;
+
+    private long openUntil;
+
+    private long throttledUntil;
+
+    /**
+     * Creates the health of a server.
+     *
+     * @param server
+     *            the server, for messages.
+     * @param failureThreshold
+     *            the consecutive failures opening the circuit, zero or less
+     *            never opens it.
+     * @param minOpenTime
+     *            how long the circuit stays open the first time, in
+     *            milliseconds.
+     * @param maxOpenTime
+     *            how long the circuit stays open at most when probes keep
+     *            failing, in milliseconds.
+     * @param maxWait
+     *            how long a request waits at most for the server, in
+     *            milliseconds.
+     */
+    ServerHealth ( final String server, final int failureThreshold, final long minOpenTime, final long maxOpenTime, final long maxWait )
+    {
+        this.server = server;
+        this.failureThreshold = failureThreshold;
+        this.minOpenTime = minOpenTime;
+        this.maxOpenTime = Math.max ( maxOpenTime, minOpenTime );
+        this.maxWait = Math.max ( maxWait, 0 );
+        this.openTime = minOpenTime;
+    }
+
+    /**
+     * Returns the health of the given server, shared by all clients of this
+     * JVM.
+     */
+    static ServerHealth get ( final HttpHost host )
+    {
+        final String key = host.toURI ();
+        ServerHealth health = SERVERS.get ( key );
+        if ( health == null )
+        {
+            final long maxWait = TimeUnit.SECONDS.toMillis ( Long.getLong ( DroneClient.MAX_WAIT_PROPERTY, 300 ) );
+            final int threshold = Integer.getInteger ( DroneClient.FAILURE_THRESHOLD_PROPERTY, 5 );
+            health = new ServerHealth ( key, threshold, TimeUnit.SECONDS.toMillis ( 10 ), TimeUnit.MINUTES.toMillis ( 5 ), maxWait );
+
+            final ServerHealth existing = SERVERS.putIfAbsent ( key, health );
+            if ( existing != null )
+            {
+                health = existing;
+            }
+        }
+        return health;
+    }
+
+    /**
+     * Waits until a request can be sent to the server.
+     * <p>
+     * When the server must be probed the caller sends a probe request,
+     * reports its outcome in any case and calls this method again.
+     *
+     * @return {@code true} if the caller must probe the server before its
+     *         request, {@code false} if the request can be sent.
+     * @throws ServerUnavailableException
+     *             if the server does not accept requests within the maximum
+     *             wait.
+     * @throws InterruptedIOException
+     *             if interrupted while waiting.
+     */
+    synchronized boolean beforeRequest () throws ServerUnavailableException, InterruptedIOException
+    {
+        long deadline = now () + maxWait;
+        try
+        {
+            while ( true )
+            {
+                final long now = now ();
+                if ( state == State.OPEN && now >= openUntil )
+                {
+                    state = State.HALF_OPEN;
+                    successes = 0;
+                    probing = false;
+                }
+
+                if ( state == State.HALF_OPEN && probing )
+                {
+                    // the probe is a short request, wait for its outcome without counting it
+                    wait ();
+                    deadline += now () - now;
+                    continue;
+                }
+
+                final long readyAt = Math.max ( throttledUntil, state == State.OPEN ? openUntil : 0 );
+                if ( readyAt <= now )
+                {
+                    if ( state == State.HALF_OPEN )
+                    {
+                        probing = true;
+                        return true;
+                    }
+                    return false;
+                }
+                if ( readyAt > deadline )
+                {
+                    throw new ServerUnavailableException ( server, readyAt - now );
+                }
+                wait ( readyAt - now );
+            }
+        }
+        catch ( final InterruptedException e )
+        {
+            Thread.currentThread ().interrupt ();
+            throw new InterruptedIOException ( "Interrupted while waiting for the server " + server );
+        }
+    }
+
+    /**
+     * Records the answer of the server.
+     *
+     * @param probe
+     *            if the request was a probe asked by {@link #beforeRequest()}.
+     * @param statusCode
+     *            the status code of the answer.
+     * @param retryAfter
+     *            the {@code Retry-After} header of the answer, if any.
+     */
+    synchronized void onResponse ( final boolean probe, final int statusCode, final Header retryAfter )
+    {
+        final long now = now ();
+        final long delay = parseRetryAfter ( retryAfter, now );
+        if ( delay > 0 && ( statusCode == 429 || statusCode == 503 ) )
+        {
+            throttledUntil = Math.max ( throttledUntil, now + Math.min ( delay, MAX_RETRY_AFTER ) );
+        }
+
+        if ( isUnhealthy ( statusCode ) )
+        {
+            recordFailure ( probe );
+        }
+        else
+        {
+            recordSuccess ( probe );
+        }
+        notifyAll ();
+    }
+
+    /**
+     * Records a request which failed without answer.
+     *
+     * @param probe
+     *            if the request was a probe asked by {@link #beforeRequest()}.
+     */
+    synchronized void onFailure ( final boolean probe )
+    {
+        recordFailure ( probe );
+        notifyAll ();
+    }
+
+    static boolean isUnhealthy ( final int statusCode )
+    {
+        return statusCode == 429 || statusCode == 502 || statusCode == 503 || statusCode == 504;
+    }
+
+    /**
+     * Returns the delay asked by a {@code Retry-After} header, either in
+     * seconds or as a date.
+     *
+     * @return the delay in milliseconds, a negative value if there is no
+     *         valid header.
+     */
+    static long parseRetryAfter ( final Header header, final long now )
+    {
+        if ( header == null || header.getValue () == null )
+        {
+            return -1;
+        }
+
+        final String value = header.getValue ().trim ();
+        try
+        {
+            return TimeUnit.SECONDS.toMillis ( Long.parseLong ( value ) );
+        }
+        catch ( final NumberFormatException e )
+        {
+            final Date date = DateUtils.parseDate ( value );
+            return date == null ? -1 : date.getTime () - now;
+        }
+    }
+
+    private void recordFailure ( final boolean probe )
+    {
+        failures++;
+        if ( state == State.HALF_OPEN && probe )
+        {
+            // still unhealthy, wait longer before the next probe
+            open ( Math.min ( openTime * 2, maxOpenTime ) );
+        }
+        else if ( state == State.CLOSED && failureThreshold > 0 && failures >= failureThreshold )
+        {
+            open ( minOpenTime );
+        }
+    }
+
+    private void recordSuccess ( final boolean probe )
+    {
+        failures = 0;
+        if ( state == State.HALF_OPEN && probe )
+        {
+            probing = false;
+            if ( ++successes >= PROBE_SUCCESSES )
+            {
+                state = State.CLOSED;
+                openTime = minOpenTime;
+            }
+        }
+    }
+
+    private void open ( final long time )
+    {
+        state = State.OPEN;
+        probing = false;
+        openTime = time;
+        openUntil = now () + time;
+    }
+
+    /**
+     * Returns if the circuit is open or probing the server.
+     */
+    synchronized boolean isOpen ()
+    {
+        return state != State.CLOSED;
+    }
+
+    long now ()
+    {
+        return System.currentTimeMillis ();
+    }
+
+}
@@ -0,0 +1,46 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBH SYSTEMS GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBH SYSTEMS GmbH - initial API and implementation
+ *******************************************************************************/
+package de.dentrassi.pm.jenkins.http;
+
+import java.io.IOException;
+
+/**
+ * Signals a request was not sent because the server is overloaded or
+ * unhealthy, and it does not accept requests again soon enough.
+ */
+public class ServerUnavailableException extends IOException
+{
+    private static final long serialVersionUID = -6372214880476215843L;
+
+    private final long retryAfter;
+
+    public ServerUnavailableException ( final String server, final long retryAfter )
+    {
+        super ( makeMessage ( server, retryAfter ) );
+        this.retryAfter = retryAfter;
+    }
+
+    private static String makeMessage ( final String server, final long retryAfter )
+    {
+        return String.format ( "The server %s is unavailable, no request is sent to it for %s s", server, Math.max ( retryAfter / 1000, 1 ) );
+    }
+
+    /**
+     * Returns when the server accepts requests again.
+     *
+     * @return the time in milliseconds from when the request was refused.
+     */
+    public long getRetryAfter ()
+    {
+        return retryAfter;
+    }
+
+}
@@ -0,0 +1,81 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBH SYSTEMS GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBH SYSTEMS GmbH - initial API and implementation
+ *******************************************************************************/
+package de.dentrassi.pm.jenkins.http;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+/**
+ * An entity sent no faster than all the given buckets allow.
+ */
+class ThrottledEntity extends HttpEntityWrapper
+{
+    /*
+     * Small chunks let concurrent uploads interleave on the same bucket.
+     */
+    private static final int CHUNK_SIZE = 8 * 1024;
+
+    private final List<TokenBucket> buckets;
+
+    ThrottledEntity ( final HttpEntity entity, final List<TokenBucket> buckets )
+    {
+        super ( entity );
+        this.buckets = buckets;
+    }
+
+    @Override
+    public void writeTo ( final OutputStream out ) throws IOException
+    {
+        super.writeTo ( new FilterOutputStream ( out ) {
+
+            @Override
+            public void write ( final int b ) throws IOException
+            {
+                acquire ( 1 );
+                out.write ( b );
+            }
+
+            @Override
+            public void write ( final byte[] b, int off, int len ) throws IOException
+            {
+                while ( len > 0 )
+                {
+                    final int chunk = Math.min ( len, CHUNK_SIZE );
+                    acquire ( chunk );
+                    out.write ( b, off, chunk );
+                    off += chunk;
+                    len -= chunk;
+                }
+            }
+
+            @Override
+            public void close () throws IOException
+            {
+                // the connection closes the stream
+                flush ();
+            }
+        } );
+    }
+
+    private void acquire ( final int bytes ) throws IOException
+    {
+        for ( final TokenBucket bucket : buckets )
+        {
+            bucket.acquire ( bytes );
+        }
+    }
+
+}
@@ -0,0 +1,133 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBH SYSTEMS GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBH SYSTEMS GmbH - initial API and implementation
+ *******************************************************************************/
+package de.dentrassi.pm.jenkins.http;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the rate at which bytes are sent to the server.
+ * <p>
+ * Tokens are refilled at the configured rate up to a small burst. Threads
+ * waiting for tokens are served in arrival order, so concurrent uploads
+ * sharing the same bucket get a fair part of the bandwidth.
+ */
+public class TokenBucket
+{
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos ( 1 );
+
+    private final ReentrantLock lock = new ReentrantLock ( true );
+
+    private final long bytesPerSecond;
+
+    private final long capacity;
+
+    /*
+     * The time refilling an empty bucket, longer idle times are cut to it so the refill does not overflow.
+     */
+    private final long fillTime;
+
+    private long tokens;
+
+    private long lastRefill;
+
+    /**
+     * Creates a bucket with the given rate.
+     *
+     * @param bytesPerSecond
+     *            the allowed bandwidth in bytes per second.
+     */
+    public TokenBucket ( final long bytesPerSecond )
+    {
+        if ( bytesPerSecond <= 0 )
+        {
+            throw new IllegalArgumentException ( "Rate must be positive: " + bytesPerSecond );
+        }
+        this.bytesPerSecond = bytesPerSecond;
+        // allow a burst of a quarter of second to keep the throughput smooth
+        this.capacity = Math.max ( bytesPerSecond / 4, 1 );
+        this.fillTime = capacity * NANOS_PER_SECOND / bytesPerSecond + 1;
+        this.tokens = capacity;
+        this.lastRefill = nanoTime ();
+    }
+
+    /**
+     * Returns the allowed bandwidth.
+     *
+     * @return the rate in bytes per second.
+     */
+    public long getBytesPerSecond ()
+    {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Waits until the given amount of bytes can be sent.
+     *
+     * @param bytes
+     *            the amount of bytes to send.
+     * @throws InterruptedIOException
+     *             if interrupted while waiting.
+     */
+    public void acquire ( final int bytes ) throws InterruptedIOException
+    {
+        try
+        {
+            lock.lockInterruptibly ();
+            try
+            {
+                // the lock is kept while sleeping so that who comes first is served first
+                long missing = bytes;
+                while ( missing > 0 )
+                {
+                    refill ();
+                    final long taken = Math.min ( missing, tokens );
+                    tokens -= taken;
+                    missing -= taken;
+                    if ( missing > 0 )
+                    {
+                        final long wait = Math.min ( missing, capacity ) * NANOS_PER_SECOND / bytesPerSecond;
+                        TimeUnit.NANOSECONDS.sleep ( Math.max ( wait, 1 ) );
+                    }
+                }
+            }
+            finally
+            {
+                lock.unlock ();
+            }
+        }
+        catch ( final InterruptedException e )
+        {
+            Thread.currentThread ().interrupt ();
+            throw new InterruptedIOException ( "Interrupted while waiting for bandwidth" );
+        }
+    }
+
+    private void refill ()
+    {
+        final long now = nanoTime ();
+        final long elapsed = Math.min ( now - lastRefill, fillTime );
+        final long refill = elapsed * bytesPerSecond / NANOS_PER_SECOND;
+        if ( refill > 0 )
+        {
+            tokens = Math.min ( capacity, tokens + refill );
+            // keep the remainder of the elapsed time for the next refill
+            lastRefill = tokens == capacity ? now : lastRefill + refill * NANOS_PER_SECOND / bytesPerSecond;
+        }
+    }
+
+    protected long nanoTime ()
+    {
+        return System.nanoTime ();
+    }
+
+}
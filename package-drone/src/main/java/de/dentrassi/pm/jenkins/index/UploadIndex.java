@@ -0,0 +1,342 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBH SYSTEMS GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBH SYSTEMS GmbH - initial API and implementation
+ *******************************************************************************/
+package de.dentrassi.pm.jenkins.index;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The files uploaded by the previous build of a job, used to skip the files
+ * that did not change since then.
+ * <p>
+ * For each upload name the index keeps size, modification time and MD5 hash
+ * of the file together with the artifact identifiers assigned by each target
+ * channel. A file is unchanged when size and modification time are the same,
+ * or when only the modification time differs but the content hash is the
+ * same.
+ * <p>
+ * The index is stored in columns: all sizes, all modification times, all
+ * hashes and then the strings, so that it is read and written with a few
+ * bulk operations. Only the entries of the files found by the current build
+ * are stored again, the others are dropped.
+ */
+public final class UploadIndex
+{
+    private static final int MAGIC = 0x50444958; // PDIX
+
+    private static final int VERSION = 1;
+
+    private static final int HASH_LENGTH = 16;
+
+    private final File file;
+
+    private final int targets;
+
+    private final Map<String, Integer> previous;
+
+    private final Columns previousColumns;
+
+    private final Columns next;
+
+    private UploadIndex ( final File file, final int targets, final Columns previousColumns )
+    {
+        this.file = file;
+        this.targets = targets;
+        this.previousColumns = previousColumns;
+        this.previous = new HashMap<> ( previousColumns.count * 2 );
+        for ( int i = 0; i < previousColumns.count; i++ )
+        {
+            this.previous.put ( previousColumns.names[i], i );
+        }
+        this.next = new Columns ( targets, previousColumns.count );
+    }
+
+    /**
+     * Loads the index of a job.
+     *
+     * @param file
+     *            the index file, may not exist.
+     * @param targets
+     *            the number of channels the files are uploaded to.
+     * @return the index, empty if the file is missing, broken or was written
+     *         for a different number of channels.
+     */
+    public static UploadIndex load ( final File file, final int targets )
+    {
+        Columns columns = null;
+        if ( file.isFile () )
+        {
+            try ( DataInputStream in = new DataInputStream ( new BufferedInputStream ( new FileInputStream ( file ) ) ) )
+            {
+                columns = Columns.read ( in, targets, file.length () );
+            }
+            catch ( final IOException e )
+            {
+                // a broken index only means uploading everything again
+                columns = null;
+            }
+        }
+        return new UploadIndex ( file, targets, columns == null ? new Columns ( targets, 0 ) : columns );
+    }
+
+    /**
+     * Checks if a file was uploaded unchanged by the previous build, in that
+     * case it is kept in the index.
+     *
+     * @param localFile
+     *            the file in the workspace.
+     * @param name
+     *            the upload name of the file.
+     * @return the artifact identifiers of each channel, {@code null} if the
+     *         file is new or changed.
+     * @throws IOException
+     *             if reading the file fails
+     */
+    public String[] findUnchanged ( final File localFile, final String name ) throws IOException
+    {
+        final Integer index = previous.get ( name );
+        if ( index == null )
+        {
+            return null;
+        }
+
+        final int i = index;
+        final long size = localFile.length ();
+        if ( previousColumns.sizes[i] != size )
+        {
+            return null;
+        }
+
+        final long lastModified = localFile.lastModified ();
+        final byte[] hash = previousColumns.getHash ( i );
+        if ( previousColumns.lastModified[i] != lastModified && !Arrays.equals ( hash, hash ( localFile ) ) )
+        {
+            return null;
+        }
+
+        final String[] ids = previousColumns.getIds ( i );
+        next.add ( name, size, lastModified, hash, ids );
+        return ids;
+    }
+
+    /**
+     * Adds a file uploaded to all channels.
+     *
+     * @param localFile
+     *            the file in the workspace.
+     * @param name
+     *            the upload name of the file.
+     * @param ids
+     *            the artifact identifier assigned by each channel.
+     * @throws IOException
+     *             if reading the file fails
+     */
+    public void add ( final File localFile, final String name, final String[] ids ) throws IOException
+    {
+        if ( ids.length != targets )
+        {
+            throw new IllegalArgumentException ( "Expected " + targets + " artifact identifiers" );
+        }
+        next.add ( name, localFile.length (), localFile.lastModified (), hash ( localFile ), ids );
+    }
+
+    /**
+     * Writes the files kept or added by this build, replacing the previous
+     * index.
+     *
+     * @throws IOException
+     *             if writing the index fails
+     */
+    public void store () throws IOException
+    {
+        final File directory = file.getParentFile ();
+        if ( !directory.isDirectory () && !directory.mkdirs () )
+        {
+            throw new IOException ( "Failed to create directory " + directory );
+        }
+
+        final File temp = new File ( directory, file.getName () + ".tmp" );
+        try ( DataOutputStream out = new DataOutputStream ( new BufferedOutputStream ( new FileOutputStream ( temp ) ) ) )
+        {
+            next.write ( out );
+        }
+
+        if ( file.exists () && !file.delete () || !temp.renameTo ( file ) )
+        {
+            temp.delete ();
+            throw new IOException ( "Failed to store upload index " + file );
+        }
+    }
+
+    private static byte[] hash ( final File file ) throws IOException
+    {
+        final MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance ( "MD5" );
+        }
+        catch ( final NoSuchAlgorithmException e )
+        {
+            // every JVM must support MD5
+            throw new IllegalStateException ( e );
+        }
+
+        try ( InputStream in = new FileInputStream ( file ) )
+        {
+            final byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ( ( read = in.read ( buffer ) ) >= 0 )
+            {
+                digest.update ( buffer, 0, read );
+            }
+        }
+        return digest.digest ();
+    }
+
+    /*
+     * The entries of an index, one array for each field.
+     */
+    private static final class Columns
+    {
+        private final int targets;
+
+        private int count;
+
+        private String[] names;
+
+        private long[] sizes;
+
+        private long[] lastModified;
+
+        private byte[] hashes;
+
+        private String[] ids;
+
+        Columns ( final int targets, final int capacity )
+        {
+            this.targets = targets;
+            final int size = Math.max ( capacity, 16 );
+            this.names = new String[size];
+            this.sizes = new long[size];
+            this.lastModified = new long[size];
+            this.hashes = new byte[size * HASH_LENGTH];
+            this.ids = new String[size * targets];
+        }
+
+        byte[] getHash ( final int i )
+        {
+            return Arrays.copyOfRange ( hashes, i * HASH_LENGTH, ( i + 1 ) * HASH_LENGTH );
+        }
+
+        String[] getIds ( final int i )
+        {
+            return Arrays.copyOfRange ( ids, i * targets, ( i + 1 ) * targets );
+        }
+
+        void add ( final String name, final long size, final long modified, final byte[] hash, final String[] artifactIds )
+        {
+            if ( count == names.length )
+            {
+                final int capacity = count * 2;
+                names = Arrays.copyOf ( names, capacity );
+                sizes = Arrays.copyOf ( sizes, capacity );
+                lastModified = Arrays.copyOf ( lastModified, capacity );
+                hashes = Arrays.copyOf ( hashes, capacity * HASH_LENGTH );
+                ids = Arrays.copyOf ( ids, capacity * targets );
+            }
+
+            names[count] = name;
+            sizes[count] = size;
+            lastModified[count] = modified;
+            System.arraycopy ( hash, 0, hashes, count * HASH_LENGTH, HASH_LENGTH );
+            System.arraycopy ( artifactIds, 0, ids, count * targets, targets );
+            count++;
+        }
+
+        void write ( final DataOutputStream out ) throws IOException
+        {
+            out.writeInt ( MAGIC );
+            out.writeInt ( VERSION );
+            out.writeInt ( targets );
+            out.writeInt ( count );
+            for ( int i = 0; i < count; i++ )
+            {
+                out.writeLong ( sizes[i] );
+            }
+            for ( int i = 0; i < count; i++ )
+            {
+                out.writeLong ( lastModified[i] );
+            }
+            out.write ( hashes, 0, count * HASH_LENGTH );
+            for ( int i = 0; i < count; i++ )
+            {
+                out.writeUTF ( names[i] );
+            }
+            for ( int i = 0; i < count * targets; i++ )
+            {
+                out.writeUTF ( ids[i] );
+            }
+        }
+
+        static Columns read ( final DataInputStream in, final int targets, final long length ) throws IOException
+        {
+            if ( in.readInt () != MAGIC || in.readInt () != VERSION )
+            {
+                throw new IOException ( "Not an upload index" );
+            }
+            if ( in.readInt () != targets )
+            {
+                // the channels of the job have changed
+                return null;
+            }
+
+            final int count = in.readInt ();
+            // each entry takes at least its numbers, its hash and the lengths of its strings
+            if ( count < 0 || (long)count * ( 2 * 8 + HASH_LENGTH + 2 + 2 * targets ) > length )
+            {
+                throw new IOException ( "Invalid count of entries: " + count );
+            }
+            final Columns columns = new Columns ( targets, count );
+            for ( int i = 0; i < count; i++ )
+            {
+                columns.sizes[i] = in.readLong ();
+            }
+            for ( int i = 0; i < count; i++ )
+            {
+                columns.lastModified[i] = in.readLong ();
+            }
+            in.readFully ( columns.hashes, 0, count * HASH_LENGTH );
+            for ( int i = 0; i < count; i++ )
+            {
+                columns.names[i] = in.readUTF ();
+            }
+            for ( int i = 0; i < count * targets; i++ )
+            {
+                columns.ids[i] = in.readUTF ();
+            }
+            columns.count = count;
+            return columns;
+        }
+    }
+
+}
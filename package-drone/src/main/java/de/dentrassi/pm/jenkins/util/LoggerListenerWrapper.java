@@ -10,18 +10,24 @@
  *******************************************************************************/
 package de.dentrassi.pm.jenkins.util;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.PrintWriter;
+import java.nio.charset.Charset;
 
 import hudson.console.ConsoleNote;
 import hudson.model.TaskListener;
+import hudson.util.StreamTaskListener;
 
 // TODO transforms this class to an implementation of logger that delegates to a TaskListener
 public class LoggerListenerWrapper implements TaskListener
 {
     private static final long serialVersionUID = -4032502466191759599L;
 
+    private static final Charset LOG_CHARSET = Charset.forName ( "UTF-8" );
+
     private final TaskListener delegate;
 
     private final boolean debug;
@@ -37,6 +43,45 @@ public class LoggerListenerWrapper implements TaskListener
         this.debug = debug;
     }
 
+    /**
+     * Returns a wrapper that collects the log output in a local buffer and
+     * passes it to this listener in chunks.
+     * <p>
+     * On an agent each line printed to the build listener is a call over the
+     * remoting channel, with this wrapper the number of calls depends on the
+     * amount of logged bytes instead of the number of lines. Call
+     * {@link #flush()} when done to write any remaining output.
+     *
+     * @param bufferSize
+     *            the size of the local buffer in bytes.
+     * @return a buffered listener that writes to this one.
+     */
+    public LoggerListenerWrapper buffered ( int bufferSize )
+    {
+        return new LoggerListenerWrapper ( new StreamTaskListener ( new BufferedOutputStream ( getLogger (), bufferSize ) ), debug );
+    }
+
+    /**
+     * Returns a wrapper with the same debug setting writing to another
+     * stream.
+     *
+     * @param out
+     *            where write the log.
+     * @return the new wrapper.
+     */
+    public LoggerListenerWrapper redirect ( OutputStream out )
+    {
+        return new LoggerListenerWrapper ( new StreamTaskListener ( out, LOG_CHARSET ), debug );
+    }
+
+    /**
+     * Writes out any buffered log output.
+     */
+    public void flush ()
+    {
+        getLogger ().flush ();
+    }
+
     @Override
     public PrintStream getLogger ()
     {
@@ -10,13 +10,17 @@
  *******************************************************************************/
 package org.eclipse.packagedrone.repo.api.transfer;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.zip.ZipEntry;
@@ -24,28 +28,168 @@ import java.util.zip.ZipOutputStream;
 
 import org.apache.commons.io.IOUtils;
 
+import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.reflect.TypeToken;
 
 public class TransferArchiveWriter implements TransferWriterEntryContext
 {
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private static final Gson GSON = new GsonBuilder ().create ();
+
+    private static final Type PROPERTIES_TYPE = new TypeToken<Map<String, String>> () {}.getType ();
+
     private final ZipOutputStream stream;
 
+    /**
+     * Reused to copy every entry of the archive
+     */
+    private final byte[] buffer;
+
+    /**
+     * The message digest algorithm of each checksum property added to the
+     * entries
+     */
+    private Map<String, String> checksumProperties = Collections.emptyMap ();
+
+    private final Map<List<String>, List<Map<String, String>>> checksums = new LinkedHashMap<> ();
+
+    private final EntryContext rootContext = new EntryContext ( Collections.<String> emptyList (), Collections.<String> emptyList () );
+
     public TransferArchiveWriter ( final OutputStream stream )
+    {
+        this ( stream, DEFAULT_BUFFER_SIZE );
+    }
+
+    /**
+     * Create a new writer
+     *
+     * @param stream
+     *            the stream to write the archive to
+     * @param bufferSize
+     *            the size of the buffer used to copy the content of all
+     *            entries, the streams passed to the writer do not need to be
+     *            buffered
+     */
+    public TransferArchiveWriter ( final OutputStream stream, final int bufferSize )
     {
         this.stream = new ZipOutputStream ( stream );
+        this.buffer = new byte[bufferSize];
+    }
+
+    /**
+     * Add the checksums of the content to the properties of every entry
+     * <p>
+     * The checksums are computed while the content is copied into the archive,
+     * the properties of the entry are written after its content.
+     *
+     * @param checksumProperties
+     *            the message digest algorithm of each checksum property
+     */
+    public void setChecksumProperties ( final Map<String, String> checksumProperties )
+    {
+        this.checksumProperties = checksumProperties == null ? Collections.<String, String> emptyMap () : checksumProperties;
+    }
+
+    /**
+     * Get the checksums of the written entries
+     * <p>
+     * Entry names are not unique, the entries are identified by their name
+     * and the names of their parents, the root first. Entries with the same
+     * path are listed in the order they were written.
+     *
+     * @return the checksum properties of the entries by their path
+     */
+    public Map<List<String>, List<Map<String, String>>> getChecksums ()
+    {
+        return Collections.unmodifiableMap ( this.checksums );
+    }
+
+    /**
+     * A context of this archive, which can also create entries with
+     * properties already encoded by
+     * {@link TransferArchiveWriter#encodeProperties(Map)}
+     * <p>
+     * When many entries share the same properties they can be encoded only
+     * once for the whole archive.
+     */
+    public final class EntryContext implements TransferWriterEntryContext
+    {
+        private final List<String> parents;
+
+        private final List<String> path;
+
+        private EntryContext ( final List<String> parents, final List<String> path )
+        {
+            this.parents = parents;
+            this.path = path;
+        }
+
+        @Override
+        public EntryContext createEntry ( final String name, final Map<String, String> properties, final InputStream stream ) throws IOException
+        {
+            return store ( this.parents, this.path, name, encodeProperties ( properties ), stream );
+        }
+
+        /**
+         * Create an entry with already encoded properties
+         *
+         * @param name
+         *            the name of the entry
+         * @param properties
+         *            the encoded properties
+         * @param stream
+         *            the content of the entry
+         * @return the context to create child entries
+         * @throws IOException
+         *             if writing the entry fails
+         */
+        public EntryContext createEntry ( final String name, final byte[] properties, final InputStream stream ) throws IOException
+        {
+            return store ( this.parents, this.path, name, properties, stream );
+        }
+    }
+
+    /**
+     * Get the context creating the entries at the root of the archive
+     *
+     * @return the root context
+     */
+    public EntryContext getRootContext ()
+    {
+        return this.rootContext;
     }
 
     @Override
     public TransferWriterEntryContext createEntry ( final String name, final Map<String, String> properties, final InputStream stream ) throws IOException
     {
-        return store ( Collections.<String> emptyList (), name, properties, stream );
+        return this.rootContext.createEntry ( name, properties, stream );
     }
 
-    private TransferWriterEntryContext store ( final List<String> parents, String name, final Map<String, String> properties, final InputStream stream ) throws IOException
+    /**
+     * Encode the properties of an entry
+     *
+     * @param properties
+     *            the properties, may be {@code null}
+     * @return the properties as UTF-8 JSON
+     * @throws IOException
+     *             if encoding fails
+     */
+    public byte[] encodeProperties ( final Map<String, String> properties ) throws IOException
+    {
+        return writeProperties ( properties ).getBytes ( StandardCharsets.UTF_8 );
+    }
+
+    private EntryContext store ( final List<String> parents, final List<String> parentNames, String name, final byte[] properties, final InputStream stream ) throws IOException
     {
         final List<String> newParents = new ArrayList<String> ( parents.size () );
         newParents.addAll ( parents );
 
+        final List<String> path = new ArrayList<String> ( parentNames.size () + 1 );
+        path.addAll ( parentNames );
+        path.add ( name );
+
         name = name.replace ( File.separatorChar, '/' );
 
         final int idx = name.lastIndexOf ( '/' );
@@ -60,27 +204,99 @@ public class TransferArchiveWriter implements TransferWriterEntryContext
 
         final String basename = makeBaseName ( newParents );
 
-        addEntry ( basename + "/properties.json", new ByteArrayInputStream ( writeProperties ( properties ).getBytes ( "UTF-8" ) ) );
-        addEntry ( basename + "/name", new ByteArrayInputStream ( name.getBytes ( "UTF-8" ) ) );
-        addEntry ( basename + "/content", stream );
-
-        return new TransferWriterEntryContext () {
-
-            @Override
-            public TransferWriterEntryContext createEntry ( final String name, final Map<String, String> properties, final InputStream stream ) throws IOException
+        if ( this.checksumProperties.isEmpty () )
+        {
+            addEntry ( basename + "/properties.json", properties );
+            addEntry ( basename + "/name", name.getBytes ( StandardCharsets.UTF_8 ) );
+            addEntry ( basename + "/content", stream );
+        }
+        else
+        {
+            addEntry ( basename + "/name", name.getBytes ( StandardCharsets.UTF_8 ) );
+            final Map<String, String> entryChecksums = addDigestedEntry ( basename + "/content", stream );
+            List<Map<String, String>> pathChecksums = this.checksums.get ( path );
+            if ( pathChecksums == null )
             {
-                return store ( newParents, name, properties, stream );
+                pathChecksums = new ArrayList<> ( 1 );
+                this.checksums.put ( Collections.unmodifiableList ( path ), pathChecksums );
             }
-        };
+            pathChecksums.add ( entryChecksums );
+            addEntry ( basename + "/properties.json", appendProperties ( properties, entryChecksums ) );
+        }
+
+        return new EntryContext ( newParents, path );
+    }
+
+    private void addEntry ( final String name, final byte[] data ) throws IOException
+    {
+        this.stream.putNextEntry ( new ZipEntry ( name ) );
+        this.stream.write ( data );
+        this.stream.closeEntry ();
     }
 
     private void addEntry ( final String name, final InputStream stream ) throws IOException
     {
         this.stream.putNextEntry ( new ZipEntry ( name ) );
-        IOUtils.copy ( stream, this.stream );
+        IOUtils.copyLarge ( stream, this.stream, this.buffer );
         this.stream.closeEntry ();
     }
 
+    private Map<String, String> addDigestedEntry ( final String name, final InputStream stream ) throws IOException
+    {
+        final List<String> keys = new ArrayList<> ( this.checksumProperties.keySet () );
+        final MessageDigest[] digests = new MessageDigest[keys.size ()];
+        for ( int i = 0; i < digests.length; i++ )
+        {
+            try
+            {
+                digests[i] = MessageDigest.getInstance ( this.checksumProperties.get ( keys.get ( i ) ) );
+            }
+            catch ( final NoSuchAlgorithmException e )
+            {
+                throw new IOException ( e );
+            }
+        }
+
+        this.stream.putNextEntry ( new ZipEntry ( name ) );
+        int len;
+        while ( ( len = stream.read ( this.buffer ) ) >= 0 )
+        {
+            for ( final MessageDigest digest : digests )
+            {
+                digest.update ( this.buffer, 0, len );
+            }
+            this.stream.write ( this.buffer, 0, len );
+        }
+        this.stream.closeEntry ();
+
+        final Map<String, String> result = new LinkedHashMap<> ();
+        for ( int i = 0; i < digests.length; i++ )
+        {
+            final StringBuilder sb = new StringBuilder ();
+            for ( final byte b : digests[i].digest () )
+            {
+                sb.append ( String.format ( "%02x", b & 0xFF ) );
+            }
+            result.put ( keys.get ( i ), sb.toString () );
+        }
+        return result;
+    }
+
+    /*
+     * Adds the additional properties to already encoded ones.
+     */
+    private byte[] appendProperties ( final byte[] properties, final Map<String, String> additional ) throws IOException
+    {
+        final Map<String, String> merged = new LinkedHashMap<> ();
+        final Map<String, String> decoded = GSON.fromJson ( new String ( properties, StandardCharsets.UTF_8 ), PROPERTIES_TYPE );
+        if ( decoded != null )
+        {
+            merged.putAll ( decoded );
+        }
+        merged.putAll ( additional );
+        return encodeProperties ( merged );
+    }
+
     protected String writeProperties ( Map<String, String> properties ) throws IOException
     {
         if ( properties == null )
@@ -88,7 +304,7 @@ public class TransferArchiveWriter implements TransferWriterEntryContext
             properties = Collections.emptyMap ();
         }
 
-        return new GsonBuilder ().create ().toJson ( properties );
+        return GSON.toJson ( properties );
     }
 
     private String makeBaseName ( final List<String> parents )
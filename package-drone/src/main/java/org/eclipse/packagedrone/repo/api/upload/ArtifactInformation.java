@@ -10,6 +10,8 @@
  *******************************************************************************/
 package org.eclipse.packagedrone.repo.api.upload;
 
+import java.util.Map;
+
 public class ArtifactInformation
 {
     private String id;
@@ -24,6 +26,8 @@ public class ArtifactInformation
 
     private long warnings;
 
+    private Map<String, String> checksums;
+
     public String getId ()
     {
         return this.id;
@@ -83,4 +87,20 @@ public class ArtifactInformation
     {
         this.warnings = warnings;
     }
+
+    /**
+     * Get the checksums the server computed for the stored artifact
+     *
+     * @return the hex encoded checksums by algorithm, like {@code sha256}, or
+     *         {@code null} if the server does not report them
+     */
+    public Map<String, String> getChecksums ()
+    {
+        return this.checksums;
+    }
+
+    public void setChecksums ( final Map<String, String> checksums )
+    {
+        this.checksums = checksums;
+    }
 }
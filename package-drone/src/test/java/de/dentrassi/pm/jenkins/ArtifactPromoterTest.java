@@ -0,0 +1,218 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBH SYSTEMS GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBH SYSTEMS GmbH - initial API and implementation
+ *******************************************************************************/
+package de.dentrassi.pm.jenkins;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.assertj.core.api.Assertions;
+import org.eclipse.packagedrone.repo.api.upload.ArtifactInformation;
+import org.eclipse.packagedrone.repo.api.upload.RejectedArtifact;
+import org.eclipse.packagedrone.repo.api.upload.UploadResult;
+import org.hamcrest.CoreMatchers;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import de.dentrassi.pm.jenkins.UploaderResult.ArtifactResult;
+import de.dentrassi.pm.jenkins.util.LoggerListenerWrapper;
+
+/**
+ * Runs the promotion against a local server answering like package drone.
+ */
+public class ArtifactPromoterTest
+{
+    private HttpServer server;
+
+    private final List<JsonObject> requests = Collections.synchronizedList ( new ArrayList<JsonObject> () );
+
+    private final List<String> authorizations = Collections.synchronizedList ( new ArrayList<String> () );
+
+    private int statusCode = 200;
+
+    private int successfulRequests = Integer.MAX_VALUE;
+
+    @Before
+    public void startServer () throws IOException
+    {
+        server = HttpServer.create ( new InetSocketAddress ( "127.0.0.1", 0 ), 0 );
+        server.createContext ( "/api/v3/copy/channel/release", new HttpHandler () {
+            @Override
+            public void handle ( final HttpExchange exchange ) throws IOException
+            {
+                final JsonObject request = new JsonParser ().parse ( new InputStreamReader ( exchange.getRequestBody (), StandardCharsets.UTF_8 ) ).getAsJsonObject ();
+                requests.add ( request );
+                authorizations.add ( exchange.getRequestHeaders ().getFirst ( "Authorization" ) );
+
+                final UploadResult result = new UploadResult ();
+                result.setCreatedArtifacts ( new ArrayList<ArtifactInformation> () );
+                result.setRejectedArtifacts ( new ArrayList<RejectedArtifact> () );
+                for ( final JsonElement id : request.getAsJsonArray ( "artifacts" ) )
+                {
+                    final ArtifactInformation ai = new ArtifactInformation ();
+                    ai.setId ( "copy-of-" + id.getAsString () );
+                    ai.setName ( "name-" + id.getAsString () );
+                    ai.setSize ( 1 );
+                    result.getCreatedArtifacts ().add ( ai );
+                }
+
+                final byte[] payload = new GsonBuilder ().create ().toJson ( result ).getBytes ( StandardCharsets.UTF_8 );
+                exchange.getResponseHeaders ().add ( "Content-Type", "application/json" );
+                if ( requests.size () > successfulRequests )
+                {
+                    exchange.getResponseHeaders ().add ( "Retry-After", "0" );
+                    exchange.sendResponseHeaders ( 503, payload.length );
+                }
+                else
+                {
+                    exchange.sendResponseHeaders ( statusCode, payload.length );
+                }
+                try ( OutputStream out = exchange.getResponseBody () )
+                {
+                    out.write ( payload );
+                }
+            }
+        } );
+        server.start ();
+    }
+
+    @After
+    public void stopServer ()
+    {
+        server.stop ( 0 );
+    }
+
+    @Test
+    public void promote_in_batches () throws Exception
+    {
+        final Map<String, String> artifacts = new LinkedHashMap<> ();
+        for ( int i = 0; i < 250; i++ )
+        {
+            artifacts.put ( "id" + i, "name-id" + i );
+        }
+
+        try ( ArtifactPromoter promoter = new ArtifactPromoter ( getServerData (), null, getListener () ) )
+        {
+            promoter.promote ( "staging", artifacts );
+
+            Assertions.assertThat ( promoter.getPromotedArtifacts () ).hasSize ( 250 );
+            final ArtifactResult first = promoter.getPromotedArtifacts ().iterator ().next ();
+            Assert.assertThat ( first.getId (), CoreMatchers.is ( "copy-of-id0" ) );
+            Assert.assertThat ( first.getName (), CoreMatchers.is ( "name-id0" ) );
+        }
+
+        Assert.assertThat ( requests.size (), CoreMatchers.is ( 3 ) );
+        Assert.assertThat ( requests.get ( 0 ).get ( "sourceChannel" ).getAsString (), CoreMatchers.is ( "staging" ) );
+        Assert.assertThat ( requests.get ( 0 ).getAsJsonArray ( "artifacts" ).size (), CoreMatchers.is ( ArtifactPromoter.BATCH_SIZE ) );
+        Assert.assertThat ( requests.get ( 2 ).getAsJsonArray ( "artifacts" ).size (), CoreMatchers.is ( 50 ) );
+        Assert.assertThat ( requests.get ( 2 ).getAsJsonArray ( "artifacts" ).get ( 49 ).getAsString (), CoreMatchers.is ( "id249" ) );
+        Assertions.assertThat ( authorizations ).doesNotContainNull ();
+    }
+
+    @Test
+    public void server_without_copy_support () throws Exception
+    {
+        try ( ArtifactPromoter promoter = new ArtifactPromoter ( new ServerData ( getServerData ().getServerURL (), "other", "secret", false ), null, getListener () ) )
+        {
+            promoter.promote ( "staging", Collections.singletonMap ( "id", "name" ) );
+            Assert.fail ( "expected a failure" );
+        }
+        catch ( final IOException e )
+        {
+            Assert.assertThat ( e.getMessage (), CoreMatchers.is ( Messages.ArtifactPromoter_copyNotSupported ( getServerData ().getServerURL () ) ) );
+        }
+    }
+
+    @Test
+    public void failure_stops_the_promotion () throws Exception
+    {
+        statusCode = 500;
+
+        final Map<String, String> artifacts = new LinkedHashMap<> ();
+        for ( int i = 0; i < 150; i++ )
+        {
+            artifacts.put ( "id" + i, "name-id" + i );
+        }
+
+        try ( ArtifactPromoter promoter = new ArtifactPromoter ( getServerData (), null, getListener () ) )
+        {
+            promoter.promote ( "staging", artifacts );
+            Assert.fail ( "expected a failure" );
+        }
+        catch ( final IOException e )
+        {
+            Assert.assertThat ( requests.size (), CoreMatchers.is ( 1 ) );
+        }
+    }
+
+    @Test
+    public void failure_keeps_the_promoted_batches () throws Exception
+    {
+        successfulRequests = 1;
+
+        final Map<String, String> artifacts = new LinkedHashMap<> ();
+        for ( int i = 0; i < 150; i++ )
+        {
+            artifacts.put ( "id" + i, "name-id" + i );
+        }
+
+        final ArtifactPromoter promoter = new ArtifactPromoter ( getServerData (), null, getListener () );
+        try
+        {
+            promoter.promote ( "staging", artifacts );
+            Assert.fail ( "expected a failure" );
+        }
+        catch ( final IOException e )
+        {
+            // a copy is not sent again, the server may have made it
+            Assert.assertThat ( requests.size (), CoreMatchers.is ( 2 ) );
+            Assertions.assertThat ( promoter.getPromotedArtifacts () ).hasSize ( ArtifactPromoter.BATCH_SIZE );
+        }
+        finally
+        {
+            promoter.close ();
+        }
+    }
+
+    private ServerData getServerData ()
+    {
+        return new ServerData ( "http://127.0.0.1:" + server.getAddress ().getPort () + "/", "release", "secret", false );
+    }
+
+    private LoggerListenerWrapper getListener ()
+    {
+        final LoggerListenerWrapper listener = mock ( LoggerListenerWrapper.class );
+        when ( listener.getLogger () ).thenReturn ( mock ( PrintStream.class ) );
+        return listener;
+    }
+
+}
@@ -0,0 +1,200 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBH SYSTEMS GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBH SYSTEMS GmbH - initial API and implementation
+ *******************************************************************************/
+package de.dentrassi.pm.jenkins;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.assertj.core.api.Assertions;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import hudson.remoting.Channel;
+import hudson.remoting.LocalChannel;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+public class AsyncUploadFilesTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder ();
+
+    private ExecutorService executor;
+
+    private VirtualChannel channel;
+
+    @Before
+    public void setUp ()
+    {
+        executor = Executors.newSingleThreadExecutor ();
+        channel = new LocalChannel ( executor );
+    }
+
+    @After
+    public void tearDown ()
+    {
+        executor.shutdownNow ();
+    }
+
+    @Test
+    public void returns_before_the_upload_completes () throws Exception
+    {
+        final CountDownLatch release = new CountDownLatch ( 1 );
+        final RecordingCallback callback = new RecordingCallback ();
+
+        AsyncUploadFiles.Handle handle = new AsyncUploadFiles ( new BlockingUpload ( release, null ), callback ).invoke ( folder.getRoot (), channel );
+
+        Assertions.assertThat ( handle ).isNotNull ();
+        Assertions.assertThat ( callback.done.getCount () ).isEqualTo ( 1 );
+
+        release.countDown ();
+        Assertions.assertThat ( callback.done.await ( 10, TimeUnit.SECONDS ) ).isTrue ();
+        Assertions.assertThat ( callback.results ).hasSize ( 1 );
+        Assertions.assertThat ( callback.failure ).isNull ();
+    }
+
+    @Test
+    public void failure_is_reported_through_the_callback () throws Exception
+    {
+        final CountDownLatch release = new CountDownLatch ( 0 );
+        final RecordingCallback callback = new RecordingCallback ();
+
+        new AsyncUploadFiles ( new BlockingUpload ( release, "server down" ), callback ).invoke ( folder.getRoot (), channel );
+
+        Assertions.assertThat ( callback.done.await ( 10, TimeUnit.SECONDS ) ).isTrue ();
+        Assertions.assertThat ( callback.failure ).isInstanceOf ( IOException.class ).hasMessage ( "server down" );
+    }
+
+    @Test
+    public void cancel_interrupts_the_upload () throws Exception
+    {
+        final CountDownLatch release = new CountDownLatch ( 1 );
+        final RecordingCallback callback = new RecordingCallback ();
+
+        AsyncUploadFiles.Handle handle = new AsyncUploadFiles ( new BlockingUpload ( release, null ), callback ).invoke ( folder.getRoot (), channel );
+        // wait the upload is running, a cancel before would skip it
+        Thread.sleep ( 100 );
+        handle.cancel ();
+
+        Assertions.assertThat ( callback.done.await ( 10, TimeUnit.SECONDS ) ).isTrue ();
+        Assertions.assertThat ( callback.failure ).isInstanceOf ( InterruptedException.class );
+    }
+
+    @Test
+    public void closed_channel_fails_the_upload_once () throws Exception
+    {
+        Channel remote = mock ( Channel.class );
+        when ( remote.getName () ).thenReturn ( "agent" );
+        RecordingCallback callback = new RecordingCallback ();
+
+        AsyncUploadFiles.ClosingCallback closing = AsyncUploadFiles.failOnClose ( remote, callback );
+        verify ( remote ).addListener ( closing );
+
+        closing.onClosed ( remote, new IOException ( "connection reset" ) );
+        // a result sent just before the channel closed
+        closing.onUploaded ( Collections.singletonList ( new UploaderResult () ) );
+
+        Assertions.assertThat ( callback.failure ).isInstanceOf ( IOException.class ).hasMessageContaining ( "agent" );
+        Assertions.assertThat ( callback.results ).isNull ();
+        verify ( remote ).removeListener ( closing );
+    }
+
+    @Test
+    public void closing_after_the_results_is_ignored () throws Exception
+    {
+        Channel remote = mock ( Channel.class );
+        RecordingCallback callback = new RecordingCallback ();
+
+        AsyncUploadFiles.ClosingCallback closing = AsyncUploadFiles.failOnClose ( remote, callback );
+        closing.onUploaded ( Collections.singletonList ( new UploaderResult () ) );
+        verify ( remote ).removeListener ( closing );
+
+        closing.onClosed ( remote, null );
+
+        Assertions.assertThat ( callback.results ).hasSize ( 1 );
+        Assertions.assertThat ( callback.failure ).isNull ();
+    }
+
+    @Test
+    public void channel_closed_before_the_start_fails_at_once () throws Exception
+    {
+        Channel remote = mock ( Channel.class );
+        when ( remote.isClosingOrClosed () ).thenReturn ( true );
+        RecordingCallback callback = new RecordingCallback ();
+
+        AsyncUploadFiles.failOnClose ( remote, callback );
+
+        Assertions.assertThat ( callback.failure ).isInstanceOf ( IOException.class );
+    }
+
+    private static class BlockingUpload extends MasterToSlaveFileCallable<UploaderResult>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final transient CountDownLatch release;
+
+        private final String error;
+
+        BlockingUpload ( final CountDownLatch release, final String error )
+        {
+            this.release = release;
+            this.error = error;
+        }
+
+        @Override
+        public UploaderResult invoke ( final File basedir, final VirtualChannel channel ) throws IOException, InterruptedException
+        {
+            release.await ();
+            if ( error != null )
+            {
+                throw new IOException ( error );
+            }
+            return new UploaderResult ();
+        }
+    }
+
+    private static class RecordingCallback implements AsyncUploadFiles.Callback
+    {
+        private final CountDownLatch done = new CountDownLatch ( 1 );
+
+        private volatile List<UploaderResult> results;
+
+        private volatile Throwable failure;
+
+        @Override
+        public void onUploaded ( final List<UploaderResult> results )
+        {
+            this.results = results;
+            done.countDown ();
+        }
+
+        @Override
+        public void onFailure ( final Throwable cause )
+        {
+            this.failure = cause;
+            done.countDown ();
+        }
+    }
+
+}
@@ -0,0 +1,117 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBH SYSTEMS GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBH SYSTEMS GmbH - initial API and implementation
+ *******************************************************************************/
+package de.dentrassi.pm.jenkins;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+
+import org.assertj.core.api.Assertions;
+import org.codehaus.plexus.util.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import hudson.FilePath;
+import hudson.model.Run;
+
+public class DetachedUploadJournalTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder ();
+
+    private DetachedUpload createUpload ( final String runId )
+    {
+        Run<?, ?> run = mock ( Run.class );
+        when ( run.getExternalizableId () ).thenReturn ( runId );
+
+        DroneRecorder recorder = new DroneRecorder ( "http://localhost:8080", "channel", "credentials", "*.jar" );
+        recorder.setDeployKey ( "secret-key" );
+        ServerData serverData = new ServerData ( "http://localhost:8080", "channel", "secret-key", false, "credentials" );
+        return new DetachedUpload ( recorder, run, "*.jar", Arrays.asList ( serverData ), "agent", new FilePath ( new File ( "/tmp/ws" ) ) );
+    }
+
+    @Test
+    public void pending_uploads_are_read_back () throws Exception
+    {
+        File file = new File ( folder.getRoot (), "uploads.log" );
+        DetachedUploadJournal journal = new DetachedUploadJournal ( file );
+
+        DetachedUpload first = createUpload ( "job#1" );
+        DetachedUpload second = createUpload ( "job#2" );
+        journal.added ( first );
+        journal.added ( second );
+        second.addFailure ();
+        journal.updated ( second );
+        journal.removed ( first );
+
+        List<DetachedUpload> uploads = new DetachedUploadJournal ( file ).load ();
+
+        Assertions.assertThat ( uploads ).hasSize ( 1 );
+        Assertions.assertThat ( uploads.get ( 0 ).getId () ).isEqualTo ( second.getId () );
+        Assertions.assertThat ( uploads.get ( 0 ).getRunId () ).isEqualTo ( "job#2" );
+        Assertions.assertThat ( uploads.get ( 0 ).getNodeName () ).isEqualTo ( "agent" );
+        Assertions.assertThat ( uploads.get ( 0 ).getFailures () ).isEqualTo ( 1 );
+    }
+
+    @Test
+    public void secrets_are_not_stored () throws Exception
+    {
+        File file = new File ( folder.getRoot (), "uploads.log" );
+        new DetachedUploadJournal ( file ).added ( createUpload ( "job#1" ) );
+
+        Assertions.assertThat ( FileUtils.fileRead ( file, "UTF-8" ) ).contains ( "credentials" ).doesNotContain ( "secret-key" );
+    }
+
+    @Test
+    public void damaged_tail_is_ignored () throws Exception
+    {
+        File file = new File ( folder.getRoot (), "uploads.log" );
+        DetachedUploadJournal journal = new DetachedUploadJournal ( file );
+        DetachedUpload upload = createUpload ( "job#1" );
+        journal.added ( upload );
+        append ( file, "{\"op\":\"remove\",\"id\":\"" );
+
+        List<DetachedUpload> uploads = new DetachedUploadJournal ( file ).load ();
+
+        Assertions.assertThat ( uploads ).hasSize ( 1 );
+        // compacted without the damaged line
+        Assertions.assertThat ( FileUtils.fileRead ( file, "UTF-8" ).split ( "\n" ) ).hasSize ( 1 );
+    }
+
+    @Test
+    public void journal_is_deleted_when_nothing_is_pending () throws Exception
+    {
+        File file = new File ( folder.getRoot (), "uploads.log" );
+        DetachedUploadJournal journal = new DetachedUploadJournal ( file );
+        DetachedUpload upload = createUpload ( "job#1" );
+        journal.added ( upload );
+        journal.removed ( upload );
+
+        Assertions.assertThat ( journal.load () ).isEmpty ();
+        Assertions.assertThat ( file ).doesNotExist ();
+    }
+
+    private static void append ( final File file, final String text ) throws IOException
+    {
+        try ( FileOutputStream out = new FileOutputStream ( file, true ) )
+        {
+            out.write ( text.getBytes ( Charset.forName ( "UTF-8" ) ) );
+        }
+    }
+
+}
@@ -0,0 +1,313 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBH SYSTEMS GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBH SYSTEMS GmbH - initial API and implementation
+ *******************************************************************************/
+package de.dentrassi.pm.jenkins;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.util.StreamTaskListener;
+
+public class DetachedUploadQueueTest
+{
+    /*
+     * Records the results instead of adding them to the build.
+     */
+    public static class RecordingRecorder extends DroneRecorder
+    {
+        final transient List<List<String>> recorded = new ArrayList<> ();
+
+        public RecordingRecorder ()
+        {
+            super ( "http://localhost:8080", "channel", "credentials", "*.jar" );
+        }
+
+        @Override
+        void processDetachedResults ( final Run<?, ?> run, final TaskListener taskListener, final String artifacts, final List<ServerData> serverDataList, final List<UploaderResult> results )
+        {
+            final List<String> channels = new ArrayList<> ();
+            for ( final ServerData serverData : serverDataList )
+            {
+                channels.add ( serverData.getChannel () );
+            }
+            recorded.add ( channels );
+        }
+    }
+
+    /*
+     * Records the attempts instead of running them, with the nodes online as set by the test.
+     */
+    private static class TestQueue extends DetachedUploadQueue
+    {
+        final List<String> started = new ArrayList<> ();
+
+        final List<Runnable> scheduled = new ArrayList<> ();
+
+        final Set<String> online = new HashSet<> ();
+
+        TestQueue ( final DetachedUploadJournal journal )
+        {
+            super ( journal );
+        }
+
+        @Override
+        void start ( final DetachedUpload upload, final int attempt )
+        {
+            started.add ( upload.getRunId () + "@" + attempt );
+        }
+
+        @Override
+        void schedule ( final Runnable task, final long delay )
+        {
+            scheduled.add ( task );
+        }
+
+        @Override
+        VirtualChannel getChannel ( final DetachedUpload upload )
+        {
+            return online.contains ( upload.getNodeName () ) ? mock ( VirtualChannel.class ) : null;
+        }
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder ();
+
+    private File journalFile;
+
+    private TestQueue queue;
+
+    private RecordingRecorder recorder;
+
+    private Run<?, ?> run;
+
+    @Before
+    public void setup ()
+    {
+        journalFile = new File ( folder.getRoot (), "uploads.log" );
+        queue = new TestQueue ( new DetachedUploadJournal ( journalFile ) );
+        queue.online.add ( "agent" );
+        recorder = new RecordingRecorder ();
+        run = mock ( Run.class );
+        when ( run.getExternalizableId () ).thenReturn ( "job#1" );
+    }
+
+    private DetachedUpload createUpload ( final String runId, final String... channels )
+    {
+        when ( run.getExternalizableId () ).thenReturn ( runId );
+        return new DetachedUpload ( recorder, run, "*.jar", toServerData ( channels ), "agent", new FilePath ( new File ( "/tmp/ws" ) ) );
+    }
+
+    private DetachedUpload createArchivedUpload ( final String runId, final String... channels )
+    {
+        when ( run.getExternalizableId () ).thenReturn ( runId );
+        return new DetachedUpload ( recorder, run, "*.jar", toServerData ( channels ) );
+    }
+
+    private static List<ServerData> toServerData ( final String... channels )
+    {
+        final List<ServerData> result = new ArrayList<> ();
+        for ( final String channel : channels )
+        {
+            result.add ( new ServerData ( "http://localhost:8080", channel, "key", false, "credentials" ) );
+        }
+        return result;
+    }
+
+    private static UploaderResult result ( final boolean failed )
+    {
+        final UploaderResult result = new UploaderResult ();
+        result.setFailed ( failed );
+        return result;
+    }
+
+    private static StreamTaskListener log ()
+    {
+        return new StreamTaskListener ( new ByteArrayOutputStream () );
+    }
+
+    private static Computer computer ( final String name )
+    {
+        final Computer computer = mock ( Computer.class );
+        when ( computer.getName () ).thenReturn ( name );
+        return computer;
+    }
+
+    @Test
+    public void dispatch_starts_at_most_the_running_limit () throws Exception
+    {
+        final List<DetachedUpload> uploads = new ArrayList<> ();
+        for ( int i = 0; i <= DetachedUploadQueue.MAX_RUNNING; i++ )
+        {
+            final DetachedUpload upload = createArchivedUpload ( "job#" + i, "channel" );
+            uploads.add ( upload );
+            queue.submit ( upload );
+        }
+
+        Assertions.assertThat ( queue.started ).hasSize ( DetachedUploadQueue.MAX_RUNNING ).doesNotContain ( "job#" + DetachedUploadQueue.MAX_RUNNING + "@1" );
+        Assertions.assertThat ( queue.getDepth () ).isEqualTo ( DetachedUploadQueue.MAX_RUNNING + 1 );
+
+        // a completed upload makes room for the next one
+        queue.completed ( uploads.get ( 0 ), 1, run, log (), Arrays.asList ( result ( false ) ) );
+
+        Assertions.assertThat ( queue.started ).contains ( "job#" + DetachedUploadQueue.MAX_RUNNING + "@1" );
+        Assertions.assertThat ( queue.getDepth () ).isEqualTo ( DetachedUploadQueue.MAX_RUNNING );
+        Assertions.assertThat ( new DetachedUploadJournal ( journalFile ).load () ).hasSize ( DetachedUploadQueue.MAX_RUNNING );
+    }
+
+    @Test
+    public void uploads_of_an_offline_node_wait_for_it () throws Exception
+    {
+        queue.online.clear ();
+        final DetachedUpload upload = createUpload ( "job#1", "channel" );
+        queue.submit ( upload );
+
+        Assertions.assertThat ( queue.started ).isEmpty ();
+
+        queue.online.add ( "agent" );
+        queue.onOnline ( computer ( "agent" ), log () );
+
+        Assertions.assertThat ( queue.started ).containsExactly ( "job#1@1" );
+    }
+
+    @Test
+    public void failed_channels_are_retried_after_a_delay () throws Exception
+    {
+        final DetachedUpload upload = createArchivedUpload ( "job#1", "main", "mirror" );
+        queue.submit ( upload );
+
+        queue.completed ( upload, 1, run, log (), Arrays.asList ( result ( false ), result ( true ) ) );
+
+        Assertions.assertThat ( recorder.recorded ).containsExactly ( Arrays.asList ( "main" ) );
+        Assertions.assertThat ( upload.getFailures () ).isEqualTo ( 1 );
+        Assertions.assertThat ( queue.started ).containsExactly ( "job#1@1" );
+        Assertions.assertThat ( queue.scheduled ).hasSize ( 1 );
+        Assertions.assertThat ( queue.getDepth () ).isEqualTo ( 1 );
+
+        queue.scheduled.get ( 0 ).run ();
+        Assertions.assertThat ( queue.started ).containsExactly ( "job#1@1", "job#1@2" );
+
+        // only the remaining channel is reported by the next attempt
+        queue.completed ( upload, 2, run, log (), Arrays.asList ( result ( false ) ) );
+
+        Assertions.assertThat ( recorder.recorded ).containsExactly ( Arrays.asList ( "main" ), Arrays.asList ( "mirror" ) );
+        Assertions.assertThat ( queue.getDepth () ).isZero ();
+        Assertions.assertThat ( journalFile ).doesNotExist ();
+    }
+
+    @Test
+    public void upload_is_given_up_after_the_last_failure () throws Exception
+    {
+        final DetachedUpload upload = createArchivedUpload ( "job#1", "main" );
+        queue.submit ( upload );
+
+        for ( int attempt = 1; attempt < DetachedUploadQueue.MAX_FAILURES; attempt++ )
+        {
+            queue.failed ( upload, attempt, log (), new IOException ( "server down" ) );
+            queue.scheduled.get ( attempt - 1 ).run ();
+        }
+        queue.failed ( upload, DetachedUploadQueue.MAX_FAILURES, log (), new IOException ( "server down" ) );
+
+        Assertions.assertThat ( queue.started ).hasSize ( DetachedUploadQueue.MAX_FAILURES );
+        Assertions.assertThat ( queue.scheduled ).hasSize ( DetachedUploadQueue.MAX_FAILURES - 1 );
+        Assertions.assertThat ( queue.getDepth () ).isZero ();
+    }
+
+    @Test
+    public void lost_node_is_not_counted_as_failure () throws Exception
+    {
+        final DetachedUpload upload = createUpload ( "job#1", "channel" );
+        queue.submit ( upload );
+
+        queue.online.clear ();
+        queue.failed ( upload, 1, log (), new IOException ( "channel closed" ) );
+
+        Assertions.assertThat ( upload.getFailures () ).isZero ();
+        Assertions.assertThat ( queue.scheduled ).isEmpty ();
+        Assertions.assertThat ( queue.getDepth () ).isEqualTo ( 1 );
+
+        queue.online.add ( "agent" );
+        queue.onOnline ( computer ( "agent" ), log () );
+
+        // the attempt lost with the node is skipped
+        Assertions.assertThat ( queue.started ).containsExactly ( "job#1@1", "job#1@3" );
+    }
+
+    @Test
+    public void late_callback_after_the_node_went_offline_is_ignored () throws Exception
+    {
+        final DetachedUpload upload = createUpload ( "job#1", "channel" );
+        queue.submit ( upload );
+
+        queue.online.clear ();
+        queue.onOffline ( computer ( "agent" ), null );
+
+        // the node reported before the disconnection reached the master
+        queue.completed ( upload, 1, run, log (), Arrays.asList ( result ( false ) ) );
+        queue.failed ( upload, 1, log (), new IOException ( "late" ) );
+
+        Assertions.assertThat ( recorder.recorded ).isEmpty ();
+        Assertions.assertThat ( upload.getFailures () ).isZero ();
+        Assertions.assertThat ( queue.getDepth () ).isEqualTo ( 1 );
+        Assertions.assertThat ( new DetachedUploadJournal ( journalFile ).load () ).hasSize ( 1 );
+
+        queue.online.add ( "agent" );
+        queue.onOnline ( computer ( "agent" ), log () );
+        Assertions.assertThat ( queue.started ).containsExactly ( "job#1@1", "job#1@3" );
+    }
+
+    @Test
+    public void complete_keeps_only_the_failed_channels () throws Exception
+    {
+        final DetachedUpload upload = createUpload ( "job#1", "main", "mirror", "backup" );
+
+        Assertions.assertThat ( upload.complete ( run, log (), Arrays.asList ( result ( true ), result ( false ), result ( true ) ), false ) ).isFalse ();
+        Assertions.assertThat ( recorder.recorded ).containsExactly ( Arrays.asList ( "mirror" ) );
+
+        // the next attempt reports the remaining channels in order
+        Assertions.assertThat ( upload.complete ( run, log (), Arrays.asList ( result ( false ), result ( true ) ), false ) ).isFalse ();
+        Assertions.assertThat ( recorder.recorded ).containsExactly ( Arrays.asList ( "mirror" ), Arrays.asList ( "main" ) );
+
+        // the last attempt records the failed channels as well
+        Assertions.assertThat ( upload.complete ( run, log (), Arrays.asList ( result ( true ) ), true ) ).isTrue ();
+        Assertions.assertThat ( recorder.recorded ).containsExactly ( Arrays.asList ( "mirror" ), Arrays.asList ( "main" ), Arrays.asList ( "backup" ) );
+    }
+
+    @Test
+    public void each_upload_gets_its_own_copy () throws Exception
+    {
+        final DetachedUpload first = createUpload ( "job#1", "channel" );
+        final DetachedUpload second = createUpload ( "job#1", "channel" );
+
+        final FilePath staging = first.getStaging ( null );
+        Assertions.assertThat ( staging.getParent ().getRemote () ).isEqualTo ( new File ( "/tmp/ws@tmp" ).getPath () );
+        Assertions.assertThat ( staging.getRemote () ).isNotEqualTo ( second.getStaging ( null ).getRemote () );
+    }
+
+}
@@ -0,0 +1,111 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBH SYSTEMS GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBH SYSTEMS GmbH - initial API and implementation
+ *******************************************************************************/
+package de.dentrassi.pm.jenkins;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.assertj.core.api.Assertions;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.dentrassi.pm.jenkins.UploaderResult.ArtifactResult;
+import de.dentrassi.pm.jenkins.index.UploadIndex;
+import de.dentrassi.pm.jenkins.util.LoggerListenerWrapper;
+import hudson.util.StreamTaskListener;
+
+public class DroneChildArtifactsTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder ();
+
+    @Test
+    public void children_are_found_by_name_of_the_parent () throws Exception
+    {
+        Map<String, String> files = new LinkedHashMap<> ();
+        files.put ( "jar", "lib/foo.jar" );
+        files.put ( "asc", "lib/foo.jar.asc" );
+        files.put ( "sources", "lib/foo-sources.jar" );
+        files.put ( "other", "lib/bar.txt" );
+
+        Map<String, String> parents = DroneChildArtifacts.findParents ( Collections.singletonList ( new DroneChildArtifacts ( "**/*.jar", "{file}.asc, {base}-sources.jar, {file}.sha1" ) ), files );
+
+        Assertions.assertThat ( parents ).hasSize ( 2 ).containsEntry ( "asc", "jar" ).containsEntry ( "sources", "jar" );
+    }
+
+    @Test
+    public void a_file_is_never_child_of_its_descendants () throws Exception
+    {
+        Map<String, String> files = new LinkedHashMap<> ();
+        files.put ( "a", "a.txt" );
+        files.put ( "b", "b.txt" );
+
+        Map<String, String> parents = DroneChildArtifacts.findParents ( Arrays.asList ( new DroneChildArtifacts ( "a.txt", "b.txt" ), new DroneChildArtifacts ( "b.txt", "a.txt" ) ), files );
+
+        Assertions.assertThat ( parents ).hasSize ( 1 ).containsEntry ( "b", "a" );
+    }
+
+    @Test
+    public void parent_and_children_are_skipped_together () throws Exception
+    {
+        File jar1 = newFile ( "a.jar", "jar 1" );
+        File asc1 = newFile ( "a.jar.asc", "signature 1" );
+        File jar2 = newFile ( "b.jar", "jar 2" );
+        File asc2 = newFile ( "b.jar.asc", "signature 2" );
+        File jar3 = newFile ( "c.jar", "jar 3" );
+        File asc3 = newFile ( "c.jar.asc", "signature 3" );
+
+        Map<File, String> files = new LinkedHashMap<> ();
+        files.put ( jar1, "a.jar" );
+        files.put ( asc1, "a.jar.asc" );
+        files.put ( jar2, "b.jar" );
+        files.put ( asc2, "b.jar.asc" );
+        files.put ( jar3, "c.jar" );
+        files.put ( asc3, "c.jar.asc" );
+
+        File indexFile = new File ( folder.getRoot (), "index.idx" );
+        UploadIndex index = UploadIndex.load ( indexFile, 1 );
+        for ( Map.Entry<File, String> entry : files.entrySet () )
+        {
+            index.add ( entry.getKey (), entry.getValue (), new String[] { "id-" + entry.getValue () } );
+        }
+        index.store ();
+
+        // a changed child of an unchanged parent, and an unchanged child of a changed parent
+        FileUtils.writeStringToFile ( asc1, "signature 1 changed", "UTF-8" );
+        FileUtils.writeStringToFile ( jar2, "jar 2 changed", "UTF-8" );
+
+        Map<File, File> parents = DroneChildArtifacts.findParents ( Collections.singletonList ( new DroneChildArtifacts ( "*.jar", "{file}.asc" ) ), files );
+        Set<ArtifactResult> reused = new LinkedHashSet<> ();
+        List<Set<ArtifactResult>> reusedList = Collections.singletonList ( reused );
+        Map<File, String> changed = UnchangedFiles.skipUnchanged ( UploadIndex.load ( indexFile, 1 ), files, parents, reusedList, new LoggerListenerWrapper ( new StreamTaskListener ( new ByteArrayOutputStream () ) ) );
+
+        Assertions.assertThat ( changed ).containsOnlyKeys ( jar1, asc1, jar2, asc2 );
+        Assertions.assertThat ( reused ).extracting ( "name" ).containsExactly ( "c.jar", "c.jar.asc" );
+    }
+
+    private File newFile ( final String name, final String content ) throws Exception
+    {
+        File file = new File ( folder.getRoot (), name );
+        FileUtils.writeStringToFile ( file, content, "UTF-8" );
+        return file;
+    }
+
+}
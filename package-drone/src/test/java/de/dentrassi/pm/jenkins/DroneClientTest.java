@@ -18,6 +18,7 @@ import static org.mockito.Mockito.when;
 import java.io.File;
 import java.net.URI;
 import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
@@ -229,6 +230,37 @@ public class DroneClientTest
         }
     }
 
+    @Test
+    public void same_settings_reuse_the_executor () throws Exception
+    {
+        final Executor executor = mockExecutor ();
+        final AtomicInteger created = new AtomicInteger ();
+
+        try ( DroneClient client = new DroneClient () {
+            @Override
+            protected Executor createExecutor ()
+            {
+                created.incrementAndGet ();
+                return executor;
+            }
+        } )
+        {
+            for ( int i = 0; i < 3; i++ )
+            {
+                // like an uploader setting up the client for every upload
+                client.setServerURL ( "http://www.pdrone.org" );
+                client.setChannel ( "channel" );
+                client.setCredentials ( "user", "secret" );
+                client.uploadToChannelV3 ( folder.newFile () );
+            }
+            Assert.assertThat ( created.get (), CoreMatchers.is ( 1 ) );
+
+            client.setCredentials ( "user", "other" );
+            client.uploadToChannelV3 ( folder.newFile () );
+            Assert.assertThat ( created.get (), CoreMatchers.is ( 2 ) );
+        }
+    }
+
     private Executor mockExecutor () throws Exception
     {
         final Executor executor = mock ( MockExecutor.class );
@@ -0,0 +1,114 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBH SYSTEMS GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBH SYSTEMS GmbH - initial API and implementation
+ *******************************************************************************/
+package de.dentrassi.pm.jenkins;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.jenkinsci.plugins.plaincredentials.impl.StringCredentialsImpl;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import com.cloudbees.plugins.credentials.Credentials;
+import com.cloudbees.plugins.credentials.CredentialsScope;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.cloudbees.plugins.credentials.domains.Domain;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import hudson.util.Secret;
+
+public class DroneUploadStepPipelineTest
+{
+    @Rule
+    public JenkinsRule r = new JenkinsRule ();
+
+    private HttpServer server;
+
+    private final List<String> uploads = new CopyOnWriteArrayList<> ();
+
+    @Before
+    public void setup () throws IOException
+    {
+        Credentials credentials = new StringCredentialsImpl ( CredentialsScope.GLOBAL, "secret", null, Secret.fromString ( "password" ) );
+        Map<Domain, List<Credentials>> credentialsMap = new HashMap<> ();
+        credentialsMap.put ( Domain.global (), Arrays.asList ( credentials ) );
+        SystemCredentialsProvider.getInstance ().setDomainCredentialsMap ( credentialsMap );
+
+        server = HttpServer.create ( new InetSocketAddress ( "127.0.0.1", 0 ), 0 );
+        server.createContext ( "/api/v2/upload/channel/", new HttpHandler () {
+            @Override
+            public void handle ( HttpExchange exchange ) throws IOException
+            {
+                // /api/v2/upload/channel/<channel>/<artifact>
+                String artifact = exchange.getRequestURI ().getPath ().split ( "/" )[6];
+                uploads.add ( artifact );
+                try ( InputStream in = exchange.getRequestBody () )
+                {
+                    while ( in.read () >= 0 )
+                    {
+                        // drain the artifact
+                    }
+                }
+                byte[] data = ( "id-" + artifact ).getBytes ( StandardCharsets.UTF_8 );
+                exchange.sendResponseHeaders ( 200, data.length );
+                try ( OutputStream out = exchange.getResponseBody () )
+                {
+                    out.write ( data );
+                }
+            }
+        } );
+        server.start ();
+    }
+
+    @After
+    public void stopServer ()
+    {
+        server.stop ( 0 );
+    }
+
+    @Test
+    public void step_returns_the_uploaded_artifacts () throws Exception
+    {
+        String serverUrl = "http://127.0.0.1:" + server.getAddress ().getPort ();
+
+        WorkflowJob job = r.jenkins.createProject ( WorkflowJob.class, "pipeline" );
+        job.setDefinition ( new CpsFlowDefinition ( "node {\n" //
+                + "  writeFile file: 'file.jar', text: 'content'\n" //
+                + "  def result = pdroneUpload serverUrl: '" + serverUrl + "', channel: 'channel1', credentialsId: 'secret', artifacts: '*.jar'\n" //
+                + "  echo \"channel=${result.channel} failed=${result.failed} accepted=${result.accepted} size=${result.size}\"\n" //
+                + "  echo \"artifact=${result.artifacts[0].name} id=${result.artifacts[0].id}\"\n" //
+                + "}", true ) );
+
+        WorkflowRun run = r.assertBuildStatusSuccess ( job.scheduleBuild2 ( 0 ) );
+
+        Assert.assertEquals ( Arrays.asList ( "file.jar" ), uploads );
+        r.assertLogContains ( "channel=channel1 failed=false accepted=1 size=7", run );
+        r.assertLogContains ( "artifact=file.jar id=id-file.jar", run );
+    }
+
+}
@@ -0,0 +1,82 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBH SYSTEMS GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBH SYSTEMS GmbH - initial API and implementation
+ *******************************************************************************/
+package de.dentrassi.pm.jenkins;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+import de.dentrassi.pm.jenkins.UploaderResult.ArtifactResult;
+
+public class DroneUploadStepTest
+{
+
+    @Test
+    public void return_value_lists_artifacts_of_each_channel ()
+    {
+        UploaderResult main = new UploaderResult ();
+        main.addUploadedArtifacts ( new LinkedHashSet<> ( Arrays.asList ( new ArtifactResult ( "id1", "file.jar", 100, 0, 0 ), new ArtifactResult ( "file.pom", "not signed", -1 ) ) ) );
+        UploaderResult target = new UploaderResult ();
+        target.setFailed ( true );
+
+        Map<ServerData, UploaderResult> results = new LinkedHashMap<> ();
+        results.put ( new ServerData ( "http://localhost:8080", "main", "key", false ), main );
+        results.put ( new ServerData ( "http://mirror:8080", "copy", "key", false ), target );
+
+        Map<String, Object> value = DroneUploadStep.toReturnValue ( results, false );
+
+        Assertions.assertThat ( value ).containsEntry ( "serverUrl", "http://localhost:8080" ) //
+                .containsEntry ( "channel", "main" ) //
+                .containsEntry ( "failed", false ) //
+                .containsEntry ( "accepted", 1 ) //
+                .containsEntry ( "rejected", 1 ) //
+                .containsEntry ( "size", 100L );
+
+        List<?> artifacts = (List<?>)value.get ( "artifacts" );
+        Assertions.assertThat ( artifacts ).hasSize ( 2 );
+        Assertions.assertThat ( (Map<?, ?>)artifacts.get ( 0 ) ).containsEntry ( "id", "id1" ) //
+                .containsEntry ( "name", "file.jar" ) //
+                .containsEntry ( "url", "http://localhost:8080/channel/main/artifacts/id1/view" );
+        Assertions.assertThat ( (Map<?, ?>)artifacts.get ( 1 ) ).containsEntry ( "rejected", true ) //
+                .containsEntry ( "reason", "not signed" ) //
+                .doesNotContainKey ( "id" );
+
+        List<?> targets = (List<?>)value.get ( "targets" );
+        Assertions.assertThat ( targets ).hasSize ( 1 );
+        Assertions.assertThat ( (Map<?, ?>)targets.get ( 0 ) ).containsEntry ( "channel", "copy" ).containsEntry ( "failed", true );
+    }
+
+    @Test
+    public void counts_only_leaves_out_the_artifacts ()
+    {
+        UploaderResult main = new UploaderResult ();
+        main.addUploadedArtifacts ( new LinkedHashSet<> ( Arrays.asList ( new ArtifactResult ( "id1", "file.jar", 100, 0, 0 ), ArtifactResult.reused ( "id2", "file.zip", 50 ) ) ) );
+
+        Map<ServerData, UploaderResult> results = new LinkedHashMap<> ();
+        results.put ( new ServerData ( "http://localhost:8080", "main", "key", false ), main );
+
+        Map<String, Object> value = DroneUploadStep.toReturnValue ( results, true );
+
+        Assertions.assertThat ( value ).containsEntry ( "reused", 1 ).doesNotContainKey ( "artifacts" ).doesNotContainKey ( "targets" );
+    }
+
+    @Test
+    public void nothing_uploaded_returns_an_empty_map ()
+    {
+        Assertions.assertThat ( DroneUploadStep.toReturnValue ( new LinkedHashMap<ServerData, UploaderResult> (), false ) ).isEmpty ();
+    }
+
+}
@@ -0,0 +1,425 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBH SYSTEMS GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBH SYSTEMS GmbH - initial API and implementation
+ *******************************************************************************/
+package de.dentrassi.pm.jenkins;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.client.fluent.Executor;
+import org.apache.http.client.fluent.Request;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.EnglishReasonPhraseCatalog;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.assertj.core.api.Assertions;
+import org.hamcrest.CoreMatchers;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import de.dentrassi.pm.jenkins.util.LoggerListenerWrapper;
+import hudson.util.StreamTaskListener;
+
+public class FanOutUploaderTest extends AbstractUploaderTest
+{
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder ();
+
+    @Test
+    public void upload_to_all_channels () throws Exception
+    {
+        LoggerListenerWrapper listener = mock ( LoggerListenerWrapper.class );
+        when ( listener.getLogger () ).thenReturn ( mock ( PrintStream.class ) );
+
+        Map<File, String> files = new LinkedHashMap<> ();
+        files.put ( folder.newFile (), "f1" );
+        files.put ( folder.newFile (), "f2" );
+
+        Executor executor1 = mockExecutor ();
+        doReturn ( mockResponse ( buildResponse ( "a1", 200 ) ), mockResponse ( buildResponse ( "a2", 200 ) ) ).when ( executor1 ).execute ( any ( Request.class ) );
+        Executor executor2 = mockExecutor ();
+        doReturn ( mockResponse ( buildResponse ( "b1", 200 ) ), mockResponse ( buildResponse ( "b2", 200 ) ) ).when ( executor2 ).execute ( any ( Request.class ) );
+
+        List<UploaderResult> results;
+        try ( FanOutUploader uploader = new FanOutUploader ( Arrays.<AbstractUploader> asList ( mockUploader ( "staging", executor1, listener ), mockUploader ( "nightly", executor2, listener ) ), listener ) )
+        {
+            results = uploader.performUpload ( files );
+        }
+
+        verify ( executor1, times ( 2 ) ).execute ( any ( Request.class ) );
+        verify ( executor2, times ( 2 ) ).execute ( any ( Request.class ) );
+
+        Assert.assertThat ( results.size (), CoreMatchers.is ( 2 ) );
+        Assertions.assertThat ( results.get ( 0 ).getUploadedArtifacts () ).extracting ( "id" ).containsExactly ( "a1", "a2" );
+        Assertions.assertThat ( results.get ( 1 ).getUploadedArtifacts () ).extracting ( "id" ).containsExactly ( "b1", "b2" );
+        Assert.assertFalse ( results.get ( 0 ).isFailed () );
+        Assert.assertFalse ( results.get ( 1 ).isFailed () );
+    }
+
+    @Test
+    public void failure_on_a_channel_does_not_stop_the_others () throws Exception
+    {
+        LoggerListenerWrapper listener = mock ( LoggerListenerWrapper.class );
+        when ( listener.getLogger () ).thenReturn ( mock ( PrintStream.class ) );
+
+        Map<File, String> files = new LinkedHashMap<> ();
+        files.put ( folder.newFile (), "f1" );
+        files.put ( folder.newFile (), "f2" );
+
+        Executor executor1 = mockExecutor ();
+        doReturn ( mockResponse ( buildResponse ( "error", 500 ) ) ).when ( executor1 ).execute ( any ( Request.class ) );
+        Executor executor2 = mockExecutor ();
+        doReturn ( mockResponse ( buildResponse ( "b1", 200 ) ), mockResponse ( buildResponse ( "b2", 200 ) ) ).when ( executor2 ).execute ( any ( Request.class ) );
+
+        List<UploaderResult> results;
+        try ( FanOutUploader uploader = new FanOutUploader ( Arrays.<AbstractUploader> asList ( mockUploader ( "staging", executor1, listener ), mockUploader ( "nightly", executor2, listener ) ), listener ) )
+        {
+            results = uploader.performUpload ( files );
+        }
+
+        // no more files are sent to a failed channel
+        verify ( executor1, times ( 1 ) ).execute ( any ( Request.class ) );
+        verify ( executor2, times ( 2 ) ).execute ( any ( Request.class ) );
+
+        Assert.assertTrue ( results.get ( 0 ).isFailed () );
+        Assert.assertTrue ( results.get ( 0 ).getUploadedArtifacts ().isEmpty () );
+        Assert.assertFalse ( results.get ( 1 ).isFailed () );
+        Assertions.assertThat ( results.get ( 1 ).getUploadedArtifacts () ).extracting ( "id" ).containsExactly ( "b1", "b2" );
+    }
+
+    @Test
+    public void quorum_does_not_wait_the_slower_channel () throws Exception
+    {
+        LoggerListenerWrapper listener = mock ( LoggerListenerWrapper.class );
+        when ( listener.getLogger () ).thenReturn ( mock ( PrintStream.class ) );
+
+        Map<File, String> files = new LinkedHashMap<> ();
+        files.put ( folder.newFile (), "f1" );
+        files.put ( folder.newFile (), "f2" );
+
+        Executor executor1 = mockExecutor ();
+        doReturn ( mockResponse ( buildResponse ( "a1", 200 ) ), mockResponse ( buildResponse ( "a2", 200 ) ) ).when ( executor1 ).execute ( any ( Request.class ) );
+
+        final CountDownLatch slow = new CountDownLatch ( 1 );
+        Executor executor2 = mockExecutor ();
+        doAnswer ( new Answer<Object> () {
+            @Override
+            public Object answer ( InvocationOnMock invocation ) throws Throwable
+            {
+                slow.await ();
+                return mockResponse ( buildResponse ( "b", 200 ) );
+            }
+        } ).when ( executor2 ).execute ( any ( Request.class ) );
+
+        List<UploaderResult> results;
+        try ( FanOutUploader uploader = new FanOutUploader ( Arrays.<AbstractUploader> asList ( mockUploader ( "staging", executor1, listener ), mockUploader ( "nightly", executor2, listener ) ), 1, listener ) )
+        {
+            results = uploader.performUpload ( files );
+        }
+
+        Assert.assertFalse ( results.get ( 0 ).isPending () );
+        Assertions.assertThat ( results.get ( 0 ).getUploadedArtifacts () ).extracting ( "id" ).containsExactly ( "a1", "a2" );
+        Assert.assertTrue ( results.get ( 1 ).isPending () );
+        Assert.assertTrue ( results.get ( 1 ).getUploadedArtifacts ().isEmpty () );
+
+        // the slower channel completes in background once released
+        slow.countDown ();
+        verify ( executor2, timeout ( 5000 ).times ( 2 ) ).execute ( any ( Request.class ) );
+    }
+
+    @Test
+    public void slower_channel_reports_to_the_background_listener () throws Exception
+    {
+        LoggerListenerWrapper listener = new LoggerListenerWrapper ( new StreamTaskListener ( new ByteArrayOutputStream () ) );
+
+        Map<File, String> files = new LinkedHashMap<> ();
+        files.put ( folder.newFile (), "f1" );
+
+        Executor executor1 = mockExecutor ();
+        doReturn ( mockResponse ( buildResponse ( "a1", 200 ) ) ).when ( executor1 ).execute ( any ( Request.class ) );
+
+        final CountDownLatch slow = new CountDownLatch ( 1 );
+        Executor executor2 = mockExecutor ();
+        doAnswer ( new Answer<Object> () {
+            @Override
+            public Object answer ( InvocationOnMock invocation ) throws Throwable
+            {
+                slow.await ();
+                return mockResponse ( buildResponse ( "b1", 200 ) );
+            }
+        } ).when ( executor2 ).execute ( any ( Request.class ) );
+
+        List<ByteArrayOutputStream> logs = Arrays.asList ( new ByteArrayOutputStream (), new ByteArrayOutputStream () );
+        final BlockingQueue<Object> reported = new LinkedBlockingQueue<> ();
+
+        List<UploaderResult> results;
+        try ( FanOutUploader uploader = new FanOutUploader ( Arrays.<AbstractUploader> asList ( mockUploader ( "staging", executor1, listener.redirect ( logs.get ( 0 ) ) ), mockUploader ( "nightly", executor2, listener.redirect ( logs.get ( 1 ) ) ) ), 1, listener ) )
+        {
+            uploader.setBackgroundListener ( new FanOutUploader.BackgroundListener () {
+
+                @Override
+                public void onCompleted ( int index, UploaderResult result, String log )
+                {
+                    reported.add ( index );
+                    reported.add ( result );
+                    reported.add ( log );
+                }
+
+                @Override
+                public void onAllCompleted ()
+                {
+                    reported.add ( "done" );
+                }
+            }, logs );
+            results = uploader.performUpload ( files );
+        }
+
+        Assert.assertFalse ( results.get ( 0 ).isPending () );
+        Assert.assertTrue ( results.get ( 1 ).isPending () );
+        Assert.assertTrue ( reported.isEmpty () );
+
+        slow.countDown ();
+        Assert.assertThat ( reported.poll ( 5, TimeUnit.SECONDS ), CoreMatchers.<Object> is ( 1 ) );
+        UploaderResult result = (UploaderResult)reported.poll ( 5, TimeUnit.SECONDS );
+        Assert.assertFalse ( result.isPending () );
+        Assert.assertFalse ( result.isFailed () );
+        Assertions.assertThat ( result.getUploadedArtifacts () ).extracting ( "id" ).containsExactly ( "b1" );
+        Assertions.assertThat ( (String)reported.poll ( 5, TimeUnit.SECONDS ) ).contains ( "nightly" );
+        Assert.assertThat ( reported.poll ( 5, TimeUnit.SECONDS ), CoreMatchers.<Object> is ( "done" ) );
+    }
+
+    private Executor mockSlowExecutor ( final CountDownLatch release, final String id ) throws Exception
+    {
+        Executor executor = mockExecutor ();
+        doAnswer ( new Answer<Object> () {
+            @Override
+            public Object answer ( InvocationOnMock invocation ) throws Throwable
+            {
+                release.await ();
+                return mockResponse ( buildResponse ( id, 200 ) );
+            }
+        } ).when ( executor ).execute ( any ( Request.class ) );
+        return executor;
+    }
+
+    @Test
+    public void slow_background_listener_does_not_block_other_channels () throws Exception
+    {
+        LoggerListenerWrapper listener = new LoggerListenerWrapper ( new StreamTaskListener ( new ByteArrayOutputStream () ) );
+
+        Map<File, String> files = new LinkedHashMap<> ();
+        files.put ( folder.newFile (), "f1" );
+
+        Executor executor1 = mockExecutor ();
+        doReturn ( mockResponse ( buildResponse ( "a1", 200 ) ) ).when ( executor1 ).execute ( any ( Request.class ) );
+        final CountDownLatch slow2 = new CountDownLatch ( 1 );
+        final CountDownLatch slow3 = new CountDownLatch ( 1 );
+
+        final CountDownLatch master = new CountDownLatch ( 1 );
+        final BlockingQueue<Object> reported = new LinkedBlockingQueue<> ();
+
+        try ( FanOutUploader uploader = new FanOutUploader ( Arrays.<AbstractUploader> asList ( mockUploader ( "staging", executor1, listener ), mockUploader ( "nightly", mockSlowExecutor ( slow2, "b1" ), listener ), mockUploader ( "weekly", mockSlowExecutor ( slow3, "c1" ), listener ) ), 1, listener ) )
+        {
+            uploader.setBackgroundListener ( new FanOutUploader.BackgroundListener () {
+
+                @Override
+                public void onCompleted ( int index, UploaderResult result, String log )
+                {
+                    if ( index == 1 )
+                    {
+                        // a master slow to answer
+                        try
+                        {
+                            master.await ();
+                        }
+                        catch ( InterruptedException e )
+                        {
+                            Thread.currentThread ().interrupt ();
+                        }
+                    }
+                    reported.add ( index );
+                }
+
+                @Override
+                public void onAllCompleted ()
+                {
+                    reported.add ( "done" );
+                }
+            }, Arrays.asList ( new ByteArrayOutputStream (), new ByteArrayOutputStream (), new ByteArrayOutputStream () ) );
+            uploader.performUpload ( files );
+        }
+
+        slow2.countDown ();
+        slow3.countDown ();
+
+        // the third channel reports while the callback of the second one is still blocked
+        Assert.assertThat ( reported.poll ( 5, TimeUnit.SECONDS ), CoreMatchers.<Object> is ( 2 ) );
+
+        master.countDown ();
+        Assert.assertThat ( reported.poll ( 5, TimeUnit.SECONDS ), CoreMatchers.<Object> is ( 1 ) );
+        Assert.assertThat ( reported.poll ( 5, TimeUnit.SECONDS ), CoreMatchers.<Object> is ( "done" ) );
+    }
+
+    @Test
+    public void channels_do_not_wait_for_each_other () throws Exception
+    {
+        LoggerListenerWrapper listener = mock ( LoggerListenerWrapper.class );
+        when ( listener.getLogger () ).thenReturn ( mock ( PrintStream.class ) );
+
+        final Map<File, String> files = new LinkedHashMap<> ();
+        files.put ( folder.newFile (), "f1" );
+        files.put ( folder.newFile (), "f2" );
+
+        Executor executor1 = mockExecutor ();
+        doReturn ( mockResponse ( buildResponse ( "a1", 200 ) ), mockResponse ( buildResponse ( "a2", 200 ) ) ).when ( executor1 ).execute ( any ( Request.class ) );
+
+        final CountDownLatch slow = new CountDownLatch ( 1 );
+        Executor executor2 = mockExecutor ();
+        doAnswer ( new Answer<Object> () {
+            @Override
+            public Object answer ( InvocationOnMock invocation ) throws Throwable
+            {
+                slow.await ();
+                return mockResponse ( buildResponse ( "b", 200 ) );
+            }
+        } ).when ( executor2 ).execute ( any ( Request.class ) );
+
+        ExecutorService build = Executors.newSingleThreadExecutor ();
+        try ( final FanOutUploader uploader = new FanOutUploader ( Arrays.<AbstractUploader> asList ( mockUploader ( "staging", executor1, listener ), mockUploader ( "nightly", executor2, listener ) ), listener ) )
+        {
+            Future<List<UploaderResult>> results = build.submit ( new Callable<List<UploaderResult>> () {
+                @Override
+                public List<UploaderResult> call () throws Exception
+                {
+                    return uploader.performUpload ( files );
+                }
+            } );
+
+            // the faster channel sends the second file while the slower one is still busy with the first
+            verify ( executor1, timeout ( 5000 ).times ( 2 ) ).execute ( any ( Request.class ) );
+            verify ( executor2, timeout ( 5000 ).times ( 1 ) ).execute ( any ( Request.class ) );
+
+            slow.countDown ();
+            Assert.assertFalse ( results.get ( 5, TimeUnit.SECONDS ).get ( 0 ).isFailed () );
+            Assert.assertFalse ( results.get ().get ( 1 ).isFailed () );
+        }
+        finally
+        {
+            build.shutdownNow ();
+        }
+    }
+
+    @Test
+    public void each_channel_uploads_with_its_parallelism () throws Exception
+    {
+        LoggerListenerWrapper listener = mock ( LoggerListenerWrapper.class );
+        when ( listener.getLogger () ).thenReturn ( mock ( PrintStream.class ) );
+
+        Map<File, String> files = new LinkedHashMap<> ();
+        for ( int i = 0; i < 4; i++ )
+        {
+            files.put ( folder.newFile (), "f" + i );
+        }
+
+        // both files of a channel must be sent at the same time to pass the barrier
+        final CyclicBarrier barrier = new CyclicBarrier ( 2 );
+        Answer<Object> concurrent = new Answer<Object> () {
+            @Override
+            public Object answer ( InvocationOnMock invocation ) throws Throwable
+            {
+                barrier.await ( 5, TimeUnit.SECONDS );
+                return mockResponse ( buildResponse ( "id", 200 ) );
+            }
+        };
+        Executor executor1 = mockExecutor ();
+        doAnswer ( concurrent ).when ( executor1 ).execute ( any ( Request.class ) );
+        Executor executor2 = mockExecutor ();
+        doReturn ( mockResponse ( buildResponse ( "b", 200 ) ) ).when ( executor2 ).execute ( any ( Request.class ) );
+
+        UploaderV2 parallel = mockUploader ( "staging", executor1, listener );
+        parallel.setParallelism ( 2 );
+
+        List<UploaderResult> results;
+        try ( FanOutUploader uploader = new FanOutUploader ( Arrays.<AbstractUploader> asList ( parallel, mockUploader ( "nightly", executor2, listener ) ), listener ) )
+        {
+            results = uploader.performUpload ( files );
+        }
+
+        Assert.assertFalse ( results.get ( 0 ).isFailed () );
+        Assert.assertThat ( results.get ( 0 ).getUploadedArtifacts ().size (), CoreMatchers.is ( 4 ) );
+        Assert.assertFalse ( results.get ( 1 ).isFailed () );
+    }
+
+    private UploaderV2 mockUploader ( String channel, Executor executor, LoggerListenerWrapper listener )
+    {
+        ServerData serverData = new ServerData ( "http://www.pdrone.org", channel, "secret", false );
+        UploaderV2 uploader = spy ( new UploaderV2 ( getRunData (), listener, serverData ) );
+        doReturn ( mockDroneClient ( executor ) ).when ( uploader ).getClient ();
+        return uploader;
+    }
+
+    @Override
+    protected HttpResponse buildResponse ( Object payload, int statusCode ) throws Exception
+    {
+        BasicHttpResponse response = new BasicHttpResponse ( new BasicStatusLine ( new ProtocolVersion ( "HTTP", 1, 1 ), statusCode, EnglishReasonPhraseCatalog.INSTANCE.getReason ( statusCode, Locale.ENGLISH ) ) );
+        response.setEntity ( new StringEntity ( String.valueOf ( payload ) ) );
+
+        return response;
+    }
+
+    private RunData getRunData ()
+    {
+        RunData runData = mock ( RunData.class );
+        when ( runData.getUrl () ).thenReturn ( "http://localhost:8080/jenkins" );
+        when ( runData.getNumber () ).thenReturn ( 1 );
+        Calendar c = Calendar.getInstance ( TimeZone.getTimeZone ( "UTC" ) );
+        c.set ( 2017, 1, 1, 0, 0, 0 );
+        c.set ( Calendar.MILLISECOND, 0 );
+        when ( runData.getTime () ).thenReturn ( c.getTime () );
+        when ( runData.getFullName () ).thenReturn ( "test_job" );
+        when ( runData.getId () ).thenReturn ( "test_job" );
+        return runData;
+    }
+
+}
@@ -10,15 +10,25 @@
  *******************************************************************************/
 package de.dentrassi.pm.jenkins;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.ObjectStreamConstants;
 import java.io.OutputStream;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.Set;
+import java.util.zip.DeflaterOutputStream;
 
 import org.assertj.core.api.Assertions;
 import org.hamcrest.CoreMatchers;
@@ -67,4 +77,223 @@ public class UploadResultSerialisationTest
         Assert.assertThat ( deserilised.isFailed (), CoreMatchers.equalTo ( result.isFailed () ) );
         Assertions.assertThat ( deserilised.getUploadedArtifacts () ).containsAll ( result.getUploadedArtifacts () );
     }
+
+    @Test
+    public void verify_that_counts_and_artifacts_survive_serialisation () throws Exception
+    {
+        Set<ArtifactResult> artifacts = new LinkedHashSet<> ();
+        artifacts.add ( new ArtifactResult ( "18a1a4ba-f8fa-4a64-bcd2-14e996fb74ac", "file1.jar", 100, 1, 2 ) );
+        artifacts.add ( new ArtifactResult ( "14e996fb74ac-4a64-bcd2-f8fa-18a1a4ba", "file2.jar", 200, 0, 0 ) );
+        artifacts.add ( new ArtifactResult ( "file3.jar", "rejected by policy", -1 ) );
+        UploaderResult result = new UploaderResult ();
+        result.setFailed ( true );
+        result.addUploadedArtifacts ( artifacts );
+
+        File serFile = fileRule.newFile ();
+        try ( ObjectOutputStream out = new ObjectOutputStream ( new FileOutputStream ( serFile ) ) )
+        {
+            out.writeObject ( result );
+        }
+
+        UploaderResult deserilised;
+        try ( ObjectInputStream in = new ObjectInputStream ( new FileInputStream ( serFile ) ) )
+        {
+            deserilised = (UploaderResult)in.readObject ();
+        }
+
+        Assert.assertThat ( deserilised.isFailed (), CoreMatchers.is ( true ) );
+        Assert.assertThat ( deserilised.getAcceptedCount (), CoreMatchers.is ( 2 ) );
+        Assert.assertThat ( deserilised.getRejectedCount (), CoreMatchers.is ( 1 ) );
+        Assert.assertThat ( deserilised.getUploadedSize (), CoreMatchers.is ( 300L ) );
+        Assertions.assertThat ( deserilised.getUploadedArtifacts () ).containsExactlyElementsOf ( artifacts );
+        Assertions.assertThat ( deserilised.getUploadedArtifacts () ).extracting ( "rejected" ).containsExactly ( false, false, true );
+    }
+
+    @Test
+    public void verify_that_large_results_are_compact () throws Exception
+    {
+        Set<ArtifactResult> artifacts = new LinkedHashSet<> ();
+        for ( int i = 0; i < 50000; i++ )
+        {
+            if ( i % 10 == 0 )
+            {
+                artifacts.add ( new ArtifactResult ( "module" + i + "/file.jar", "rejected by policy", -1 ) );
+            }
+            else if ( i % 10 == 1 )
+            {
+                artifacts.add ( ArtifactResult.reused ( "reused-" + i, "module" + i + "/file.jar", i ) );
+            }
+            else
+            {
+                artifacts.add ( new ArtifactResult ( "artifact-" + i, "module" + i + "/file.jar", i, i % 3, i % 5 ) );
+            }
+        }
+        UploaderResult result = new UploaderResult ();
+        result.addUploadedArtifacts ( artifacts );
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream ();
+        try ( ObjectOutputStream out = new ObjectOutputStream ( bytes ) )
+        {
+            out.writeObject ( result );
+        }
+        Assert.assertTrue ( "serialised size " + bytes.size (), bytes.size () < 1024 * 1024 );
+
+        UploaderResult deserilised;
+        try ( ObjectInputStream in = new ObjectInputStream ( new ByteArrayInputStream ( bytes.toByteArray () ) ) )
+        {
+            deserilised = (UploaderResult)in.readObject ();
+        }
+
+        Assertions.assertThat ( deserilised.getUploadedArtifacts () ).containsExactlyElementsOf ( artifacts );
+        Assert.assertThat ( deserilised.getRejectedCount (), CoreMatchers.is ( 5000 ) );
+        Assert.assertThat ( deserilised.getReusedCount (), CoreMatchers.is ( 5000 ) );
+
+        // reasons are shared
+        Iterator<ArtifactResult> iterator = deserilised.getUploadedArtifacts ().iterator ();
+        String reason = iterator.next ().getReason ();
+        for ( int i = 1; i < 10; i++ )
+        {
+            iterator.next ();
+        }
+        Assert.assertSame ( reason, iterator.next ().getReason () );
+    }
+
+    @Test
+    public void verify_that_long_strings_survive_serialisation () throws Exception
+    {
+        // more than the 64 KiB of modified UTF-8 that writeUTF can write
+        StringBuilder reason = new StringBuilder ();
+        for ( int i = 0; i < 40000; i++ )
+        {
+            reason.append ( "\u00e9" );
+        }
+        Set<ArtifactResult> artifacts = new LinkedHashSet<> ();
+        artifacts.add ( new ArtifactResult ( "file.jar", reason.toString (), -1 ) );
+        UploaderResult result = new UploaderResult ();
+        result.addUploadedArtifacts ( artifacts );
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream ();
+        try ( ObjectOutputStream out = new ObjectOutputStream ( bytes ) )
+        {
+            out.writeObject ( result );
+        }
+
+        UploaderResult deserilised;
+        try ( ObjectInputStream in = new ObjectInputStream ( new ByteArrayInputStream ( bytes.toByteArray () ) ) )
+        {
+            deserilised = (UploaderResult)in.readObject ();
+        }
+
+        Assert.assertThat ( deserilised.getUploadedArtifacts ().iterator ().next ().getReason (), CoreMatchers.is ( reason.toString () ) );
+    }
+
+    private static byte[] deflate ( int... values ) throws IOException
+    {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream ();
+        try ( DataOutputStream data = new DataOutputStream ( new BufferedOutputStream ( new DeflaterOutputStream ( buffer ) ) ) )
+        {
+            for ( int value : values )
+            {
+                data.writeInt ( value );
+            }
+        }
+        return buffer.toByteArray ();
+    }
+
+    private static byte[] blockData ( int length, byte[] block ) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream ();
+        DataOutputStream out = new DataOutputStream ( bytes );
+        out.writeByte ( ObjectStreamConstants.TC_BLOCKDATA );
+        out.writeByte ( 4 + block.length );
+        out.writeInt ( length );
+        out.write ( block );
+        return bytes.toByteArray ();
+    }
+
+    /*
+     * Serialises an empty result, then replaces its compressed artifacts with the given length and block.
+     */
+    private static byte[] serialiseTampered ( int length, byte[] block ) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream ();
+        try ( ObjectOutputStream out = new ObjectOutputStream ( bytes ) )
+        {
+            out.writeObject ( new UploaderResult () );
+        }
+        byte[] serialised = bytes.toByteArray ();
+
+        // no strings and no artifacts
+        byte[] empty = deflate ( 0, 0 );
+        byte[] original = blockData ( empty.length, empty );
+        for ( int i = 0; i <= serialised.length - original.length; i++ )
+        {
+            if ( Arrays.equals ( original, Arrays.copyOfRange ( serialised, i, i + original.length ) ) )
+            {
+                ByteArrayOutputStream result = new ByteArrayOutputStream ();
+                result.write ( serialised, 0, i );
+                result.write ( blockData ( length, block ) );
+                result.write ( serialised, i + original.length, serialised.length - i - original.length );
+                return result.toByteArray ();
+            }
+        }
+        throw new AssertionError ( "compressed artifacts not found" );
+    }
+
+    private static void assertMalformed ( byte[] serialised ) throws Exception
+    {
+        try ( ObjectInputStream in = new ObjectInputStream ( new ByteArrayInputStream ( serialised ) ) )
+        {
+            in.readObject ();
+            Assert.fail ( "expected a IOException for the malformed artifacts" );
+        }
+        catch ( IOException e )
+        {
+            // rejected before allocating anything for the counts
+        }
+    }
+
+    @Test
+    public void verify_that_counts_are_checked_before_allocating () throws Exception
+    {
+        byte[] manyArtifacts = deflate ( 0, Integer.MAX_VALUE );
+        assertMalformed ( serialiseTampered ( manyArtifacts.length, manyArtifacts ) );
+
+        byte[] negativeStrings = deflate ( -2, 0 );
+        assertMalformed ( serialiseTampered ( negativeStrings.length, negativeStrings ) );
+
+        byte[] empty = deflate ( 0, 0 );
+        assertMalformed ( serialiseTampered ( Integer.MAX_VALUE, empty ) );
+        assertMalformed ( serialiseTampered ( -1, empty ) );
+    }
+
+    @Test
+    public void verify_that_string_indices_are_checked () throws Exception
+    {
+        // one accepted artifact whose id refers to a string which does not exist
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream ();
+        try ( DataOutputStream data = new DataOutputStream ( new BufferedOutputStream ( new DeflaterOutputStream ( buffer ) ) ) )
+        {
+            data.writeInt ( 0 );
+            data.writeInt ( 1 );
+            data.write ( new byte[] { 0, 10, 0, 0, 0, 0, 0 } );
+        }
+        byte[] block = buffer.toByteArray ();
+        assertMalformed ( serialiseTampered ( block.length, block ) );
+    }
+
+    @Test
+    public void verify_that_string_lengths_are_checked () throws Exception
+    {
+        // one string which is longer than anything the compressed block can hold
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream ();
+        try ( DataOutputStream data = new DataOutputStream ( new BufferedOutputStream ( new DeflaterOutputStream ( buffer ) ) ) )
+        {
+            data.writeInt ( 1 );
+            data.write ( new byte[] { (byte)0xFE, (byte)0xFF, (byte)0xFF, (byte)0xFF, 0x0F } );
+        }
+        byte[] block = buffer.toByteArray ();
+        assertMalformed ( serialiseTampered ( block.length, block ) );
+    }
+
 }
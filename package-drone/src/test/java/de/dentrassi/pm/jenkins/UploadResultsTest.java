@@ -0,0 +1,113 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBH SYSTEMS GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBH SYSTEMS GmbH - initial API and implementation
+ *******************************************************************************/
+package de.dentrassi.pm.jenkins;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import de.dentrassi.pm.jenkins.util.LoggerListenerWrapper;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+
+public class UploadResultsTest
+{
+    private Run<?, ?> run;
+
+    private ByteArrayOutputStream log;
+
+    private LoggerListenerWrapper listener;
+
+    private DroneRecorder recorder;
+
+    private List<ServerData> serverDataList;
+
+    @Before
+    public void setup ()
+    {
+        run = Mockito.mock ( Run.class );
+        Mockito.when ( run.isBuilding () ).thenReturn ( true );
+
+        log = new ByteArrayOutputStream ();
+        TaskListener taskListener = Mockito.mock ( TaskListener.class );
+        Mockito.when ( taskListener.getLogger () ).thenReturn ( new PrintStream ( log, true ) );
+        listener = new LoggerListenerWrapper ( taskListener );
+
+        recorder = new DroneRecorder ( "http://${SERVER}", "staging", "secret", "*.jar" );
+        recorder.setTargets ( Collections.singletonList ( new DroneTarget ( "http://mirror", "release", "secret" ) ) );
+        recorder.setFailsAsUpload ( true );
+
+        serverDataList = Arrays.asList ( new ServerData ( "http://server", "staging", "key", false ), new ServerData ( "http://mirror", "release", "key", false ) );
+    }
+
+    @Test
+    public void failure_below_the_quorum_does_not_fail_the_build () throws Exception
+    {
+        recorder.setQuorum ( 1 );
+
+        UploaderResult failed = new UploaderResult ();
+        failed.setFailed ( true );
+        Map<ServerData, UploaderResult> results = new UploadResults ( recorder, run, "*.jar", serverDataList ).record ( listener, Arrays.asList ( new UploaderResult (), failed ) );
+
+        Assertions.assertThat ( results ).containsOnlyKeys ( serverDataList.toArray ( new ServerData[0] ) );
+        Mockito.verify ( run, Mockito.never () ).setResult ( Mockito.any ( Result.class ) );
+        Assertions.assertThat ( log.toString () ).contains ( Messages.DroneRecorder_failedBelowQuorum ( "release" ) );
+    }
+
+    @Test
+    public void quorum_not_reached_fails_the_build () throws Exception
+    {
+        recorder.setQuorum ( 2 );
+
+        UploaderResult failed = new UploaderResult ();
+        failed.setFailed ( true );
+        new UploadResults ( recorder, run, "*.jar", serverDataList ).record ( listener, Arrays.asList ( new UploaderResult (), failed ) );
+
+        Mockito.verify ( run, Mockito.atLeastOnce () ).setResult ( Result.FAILURE );
+    }
+
+    @Test
+    public void build_data_keeps_the_configured_channel () throws Exception
+    {
+        new UploadResults ( recorder, run, "*.jar", serverDataList ).record ( listener, Arrays.asList ( new UploaderResult (), new UploaderResult () ) );
+
+        ArgumentCaptor<BuildData> buildData = ArgumentCaptor.forClass ( BuildData.class );
+        Mockito.verify ( run, Mockito.times ( 2 ) ).addAction ( buildData.capture () );
+        Assertions.assertThat ( buildData.getAllValues () ).extracting ( "serverUrl" ).containsExactly ( "http://${SERVER}", "http://mirror" );
+        Assertions.assertThat ( buildData.getAllValues () ).extracting ( "channel" ).containsExactly ( "staging", "release" );
+    }
+
+    @Test
+    public void detached_results_do_not_fail_the_build () throws Exception
+    {
+        recorder.setDetached ( true );
+
+        UploaderResult failed = new UploaderResult ();
+        failed.setFailed ( true );
+        new UploadResults ( recorder, run, "*.jar", serverDataList.subList ( 1, 2 ) ).recordDetached ( listener, Collections.singletonList ( failed ) );
+
+        Mockito.verify ( run, Mockito.never () ).setResult ( Mockito.any ( Result.class ) );
+        ArgumentCaptor<BuildData> buildData = ArgumentCaptor.forClass ( BuildData.class );
+        Mockito.verify ( run ).addAction ( buildData.capture () );
+        Assertions.assertThat ( buildData.getValue ().getChannel () ).isEqualTo ( "release" );
+    }
+
+}
@@ -0,0 +1,119 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBH SYSTEMS GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBH SYSTEMS GmbH - initial API and implementation
+ *******************************************************************************/
+package de.dentrassi.pm.jenkins;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.assertj.core.api.Assertions;
+import org.hamcrest.CoreMatchers;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class UploadSchedulerTest
+{
+    private static final String SERVER = "http://www.pdrone.org";
+
+    @Test
+    public void higher_priority_uploads_are_served_first () throws Exception
+    {
+        final UploadScheduler scheduler = new UploadScheduler ( 1 );
+        final List<String> order = Collections.synchronizedList ( new ArrayList<String> () );
+
+        UploadScheduler.Slot busy = scheduler.acquire ( SERVER, UploadPriority.NORMAL );
+
+        List<Thread> threads = new ArrayList<> ();
+        threads.add ( waitFor ( scheduler, UploadPriority.LOW, "low", order ) );
+        threads.add ( waitFor ( scheduler, UploadPriority.NORMAL, "normal", order ) );
+        threads.add ( waitFor ( scheduler, UploadPriority.HIGH, "high", order ) );
+
+        busy.close ();
+        for ( Thread thread : threads )
+        {
+            thread.join ();
+        }
+
+        Assertions.assertThat ( order ).containsExactly ( "high", "normal", "low" );
+        Assert.assertThat ( scheduler.getQueueLength ( SERVER ), CoreMatchers.is ( 0 ) );
+    }
+
+    @Test
+    public void servers_have_separate_slots () throws Exception
+    {
+        final UploadScheduler scheduler = new UploadScheduler ( 1 );
+
+        try ( UploadScheduler.Slot slot1 = scheduler.acquire ( SERVER, UploadPriority.LOW ); UploadScheduler.Slot slot2 = scheduler.acquire ( "http://other.pdrone.org", UploadPriority.LOW ) )
+        {
+            Assert.assertThat ( slot1.getQueueTime (), CoreMatchers.is ( 0L ) );
+            Assert.assertThat ( slot2.getQueueTime (), CoreMatchers.is ( 0L ) );
+        }
+    }
+
+    @Test
+    public void queue_time_is_measured () throws Exception
+    {
+        final UploadScheduler scheduler = new UploadScheduler ( 1 );
+        final UploadScheduler.Slot busy = scheduler.acquire ( SERVER, UploadPriority.NORMAL );
+
+        Thread releaser = new Thread () {
+            @Override
+            public void run ()
+            {
+                try
+                {
+                    Thread.sleep ( 200 );
+                }
+                catch ( InterruptedException e )
+                {
+                    // release anyway
+                }
+                busy.close ();
+            }
+        };
+        releaser.start ();
+
+        try ( UploadScheduler.Slot slot = scheduler.acquire ( SERVER, UploadPriority.NORMAL ) )
+        {
+            Assert.assertTrue ( "queue time " + slot.getQueueTime (), slot.getQueueTime () >= 150 );
+        }
+        releaser.join ();
+    }
+
+    /*
+     * Starts a thread waiting for a slot and returns once it is queued.
+     */
+    private Thread waitFor ( final UploadScheduler scheduler, final UploadPriority priority, final String name, final List<String> order ) throws InterruptedException
+    {
+        final int queued = scheduler.getQueueLength ( SERVER );
+        Thread thread = new Thread () {
+            @Override
+            public void run ()
+            {
+                try ( UploadScheduler.Slot slot = scheduler.acquire ( SERVER, priority ) )
+                {
+                    order.add ( name );
+                }
+                catch ( Exception e )
+                {
+                    order.add ( e.toString () );
+                }
+            }
+        };
+        thread.start ();
+        while ( scheduler.getQueueLength ( SERVER ) == queued )
+        {
+            Thread.sleep ( 5 );
+        }
+        return thread;
+    }
+
+}
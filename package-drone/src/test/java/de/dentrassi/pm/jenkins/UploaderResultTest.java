@@ -0,0 +1,53 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBH SYSTEMS GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBH SYSTEMS GmbH - initial API and implementation
+ *******************************************************************************/
+package de.dentrassi.pm.jenkins;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.assertj.core.api.Assertions;
+import org.hamcrest.CoreMatchers;
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.dentrassi.pm.jenkins.UploaderResult.ArtifactResult;
+
+public class UploaderResultTest
+{
+
+    @Test
+    public void reject_reasons_are_interned_and_counted ()
+    {
+        Set<ArtifactResult> artifacts = new LinkedHashSet<> ();
+        for ( int i = 0; i < 3; i++ )
+        {
+            // a distinct copy of the reason for each artifact, like parsed from the server response
+            artifacts.add ( new ArtifactResult ( "file" + i + ".jar", new String ( "not signed" ), -1 ) );
+        }
+        artifacts.add ( new ArtifactResult ( "file.pom", "wrong version", -1 ) );
+        artifacts.add ( new ArtifactResult ( "id", "file.zip", 100, 0, 0 ) );
+
+        UploaderResult result = new UploaderResult ();
+        result.addUploadedArtifacts ( artifacts );
+
+        Assertions.assertThat ( result.getRejectReasons () ).containsExactly ( Assertions.entry ( "not signed", 3 ), Assertions.entry ( "wrong version", 1 ) );
+
+        Iterator<ArtifactResult> iterator = result.getUploadedArtifacts ().iterator ();
+        String reason = iterator.next ().getReason ();
+        Assert.assertSame ( reason, iterator.next ().getReason () );
+        Assert.assertSame ( reason, iterator.next ().getReason () );
+
+        Assertions.assertThat ( ConsoleUtils.buildRejectSummary ( result ) ).containsExactly ( "3 artifacts rejected because not signed", "1 artifact rejected because wrong version" );
+        Assert.assertThat ( result.getRejectedCount (), CoreMatchers.is ( 4 ) );
+    }
+
+}
@@ -0,0 +1,399 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBH SYSTEMS GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBH SYSTEMS GmbH - initial API and implementation
+ *******************************************************************************/
+package de.dentrassi.pm.jenkins;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.assertj.core.api.Assertions;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import de.dentrassi.pm.jenkins.http.Checksums;
+import de.dentrassi.pm.jenkins.http.DroneClient;
+import de.dentrassi.pm.jenkins.util.LoggerListenerWrapper;
+import hudson.Util;
+
+/**
+ * Runs split uploads against a local server accepting range uploads.
+ */
+public class UploaderV2SplitTest
+{
+    private static final Pattern RANGE = Pattern.compile ( "bytes (\\d+)-(\\d+)/(\\d+)" );
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder ();
+
+    private HttpServer server;
+
+    private ExecutorService serverExecutor;
+
+    private volatile boolean splitSupported = true;
+
+    private volatile boolean corruptReassembly;
+
+    private final Map<String, TreeMap<Long, byte[]>> ranges = new ConcurrentHashMap<> ();
+
+    private final Map<String, byte[]> stored = new ConcurrentHashMap<> ();
+
+    private final List<String> plainUploads = Collections.synchronizedList ( new ArrayList<String> () );
+
+    private final AtomicInteger running = new AtomicInteger ();
+
+    private final AtomicInteger maxRunning = new AtomicInteger ();
+
+    @Before
+    public void startServer () throws IOException
+    {
+        serverExecutor = Executors.newCachedThreadPool ();
+        server = HttpServer.create ( new InetSocketAddress ( "127.0.0.1", 0 ), 0 );
+        server.setExecutor ( serverExecutor );
+        server.createContext ( "/api/v2/upload/split/", new HttpHandler () {
+            @Override
+            public void handle ( final HttpExchange exchange ) throws IOException
+            {
+                if ( !splitSupported )
+                {
+                    respond ( exchange, 404, "" );
+                    return;
+                }
+
+                // /api/v2/upload/split/<id>/channel/<channel>/<artifact>
+                final String[] segments = exchange.getRequestURI ().getPath ().split ( "/" );
+                final String uploadId = segments[5];
+                final String artifact = segments[8];
+
+                switch ( exchange.getRequestMethod () )
+                {
+                    case "PUT":
+                        receiveRange ( exchange, uploadId );
+                        break;
+                    case "POST":
+                        complete ( exchange, uploadId, artifact );
+                        break;
+                    case "DELETE":
+                        ranges.remove ( uploadId );
+                        respond ( exchange, 200, "" );
+                        break;
+                    default:
+                        respond ( exchange, 405, "" );
+                }
+            }
+        } );
+        server.createContext ( "/api/v2/upload/channel/", new HttpHandler () {
+            @Override
+            public void handle ( final HttpExchange exchange ) throws IOException
+            {
+                final String[] segments = exchange.getRequestURI ().getPath ().split ( "/" );
+                final String artifact = segments[6];
+                plainUploads.add ( artifact );
+                stored.put ( artifact, read ( exchange.getRequestBody () ) );
+                respond ( exchange, 200, "plain-" + artifact );
+            }
+        } );
+        server.start ();
+    }
+
+    @After
+    public void stopServer ()
+    {
+        server.stop ( 0 );
+        serverExecutor.shutdownNow ();
+    }
+
+    private void receiveRange ( final HttpExchange exchange, final String uploadId ) throws IOException
+    {
+        final int current = running.incrementAndGet ();
+        synchronized ( maxRunning )
+        {
+            maxRunning.set ( Math.max ( maxRunning.get (), current ) );
+        }
+        boolean done = false;
+        try
+        {
+            final Matcher m = RANGE.matcher ( exchange.getRequestHeaders ().getFirst ( "Content-Range" ) );
+            if ( !m.matches () )
+            {
+                respond ( exchange, 400, "bad range" );
+                return;
+            }
+            final long first = Long.parseLong ( m.group ( 1 ) );
+            final long last = Long.parseLong ( m.group ( 2 ) );
+            final byte[] data = read ( exchange.getRequestBody () );
+            if ( data.length != last - first + 1 )
+            {
+                respond ( exchange, 400, "bad length" );
+                return;
+            }
+
+            // hold the range so the others overlap with it
+            Thread.sleep ( 50 );
+
+            synchronized ( ranges )
+            {
+                if ( !ranges.containsKey ( uploadId ) )
+                {
+                    ranges.put ( uploadId, new TreeMap<Long, byte[]> () );
+                }
+                ranges.get ( uploadId ).put ( first, data );
+            }
+
+            // the client may send the next range as soon as it has the response
+            running.decrementAndGet ();
+            done = true;
+            respond ( exchange, 200, "" );
+        }
+        catch ( final InterruptedException e )
+        {
+            respond ( exchange, 500, "interrupted" );
+        }
+        finally
+        {
+            if ( !done )
+            {
+                running.decrementAndGet ();
+            }
+        }
+    }
+
+    private void complete ( final HttpExchange exchange, final String uploadId, final String artifact ) throws IOException
+    {
+        final long length = Long.parseLong ( exchange.getRequestHeaders ().getFirst ( DroneClient.SPLIT_LENGTH_HEADER ) );
+        final TreeMap<Long, byte[]> parts = ranges.remove ( uploadId );
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream ();
+        for ( final Map.Entry<Long, byte[]> part : parts.entrySet () )
+        {
+            if ( part.getKey () != out.size () )
+            {
+                respond ( exchange, 400, "missing range at " + out.size () );
+                return;
+            }
+            out.write ( part.getValue () );
+        }
+        if ( out.size () != length )
+        {
+            respond ( exchange, 400, "incomplete" );
+            return;
+        }
+
+        final byte[] data = out.toByteArray ();
+        if ( corruptReassembly )
+        {
+            data[0] ^= 1;
+        }
+        stored.put ( artifact, data );
+        exchange.getResponseHeaders ().add ( DroneClient.CHECKSUM_HEADER_PREFIX + Checksums.SHA256, Util.toHexString ( Checksums.createDigest ( "SHA-256" ).digest ( data ) ) );
+        respond ( exchange, 200, "split-" + artifact );
+    }
+
+    @Test
+    public void large_file_is_uploaded_in_ranges () throws Exception
+    {
+        final File file = createFile ( "image.qcow2", 10 * 1024 + 123 );
+
+        try ( UploaderV2 uploader = new UploaderV2 ( getRunData (), getListener (), getServerData () ) )
+        {
+            uploader.setSplitSize ( 1024 );
+            uploader.addArtifact ( file, "image.qcow2" );
+            uploader.performUpload ();
+
+            Assertions.assertThat ( uploader.getUploadedArtifacts () ).extracting ( "id" ).containsExactly ( "split-image.qcow2" );
+        }
+
+        Assertions.assertThat ( stored.get ( "image.qcow2" ) ).isEqualTo ( readFile ( file ) );
+        Assertions.assertThat ( plainUploads ).isEmpty ();
+        Assertions.assertThat ( maxRunning.get () ).isGreaterThan ( 1 );
+    }
+
+    @Test
+    public void ranges_of_parallel_files_share_the_slots_of_the_server () throws Exception
+    {
+        final File first = createFile ( "first.qcow2", 8 * 1024 );
+        final File second = createFile ( "second.qcow2", 8 * 1024 + 1 );
+
+        try ( UploaderV2 uploader = new UploaderV2 ( getRunData (), getListener (), getServerData () ) )
+        {
+            uploader.setSplitSize ( 1024 );
+            uploader.setParallelism ( 8 );
+            uploader.addArtifact ( first, "first.qcow2" );
+            uploader.addArtifact ( second, "second.qcow2" );
+            uploader.performUpload ();
+
+            Assertions.assertThat ( uploader.getUploadedArtifacts () ).extracting ( "id" ).containsOnly ( "split-first.qcow2", "split-second.qcow2" );
+        }
+
+        Assertions.assertThat ( stored.get ( "first.qcow2" ) ).isEqualTo ( readFile ( first ) );
+        Assertions.assertThat ( stored.get ( "second.qcow2" ) ).isEqualTo ( readFile ( second ) );
+        Assertions.assertThat ( maxRunning.get () ).isGreaterThan ( 1 ).isLessThanOrEqualTo ( UploadScheduler.get ().getMaxConcurrentUploads () );
+    }
+
+    @Test
+    public void reassembled_file_is_verified () throws Exception
+    {
+        corruptReassembly = true;
+        final File file = createFile ( "image.qcow2", 4 * 1024 );
+
+        try ( UploaderV2 uploader = new UploaderV2 ( getRunData (), getListener (), getServerData () ) )
+        {
+            uploader.setSplitSize ( 1024 );
+            uploader.addArtifact ( file, "image.qcow2" );
+
+            try
+            {
+                uploader.performUpload ();
+                Assert.fail ( "expected a failure because of the different checksum" );
+            }
+            catch ( final IOException e )
+            {
+                Assertions.assertThat ( e.getMessage () ).contains ( Checksums.SHA256 );
+            }
+
+            Assertions.assertThat ( uploader.getUploadedArtifacts () ).isEmpty ();
+        }
+    }
+
+    @Test
+    public void small_file_is_uploaded_in_a_single_request () throws Exception
+    {
+        final File file = createFile ( "small.jar", 1000 );
+
+        try ( UploaderV2 uploader = new UploaderV2 ( getRunData (), getListener (), getServerData () ) )
+        {
+            uploader.setSplitSize ( 1024 );
+            uploader.addArtifact ( file, "small.jar" );
+            uploader.performUpload ();
+
+            Assertions.assertThat ( uploader.getUploadedArtifacts () ).extracting ( "id" ).containsExactly ( "plain-small.jar" );
+        }
+
+        Assertions.assertThat ( stored.get ( "small.jar" ) ).isEqualTo ( readFile ( file ) );
+        Assertions.assertThat ( ranges ).isEmpty ();
+    }
+
+    @Test
+    public void server_without_split_support () throws Exception
+    {
+        splitSupported = false;
+        final File file = createFile ( "image.qcow2", 4 * 1024 );
+
+        try ( UploaderV2 uploader = new UploaderV2 ( getRunData (), getListener (), getServerData () ) )
+        {
+            uploader.setSplitSize ( 1024 );
+            uploader.addArtifact ( file, "image.qcow2" );
+            uploader.performUpload ();
+
+            Assertions.assertThat ( uploader.getUploadedArtifacts () ).extracting ( "id" ).containsExactly ( "plain-image.qcow2" );
+        }
+
+        Assertions.assertThat ( stored.get ( "image.qcow2" ) ).isEqualTo ( readFile ( file ) );
+        Assertions.assertThat ( plainUploads ).containsExactly ( "image.qcow2" );
+    }
+
+    private File createFile ( final String name, final int size ) throws IOException
+    {
+        final byte[] data = new byte[size];
+        new Random ( size ).nextBytes ( data );
+
+        final File file = folder.newFile ( name );
+        try ( OutputStream out = new FileOutputStream ( file ) )
+        {
+            out.write ( data );
+        }
+        return file;
+    }
+
+    private static byte[] readFile ( final File file ) throws IOException
+    {
+        try ( InputStream in = new FileInputStream ( file ) )
+        {
+            return read ( in );
+        }
+    }
+
+    private static byte[] read ( final InputStream in ) throws IOException
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream ();
+        final byte[] buffer = new byte[4096];
+        int read;
+        while ( ( read = in.read ( buffer ) ) >= 0 )
+        {
+            out.write ( buffer, 0, read );
+        }
+        return out.toByteArray ();
+    }
+
+    private static void respond ( final HttpExchange exchange, final int statusCode, final String payload ) throws IOException
+    {
+        final byte[] data = payload.getBytes ( StandardCharsets.UTF_8 );
+        exchange.sendResponseHeaders ( statusCode, data.length == 0 ? -1 : data.length );
+        try ( OutputStream out = exchange.getResponseBody () )
+        {
+            out.write ( data );
+        }
+    }
+
+    private ServerData getServerData ()
+    {
+        return new ServerData ( "http://127.0.0.1:" + server.getAddress ().getPort (), "channel1", "secret", false );
+    }
+
+    private static RunData getRunData ()
+    {
+        final RunData runData = mock ( RunData.class );
+        when ( runData.getUrl () ).thenReturn ( "http://localhost:8080/jenkins" );
+        when ( runData.getNumber () ).thenReturn ( 1 );
+        when ( runData.getTime () ).thenReturn ( new Date () );
+        when ( runData.getFullName () ).thenReturn ( "test_job" );
+        when ( runData.getId () ).thenReturn ( "test_job" );
+        return runData;
+    }
+
+    private static LoggerListenerWrapper getListener ()
+    {
+        final LoggerListenerWrapper listener = mock ( LoggerListenerWrapper.class );
+        when ( listener.getLogger () ).thenReturn ( mock ( PrintStream.class ) );
+        return listener;
+    }
+
+}
@@ -13,6 +13,7 @@ package de.dentrassi.pm.jenkins;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
@@ -20,6 +21,7 @@ import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.lang.reflect.Field;
@@ -27,13 +29,17 @@ import java.net.URI;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Locale;
+import java.util.Random;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.http.HttpResponse;
 import org.apache.http.ProtocolVersion;
 import org.apache.http.client.fluent.Executor;
 import org.apache.http.client.fluent.Request;
+import org.apache.http.client.fluent.Response;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.EnglishReasonPhraseCatalog;
@@ -45,8 +51,12 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import de.dentrassi.pm.jenkins.UploaderResult.ArtifactResult;
+import de.dentrassi.pm.jenkins.delta.FileSignature;
+import de.dentrassi.pm.jenkins.delta.SignatureCache;
 import de.dentrassi.pm.jenkins.util.LoggerListenerWrapper;
 import hudson.util.ReflectionUtils;
 
@@ -141,6 +151,109 @@ public class UploaderV2Test extends AbstractUploaderTest
         }
     }
 
+    @Test
+    public void upload_in_parallel () throws Exception
+    {
+        ServerData serverData = new ServerData ( "http://www.pdrone.org", "channel1", "secret", false );
+
+        LoggerListenerWrapper listener = mock ( LoggerListenerWrapper.class );
+        when ( listener.getLogger () ).thenReturn ( mock ( PrintStream.class ) );
+
+        final AtomicInteger ids = new AtomicInteger ();
+        final AtomicInteger running = new AtomicInteger ();
+        final AtomicInteger maxRunning = new AtomicInteger ();
+
+        try ( UploaderV2 uploader = spy ( new UploaderV2 ( getRunData (), listener, serverData ) ) )
+        {
+            for ( int i = 0; i < 6; i++ )
+            {
+                uploader.addArtifact ( folder.newFile (), "f" + i );
+            }
+            uploader.setParallelism ( 3 );
+
+            Executor executor = spy ( Executor.newInstance () );
+            doAnswer ( new Answer<Response> () {
+
+                @Override
+                public Response answer ( InvocationOnMock invocation ) throws Throwable
+                {
+                    int current = running.incrementAndGet ();
+                    synchronized ( maxRunning )
+                    {
+                        maxRunning.set ( Math.max ( maxRunning.get (), current ) );
+                    }
+                    Thread.sleep ( 50 );
+                    running.decrementAndGet ();
+                    return mockResponse ( buildResponse ( "id" + ids.incrementAndGet (), 200 ) );
+                }
+            } ).when ( executor ).execute ( any ( Request.class ) );
+
+            doReturn ( mockDroneClient ( executor ) ).when ( uploader ).getClient ();
+
+            uploader.performUpload ();
+
+            Assertions.assertThat ( uploader.getUploadedArtifacts () ).hasSize ( 6 );
+            Assertions.assertThat ( uploader.getUploadedArtifacts () ).extracting ( "name" ).contains ( "f0", "f1", "f2", "f3", "f4", "f5" );
+            Assertions.assertThat ( maxRunning.get () ).isGreaterThan ( 1 ).isLessThanOrEqualTo ( 3 );
+        }
+    }
+
+    @Test
+    public void upload_with_adaptive_parallelism () throws Exception
+    {
+        ServerData serverData = new ServerData ( "http://www.pdrone.org", "channel1", "secret", false );
+
+        LoggerListenerWrapper listener = mock ( LoggerListenerWrapper.class );
+        when ( listener.getLogger () ).thenReturn ( mock ( PrintStream.class ) );
+
+        final AtomicInteger ids = new AtomicInteger ();
+
+        try ( UploaderV2 uploader = spy ( new UploaderV2 ( getRunData (), listener, serverData ) ) )
+        {
+            for ( int i = 0; i < 6; i++ )
+            {
+                uploader.addArtifact ( folder.newFile (), "f" + i );
+            }
+            uploader.setParallelism ( 4 );
+            uploader.setAdaptiveParallelism ( true );
+
+            Executor executor = spy ( Executor.newInstance () );
+            doAnswer ( new Answer<Response> () {
+
+                @Override
+                public Response answer ( InvocationOnMock invocation ) throws Throwable
+                {
+                    // the server is overloaded once
+                    int id = ids.incrementAndGet ();
+                    return mockResponse ( buildResponse ( "id" + id, id == 1 ? 503 : 200 ) );
+                }
+            } ).when ( executor ).execute ( any ( Request.class ) );
+
+            doReturn ( mockDroneClient ( executor ) ).when ( uploader ).getClient ();
+
+            try
+            {
+                uploader.performUpload ();
+                fail ( "expected a IOException for the overloaded upload" );
+            }
+            catch ( IOException e )
+            {
+                // the other artifacts are uploaded with a lower limit
+            }
+
+            Assertions.assertThat ( uploader.getUploadedArtifacts () ).hasSize ( 5 );
+            Assertions.assertThat ( uploader.getAdaptiveLimit () ).isNotNull ();
+            Assertions.assertThat ( uploader.getAdaptiveLimit ().getLowest () ).isEqualTo ( 2 );
+            // the limit does not grow past the upload slots of the server
+            Assertions.assertThat ( uploader.getAdaptiveLimit ().getMax () ).isEqualTo ( UploadScheduler.get ().getMaxConcurrentUploads () );
+
+            UploaderResult result = new UploaderResult ();
+            result.setAdaptiveLimit ( uploader.getAdaptiveLimit () );
+            Assertions.assertThat ( result.getMinParallelism () ).isEqualTo ( 2 );
+            Assertions.assertThat ( result.getParallelism () ).isGreaterThanOrEqualTo ( 2 );
+        }
+    }
+
     @Test
     public void fails_to_upload_a_file () throws Exception
     {
@@ -178,6 +291,60 @@ public class UploaderV2Test extends AbstractUploaderTest
         }
     }
 
+    @Test
+    public void rejected_delta_is_uploaded_in_full () throws Exception
+    {
+        ServerData serverData = new ServerData ( "http://www.pdrone.org", "channel1", "secret", false );
+
+        LoggerListenerWrapper listener = mock ( LoggerListenerWrapper.class );
+        when ( listener.getLogger () ).thenReturn ( mock ( PrintStream.class ) );
+
+        byte[] content = new byte[100 * 1024];
+        new Random ( 1 ).nextBytes ( content );
+        File file = folder.newFile ();
+        FileUtils.writeByteArrayToFile ( file, content );
+
+        // the previous version differs in the last byte only
+        content[content.length - 1]++;
+        File previous = folder.newFile ();
+        FileUtils.writeByteArrayToFile ( previous, content );
+
+        File cacheDir = folder.newFolder ();
+        SignatureCache cache = new SignatureCache ( cacheDir, serverData.getServerURL (), serverData.getChannel () );
+        cache.store ( "f1", FileSignature.of ( previous ).withArtifactId ( "oldId" ) );
+
+        try ( UploaderV2 uploader = spy ( new UploaderV2 ( getRunData (), listener, serverData ) ) )
+        {
+            uploader.setSignatureCache ( cache );
+            uploader.addArtifact ( file, "f1" );
+
+            // the previous version was deleted from the server
+            Executor executor = spy ( Executor.newInstance () );
+            doReturn ( mockResponse ( buildResponse ( "oldId", 410 ) ), mockResponse ( buildResponse ( "f1Id", 200 ) ) ) //
+                    .when ( executor ).execute ( any ( Request.class ) );
+
+            doReturn ( mockDroneClient ( executor ) ).when ( uploader ).getClient ();
+
+            uploader.performUpload ();
+
+            ArgumentCaptor<Request> argument = ArgumentCaptor.forClass ( Request.class );
+            verify ( executor, times ( 2 ) ).execute ( argument.capture () );
+
+            Field requestField = ReflectionUtils.findField ( Request.class, "request" );
+            ReflectionUtils.makeAccessible ( requestField );
+            HttpUriRequest delta = (HttpUriRequest)ReflectionUtils.getField ( requestField, argument.getAllValues ().get ( 0 ) );
+            HttpUriRequest full = (HttpUriRequest)ReflectionUtils.getField ( requestField, argument.getAllValues ().get ( 1 ) );
+            assertThat ( delta.getURI ().getPath (), CoreMatchers.is ( "/api/v2/upload/delta/channel/channel1/f1" ) );
+            assertThat ( full.getURI ().getPath (), CoreMatchers.is ( "/api/v2/upload/channel/channel1/f1" ) );
+
+            Assertions.assertThat ( uploader.getUploadedArtifacts () ).extracting ( "id" ).containsExactly ( "f1Id" );
+        }
+
+        // the next delta is based on the uploaded version, and the delta was written to the cache and deleted
+        Assertions.assertThat ( cache.load ( "f1" ).getArtifactId () ).isEqualTo ( "f1Id" );
+        Assertions.assertThat ( cacheDir.list () ).hasSize ( 1 );
+    }
+
     @Override
     protected HttpResponse buildResponse ( Object payload, int statusCode ) throws Exception
     {
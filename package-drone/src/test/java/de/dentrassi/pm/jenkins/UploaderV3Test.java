@@ -20,18 +20,29 @@ import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.net.URI;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.ProtocolVersion;
 import org.apache.http.client.fluent.Executor;
@@ -55,7 +66,9 @@ import org.mockito.ArgumentCaptor;
 import com.google.gson.Gson;
 
 import de.dentrassi.pm.jenkins.UploaderResult.ArtifactResult;
+import de.dentrassi.pm.jenkins.http.Checksums;
 import de.dentrassi.pm.jenkins.util.LoggerListenerWrapper;
+import jenkins.util.VirtualFile;
 
 public class UploaderV3Test extends AbstractUploaderTest
 {
@@ -139,6 +152,99 @@ public class UploaderV3Test extends AbstractUploaderTest
         Assertions.assertThat ( uploadedArtifacts ).extracting ( "name" ).containsAll ( artifacts.keySet () );
     }
 
+    @Test
+    public void stream_archived_artifacts () throws Exception
+    {
+        ServerData serverData = new ServerData ( "http://www.pdrone.org", "channel1", "secret", true );
+
+        LoggerListenerWrapper listener = mock ( LoggerListenerWrapper.class );
+        when ( listener.getLogger () ).thenReturn ( mock ( PrintStream.class ) );
+
+        Executor executor = mockExecutor ();
+        doReturn ( mockResponse ( buildResponse ( new UploadResult (), 200 ) ) ).when ( executor ).execute ( any ( Request.class ) );
+
+        try ( UploaderV3 uploader = spy ( new UploaderV3 ( getRunData (), listener, serverData ) ) )
+        {
+            doReturn ( mockDroneClient ( executor ) ).when ( uploader ).getClient ();
+
+            uploader.addArtifact ( mockArchivedArtifact ( "content 1" ), "dir/f1.jar" );
+            uploader.addArtifact ( mockArchivedArtifact ( "content 2" ), "dir/f2.jar" );
+            uploader.performUpload ();
+        }
+
+        ArgumentCaptor<Request> argument = ArgumentCaptor.forClass ( Request.class );
+        verify ( executor ).execute ( argument.capture () );
+        HttpEntityEnclosingRequest put = (HttpEntityEnclosingRequest)ReflectionUtils.getValueIncludingSuperclasses ( "request", argument.getValue () );
+        assertTrue ( put.getEntity ().isChunked () );
+
+        // the archive is written while sending the request
+        ByteArrayOutputStream body = new ByteArrayOutputStream ();
+        put.getEntity ().writeTo ( body );
+
+        Map<String, String> entries = new HashMap<> ();
+        try ( ZipInputStream zip = new ZipInputStream ( new ByteArrayInputStream ( body.toByteArray () ) ) )
+        {
+            ZipEntry entry;
+            while ( ( entry = zip.getNextEntry () ) != null )
+            {
+                entries.put ( entry.getName (), IOUtils.toString ( zip, "UTF-8" ) );
+            }
+        }
+        Assertions.assertThat ( entries.values () ).contains ( "dir/f1.jar", "content 1", "dir/f2.jar", "content 2" );
+    }
+
+    @Test
+    public void children_are_nested_into_their_parent () throws Exception
+    {
+        ServerData serverData = new ServerData ( "http://www.pdrone.org", "channel1", "secret", true );
+
+        LoggerListenerWrapper listener = mock ( LoggerListenerWrapper.class );
+        when ( listener.getLogger () ).thenReturn ( mock ( PrintStream.class ) );
+
+        Executor executor = mockExecutor ();
+        doReturn ( mockResponse ( buildResponse ( new UploadResult (), 200 ) ) ).when ( executor ).execute ( any ( Request.class ) );
+
+        try ( UploaderV3 uploader = spy ( new UploaderV3 ( getRunData (), listener, serverData ) ) )
+        {
+            doReturn ( mockDroneClient ( executor ) ).when ( uploader ).getClient ();
+
+            VirtualFile parent = mockArchivedArtifact ( "bundle" );
+            uploader.addChildArtifact ( mockArchivedArtifact ( "signature" ), "f1.jar.asc", parent );
+            uploader.addArtifact ( parent, "f1.jar" );
+            uploader.performUpload ();
+        }
+
+        ArgumentCaptor<Request> argument = ArgumentCaptor.forClass ( Request.class );
+        verify ( executor ).execute ( argument.capture () );
+        HttpEntityEnclosingRequest put = (HttpEntityEnclosingRequest)ReflectionUtils.getValueIncludingSuperclasses ( "request", argument.getValue () );
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream ();
+        put.getEntity ().writeTo ( body );
+
+        Map<String, String> entries = new HashMap<> ();
+        try ( ZipInputStream zip = new ZipInputStream ( new ByteArrayInputStream ( body.toByteArray () ) ) )
+        {
+            ZipEntry entry;
+            while ( ( entry = zip.getNextEntry () ) != null )
+            {
+                entries.put ( IOUtils.toString ( zip, "UTF-8" ), entry.getName () );
+            }
+        }
+
+        String parentPath = entries.get ( "bundle" ).replace ( "/content", "" );
+        Assertions.assertThat ( entries.get ( "signature" ) ).startsWith ( parentPath + "/artifacts/" );
+        Assertions.assertThat ( entries.get ( "f1.jar.asc" ) ).startsWith ( parentPath + "/artifacts/" );
+    }
+
+    private VirtualFile mockArchivedArtifact ( String content ) throws IOException
+    {
+        VirtualFile file = mock ( VirtualFile.class );
+        byte[] bytes = content.getBytes ( "UTF-8" );
+        when ( file.length () ).thenReturn ( (long)bytes.length );
+        when ( file.open () ).thenReturn ( new ByteArrayInputStream ( bytes ) );
+        return file;
+    }
+
     private UploadResult createHTTPResult ( UploaderV3 uploader, String channelId, Map<String, String> artifacts ) throws IOException
     {
         UploadResult result = new UploadResult ();
@@ -157,6 +263,92 @@ public class UploaderV3Test extends AbstractUploaderTest
         return result;
     }
 
+    @Test
+    public void fails_when_server_reports_other_checksums () throws Exception
+    {
+        ServerData serverData = new ServerData ( "http://www.pdrone.org", "channel1", "secret", true );
+
+        LoggerListenerWrapper listener = mock ( LoggerListenerWrapper.class );
+        when ( listener.getLogger () ).thenReturn ( mock ( PrintStream.class ) );
+
+        File file = folder.newFile ();
+        FileUtils.writeStringToFile ( file, "content", "UTF-8" );
+
+        UploadResult payload = new UploadResult ();
+        ArtifactInformation ai = new ArtifactInformation ();
+        ai.setId ( "id1" );
+        ai.setName ( "f1.jar" );
+        ai.setChecksums ( Collections.singletonMap ( Checksums.SHA256, DigestUtils.sha256Hex ( "other content" ) ) );
+        payload.getCreatedArtifacts ().add ( ai );
+
+        Executor executor = mockExecutor ();
+        doReturn ( mockResponse ( buildResponse ( payload, 200 ) ) ).when ( executor ).execute ( any ( Request.class ) );
+
+        try ( UploaderV3 uploader = spy ( new UploaderV3 ( getRunData (), listener, serverData ) ) )
+        {
+            doReturn ( mockDroneClient ( executor ) ).when ( uploader ).getClient ();
+
+            uploader.addArtifact ( file, "f1.jar" );
+            try
+            {
+                uploader.performUpload ();
+                fail ( "expected a IOException because of the different checksum" );
+            }
+            catch ( IOException e )
+            {
+                assertThat ( e.getMessage (), CoreMatchers.containsString ( "f1.jar" ) );
+            }
+
+            // a matching checksum is accepted
+            ai.setChecksums ( Collections.singletonMap ( Checksums.SHA256, DigestUtils.sha256Hex ( "content" ) ) );
+            doReturn ( mockResponse ( buildResponse ( payload, 200 ) ) ).when ( executor ).execute ( any ( Request.class ) );
+            uploader.performUpload ();
+        }
+    }
+
+    private static ArtifactInformation createArtifact ( String id, String parentId, String name, String content )
+    {
+        ArtifactInformation ai = new ArtifactInformation ();
+        ai.setId ( id );
+        ai.setParentId ( parentId );
+        ai.setName ( name );
+        ai.setChecksums ( Collections.singletonMap ( Checksums.SHA256, DigestUtils.sha256Hex ( content ) ) );
+        return ai;
+    }
+
+    @Test
+    public void checksums_of_artifacts_with_the_same_name_are_not_mixed_up () throws Exception
+    {
+        ServerData serverData = new ServerData ( "http://www.pdrone.org", "channel1", "secret", true );
+
+        LoggerListenerWrapper listener = mock ( LoggerListenerWrapper.class );
+        when ( listener.getLogger () ).thenReturn ( mock ( PrintStream.class ) );
+
+        UploadResult payload = new UploadResult ();
+        payload.getCreatedArtifacts ().add ( createArtifact ( "id1", null, "f1.jar", "bundle1" ) );
+        payload.getCreatedArtifacts ().add ( createArtifact ( "id2", "id1", "f.jar.asc", "signature1" ) );
+        payload.getCreatedArtifacts ().add ( createArtifact ( "id3", null, "f2.jar", "bundle2" ) );
+        payload.getCreatedArtifacts ().add ( createArtifact ( "id4", "id3", "f.jar.asc", "signature2" ) );
+
+        Executor executor = mockExecutor ();
+        doReturn ( mockResponse ( buildResponse ( payload, 200 ) ) ).when ( executor ).execute ( any ( Request.class ) );
+
+        try ( UploaderV3 uploader = spy ( new UploaderV3 ( getRunData (), listener, serverData ) ) )
+        {
+            doReturn ( mockDroneClient ( executor ) ).when ( uploader ).getClient ();
+
+            VirtualFile parent1 = mockArchivedArtifact ( "bundle1" );
+            VirtualFile parent2 = mockArchivedArtifact ( "bundle2" );
+            uploader.addArtifact ( parent1, "f1.jar" );
+            uploader.addChildArtifact ( mockArchivedArtifact ( "signature1" ), "f.jar.asc", parent1 );
+            uploader.addArtifact ( parent2, "f2.jar" );
+            uploader.addChildArtifact ( mockArchivedArtifact ( "signature2" ), "f.jar.asc", parent2 );
+
+            // each signature is compared with its own content
+            uploader.performUpload ();
+        }
+    }
+
     @Test
     public void fails_to_create_payload () throws Exception
     {
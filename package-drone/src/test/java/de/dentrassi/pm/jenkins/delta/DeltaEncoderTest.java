@@ -0,0 +1,186 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBH SYSTEMS GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBH SYSTEMS GmbH - initial API and implementation
+ *******************************************************************************/
+package de.dentrassi.pm.jenkins.delta;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.hamcrest.CoreMatchers;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DeltaEncoderTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder ();
+
+    @Test
+    public void unchanged_file_is_copied () throws Exception
+    {
+        byte[] content = randomBytes ( 300 * 1024 + 17 );
+
+        byte[] delta = encode ( signatureOf ( content ), content );
+
+        Assert.assertArrayEquals ( content, apply ( content, delta ) );
+        Assert.assertThat ( delta.length, CoreMatchers.is ( CoreMatchers.not ( CoreMatchers.equalTo ( 0 ) ) ) );
+        Assert.assertTrue ( "delta of an unchanged file should be tiny", delta.length < 1024 );
+    }
+
+    @Test
+    public void inserted_bytes_are_found_at_any_offset () throws Exception
+    {
+        byte[] original = randomBytes ( 500 * 1024 );
+
+        // insert some bytes in the middle, shifting all following blocks
+        byte[] changed = new byte[original.length + 100];
+        System.arraycopy ( original, 0, changed, 0, 1000 );
+        System.arraycopy ( randomBytes ( 100 ), 0, changed, 1000, 100 );
+        System.arraycopy ( original, 1000, changed, 1100, original.length - 1000 );
+
+        byte[] delta = encode ( signatureOf ( original ), changed );
+
+        Assert.assertArrayEquals ( changed, apply ( original, delta ) );
+        Assert.assertTrue ( "delta should contain only the changed blocks", delta.length < 10 * 1024 );
+    }
+
+    @Test
+    public void truncated_and_appended_files () throws Exception
+    {
+        byte[] original = randomBytes ( 200 * 1024 + 5 );
+
+        byte[] truncated = Arrays.copyOf ( original, 150 * 1024 + 3 );
+        Assert.assertArrayEquals ( truncated, apply ( original, encode ( signatureOf ( original ), truncated ) ) );
+
+        byte[] appended = Arrays.copyOf ( original, original.length + 4000 );
+        System.arraycopy ( randomBytes ( 4000 ), 0, appended, original.length, 4000 );
+        Assert.assertArrayEquals ( appended, apply ( original, encode ( signatureOf ( original ), appended ) ) );
+
+        byte[] empty = new byte[0];
+        Assert.assertArrayEquals ( empty, apply ( original, encode ( signatureOf ( original ), empty ) ) );
+    }
+
+    @Test
+    public void encoding_returns_the_signature_of_the_new_content () throws Exception
+    {
+        byte[] original = randomBytes ( 100 * 1024 );
+        byte[] changed = randomBytes ( 120 * 1024 );
+
+        FileSignature signature = DeltaEncoder.encode ( signatureOf ( original ), new ByteArrayInputStream ( changed ), new ByteArrayOutputStream () );
+
+        // the returned signature is good to encode the next version
+        Assert.assertThat ( signature.getLength (), CoreMatchers.is ( (long)changed.length ) );
+        byte[] delta = encode ( signature, changed );
+        Assert.assertArrayEquals ( changed, apply ( changed, delta ) );
+        Assert.assertTrue ( delta.length < 1024 );
+    }
+
+    @Test
+    public void encoding_stops_when_the_delta_is_not_smaller () throws Exception
+    {
+        byte[] original = randomBytes ( 100 * 1024 );
+        byte[] changed = randomBytes ( 120 * 1024 );
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream ();
+        FileSignature signature = DeltaEncoder.encode ( signatureOf ( original ), new ByteArrayInputStream ( changed ), out, changed.length );
+
+        Assert.assertThat ( signature, CoreMatchers.nullValue () );
+        Assert.assertTrue ( "encoding should stop at the limit", out.size () <= changed.length );
+
+        // a small change is encoded within the same limit
+        byte[] similar = Arrays.copyOf ( original, original.length );
+        similar[similar.length / 2]++;
+        Assert.assertThat ( DeltaEncoder.encode ( signatureOf ( original ), new ByteArrayInputStream ( similar ), new ByteArrayOutputStream (), similar.length ), CoreMatchers.notNullValue () );
+    }
+
+    @Test
+    public void signatures_are_stored_in_the_cache () throws Exception
+    {
+        SignatureCache cache = new SignatureCache ( folder.newFolder (), "http://pdrone.org", "channel" );
+        Assert.assertThat ( cache.load ( "file.bin" ), CoreMatchers.nullValue () );
+
+        File file = folder.newFile ();
+        FileUtils.writeByteArrayToFile ( file, randomBytes ( 70 * 1024 ) );
+        cache.store ( "file.bin", FileSignature.of ( file ).withArtifactId ( "a1" ) );
+
+        FileSignature loaded = cache.load ( "file.bin" );
+        Assert.assertThat ( loaded.getArtifactId (), CoreMatchers.is ( "a1" ) );
+        Assert.assertThat ( loaded.getLength (), CoreMatchers.is ( file.length () ) );
+        Assert.assertThat ( loaded.getBlockCount (), CoreMatchers.is ( FileSignature.of ( file ).getBlockCount () ) );
+    }
+
+    private static FileSignature signatureOf ( byte[] content )
+    {
+        FileSignature.Builder builder = new FileSignature.Builder ( FileSignature.blockSizeFor ( content.length ) );
+        builder.update ( content, 0, content.length );
+        return builder.build ();
+    }
+
+    private static byte[] encode ( FileSignature signature, byte[] content ) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream ();
+        DeltaEncoder.encode ( signature, new ByteArrayInputStream ( content ), out );
+        return out.toByteArray ();
+    }
+
+    /**
+     * Rebuilds a file like the server does.
+     */
+    static byte[] apply ( byte[] base, byte[] delta ) throws IOException
+    {
+        return apply ( base, new ByteArrayInputStream ( delta ) );
+    }
+
+    static byte[] apply ( byte[] base, InputStream delta ) throws IOException
+    {
+        DataInputStream in = new DataInputStream ( delta );
+        Assert.assertThat ( in.readInt (), CoreMatchers.is ( DeltaEncoder.MAGIC ) );
+        int blockSize = in.readInt ();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream ();
+        while ( true )
+        {
+            int op = in.readByte ();
+            switch ( op )
+            {
+                case DeltaEncoder.OP_COPY:
+                    int offset = in.readInt () * blockSize;
+                    out.write ( base, offset, Math.min ( blockSize, base.length - offset ) );
+                    break;
+                case DeltaEncoder.OP_DATA:
+                    byte[] data = new byte[in.readInt ()];
+                    in.readFully ( data );
+                    out.write ( data );
+                    break;
+                case DeltaEncoder.OP_END:
+                    return out.toByteArray ();
+                default:
+                    throw new IOException ( "Unknown operation " + op );
+            }
+        }
+    }
+
+    private static byte[] randomBytes ( int size )
+    {
+        byte[] result = new byte[size];
+        new Random ( size ).nextBytes ( result );
+        return result;
+    }
+
+}
@@ -0,0 +1,125 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBH SYSTEMS GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBH SYSTEMS GmbH - initial API and implementation
+ *******************************************************************************/
+package de.dentrassi.pm.jenkins.http;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+public class AdaptiveLimitTest
+{
+    private static long ms ( final long millis )
+    {
+        return TimeUnit.MILLISECONDS.toNanos ( millis );
+    }
+
+    @Test
+    public void grows_while_the_limit_is_used () throws Exception
+    {
+        AdaptiveLimit limit = new AdaptiveLimit ( 2, 1, 16 );
+        limit.acquire ();
+        limit.acquire ();
+
+        for ( int i = 0; i < 10; i++ )
+        {
+            limit.onResponse ( ms ( i * 1000 ), ms ( i * 1000 + 500 ), 1024, 200 );
+        }
+
+        Assertions.assertThat ( limit.getLimit () ).isGreaterThan ( 2 );
+        Assertions.assertThat ( limit.getHighest () ).isEqualTo ( limit.getLimit () );
+        Assertions.assertThat ( limit.getLowest () ).isEqualTo ( 2 );
+    }
+
+    @Test
+    public void does_not_grow_when_the_limit_is_not_used () throws Exception
+    {
+        AdaptiveLimit limit = new AdaptiveLimit ( 8, 1, 16 );
+        limit.acquire ();
+
+        for ( int i = 0; i < 10; i++ )
+        {
+            limit.onResponse ( ms ( i * 1000 ), ms ( i * 1000 + 500 ), 1024, 200 );
+        }
+
+        Assertions.assertThat ( limit.getLimit () ).isEqualTo ( 8 );
+    }
+
+    @Test
+    public void overloaded_server_halves_the_limit_once () throws Exception
+    {
+        AdaptiveLimit limit = new AdaptiveLimit ( 8, 1, 16 );
+
+        limit.onResponse ( ms ( 0 ), ms ( 100 ), 1024, 503 );
+        Assertions.assertThat ( limit.getLimit () ).isEqualTo ( 4 );
+
+        // sent before the first answer, under the old limit
+        limit.onResponse ( ms ( 50 ), ms ( 120 ), 1024, 429 );
+        Assertions.assertThat ( limit.getLimit () ).isEqualTo ( 4 );
+
+        limit.onResponse ( ms ( 150 ), ms ( 200 ), 1024, 429 );
+        Assertions.assertThat ( limit.getLimit () ).isEqualTo ( 2 );
+
+        limit.onFailure ( ms ( 250 ), ms ( 300 ) );
+        limit.onFailure ( ms ( 350 ), ms ( 400 ) );
+        Assertions.assertThat ( limit.getLimit () ).isEqualTo ( 1 );
+        Assertions.assertThat ( limit.getLowest () ).isEqualTo ( 1 );
+    }
+
+    @Test
+    public void slow_responses_reduce_the_limit () throws Exception
+    {
+        AdaptiveLimit limit = new AdaptiveLimit ( 10, 1, 16 );
+
+        limit.onResponse ( ms ( 0 ), ms ( 1000 ), 1024, 200 );
+        limit.onResponse ( ms ( 2000 ), ms ( 3000 ), 1024, 200 );
+        Assertions.assertThat ( limit.getLimit () ).isEqualTo ( 10 );
+
+        // five times slower for the same amount of bytes
+        limit.onResponse ( ms ( 4000 ), ms ( 9000 ), 1024, 200 );
+        Assertions.assertThat ( limit.getLimit () ).isEqualTo ( 9 );
+
+        // a larger upload taking longer is not slow
+        limit.onResponse ( ms ( 10000 ), ms ( 60000 ), 100 * 65536, 200 );
+        Assertions.assertThat ( limit.getLimit () ).isEqualTo ( 9 );
+    }
+
+    @Test
+    public void acquire_waits_for_a_release () throws Exception
+    {
+        final AdaptiveLimit limit = new AdaptiveLimit ( 1, 1, 4 );
+        limit.acquire ();
+
+        final CountDownLatch acquired = new CountDownLatch ( 1 );
+        Thread thread = new Thread () {
+            @Override
+            public void run ()
+            {
+                try
+                {
+                    limit.acquire ();
+                    acquired.countDown ();
+                }
+                catch ( final Exception e )
+                {
+                    // the latch is not released
+                }
+            }
+        };
+        thread.start ();
+
+        Assertions.assertThat ( acquired.await ( 200, TimeUnit.MILLISECONDS ) ).isFalse ();
+        limit.release ();
+        Assertions.assertThat ( acquired.await ( 10, TimeUnit.SECONDS ) ).isTrue ();
+    }
+
+}
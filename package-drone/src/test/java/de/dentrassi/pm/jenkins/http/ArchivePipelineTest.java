@@ -0,0 +1,216 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBH SYSTEMS GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBH SYSTEMS GmbH - initial API and implementation
+ *******************************************************************************/
+package de.dentrassi.pm.jenkins.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.entity.ContentProducer;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ArchivePipelineTest
+{
+    @Test
+    public void body_is_sent_unchanged () throws Exception
+    {
+        final byte[] content = new byte[100 * 1024 + 17];
+        new Random ( 42 ).nextBytes ( content );
+
+        ArchivePipeline pipeline = new ArchivePipeline ( new ContentProducer () {
+
+            @Override
+            public void writeTo ( OutputStream out ) throws IOException
+            {
+                // mix single bytes and chunks of any size
+                int off = 0;
+                int chunk = 1;
+                while ( off < content.length )
+                {
+                    if ( chunk % 5 == 0 )
+                    {
+                        out.write ( content[off++] );
+                    }
+                    else
+                    {
+                        int len = Math.min ( chunk, content.length - off );
+                        out.write ( content, off, len );
+                        off += len;
+                    }
+                    chunk = chunk * 3 % 2011;
+                }
+            }
+        }, 3, 1024 );
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream ();
+        pipeline.writeTo ( out );
+
+        Assert.assertArrayEquals ( content, out.toByteArray () );
+        Assert.assertTrue ( pipeline.getMaxOccupancy () <= 3 );
+
+        // the pool is reused when the request is retried
+        out.reset ();
+        pipeline.writeTo ( out );
+        Assert.assertArrayEquals ( content, out.toByteArray () );
+    }
+
+    @Test
+    public void producer_blocks_when_the_connection_stalls () throws Exception
+    {
+        final CountDownLatch filledUp = new CountDownLatch ( 1 );
+        final AtomicLong produced = new AtomicLong ();
+        final ArchivePipeline pipeline = new ArchivePipeline ( new ContentProducer () {
+
+            @Override
+            public void writeTo ( OutputStream out ) throws IOException
+            {
+                // each chunk fills exactly one buffer
+                byte[] chunk = new byte[1024];
+                for ( int i = 0; i < 1000; i++ )
+                {
+                    out.write ( chunk );
+                    if ( produced.addAndGet ( chunk.length ) == 4 * 1024 )
+                    {
+                        filledUp.countDown ();
+                    }
+                }
+            }
+        }, 4, 1024 );
+
+        final CountDownLatch sending = new CountDownLatch ( 1 );
+        final CountDownLatch stalled = new CountDownLatch ( 1 );
+        final AtomicLong sent = new AtomicLong ();
+        final OutputStream connection = new OutputStream () {
+
+            @Override
+            public void write ( int b ) throws IOException
+            {
+                write ( new byte[] { (byte)b }, 0, 1 );
+            }
+
+            @Override
+            public void write ( byte[] b, int off, int len ) throws IOException
+            {
+                sending.countDown ();
+                try
+                {
+                    stalled.await ();
+                }
+                catch ( InterruptedException e )
+                {
+                    throw new IOException ( e );
+                }
+                sent.addAndGet ( len );
+            }
+        };
+
+        Thread sender = new Thread () {
+
+            @Override
+            public void run ()
+            {
+                try
+                {
+                    pipeline.writeTo ( connection );
+                }
+                catch ( IOException e )
+                {
+                    throw new IllegalStateException ( e );
+                }
+            }
+        };
+        sender.start ();
+
+        Assert.assertTrue ( sending.await ( 10, TimeUnit.SECONDS ) );
+        Assert.assertTrue ( filledUp.await ( 10, TimeUnit.SECONDS ) );
+
+        // one buffer is being sent, the others are filled, the producer waits for a free one
+        Assert.assertEquals ( 4 * 1024, produced.get () );
+        Assert.assertEquals ( 3, pipeline.getOccupancy () );
+
+        stalled.countDown ();
+        sender.join ( TimeUnit.SECONDS.toMillis ( 10 ) );
+
+        Assert.assertEquals ( 1000 * 1024, sent.get () );
+        // all buffers may have been filled before the first one was taken
+        Assert.assertTrue ( pipeline.getMaxOccupancy () >= 3 && pipeline.getMaxOccupancy () <= 4 );
+    }
+
+    @Test ( timeout = 10000 )
+    public void failed_sends_return_their_buffer () throws Exception
+    {
+        ArchivePipeline pipeline = new ArchivePipeline ( new ContentProducer () {
+
+            @Override
+            public void writeTo ( OutputStream out ) throws IOException
+            {
+                out.write ( new byte[5000] );
+            }
+        }, 2, 1024 );
+
+        final OutputStream broken = new OutputStream () {
+
+            @Override
+            public void write ( int b ) throws IOException
+            {
+                throw new IOException ( "connection reset" );
+            }
+        };
+
+        // more failures than buffers, a lost buffer would block the retry
+        for ( int i = 0; i < 3; i++ )
+        {
+            try
+            {
+                pipeline.writeTo ( broken );
+                Assert.fail ( "expected a failure" );
+            }
+            catch ( IOException e )
+            {
+                Assert.assertEquals ( "connection reset", e.getMessage () );
+            }
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream ();
+        pipeline.writeTo ( out );
+        Assert.assertEquals ( 5000, out.size () );
+    }
+
+    @Test
+    public void producer_failure_fails_the_request () throws Exception
+    {
+        ArchivePipeline pipeline = new ArchivePipeline ( new ContentProducer () {
+
+            @Override
+            public void writeTo ( OutputStream out ) throws IOException
+            {
+                out.write ( new byte[5000] );
+                throw new IOException ( "artifact not readable" );
+            }
+        }, 2, 1024 );
+
+        try
+        {
+            pipeline.writeTo ( new ByteArrayOutputStream () );
+            Assert.fail ( "expected a failure" );
+        }
+        catch ( IOException e )
+        {
+            Assert.assertEquals ( "artifact not readable", e.getMessage () );
+        }
+    }
+
+}
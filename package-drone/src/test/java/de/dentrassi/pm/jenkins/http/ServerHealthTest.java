@@ -0,0 +1,228 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBH SYSTEMS GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBH SYSTEMS GmbH - initial API and implementation
+ *******************************************************************************/
+package de.dentrassi.pm.jenkins.http;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.message.BasicHeader;
+import org.assertj.core.api.Assertions;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class ServerHealthTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder ();
+
+    @Test
+    public void retry_after_delays_the_next_requests () throws Exception
+    {
+        ServerHealth health = new ServerHealth ( "server", 5, 10000, 10000, 5000 );
+        health.onResponse ( false, 429, new BasicHeader ( "Retry-After", "1" ) );
+
+        long start = System.currentTimeMillis ();
+        Assert.assertFalse ( health.beforeRequest () );
+        Assertions.assertThat ( System.currentTimeMillis () - start ).isGreaterThanOrEqualTo ( 900 );
+    }
+
+    @Test
+    public void retry_after_longer_than_the_maximum_wait_fails_fast () throws Exception
+    {
+        ServerHealth health = new ServerHealth ( "server", 5, 10000, 10000, 100 );
+        health.onResponse ( false, 503, new BasicHeader ( "Retry-After", "60" ) );
+
+        try
+        {
+            health.beforeRequest ();
+            Assert.fail ( "expected the request to be refused" );
+        }
+        catch ( final ServerUnavailableException e )
+        {
+            Assertions.assertThat ( e.getRetryAfter () ).isGreaterThan ( 50000 );
+        }
+    }
+
+    @Test
+    public void retry_after_as_date () throws Exception
+    {
+        long now = System.currentTimeMillis ();
+        long delay = ServerHealth.parseRetryAfter ( new BasicHeader ( "Retry-After", DateUtils.formatDate ( new Date ( now + 5000 ) ) ), now );
+
+        Assertions.assertThat ( delay ).isBetween ( 3900L, 5000L );
+        Assertions.assertThat ( ServerHealth.parseRetryAfter ( new BasicHeader ( "Retry-After", "soon" ), now ) ).isNegative ();
+    }
+
+    @Test
+    public void circuit_opens_and_probes_the_server () throws Exception
+    {
+        final ServerHealth health = new ServerHealth ( "server", 3, 200, 1000, 0 );
+        for ( int i = 0; i < 3; i++ )
+        {
+            health.onFailure ( false );
+        }
+        Assert.assertTrue ( health.isOpen () );
+        assertRefused ( health );
+
+        Thread.sleep ( 250 );
+
+        // a single probe at a time, the others wait for it even beyond the maximum wait
+        Assert.assertTrue ( health.beforeRequest () );
+        final BlockingQueue<Boolean> waiting = new LinkedBlockingQueue<> ();
+        Thread thread = new Thread () {
+            @Override
+            public void run ()
+            {
+                try
+                {
+                    waiting.add ( health.beforeRequest () );
+                }
+                catch ( final IOException e )
+                {
+                    // nothing is added
+                }
+            }
+        };
+        thread.start ();
+        Assert.assertNull ( waiting.poll ( 200, TimeUnit.MILLISECONDS ) );
+
+        // the waiting request sends the next probe
+        health.onResponse ( true, 200, null );
+        Assert.assertEquals ( Boolean.TRUE, waiting.poll ( 10, TimeUnit.SECONDS ) );
+        health.onResponse ( true, 200, null );
+
+        Assert.assertTrue ( health.beforeRequest () );
+        health.onResponse ( true, 200, null );
+
+        Assert.assertFalse ( health.isOpen () );
+        Assert.assertFalse ( health.beforeRequest () );
+        Assert.assertFalse ( health.beforeRequest () );
+    }
+
+    @Test
+    public void failed_probe_keeps_the_circuit_open_longer () throws Exception
+    {
+        ServerHealth health = new ServerHealth ( "server", 1, 200, 1000, 0 );
+        health.onResponse ( false, 502, null );
+
+        Thread.sleep ( 250 );
+        Assert.assertTrue ( health.beforeRequest () );
+        health.onFailure ( true );
+
+        // open for twice as long now
+        Thread.sleep ( 250 );
+        assertRefused ( health );
+        Thread.sleep ( 250 );
+        Assert.assertTrue ( health.beforeRequest () );
+    }
+
+    @Test
+    public void other_errors_do_not_open_the_circuit () throws Exception
+    {
+        ServerHealth health = new ServerHealth ( "server", 2, 200, 1000, 0 );
+        health.onResponse ( false, 500, null );
+        health.onResponse ( false, 404, null );
+        health.onResponse ( false, 500, null );
+
+        Assert.assertFalse ( health.isOpen () );
+    }
+
+    @Test
+    public void client_sends_the_request_again_after_retry_after () throws Exception
+    {
+        final AtomicInteger requests = new AtomicInteger ();
+        HttpServer server = HttpServer.create ( new InetSocketAddress ( "127.0.0.1", 0 ), 0 );
+        server.createContext ( "/api/v2/upload/channel/", new HttpHandler () {
+            @Override
+            public void handle ( final HttpExchange exchange ) throws IOException
+            {
+                try ( InputStream in = exchange.getRequestBody () )
+                {
+                    while ( in.read () >= 0 )
+                    {
+                        // drain the upload
+                    }
+                }
+
+                final byte[] payload;
+                if ( requests.incrementAndGet () == 1 )
+                {
+                    exchange.getResponseHeaders ().add ( "Retry-After", "1" );
+                    payload = "busy".getBytes ( "UTF-8" );
+                    exchange.sendResponseHeaders ( 429, payload.length );
+                }
+                else
+                {
+                    payload = "artifact-id".getBytes ( "UTF-8" );
+                    exchange.sendResponseHeaders ( 200, payload.length );
+                }
+                try ( OutputStream out = exchange.getResponseBody () )
+                {
+                    out.write ( payload );
+                }
+            }
+        } );
+        server.start ();
+
+        File file = folder.newFile ();
+        FileUtils.writeStringToFile ( file, "content", "UTF-8" );
+
+        try ( DroneClient client = new DroneClient () )
+        {
+            client.setServerURL ( "http://127.0.0.1:" + server.getAddress ().getPort () );
+            client.setCredentials ( "deploy", "secret" );
+            client.setChannel ( "channel1" );
+
+            long start = System.currentTimeMillis ();
+            HttpResponse response = client.uploadToChannelV2 ( Collections.<String, String> emptyMap (), "a.jar", file );
+
+            Assert.assertEquals ( 200, response.getStatusLine ().getStatusCode () );
+            Assert.assertEquals ( 2, requests.get () );
+            Assertions.assertThat ( System.currentTimeMillis () - start ).isGreaterThanOrEqualTo ( 900 );
+        }
+        finally
+        {
+            server.stop ( 0 );
+        }
+    }
+
+    private static void assertRefused ( final ServerHealth health ) throws IOException
+    {
+        try
+        {
+            health.beforeRequest ();
+            Assert.fail ( "expected the request to be refused" );
+        }
+        catch ( final ServerUnavailableException e )
+        {
+            // the circuit is open
+        }
+    }
+
+}
@@ -0,0 +1,119 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBH SYSTEMS GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBH SYSTEMS GmbH - initial API and implementation
+ *******************************************************************************/
+package de.dentrassi.pm.jenkins.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.http.entity.FileEntity;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TokenBucketTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder ();
+
+    @Test
+    public void entity_is_sent_no_faster_than_the_limit () throws Exception
+    {
+        File file = folder.newFile ();
+        byte[] content = new byte[384 * 1024];
+        Arrays.fill ( content, (byte)7 );
+        FileUtils.writeByteArrayToFile ( file, content );
+
+        // 512 KiB/s with a burst of 128 KiB, the remaining 256 KiB take half a second
+        TokenBucket bucket = new TokenBucket ( 512 * 1024 );
+        ThrottledEntity entity = new ThrottledEntity ( new FileEntity ( file ), Arrays.asList ( bucket ) );
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream ();
+        long start = System.nanoTime ();
+        entity.writeTo ( out );
+        long elapsed = TimeUnit.NANOSECONDS.toMillis ( System.nanoTime () - start );
+
+        Assert.assertArrayEquals ( content, out.toByteArray () );
+        Assert.assertTrue ( "too fast: " + elapsed + "ms", elapsed >= 450 );
+        Assert.assertTrue ( "too slow: " + elapsed + "ms", elapsed < 2000 );
+    }
+
+    @Test
+    public void concurrent_uploads_share_the_bandwidth () throws Exception
+    {
+        final TokenBucket bucket = new TokenBucket ( 256 * 1024 );
+        final AtomicLong[] sent = { new AtomicLong (), new AtomicLong () };
+
+        Thread[] threads = new Thread[2];
+        for ( int i = 0; i < threads.length; i++ )
+        {
+            final AtomicLong counter = sent[i];
+            threads[i] = new Thread () {
+                @Override
+                public void run ()
+                {
+                    try
+                    {
+                        while ( true )
+                        {
+                            bucket.acquire ( 8 * 1024 );
+                            counter.addAndGet ( 8 * 1024 );
+                        }
+                    }
+                    catch ( InterruptedIOException e )
+                    {
+                        // done
+                    }
+                }
+            };
+            threads[i].start ();
+        }
+
+        Thread.sleep ( 1000 );
+        for ( Thread thread : threads )
+        {
+            thread.interrupt ();
+            thread.join ();
+        }
+
+        long total = sent[0].get () + sent[1].get ();
+        // one second of rate plus the initial burst
+        Assert.assertTrue ( "total " + total, total <= ( 256 + 64 + 16 ) * 1024 );
+        // neither upload is starved
+        Assert.assertTrue ( "unfair " + sent[0] + "/" + sent[1], Math.min ( sent[0].get (), sent[1].get () ) * 3 >= Math.max ( sent[0].get (), sent[1].get () ) );
+    }
+
+    @Test ( timeout = 5000 )
+    public void bucket_is_full_after_a_long_idle_time () throws Exception
+    {
+        final AtomicLong clock = new AtomicLong ();
+        TokenBucket bucket = new TokenBucket ( 10 * 1024 * 1024 ) {
+            @Override
+            protected long nanoTime ()
+            {
+                return clock.get ();
+            }
+        };
+
+        // drain the burst, then stay idle long enough to overflow the refill
+        bucket.acquire ( 10 * 1024 * 1024 / 4 );
+        clock.addAndGet ( TimeUnit.MINUTES.toNanos ( 20 ) );
+
+        // served from the refilled tokens, the clock does not move while waiting
+        bucket.acquire ( 1024 );
+    }
+
+}
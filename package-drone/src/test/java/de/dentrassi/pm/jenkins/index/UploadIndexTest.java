@@ -0,0 +1,139 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBH SYSTEMS GmbH and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBH SYSTEMS GmbH - initial API and implementation
+ *******************************************************************************/
+package de.dentrassi.pm.jenkins.index;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import org.apache.commons.io.FileUtils;
+import org.hamcrest.CoreMatchers;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class UploadIndexTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder ();
+
+    private File indexFile;
+
+    @Before
+    public void setUp ()
+    {
+        indexFile = new File ( folder.getRoot (), "index/job.idx" );
+    }
+
+    @Test
+    public void unchanged_files_are_found () throws Exception
+    {
+        File file1 = newFile ( "a.jar", "content 1" );
+        File file2 = newFile ( "b.jar", "content 2" );
+
+        UploadIndex index = UploadIndex.load ( indexFile, 2 );
+        Assert.assertThat ( index.findUnchanged ( file1, "a.jar" ), CoreMatchers.nullValue () );
+        index.add ( file1, "a.jar", new String[] { "a1", "a2" } );
+        index.add ( file2, "b.jar", new String[] { "b1", "b2" } );
+        index.store ();
+
+        index = UploadIndex.load ( indexFile, 2 );
+        Assert.assertThat ( index.findUnchanged ( file1, "a.jar" ), CoreMatchers.is ( new String[] { "a1", "a2" } ) );
+        Assert.assertThat ( index.findUnchanged ( file2, "other.jar" ), CoreMatchers.nullValue () );
+    }
+
+    @Test
+    public void touched_files_with_same_content_are_unchanged () throws Exception
+    {
+        File file = newFile ( "a.jar", "content" );
+
+        UploadIndex index = UploadIndex.load ( indexFile, 1 );
+        index.add ( file, "a.jar", new String[] { "a1" } );
+        index.store ();
+
+        // rebuilt with the same content
+        file.setLastModified ( file.lastModified () - 60000 );
+        index = UploadIndex.load ( indexFile, 1 );
+        Assert.assertThat ( index.findUnchanged ( file, "a.jar" ), CoreMatchers.is ( new String[] { "a1" } ) );
+
+        // rebuilt with a different content of the same size
+        FileUtils.writeStringToFile ( file, "CONTENT", "UTF-8" );
+        file.setLastModified ( file.lastModified () - 120000 );
+        index = UploadIndex.load ( indexFile, 1 );
+        Assert.assertThat ( index.findUnchanged ( file, "a.jar" ), CoreMatchers.nullValue () );
+    }
+
+    @Test
+    public void only_files_of_the_last_build_are_kept () throws Exception
+    {
+        File file1 = newFile ( "a.jar", "content 1" );
+        File file2 = newFile ( "b.jar", "content 2" );
+
+        UploadIndex index = UploadIndex.load ( indexFile, 1 );
+        index.add ( file1, "a.jar", new String[] { "a1" } );
+        index.add ( file2, "b.jar", new String[] { "b1" } );
+        index.store ();
+
+        // second build only finds a.jar
+        index = UploadIndex.load ( indexFile, 1 );
+        Assert.assertThat ( index.findUnchanged ( file1, "a.jar" ), CoreMatchers.is ( new String[] { "a1" } ) );
+        index.store ();
+
+        index = UploadIndex.load ( indexFile, 1 );
+        Assert.assertThat ( index.findUnchanged ( file1, "a.jar" ), CoreMatchers.is ( new String[] { "a1" } ) );
+        Assert.assertThat ( index.findUnchanged ( file2, "b.jar" ), CoreMatchers.nullValue () );
+    }
+
+    @Test
+    public void index_of_other_channels_or_broken_is_ignored () throws Exception
+    {
+        File file = newFile ( "a.jar", "content" );
+
+        UploadIndex index = UploadIndex.load ( indexFile, 1 );
+        index.add ( file, "a.jar", new String[] { "a1" } );
+        index.store ();
+
+        Assert.assertThat ( UploadIndex.load ( indexFile, 2 ).findUnchanged ( file, "a.jar" ), CoreMatchers.nullValue () );
+
+        FileUtils.writeStringToFile ( indexFile, "garbage", "UTF-8" );
+        Assert.assertThat ( UploadIndex.load ( indexFile, 1 ).findUnchanged ( file, "a.jar" ), CoreMatchers.nullValue () );
+    }
+
+    @Test
+    public void index_with_a_broken_count_is_ignored () throws Exception
+    {
+        File file = newFile ( "a.jar", "content" );
+
+        UploadIndex index = UploadIndex.load ( indexFile, 1 );
+        index.add ( file, "a.jar", new String[] { "a1" } );
+        index.store ();
+
+        // the count follows the magic, the version and the number of channels
+        for ( int count : new int[] { -1, Integer.MAX_VALUE, 2 } )
+        {
+            try ( RandomAccessFile raf = new RandomAccessFile ( indexFile, "rw" ) )
+            {
+                raf.seek ( 12 );
+                raf.writeInt ( count );
+            }
+            Assert.assertThat ( UploadIndex.load ( indexFile, 1 ).findUnchanged ( file, "a.jar" ), CoreMatchers.nullValue () );
+        }
+    }
+
+    private File newFile ( String name, String content ) throws Exception
+    {
+        File file = folder.newFile ( name );
+        FileUtils.writeStringToFile ( file, content, "UTF-8" );
+        return file;
+    }
+
+}